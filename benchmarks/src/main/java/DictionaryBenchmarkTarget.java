@@ -0,0 +1,27 @@
+import bench.DictionaryBenchmark;
+
+import java.rmi.RemoteException;
+
+/**
+ * Runs {@link bench.DictionaryBenchmark} against a single replica, not exported and not part of
+ * any consensus round.
+ */
+public class DictionaryBenchmarkTarget implements DictionaryBenchmark.Target {
+
+    private RMIImplement replica;
+
+    @Override
+    public void start() throws RemoteException {
+        replica = new RMIImplement(new RMIServer(), ShardMap.BASE_PORT);
+    }
+
+    @Override
+    public boolean prepare(String key, String value, String operation) throws RemoteException {
+        return replica.prepareToOperation(key, value, operation);
+    }
+
+    @Override
+    public void commit(String key, String value, String operation) throws RemoteException {
+        replica.finallyGotCommitSoReallyUpdate(key, value, operation);
+    }
+}
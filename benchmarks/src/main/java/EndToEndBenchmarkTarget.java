@@ -0,0 +1,44 @@
+import bench.EndToEndBenchmark;
+
+import java.rmi.RemoteException;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Runs {@link bench.EndToEndBenchmark}: starts the servers as {@link RMIServer#main} does and
+ * connects to every replica through the configured transport.
+ */
+public class EndToEndBenchmarkTarget implements EndToEndBenchmark.Target {
+
+    private final List<RMIInterface> stubs = new ArrayList<>();
+
+    @Override
+    public void start() throws Exception {
+        RMIServer.main(new String[0]);
+        ShardMap shardMap = ShardMap.fromConfig();
+        Transport transport = Transport.fromConfig();
+        for (int shard = 0; shard < shardMap.count(); shard++) {
+            for (int i = 0; i < ShardMap.REPLICAS_PER_SHARD; i++) {
+                int port = shardMap.portOf(shard, i);
+                stubs.add(transport.connect("localhost", port, shardMap.nameOf(port)));
+            }
+        }
+        // Multi-Paxos 模式下等 leader 选出来再开始计时
+        Thread.sleep(Boolean.getBoolean("paxos.multi") ? 2000 : 0);
+    }
+
+    @Override
+    public int replicas() {
+        return stubs.size();
+    }
+
+    @Override
+    public byte[] put(int replica, String key, String value) throws RemoteException {
+        return stubs.get(replica).put(key, value);
+    }
+
+    @Override
+    public byte[] get(int replica, String key) throws RemoteException {
+        return stubs.get(replica).get(key);
+    }
+}
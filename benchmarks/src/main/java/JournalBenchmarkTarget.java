@@ -0,0 +1,35 @@
+import bench.JournalBenchmark;
+
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.PrintStream;
+
+/**
+ * Runs {@link bench.JournalBenchmark} against {@link EventJournal} and {@code System.out}.
+ */
+public class JournalBenchmarkTarget implements JournalBenchmark.Target {
+
+    @Override
+    public void redirectStandardOutput(String path) {
+        try {
+            System.setOut(new PrintStream(new FileOutputStream(path), true));
+        } catch (FileNotFoundException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    @Override
+    public void println(String key, String value) {
+        System.out.println("Performed PUT operation: Key = " + key + ", Value = " + value);
+    }
+
+    @Override
+    public void emit(String key, String value) {
+        EventJournal.emit(EventJournal.Event.PERFORMED_PUT, key, value);
+    }
+
+    @Override
+    public long dropped() {
+        return Metrics.JOURNAL_DROPPED.sum();
+    }
+}
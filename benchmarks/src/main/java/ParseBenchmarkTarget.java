@@ -0,0 +1,35 @@
+import bench.ParseBenchmark;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Runs {@link bench.ParseBenchmark} against {@link RMIClient} and {@link Messages}.
+ */
+public class ParseBenchmarkTarget implements ParseBenchmark.Target {
+
+    private List<Messages.Command> batch;
+
+    @Override
+    public String[] parseCommand(String line) {
+        return RMIClient.processCommand(line);
+    }
+
+    @Override
+    public void prepareBatch(String[] keys, String[] values) {
+        batch = new ArrayList<>(keys.length);
+        for (int i = 0; i < keys.length; i++) {
+            batch.add(new Messages.Command(Messages.PUT, keys[i], values[i]));
+        }
+    }
+
+    @Override
+    public byte[] encodeBatch() {
+        return Messages.encodeBatch(batch);
+    }
+
+    @Override
+    public int decodeBatch(byte[] encoded) {
+        return Messages.decodeBatch(encoded).length;
+    }
+}
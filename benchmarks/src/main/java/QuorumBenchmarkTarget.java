@@ -0,0 +1,33 @@
+import bench.QuorumBenchmark;
+
+import java.rmi.RemoteException;
+
+/**
+ * Runs {@link bench.QuorumBenchmark} against one {@link RMIServer} whose replicas live in this JVM.
+ */
+public class QuorumBenchmarkTarget implements QuorumBenchmark.Target {
+
+    private RMIServer server;
+    private RMIInterface proposer;
+
+    @Override
+    public void start() throws RemoteException {
+        server = new RMIServer();
+        proposer = server.startInProcess().get(0);
+    }
+
+    @Override
+    public String prepare() throws RemoteException {
+        return server.prepare();
+    }
+
+    @Override
+    public byte[] put(String key, String value) throws RemoteException {
+        return server.propose(proposer, new Messages.Command(Messages.PUT, key, value));
+    }
+
+    @Override
+    public byte[] delete(String key) throws RemoteException {
+        return server.propose(proposer, new Messages.Command(Messages.DELETE, key, null));
+    }
+}
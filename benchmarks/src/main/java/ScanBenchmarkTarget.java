@@ -0,0 +1,36 @@
+import bench.ScanBenchmark;
+
+/**
+ * Runs {@link bench.ScanBenchmark} against two {@link OrderedStore}s over {@link HeapStore}s,
+ * one of which has been scanned and so maintains its index.
+ */
+public class ScanBenchmarkTarget implements ScanBenchmark.Target {
+
+    private final OrderedStore plain = new OrderedStore(new HeapStore());
+    private final OrderedStore indexed = new OrderedStore(new HeapStore());
+
+    @Override
+    public void fill(String[] keys) {
+        for (String key : keys) {
+            plain.put(key, "value");
+            indexed.put(key, "value");
+        }
+        indexed.scan(null, null, null, 1, Integer.MAX_VALUE);
+    }
+
+    @Override
+    public boolean toggle(boolean useIndexed, String key) {
+        OrderedStore store = useIndexed ? indexed : plain;
+        return store.putIfAbsent(key, "value") == null || store.remove(key) == null;
+    }
+
+    @Override
+    public int scanPrefix(String prefix, int limit) {
+        return indexed.scan(prefix, ScanCursor.prefixEnd(prefix), null, limit, Integer.MAX_VALUE).encode().length;
+    }
+
+    @Override
+    public int copyAll() {
+        return indexed.toMap().size();
+    }
+}
@@ -0,0 +1,83 @@
+package bench;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The per-replica conflict check and update: {@code RMIImplement.prepareToOperation} followed by
+ * {@code RMIImplement.finallyGotCommitSoReallyUpdate}, on one replica with no consensus around it.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class DictionaryBenchmark {
+
+    /**
+     * The replica calls measured here, implemented by {@code DictionaryBenchmarkTarget}.
+     */
+    public interface Target {
+        void start() throws Exception;
+
+        boolean prepare(String key, String value, String operation) throws Exception;
+
+        void commit(String key, String value, String operation) throws Exception;
+    }
+
+    private static final String EXISTING = "existing";
+
+    private Target replica;
+    private String[] keys;
+    private int next;
+
+    @Setup(Level.Trial)
+    public void setUp() throws Exception {
+        replica = Targets.load(Target.class, "DictionaryBenchmarkTarget");
+        replica.start();
+        keys = new String[1024];
+        for (int i = 0; i < keys.length; i++) {
+            keys[i] = "key" + i;
+        }
+        replica.prepare(EXISTING, "value", "put");
+        replica.commit(EXISTING, "value", "put");
+    }
+
+    /**
+     * A PUT that passes the check followed by the DELETE that removes the key again, so the
+     * dictionary stays the same size: two check-and-update pairs per operation.
+     */
+    @Benchmark
+    public boolean putThenDelete() throws Exception {
+        String key = keys[next++ & (keys.length - 1)];
+        boolean put = replica.prepare(key, "value", "put");
+        if (put) {
+            replica.commit(key, "value", "put");
+        }
+        boolean delete = replica.prepare(key, null, "delete");
+        if (delete) {
+            replica.commit(key, null, "delete");
+        }
+        return put & delete;
+    }
+
+    /**
+     * A PUT refused by the check because the key already exists.
+     */
+    @Benchmark
+    public boolean conflictingPut() throws Exception {
+        return replica.prepare(EXISTING, "value", "put");
+    }
+}
@@ -0,0 +1,95 @@
+package bench;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * PUT and GET as a client sees them: the servers are started in the benchmark JVM on the usual
+ * ports (2000 onwards) and called through the transport, the RMI registry by default. Run it with
+ * {@code -t} to add client threads.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class EndToEndBenchmark {
+
+    /**
+     * The client calls measured here, implemented by {@code EndToEndBenchmarkTarget}.
+     */
+    public interface Target {
+        void start() throws Exception;
+
+        int replicas();
+
+        byte[] put(int replica, String key, String value) throws Exception;
+
+        byte[] get(int replica, String key) throws Exception;
+    }
+
+    /** The {@code paxos.transport} the servers and the client use. */
+    @Param({"rmi", "nio"})
+    public String transport;
+
+    /** The {@code paxos.multi} mode of the servers. */
+    @Param({"false"})
+    public boolean multi;
+
+    private static final String EXISTING = "existing";
+
+    private Target client;
+
+    /**
+     * Per-thread key and replica choice. PUT needs a fresh key each time or the replicas refuse
+     * it; requests rotate over the replicas like the interactive client's warm-up does.
+     */
+    @State(Scope.Thread)
+    public static class Keys {
+        private static final AtomicInteger THREADS = new AtomicInteger();
+        private final String prefix = "t" + THREADS.getAndIncrement() + "-";
+        private int nextKey;
+        private int nextReplica;
+
+        String nextKey() {
+            return prefix + nextKey++;
+        }
+
+        int nextReplica(int replicas) {
+            return nextReplica++ % replicas;
+        }
+    }
+
+    @Setup(Level.Trial)
+    public void setUp() throws Exception {
+        System.setProperty("paxos.transport", transport);
+        System.setProperty("paxos.multi", Boolean.toString(multi));
+        client = Targets.load(Target.class, "EndToEndBenchmarkTarget");
+        client.start();
+        client.put(0, EXISTING, "value");
+    }
+
+    @Benchmark
+    public byte[] put(Keys keys) throws Exception {
+        return client.put(keys.nextReplica(client.replicas()), keys.nextKey(), "value");
+    }
+
+    @Benchmark
+    public byte[] get(Keys keys) throws Exception {
+        return client.get(keys.nextReplica(client.replicas()), EXISTING);
+    }
+}
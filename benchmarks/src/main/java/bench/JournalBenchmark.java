@@ -0,0 +1,86 @@
+package bench;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * What logging one applied command costs the thread that applies it, with four threads logging
+ * at once: {@code println} of a concatenated line (the server's logging before the event journal)
+ * against {@code EventJournal.emit}. Both write to {@code /dev/null}, so this is the cost of the
+ * call itself, not of a slow terminal. Every operation first burns {@code work} tokens of CPU
+ * standing in for handling the request, so that the journal's writer keeps up and events are
+ * written rather than dropped; compare against {@code workOnly}.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Threads(4)
+@Fork(value = 1, jvmArgsAppend = {"-Dpaxos.journal.level=debug", "-Dpaxos.journal.file=/dev/null"})
+public class JournalBenchmark {
+
+    /**
+     * The calls measured here, implemented by {@code JournalBenchmarkTarget}.
+     */
+    public interface Target {
+        void redirectStandardOutput(String path);
+
+        void println(String key, String value);
+
+        void emit(String key, String value);
+
+        long dropped();
+    }
+
+    /** CPU tokens per operation ({@link Blackhole#consumeCPU}). */
+    @Param({"2000"})
+    public long work;
+
+    private Target target;
+    private final String key = "key42";
+    private final String value = "value number 42";
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        target = Targets.load(Target.class, "JournalBenchmarkTarget");
+        target.redirectStandardOutput("/dev/null");
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        System.err.println("JournalBenchmark: events dropped because the ring was full: " + target.dropped());
+    }
+
+    @Benchmark
+    public void workOnly() {
+        Blackhole.consumeCPU(work);
+    }
+
+    @Benchmark
+    public void println() {
+        Blackhole.consumeCPU(work);
+        target.println(key, value);
+    }
+
+    @Benchmark
+    public void journal() {
+        Blackhole.consumeCPU(work);
+        target.emit(key, value);
+    }
+}
@@ -0,0 +1,83 @@
+package bench;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Command handling outside consensus: parsing a client command line
+ * ({@code RMIClient.processCommand}) and encoding/decoding the batch of commands proposed as one
+ * consensus value ({@code Messages.encodeBatch}/{@code decodeBatch}).
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class ParseBenchmark {
+
+    /**
+     * The calls measured here, implemented by {@code ParseBenchmarkTarget}.
+     */
+    public interface Target {
+        String[] parseCommand(String line);
+
+        void prepareBatch(String[] keys, String[] values);
+
+        byte[] encodeBatch();
+
+        int decodeBatch(byte[] batch);
+    }
+
+    /** Commands per batch: a single write, and a full batch at the default batch size. */
+    @Param({"1", "64"})
+    public int batchSize;
+
+    private Target target;
+    private byte[] encoded;
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        target = Targets.load(Target.class, "ParseBenchmarkTarget");
+        String[] keys = new String[batchSize];
+        String[] values = new String[batchSize];
+        for (int i = 0; i < batchSize; i++) {
+            keys[i] = "key" + i;
+            values[i] = "value number " + i;
+        }
+        target.prepareBatch(keys, values);
+        encoded = target.encodeBatch();
+    }
+
+    @Benchmark
+    public String[] parsePut() {
+        return target.parseCommand("put key42 a value with spaces");
+    }
+
+    @Benchmark
+    public String[] parseGet() {
+        return target.parseCommand("get key42");
+    }
+
+    @Benchmark
+    public byte[] encodeBatch() {
+        return target.encodeBatch();
+    }
+
+    @Benchmark
+    public int decodeBatch() {
+        return target.decodeBatch(encoded);
+    }
+}
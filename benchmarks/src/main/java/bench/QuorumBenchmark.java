@@ -0,0 +1,79 @@
+package bench;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * The consensus rounds of {@code RMIServer}: a prepare round, and a whole write (accept round,
+ * commit and apply) through {@code RMIServer.propose}. The five replicas are created in this JVM
+ * and called directly, so the numbers exclude the transport.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class QuorumBenchmark {
+
+    /**
+     * The server calls measured here, implemented by {@code QuorumBenchmarkTarget}.
+     */
+    public interface Target {
+        void start() throws Exception;
+
+        String prepare() throws Exception;
+
+        byte[] put(String key, String value) throws Exception;
+
+        byte[] delete(String key) throws Exception;
+    }
+
+    /** Classic Paxos (a prepare per write) or Multi-Paxos (a stable leader). */
+    @Param({"false", "true"})
+    public boolean multi;
+
+    private Target server;
+    private String[] keys;
+    private final AtomicInteger next = new AtomicInteger();
+
+    @Setup(Level.Trial)
+    public void setUp() throws Exception {
+        System.setProperty("paxos.multi", Boolean.toString(multi));
+        server = Targets.load(Target.class, "QuorumBenchmarkTarget");
+        server.start();
+        keys = new String[1024];
+        for (int i = 0; i < keys.length; i++) {
+            keys[i] = "key" + i;
+        }
+    }
+
+    @Benchmark
+    public String prepare() throws Exception {
+        return server.prepare();
+    }
+
+    /**
+     * One write per operation, alternating a PUT and the DELETE of the same key so that every
+     * write is applied and the dictionary stays small.
+     */
+    @Benchmark
+    public byte[] write() throws Exception {
+        int n = next.getAndIncrement();
+        String key = keys[(n >>> 1) & (keys.length - 1)];
+        return (n & 1) == 0 ? server.put(key, "value") : server.delete(key);
+    }
+}
@@ -0,0 +1,92 @@
+package bench;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * What the ordered index costs and buys on one replica's store of {@code keys} keys: adding or
+ * removing a key with the index off ({@code writePlain}, a replica that has never been scanned)
+ * and on ({@code writeIndexed}); one page of a prefix scan ({@code prefixPage}); and copying the
+ * whole dictionary, which is what listing keys took before scans ({@code copyAll}).
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class ScanBenchmark {
+
+    /**
+     * The calls measured here, implemented by {@code ScanBenchmarkTarget}.
+     */
+    public interface Target {
+        void fill(String[] keys);
+
+        boolean toggle(boolean indexed, String key);
+
+        int scanPrefix(String prefix, int limit);
+
+        int copyAll();
+    }
+
+    /** The number of keys in the store. */
+    @Param({"200000"})
+    public int keys;
+
+    /** The entries per scan page. */
+    @Param({"50"})
+    public int pageSize;
+
+    private Target target;
+    private String[] names;
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        target = Targets.load(Target.class, "ScanBenchmarkTarget");
+        names = new String[keys];
+        for (int i = 0; i < keys; i++) {
+            names[i] = String.format("user:%07d", i);
+        }
+        target.fill(names);
+    }
+
+    private String randomKey() {
+        return names[ThreadLocalRandom.current().nextInt(keys)];
+    }
+
+    @Benchmark
+    public boolean writePlain() {
+        return target.toggle(false, randomKey());
+    }
+
+    @Benchmark
+    public boolean writeIndexed() {
+        return target.toggle(true, randomKey());
+    }
+
+    @Benchmark
+    public int prefixPage() {
+        // 去掉最后两位数字，每个前缀下有 100 个键，取第一页
+        String key = randomKey();
+        return target.scanPrefix(key.substring(0, key.length() - 2), pageSize);
+    }
+
+    @Benchmark
+    public int copyAll() {
+        return target.copyAll();
+    }
+}
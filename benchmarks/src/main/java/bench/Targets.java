@@ -0,0 +1,30 @@
+package bench;
+
+/**
+ * Loads the code a benchmark measures. The dictionary's classes live in the default package,
+ * which a named package cannot import, while JMH only accepts benchmarks in a named package. Each
+ * benchmark therefore declares a small {@code Target} interface for the calls it measures; the
+ * implementation sits in the default package next to the classes it calls and is loaded here by
+ * name. There is only ever one implementation, so the JIT inlines the interface call.
+ */
+final class Targets {
+
+    private Targets() {
+    }
+
+    /**
+     * Instantiates a target.
+     *
+     * @param type The benchmark's target interface.
+     * @param className The default-package class implementing it.
+     * @param <T> The target type.
+     * @return A new instance of the implementation.
+     */
+    static <T> T load(Class<T> type, String className) {
+        try {
+            return type.cast(Class.forName(className).getDeclaredConstructor().newInstance());
+        } catch (ReflectiveOperationException e) {
+            throw new IllegalStateException("Cannot load benchmark target " + className, e);
+        }
+    }
+}
@@ -0,0 +1,67 @@
+import java.util.concurrent.Semaphore;
+
+/**
+ * AdmissionController bounds the number of client requests a replica serves at once. A request
+ * that arrives while the limit is reached is refused straight away instead of being queued, so
+ * the client gets a fast {@link Messages#BUSY} answer and the requests already admitted keep
+ * their latency: without a bound, overload turns into an ever longer backlog of calls each
+ * waiting for a consensus round, and every request pays for the whole backlog.
+ *
+ * <p>Admission never waits. A replica forwards requests to the leader and to other shards while
+ * holding its own permit, so a blocking acquire could leave two replicas waiting on each other.
+ */
+public class AdmissionController {
+
+    private final int limit;
+    private final Semaphore permits;
+
+    /**
+     * Constructor for AdmissionController.
+     *
+     * @param limit The maximum number of requests in flight; zero or less means no limit.
+     */
+    public AdmissionController(int limit) {
+        this.limit = limit > 0 ? limit : Integer.MAX_VALUE;
+        this.permits = new Semaphore(this.limit);
+    }
+
+    /**
+     * Creates the controller configured by {@code paxos.admission.maxInFlight} (default 256;
+     * 0 turns admission control off).
+     *
+     * @return The configured controller.
+     */
+    public static AdmissionController fromConfig() {
+        return new AdmissionController(Integer.getInteger("paxos.admission.maxInFlight", 256));
+    }
+
+    /**
+     * Admits one request if the limit allows it. Every successful call must be matched by one
+     * call to {@link #release}.
+     *
+     * @return {@code true} if the request was admitted, {@code false} if it must be refused.
+     */
+    public boolean tryAdmit() {
+        if (permits.tryAcquire()) {
+            return true;
+        }
+        Metrics.ADMISSION_REJECTED.increment();
+        return false;
+    }
+
+    /**
+     * Marks an admitted request as finished.
+     */
+    public void release() {
+        permits.release();
+    }
+
+    /**
+     * Returns the number of requests currently admitted.
+     *
+     * @return The requests in flight.
+     */
+    public int inFlight() {
+        return limit - permits.availablePermits();
+    }
+}
@@ -0,0 +1,477 @@
+import java.rmi.RemoteException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * AsyncClient is a non-blocking client for the replicated dictionary. Every operation returns a
+ * {@link CompletableFuture} right away, so a few application threads can keep many requests in
+ * flight. Each replica connection carries at most {@code maxInFlight} requests at a time; further
+ * requests wait in that replica's queue and are sent as earlier ones complete.
+ *
+ * <p>Routing: writes go to the current Multi-Paxos leader, which saves the forwarding hop a
+ * follower would add; reads (and writes when there is no leader) go to the replica with the
+ * fewest requests in flight or queued. The leader is looked up in the background every
+ * {@code paxos.client.leaderRefreshMs} milliseconds (default 1000) and again after a failed write.
+ *
+ * <p>With several shards (see {@link ShardMap}) each key is sent to a replica of the shard that
+ * owns it, and each shard's leader is tracked separately.
+ *
+ * <p>With {@code paxos.cache.size} set, reads are served from a {@link NearCache} per shard where
+ * possible, holding that many keys in total. A background thread per shard long-polls a replica
+ * for the keys each applied slot wrote, waiting up to {@code paxos.cache.pollMs} (default 1000)
+ * per call, and drops their cached values. Cached reads are not linearizable: a value can be
+ * stale until its invalidation arrives. A key this client writes is dropped at once.
+ *
+ * <p>Futures are completed with the encoded {@link Messages} response, or exceptionally with the
+ * {@link RemoteException} if the replica could not be reached.
+ */
+public class AsyncClient implements AutoCloseable {
+
+    private final List<Group> groups = new ArrayList<>();
+    private final ShardMap shardMap;
+    private final int maxInFlight;
+    private final ExecutorService executor;
+    private final ScheduledExecutorService leaderRefresher;
+    private final AtomicInteger nextTieBreak = new AtomicInteger();
+    // 近端缓存：每个分片一份，版本号是那个分片日志的槽位
+    private final long cachePollMillis = Long.getLong("paxos.cache.pollMs", 1000L);
+    private final ExecutorService invalidationPollers;
+    private volatile boolean closed;
+
+    // Operation.op：带版本号的读，结果用来填近端缓存
+    private static final byte VERSIONED_READ = 3;
+
+    /**
+     * A request waiting to be sent to one replica.
+     */
+    private static final class Operation {
+        final byte op;             // Messages.PUT、Messages.DELETE，读请求为 0，带版本的读为 VERSIONED_READ
+        final String key;
+        final String value;
+        final CompletableFuture<byte[]> result = new CompletableFuture<>();
+
+        Operation(byte op, String key, String value) {
+            this.op = op;
+            this.key = key;
+            this.value = value;
+        }
+    }
+
+    /**
+     * One replica connection with its own in-flight limit and queue.
+     */
+    private static final class Replica {
+        final RMIInterface stub;
+        final int memberId;
+        final AtomicInteger inFlight = new AtomicInteger();
+        final ConcurrentLinkedQueue<Operation> queue = new ConcurrentLinkedQueue<>();
+
+        Replica(RMIInterface stub, int memberId) {
+            this.stub = stub;
+            this.memberId = memberId;
+        }
+
+        int load() {
+            return inFlight.get() + queue.size();
+        }
+    }
+
+    /**
+     * The replicas of one shard and that shard's leader.
+     */
+    private static final class Group {
+        final List<Replica> replicas = new ArrayList<>();
+        volatile Replica leader;
+        NearCache cache;
+    }
+
+    /**
+     * Constructor for AsyncClient with a single shard.
+     *
+     * @param stubs The replicas, e.g. as returned by {@link Transport#connect}.
+     * @param members The member each replica is, used to recognize the leader by its ID.
+     * @param maxInFlight The maximum number of requests outstanding on one replica connection.
+     */
+    public AsyncClient(List<RMIInterface> stubs, List<Membership.Member> members, int maxInFlight) {
+        this(stubs, members, new ShardMap(1), maxInFlight);
+    }
+
+    /**
+     * Constructor for AsyncClient.
+     *
+     * @param stubs The replicas of every shard, e.g. as returned by {@link Transport#connect}.
+     * @param members The member each replica is: its port finds its shard, and its ID recognizes
+     *                the shard's leader.
+     * @param shardMap The shard layout the servers were started with.
+     * @param maxInFlight The maximum number of requests outstanding on one replica connection.
+     */
+    public AsyncClient(List<RMIInterface> stubs, List<Membership.Member> members, ShardMap shardMap, int maxInFlight) {
+        this.shardMap = shardMap;
+        for (int shard = 0; shard < shardMap.count(); shard++) {
+            groups.add(new Group());
+        }
+        for (int i = 0; i < stubs.size(); i++) {
+            Membership.Member member = members.get(i);
+            int shard = shardMap.count() == 1 ? 0 : shardMap.shardOfPort(member.port);
+            groups.get(shard).replicas.add(new Replica(stubs.get(i), member.id));
+        }
+        this.maxInFlight = Math.max(1, maxInFlight);
+        this.executor = Executors.newCachedThreadPool(r -> {
+            Thread t = new Thread(r, "async-client");
+            t.setDaemon(true);
+            return t;
+        });
+        this.leaderRefresher = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread t = new Thread(r, "async-client-leader");
+            t.setDaemon(true);
+            return t;
+        });
+        long refreshMillis = Long.getLong("paxos.client.leaderRefreshMs", 1000L);
+        leaderRefresher.scheduleWithFixedDelay(this::refreshLeaders, 0, refreshMillis, TimeUnit.MILLISECONDS);
+        int cacheSize = Integer.getInteger("paxos.cache.size", 0);
+        if (cacheSize > 0) {
+            invalidationPollers = Executors.newFixedThreadPool(groups.size(), r -> {
+                Thread t = new Thread(r, "near-cache-invalidation");
+                t.setDaemon(true);
+                return t;
+            });
+            for (Group group : groups) {
+                group.cache = new NearCache(Math.max(1, cacheSize / groups.size()));
+                invalidationPollers.execute(() -> pollInvalidations(group));
+            }
+        } else {
+            invalidationPollers = null;
+        }
+    }
+
+    /**
+     * Connects to {@code count} replicas on consecutive ports, named "RMIDictionary0" onwards.
+     *
+     * @param transport The transport the servers were started with.
+     * @param host The replicas' host.
+     * @param firstPort The port of the first replica.
+     * @param count The number of replicas.
+     * @param maxInFlight The maximum number of requests outstanding on one replica connection.
+     * @return The connected client.
+     * @throws RemoteException If a replica cannot be reached.
+     */
+    public static AsyncClient connect(Transport transport, String host, int firstPort, int count, int maxInFlight) throws RemoteException {
+        List<RMIInterface> stubs = new ArrayList<>();
+        List<Membership.Member> members = new ArrayList<>();
+        for (int i = 0; i < count; i++) {
+            stubs.add(transport.connect(host, firstPort + i, "RMIDictionary" + i));
+            members.add(new Membership.Member(i, host, firstPort + i));
+        }
+        return new AsyncClient(stubs, members, maxInFlight);
+    }
+
+    /**
+     * Connects to every replica of every shard.
+     *
+     * @param transport The transport the servers were started with.
+     * @param host The replicas' host.
+     * @param shardMap The shard layout the servers were started with.
+     * @param maxInFlight The maximum number of requests outstanding on one replica connection.
+     * @return The connected client.
+     * @throws RemoteException If a replica cannot be reached.
+     */
+    public static AsyncClient connect(Transport transport, String host, ShardMap shardMap, int maxInFlight) throws RemoteException {
+        List<RMIInterface> stubs = new ArrayList<>();
+        List<Membership.Member> members = new ArrayList<>();
+        for (int shard = 0; shard < shardMap.count(); shard++) {
+            for (int i = 0; i < ShardMap.REPLICAS_PER_SHARD; i++) {
+                int port = shardMap.portOf(shard, i);
+                stubs.add(transport.connect(host, port, shardMap.nameOf(port)));
+                members.add(new Membership.Member(i, host, port));
+            }
+        }
+        return new AsyncClient(stubs, members, shardMap, maxInFlight);
+    }
+
+    /**
+     * Connects to every member of a cluster whose replicas run in their own processes (see
+     * {@link Membership}). Members added later are not picked up; reconnect to use them.
+     *
+     * @param transport The transport the servers were started with.
+     * @param membership The members, e.g. as read from the cluster file.
+     * @param maxInFlight The maximum number of requests outstanding on one replica connection.
+     * @return The connected client.
+     * @throws RemoteException If a member cannot be reached.
+     */
+    public static AsyncClient connect(Transport transport, Membership membership, int maxInFlight) throws RemoteException {
+        ShardMap shardMap = new ShardMap(1);
+        List<RMIInterface> stubs = new ArrayList<>();
+        List<Membership.Member> members = new ArrayList<>(membership.members());
+        for (Membership.Member member : members) {
+            stubs.add(transport.connect(member.host, member.port, shardMap.nameOf(member.port)));
+        }
+        return new AsyncClient(stubs, members, shardMap, maxInFlight);
+    }
+
+    /**
+     * Puts a key-value pair into the dictionary.
+     *
+     * @param key The key to be added.
+     * @param value The value associated with the key.
+     * @return A future completed with the encoded response.
+     */
+    public CompletableFuture<byte[]> put(String key, String value) {
+        return write(groupOf(key), new Operation(Messages.PUT, key, value));
+    }
+
+    /**
+     * Retrieves the value associated with a key.
+     *
+     * @param key The key whose value is to be retrieved.
+     * @return A future completed with the encoded response.
+     */
+    public CompletableFuture<byte[]> get(String key) {
+        Group group = groupOf(key);
+        NearCache cache = group.cache;
+        if (cache == null) {
+            return submit(leastLoaded(group), new Operation((byte) 0, key, null));
+        }
+        byte[] cached = cache.lookup(key);
+        if (cached != null) {
+            return CompletableFuture.completedFuture(cached);
+        }
+        return submit(leastLoaded(group), new Operation(VERSIONED_READ, key, null)).thenApply(versioned -> {
+            cache.fill(key, versioned);
+            return Messages.unversioned(versioned);
+        });
+    }
+
+    /**
+     * Deletes a key-value pair from the dictionary.
+     *
+     * @param key The key to be deleted.
+     * @return A future completed with the encoded response.
+     */
+    public CompletableFuture<byte[]> delete(String key) {
+        return write(groupOf(key), new Operation(Messages.DELETE, key, null));
+    }
+
+    /**
+     * The number of reads answered from the near cache, over all shards.
+     *
+     * @return The hit count; 0 if the cache is off.
+     */
+    public long cacheHits() {
+        long total = 0;
+        for (Group group : groups) {
+            total += group.cache == null ? 0 : group.cache.hits();
+        }
+        return total;
+    }
+
+    /**
+     * The number of reads the near cache could not answer, over all shards.
+     *
+     * @return The miss count; 0 if the cache is off.
+     */
+    public long cacheMisses() {
+        long total = 0;
+        for (Group group : groups) {
+            total += group.cache == null ? 0 : group.cache.misses();
+        }
+        return total;
+    }
+
+    /**
+     * The number of requests currently sent or queued, over all replicas.
+     *
+     * @return The outstanding request count.
+     */
+    public int outstanding() {
+        int total = 0;
+        for (Group group : groups) {
+            for (Replica replica : group.replicas) {
+                total += replica.load();
+            }
+        }
+        return total;
+    }
+
+    @Override
+    public void close() {
+        closed = true;
+        leaderRefresher.shutdownNow();
+        if (invalidationPollers != null) {
+            invalidationPollers.shutdownNow();
+        }
+        executor.shutdown();
+    }
+
+    private Group groupOf(String key) {
+        return groups.get(shardMap.shardOf(key));
+    }
+
+    private Replica writeTarget(Group group) {
+        Replica current = group.leader;
+        return current != null ? current : leastLoaded(group);
+    }
+
+    // 负载相同的副本之间轮转，避免总是选中第一个
+    private Replica leastLoaded(Group group) {
+        List<Replica> replicas = group.replicas;
+        int start = Math.floorMod(nextTieBreak.getAndIncrement(), replicas.size());
+        Replica best = null;
+        int bestLoad = Integer.MAX_VALUE;
+        for (int i = 0; i < replicas.size(); i++) {
+            Replica candidate = replicas.get((start + i) % replicas.size());
+            int load = candidate.load();
+            if (load < bestLoad) {
+                best = candidate;
+                bestLoad = load;
+            }
+        }
+        return best;
+    }
+
+    // 自己写的键不等失效通知，发出去和完成时都从缓存里去掉
+    private CompletableFuture<byte[]> write(Group group, Operation operation) {
+        NearCache cache = group.cache;
+        if (cache == null) {
+            return submit(writeTarget(group), operation);
+        }
+        cache.remove(operation.key);
+        return submit(writeTarget(group), operation).whenComplete((response, error) -> cache.remove(operation.key));
+    }
+
+    private CompletableFuture<byte[]> submit(Replica replica, Operation operation) {
+        replica.queue.add(operation);
+        drain(replica);
+        return operation.result;
+    }
+
+    // 只要这个连接上还没到上限就继续发；完成一个请求之后会再调用一次
+    private void drain(Replica replica) {
+        while (true) {
+            int current = replica.inFlight.get();
+            if (current >= maxInFlight || replica.queue.isEmpty()) {
+                return;
+            }
+            if (!replica.inFlight.compareAndSet(current, current + 1)) {
+                continue;
+            }
+            Operation operation = replica.queue.poll();
+            if (operation == null) {
+                replica.inFlight.decrementAndGet();
+                continue;
+            }
+            send(replica, operation).whenComplete((response, error) -> {
+                replica.inFlight.decrementAndGet();
+                // 回调跑在完成它的线程上，NIO 下是 selector 线程；发下一个请求可能要重连，而重连要等 selector 线程
+                executor.execute(() -> drain(replica));
+                boolean write = operation.op == Messages.PUT || operation.op == Messages.DELETE;
+                if (write && (error != null || Messages.statusOf(response) == Messages.NO_QUORUM)) {
+                    // 写失败可能是 leader 变了，马上重新查一次
+                    Group group = groupOf(operation.key);
+                    group.leader = null;
+                    executor.execute(() -> refreshLeader(group));
+                }
+                // 在客户端自己的线程上完成，调用方的回调不会占用传输层的线程
+                if (error != null) {
+                    executor.execute(() -> operation.result.completeExceptionally(error));
+                } else {
+                    executor.execute(() -> operation.result.complete(response));
+                }
+            });
+        }
+    }
+
+    private CompletableFuture<byte[]> send(Replica replica, Operation operation) {
+        if (replica.stub instanceof AsyncReplica) {
+            AsyncReplica async = (AsyncReplica) replica.stub;
+            switch (operation.op) {
+                case Messages.PUT:
+                    return async.putAsync(operation.key, operation.value);
+                case Messages.DELETE:
+                    return async.deleteAsync(operation.key);
+                case VERSIONED_READ:
+                    return async.versionedGetAsync(operation.key);
+                default:
+                    return async.getAsync(operation.key);
+            }
+        }
+        // 阻塞的传输（RMI）：每个在途请求占一个线程，线程数受 maxInFlight 限制
+        CompletableFuture<byte[]> result = new CompletableFuture<>();
+        executor.execute(() -> {
+            try {
+                switch (operation.op) {
+                    case Messages.PUT:
+                        result.complete(replica.stub.put(operation.key, operation.value));
+                        break;
+                    case Messages.DELETE:
+                        result.complete(replica.stub.delete(operation.key));
+                        break;
+                    case VERSIONED_READ:
+                        result.complete(replica.stub.versionedGet(operation.key));
+                        break;
+                    default:
+                        result.complete(replica.stub.get(operation.key));
+                        break;
+                }
+            } catch (RemoteException | RuntimeException e) {
+                result.completeExceptionally(e);
+            }
+        });
+        return result;
+    }
+
+    // 一个分片的失效通知流：长轮询一个副本；连不上就清空缓存，换下一个副本从头开始
+    private void pollInvalidations(Group group) {
+        long after = -1;
+        int next = 0;
+        while (!closed) {
+            Replica replica = group.replicas.get(Math.floorMod(next, group.replicas.size()));
+            try {
+                Messages.Invalidations batch = Messages.Invalidations.decode(replica.stub.invalidations(after, cachePollMillis));
+                group.cache.apply(batch);
+                after = batch.through;
+            } catch (RemoteException | RuntimeException e) {
+                group.cache.suspend();
+                after = -1;
+                next++;
+                try {
+                    Thread.sleep(cachePollMillis);
+                } catch (InterruptedException interrupted) {
+                    return;
+                }
+            }
+        }
+    }
+
+    private void refreshLeaders() {
+        for (Group group : groups) {
+            refreshLeader(group);
+        }
+    }
+
+    private void refreshLeader(Group group) {
+        List<Replica> replicas = group.replicas;
+        for (Replica replica : replicas) {
+            try {
+                int leaderId = replica.stub.leaderId();
+                Replica found = null;
+                for (Replica candidate : replicas) {
+                    if (candidate.memberId == leaderId) {
+                        found = candidate;
+                    }
+                }
+                group.leader = found;
+                return;
+            } catch (RemoteException e) {
+                // 这个副本联系不上，问下一个
+            }
+        }
+        group.leader = null;
+    }
+}
@@ -0,0 +1,43 @@
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * AsyncReplica is implemented by replica proxies that can issue client operations without
+ * blocking the calling thread, e.g. those of {@link NioTransport}. {@link AsyncClient} uses it
+ * when available and falls back to running the blocking {@link RMIInterface} call on a thread
+ * otherwise.
+ */
+public interface AsyncReplica {
+
+    /**
+     * Sends a PUT without waiting for its response.
+     *
+     * @param key The key to be added.
+     * @param value The value associated with the key.
+     * @return A future completed with the encoded {@link Messages} response.
+     */
+    CompletableFuture<byte[]> putAsync(String key, String value);
+
+    /**
+     * Sends a GET without waiting for its response.
+     *
+     * @param key The key whose value is to be retrieved.
+     * @return A future completed with the encoded {@link Messages} response.
+     */
+    CompletableFuture<byte[]> getAsync(String key);
+
+    /**
+     * Sends a DELETE without waiting for its response.
+     *
+     * @param key The key to be deleted.
+     * @return A future completed with the encoded {@link Messages} response.
+     */
+    CompletableFuture<byte[]> deleteAsync(String key);
+
+    /**
+     * Sends a versioned GET without waiting for its response.
+     *
+     * @param key The key whose value is to be retrieved.
+     * @return A future completed with the encoded {@link Messages#versioned versioned} response.
+     */
+    CompletableFuture<byte[]> versionedGetAsync(String key);
+}
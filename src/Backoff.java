@@ -0,0 +1,61 @@
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Backoff spaces out the retries of an operation that lost a race, such as a proposer preempted
+ * by a higher ballot or a writer that found a key lock held. Each pause is drawn uniformly
+ * between zero and an exponentially growing bound ("full jitter"), so competitors that failed
+ * together spread out instead of colliding again on the next attempt.
+ */
+public class Backoff {
+
+    private final long baseNanos;
+    private final long maxNanos;
+    private final int attempts;
+
+    /**
+     * Constructor for Backoff.
+     *
+     * @param baseMicros The bound of the first pause, in microseconds.
+     * @param maxMicros The largest bound, in microseconds.
+     * @param attempts How many retries are allowed.
+     */
+    public Backoff(long baseMicros, long maxMicros, int attempts) {
+        this.baseNanos = TimeUnit.MICROSECONDS.toNanos(Math.max(1, baseMicros));
+        this.maxNanos = TimeUnit.MICROSECONDS.toNanos(Math.max(baseMicros, maxMicros));
+        this.attempts = attempts;
+    }
+
+    /**
+     * Creates the backoff configured by {@code paxos.backoff.baseUs} (default 500),
+     * {@code paxos.backoff.maxUs} (default 50000) and {@code paxos.backoff.attempts} (default 5).
+     *
+     * @return The configured backoff.
+     */
+    public static Backoff fromConfig() {
+        return new Backoff(Long.getLong("paxos.backoff.baseUs", 500L), Long.getLong("paxos.backoff.maxUs", 50000L),
+                Integer.getInteger("paxos.backoff.attempts", 5));
+    }
+
+    /**
+     * Pauses before retry number {@code attempt}, unless the retries are used up.
+     *
+     * @param attempt The number of retries made so far, starting at 0.
+     * @return {@code true} if the caller should retry, {@code false} if it should give up.
+     */
+    public boolean pause(int attempt) {
+        if (attempt >= attempts) {
+            return false;
+        }
+        // 上界每次翻倍，到 maxNanos 封顶；移位次数有限制，避免溢出
+        long bound = attempt < 30 ? Math.min(maxNanos, baseNanos << attempt) : maxNanos;
+        long nanos = ThreadLocalRandom.current().nextLong(bound + 1);
+        try {
+            TimeUnit.NANOSECONDS.sleep(nanos);
+            return true;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return false;
+        }
+    }
+}
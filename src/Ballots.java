@@ -0,0 +1,112 @@
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Ballots hands out proposal numbers that no other proposer can use. A ballot is a round counter
+ * in the high bits and the proposer's node ID in the low {@value #NODE_BITS} bits, so ballots of
+ * different proposers never collide, ballots of one proposer are unique even when many threads
+ * prepare at once, and ballots still compare by round first. The proposer also tracks the highest
+ * ballot it has been refused with, so a retry starts above it and a failed round can tell whether
+ * it lost to a competing proposer or just could not reach a majority.
+ *
+ * <p>Ballots are longs: classic mode uses a round for every batch, and an int would run out of
+ * rounds within hours at a few thousand batches per second. Rounds never wrap; running out of
+ * them fails loudly instead of handing out a ballot lower than one already used.
+ */
+public class Ballots {
+
+    /** Bits of a ballot that hold the proposer's node ID. */
+    public static final int NODE_BITS = 5;
+    private static final int MAX_NODE = (1 << NODE_BITS) - 1;
+    /** The highest round a ballot can carry; every ballot stays below {@link Messages.Promise#CHOSEN}. */
+    public static final long MAX_ROUND = (Long.MAX_VALUE >>> NODE_BITS) - 1;
+
+    private final int nodeId;
+    // 最近用过的轮次；被拒绝时跳到对方轮次之后
+    private final AtomicLong round = new AtomicLong();
+    private final AtomicLong highestSeen = new AtomicLong();
+
+    /**
+     * Constructor for Ballots.
+     *
+     * @param nodeId The proposer's node ID, from 0 to 31.
+     * @throws IllegalArgumentException If the node ID is out of range.
+     */
+    public Ballots(int nodeId) {
+        if (nodeId < 0 || nodeId > MAX_NODE) {
+            throw new IllegalArgumentException("Node ID must be between 0 and " + MAX_NODE + ", got " + nodeId);
+        }
+        this.nodeId = nodeId;
+    }
+
+    /**
+     * Creates the ballots of the proposer configured by {@code paxos.node.id} (default 0).
+     *
+     * @return The configured ballots.
+     */
+    public static Ballots fromConfig() {
+        return new Ballots(Integer.getInteger("paxos.node.id", 0));
+    }
+
+    /**
+     * The node ID this proposer puts in its ballots.
+     *
+     * @return The node ID.
+     */
+    public int nodeId() {
+        return nodeId;
+    }
+
+    /**
+     * Returns a ballot higher than every ballot handed out or observed so far.
+     *
+     * @return The new ballot.
+     * @throws IllegalStateException If the rounds are used up; ballots would otherwise wrap.
+     */
+    public long next() {
+        long next = round.incrementAndGet();
+        if (next > MAX_ROUND) {
+            throw new IllegalStateException("Ballot rounds exhausted: round " + next + " exceeds " + MAX_ROUND);
+        }
+        return next << NODE_BITS | nodeId;
+    }
+
+    /**
+     * Records a ballot an acceptor refused us with, so that the next ballot is above it.
+     *
+     * @param ballot The ballot the acceptor has promised.
+     */
+    public void observe(long ballot) {
+        round.accumulateAndGet(roundOf(ballot), Math::max);
+        highestSeen.accumulateAndGet(ballot, Math::max);
+    }
+
+    /**
+     * Whether a competing proposer has shown up with a ballot above {@code ballot}.
+     *
+     * @param ballot One of our ballots.
+     * @return {@code true} if a higher ballot has been observed.
+     */
+    public boolean preempted(long ballot) {
+        return highestSeen.get() > ballot;
+    }
+
+    /**
+     * The round counter of a ballot.
+     *
+     * @param ballot A ballot.
+     * @return Its round.
+     */
+    public static long roundOf(long ballot) {
+        return ballot >>> NODE_BITS;
+    }
+
+    /**
+     * The node ID of the proposer that issued a ballot.
+     *
+     * @param ballot A ballot.
+     * @return The proposer's node ID.
+     */
+    public static int nodeOf(long ballot) {
+        return (int) (ballot & MAX_NODE);
+    }
+}
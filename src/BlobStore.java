@@ -0,0 +1,350 @@
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.stream.Stream;
+
+/**
+ * BlobStore holds one replica's large values, keyed by the SHA-256 of their UTF-8 bytes. A value
+ * above {@code paxos.blob.threshold} is uploaded to the replicas in chunks before it is proposed,
+ * and the log only carries its {@link Messages.BlobRef}; the replica resolves the reference here
+ * when it applies the slot. An upload is checked against its hash once the last chunk is in, so a
+ * stored value is always the one the reference names.
+ *
+ * <p>After a value has been applied it is kept for peers that have not applied it yet: for the
+ * last {@code paxos.blob.retainSlots} slots (default 1024, the heartbeat's replay window) as long
+ * as the retained values take no more than {@code paxos.blob.retainBytes} (default 256 MiB).
+ * With a data directory each value is also written to a file before its upload is acknowledged,
+ * and it is not dropped before a snapshot covers its slot, since replaying the log needs it.
+ * Values that were uploaded but never applied, e.g. because their proposal failed, are dropped
+ * after ten minutes.
+ */
+public class BlobStore {
+
+    // 上传了但一直没被应用的值，以及没传完的上传，过了这么久就丢掉
+    private static final long ORPHAN_NANOS = TimeUnit.MINUTES.toNanos(10);
+
+    private static final class Upload {
+        final byte[] data;
+        long received;
+        long touchedNanos = System.nanoTime();
+
+        Upload(int size) {
+            this.data = new byte[size];
+        }
+    }
+
+    private static final class Blob {
+        // 有数据目录时只在磁盘上，读的时候再加载
+        final byte[] data;
+        final long size;
+        final long storedNanos = System.nanoTime();
+        volatile long lastUse = -1;
+
+        Blob(byte[] data, long size) {
+            this.data = data;
+            this.size = size;
+        }
+    }
+
+    private final Path dir;
+    private final int retainSlots = Integer.getInteger("paxos.blob.retainSlots", 1024);
+    private final long retainBytes = Long.getLong("paxos.blob.retainBytes", 256L << 20);
+    private final Map<String, Upload> uploads = new ConcurrentHashMap<>();
+    private final Map<String, Blob> blobs = new ConcurrentHashMap<>();
+    // 应用过的值按最后一次用到的槽位排队，从最早的开始释放
+    private final ConcurrentSkipListMap<Long, List<String>> applied = new ConcurrentSkipListMap<>();
+    // 释放时会删文件，调用方常是虚拟线程，用 ReentrantLock 以免钉住载体线程
+    private final ReentrantLock retention = new ReentrantLock();
+    private long appliedBytes;
+    private long lastSweepNanos = System.nanoTime();
+
+    /**
+     * Constructor for BlobStore. Values already in the directory, e.g. from before a restart, are
+     * picked up so that the log can be replayed.
+     *
+     * @param dir The directory to keep values in, or {@code null} to keep them in memory only.
+     * @throws IOException If the directory cannot be created or listed.
+     */
+    public BlobStore(Path dir) throws IOException {
+        this.dir = dir;
+        if (dir != null) {
+            Files.createDirectories(dir);
+            try (Stream<Path> files = Files.list(dir)) {
+                for (Path file : (Iterable<Path>) files::iterator) {
+                    String name = file.getFileName().toString();
+                    if (name.endsWith(".tmp")) {
+                        Files.deleteIfExists(file);
+                    } else {
+                        blobs.put(name, new Blob(null, Files.size(file)));
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * The hex SHA-256 of some bytes.
+     *
+     * @param content The bytes.
+     * @return The digest.
+     */
+    public static String digest(byte[] content) {
+        try {
+            byte[] hash = MessageDigest.getInstance("SHA-256").digest(content);
+            StringBuilder hex = new StringBuilder(hash.length * 2);
+            for (byte b : hash) {
+                hex.append(Character.forDigit((b >> 4) & 0xf, 16)).append(Character.forDigit(b & 0xf, 16));
+            }
+            return hex.toString();
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("SHA-256 is not available", e);
+        }
+    }
+
+    /**
+     * Stores one chunk of an upload. Chunks arrive in order; a chunk the store already has, or
+     * any chunk of a value it already holds, is accepted again without effect, so uploads of the
+     * same value from several proposers may overlap.
+     *
+     * @param digest The value's digest.
+     * @param size The value's size in bytes.
+     * @param offset The chunk's offset in the value.
+     * @param chunk The chunk.
+     * @return The number of bytes of the value the store holds; {@code size} once it is complete.
+     * @throws IllegalArgumentException If the chunk does not fit the upload, or the completed
+     *         value does not match the digest (the upload is then discarded).
+     * @throws UncheckedIOException If the completed value cannot be written to disk.
+     */
+    public long store(String digest, long size, long offset, byte[] chunk) {
+        if (blobs.containsKey(digest)) {
+            return size;
+        }
+        if (size <= 0 || size > Integer.MAX_VALUE - 8) {
+            throw new IllegalArgumentException("Blob size " + size + " is out of range");
+        }
+        Upload upload = uploads.computeIfAbsent(digest, d -> new Upload((int) size));
+        byte[] complete;
+        synchronized (upload) {
+            if (upload.data.length != size || offset < 0 || offset > upload.received || offset + chunk.length > size) {
+                throw new IllegalArgumentException("Chunk at " + offset + " (" + chunk.length + " bytes) does not continue blob "
+                        + digest + " of " + size + " bytes, " + upload.received + " received");
+            }
+            System.arraycopy(chunk, 0, upload.data, (int) offset, chunk.length);
+            upload.received = Math.max(upload.received, offset + chunk.length);
+            upload.touchedNanos = System.nanoTime();
+            if (upload.received < size) {
+                return upload.received;
+            }
+            complete = upload.data;
+        }
+        uploads.remove(digest, upload);
+        if (!digest(complete).equals(digest)) {
+            throw new IllegalArgumentException("Blob does not match its digest " + digest);
+        }
+        put(digest, complete);
+        return size;
+    }
+
+    /**
+     * Stores a complete value that has already been checked against its digest, e.g. one fetched
+     * from a peer.
+     *
+     * @param digest The value's digest.
+     * @param content The value.
+     * @throws UncheckedIOException If the value cannot be written to disk.
+     */
+    public void put(String digest, byte[] content) {
+        if (blobs.containsKey(digest)) {
+            return;
+        }
+        if (dir == null) {
+            blobs.putIfAbsent(digest, new Blob(content, content.length));
+            return;
+        }
+        // 先写临时文件再原子改名，确认上传之前落盘
+        try {
+            Path temp = dir.resolve(digest + "." + Thread.currentThread().threadId() + ".tmp");
+            try (FileChannel channel = FileChannel.open(temp, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                    StandardOpenOption.TRUNCATE_EXISTING)) {
+                ByteBuffer buffer = ByteBuffer.wrap(content);
+                while (buffer.hasRemaining()) {
+                    channel.write(buffer);
+                }
+                channel.force(true);
+            }
+            Files.move(temp, dir.resolve(digest), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        blobs.putIfAbsent(digest, new Blob(null, content.length));
+    }
+
+    /**
+     * Keeps a complete value in memory only, for one that {@link #put} could not write to disk.
+     * It is lost on restart.
+     *
+     * @param digest The value's digest.
+     * @param content The value.
+     */
+    public void hold(String digest, byte[] content) {
+        blobs.putIfAbsent(digest, new Blob(content, content.length));
+    }
+
+    /**
+     * Whether the store holds a complete value.
+     *
+     * @param digest The value's digest.
+     * @return {@code true} if {@link #get} would find it.
+     */
+    public boolean contains(String digest) {
+        return blobs.containsKey(digest);
+    }
+
+    /**
+     * Returns a complete value.
+     *
+     * @param digest The value's digest.
+     * @return The value, or {@code null} if the store does not hold it.
+     */
+    public byte[] get(String digest) {
+        Blob blob = blobs.get(digest);
+        if (blob == null) {
+            return null;
+        }
+        if (blob.data != null) {
+            return blob.data;
+        }
+        try {
+            return Files.readAllBytes(dir.resolve(digest));
+        } catch (IOException e) {
+            return null;
+        }
+    }
+
+    /**
+     * Reads part of a complete value, for a peer that is missing it.
+     *
+     * @param digest The value's digest.
+     * @param offset The offset to read from.
+     * @param length The number of bytes to read at most.
+     * @return The bytes, or {@code null} if the store does not hold the value.
+     */
+    public byte[] read(String digest, long offset, int length) {
+        Blob blob = blobs.get(digest);
+        if (blob == null || offset < 0 || offset >= blob.size || length <= 0) {
+            return null;
+        }
+        int n = (int) Math.min(length, blob.size - offset);
+        if (blob.data != null) {
+            byte[] chunk = new byte[n];
+            System.arraycopy(blob.data, (int) offset, chunk, 0, n);
+            return chunk;
+        }
+        try (FileChannel channel = FileChannel.open(dir.resolve(digest), StandardOpenOption.READ)) {
+            ByteBuffer chunk = ByteBuffer.allocate(n);
+            while (chunk.hasRemaining() && channel.read(chunk, offset + chunk.position()) > 0) {
+                // 读满为止
+            }
+            return chunk.hasRemaining() ? null : chunk.array();
+        } catch (IOException e) {
+            return null;
+        }
+    }
+
+    /**
+     * Records that a slot applied a value, which keeps it for the retention window.
+     *
+     * @param digest The value's digest.
+     * @param slot The slot.
+     */
+    public void used(String digest, long slot) {
+        retention.lock();
+        try {
+            Blob blob = blobs.get(digest);
+            if (blob == null) {
+                return;
+            }
+            if (blob.lastUse < 0) {
+                appliedBytes += blob.size;
+            }
+            blob.lastUse = Math.max(blob.lastUse, slot);
+            applied.computeIfAbsent(slot, s -> new ArrayList<>(1)).add(digest);
+        } finally {
+            retention.unlock();
+        }
+    }
+
+    /**
+     * Drops the values that have left the retention window, and uploads that were abandoned.
+     *
+     * @param appliedSlot The last slot the replica applied.
+     * @param durableSlot Values last used after this slot are still needed to replay the log;
+     *                    {@link Long#MAX_VALUE} without a log.
+     */
+    public void release(long appliedSlot, long durableSlot) {
+        retention.lock();
+        try {
+            releaseLocked(appliedSlot, durableSlot);
+        } finally {
+            retention.unlock();
+        }
+    }
+
+    private void releaseLocked(long appliedSlot, long durableSlot) {
+        long floor = Math.min(appliedSlot - retainSlots, durableSlot);
+        Iterator<Map.Entry<Long, List<String>>> it = applied.entrySet().iterator();
+        while (it.hasNext()) {
+            Map.Entry<Long, List<String>> entry = it.next();
+            long slot = entry.getKey();
+            // 窗口之外的一定释放；窗口之内的只在超出字节预算时从最早的开始释放
+            if (slot > durableSlot || (slot > floor && appliedBytes <= retainBytes)) {
+                break;
+            }
+            for (String digest : entry.getValue()) {
+                Blob blob = blobs.get(digest);
+                if (blob != null && blob.lastUse == slot) {
+                    drop(digest, blob);
+                    appliedBytes -= blob.size;
+                }
+            }
+            it.remove();
+        }
+        long now = System.nanoTime();
+        if (now - lastSweepNanos < TimeUnit.MINUTES.toNanos(1)) {
+            return;
+        }
+        lastSweepNanos = now;
+        uploads.entrySet().removeIf(entry -> now - entry.getValue().touchedNanos > ORPHAN_NANOS);
+        blobs.forEach((digest, blob) -> {
+            if (blob.lastUse < 0 && now - blob.storedNanos > ORPHAN_NANOS) {
+                drop(digest, blob);
+            }
+        });
+    }
+
+    private void drop(String digest, Blob blob) {
+        if (!blobs.remove(digest, blob) || dir == null) {
+            return;
+        }
+        try {
+            Files.deleteIfExists(dir.resolve(digest));
+        } catch (IOException e) {
+            // 删不掉的文件下次启动时会当作没用过的值，十分钟后再删
+        }
+    }
+}
@@ -0,0 +1,169 @@
+import java.rmi.RemoteException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * CommandBatcher is the proposer-side group commit stage. PUT and DELETE commands submitted by
+ * concurrent client requests are queued, and a single proposer thread drains them into batches of
+ * at most {@code maxBatchSize} commands, waiting at most {@code maxDelayMillis} for a batch to fill.
+ * Each batch is proposed as one consensus value, and every caller's future is completed with its
+ * own result once the batch has been learned. A caller may also submit a group of commands (a
+ * multi-key write); a group is never split across batches, so it is always chosen atomically, and
+ * a group larger than {@code maxBatchSize} is proposed on its own. Up to {@code maxInFlight} batches are proposed
+ * concurrently; while that many are outstanding, new commands keep accumulating in the queue.
+ */
+public class CommandBatcher {
+
+    /**
+     * Runs one consensus round for a whole batch.
+     */
+    @FunctionalInterface
+    interface BatchProposer {
+        /**
+         * Proposes the batch as one value.
+         *
+         * @param proposer The replica the batch is proposed on behalf of.
+         * @param commands The commands of the batch.
+         * @return One encoded client response per command, in the same order.
+         * @throws RemoteException If a remote method call fails.
+         */
+        List<byte[]> proposeBatch(RMIInterface proposer, List<Messages.Command> commands) throws RemoteException;
+    }
+
+    private static class Pending {
+        final RMIInterface proposer;
+        final List<Messages.Command> commands;
+        final CompletableFuture<List<byte[]>> result = new CompletableFuture<>();
+
+        Pending(RMIInterface proposer, List<Messages.Command> commands) {
+            this.proposer = proposer;
+            this.commands = commands;
+        }
+    }
+
+    private final LinkedBlockingQueue<Pending> queue = new LinkedBlockingQueue<>();
+    private final BatchProposer batchProposer;
+    private final int maxBatchSize;
+    private final long maxDelayMillis;
+    private final Semaphore inFlight;
+    private final ExecutorService roundExecutor;
+    // 装不进当前批次的命令组，留给下一批（只有 proposer 线程访问）
+    private Pending carryOver;
+
+    /**
+     * Constructor for CommandBatcher. Starts the proposer thread.
+     *
+     * @param batchProposer Runs the consensus round for each batch.
+     * @param maxBatchSize The maximum number of commands proposed in one round.
+     * @param maxDelayMillis How long to wait for more commands before proposing a partial batch;
+     *                       0 proposes whatever is queued as soon as a round slot is free.
+     * @param maxInFlight The maximum number of batches being proposed at the same time.
+     */
+    public CommandBatcher(BatchProposer batchProposer, int maxBatchSize, long maxDelayMillis, int maxInFlight) {
+        this.batchProposer = batchProposer;
+        this.maxBatchSize = Math.max(1, maxBatchSize);
+        this.maxDelayMillis = Math.max(0, maxDelayMillis);
+        this.inFlight = new Semaphore(Math.max(1, maxInFlight));
+        this.roundExecutor = Executors.newCachedThreadPool(r -> {
+            Thread t = new Thread(r, "command-batcher-round");
+            t.setDaemon(true);
+            return t;
+        });
+        Thread proposerThread = new Thread(this::proposeLoop, "command-batcher");
+        proposerThread.setDaemon(true);
+        proposerThread.start();
+    }
+
+    /**
+     * Queues a command for the next batch.
+     *
+     * @param proposer The replica that received the client request.
+     * @param command The command.
+     * @return A future completed with this command's encoded response once its batch is learned.
+     */
+    public CompletableFuture<byte[]> submit(RMIInterface proposer, Messages.Command command) {
+        return submitAll(proposer, java.util.Collections.singletonList(command)).thenApply(results -> results.get(0));
+    }
+
+    /**
+     * Queues a group of commands that must be proposed in the same batch.
+     *
+     * @param proposer The replica that received the client request.
+     * @param commands The commands, applied in this order.
+     * @return A future completed with one encoded response per command once the batch is learned.
+     */
+    public CompletableFuture<List<byte[]>> submitAll(RMIInterface proposer, List<Messages.Command> commands) {
+        Pending pending = new Pending(proposer, commands);
+        queue.offer(pending);
+        return pending.result;
+    }
+
+    private void proposeLoop() {
+        while (true) {
+            try {
+                // 流水线满了就先不取，让命令在队列里继续攒成更大的批次
+                inFlight.acquire();
+                List<Pending> batch = new ArrayList<>();
+                Pending first = carryOver != null ? carryOver : queue.take();
+                carryOver = null;
+                batch.add(first);
+                collectBatch(batch, first.commands.size());
+                roundExecutor.execute(() -> {
+                    try {
+                        proposeOne(batch);
+                    } finally {
+                        inFlight.release();
+                    }
+                });
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            }
+        }
+    }
+
+    // 在时间窗口内尽量把批次装满；窗口为 0 时只取已经排队的命令。按命令条数计算，命令组不拆开
+    private void collectBatch(List<Pending> batch, int commandCount) throws InterruptedException {
+        long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(maxDelayMillis);
+        while (commandCount < maxBatchSize) {
+            Pending next = queue.poll();
+            if (next == null) {
+                long remaining = deadline - System.nanoTime();
+                if (remaining <= 0 || (next = queue.poll(remaining, TimeUnit.NANOSECONDS)) == null) {
+                    break;
+                }
+            }
+            if (commandCount + next.commands.size() > maxBatchSize) {
+                carryOver = next;
+                break;
+            }
+            batch.add(next);
+            commandCount += next.commands.size();
+        }
+    }
+
+    private void proposeOne(List<Pending> batch) {
+        List<Messages.Command> commands = new ArrayList<>();
+        for (Pending pending : batch) {
+            commands.addAll(pending.commands);
+        }
+        try {
+            List<byte[]> results = batchProposer.proposeBatch(batch.get(0).proposer, commands);
+            int offset = 0;
+            for (Pending pending : batch) {
+                pending.result.complete(results.subList(offset, offset + pending.commands.size()));
+                offset += pending.commands.size();
+            }
+        } catch (Exception e) {
+            for (Pending pending : batch) {
+                pending.result.completeExceptionally(e);
+            }
+        }
+    }
+}
@@ -0,0 +1,553 @@
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.time.Instant;
+import java.time.ZoneId;
+import java.time.format.DateTimeFormatter;
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * EventJournal is the server's structured log. A request thread records an event by claiming a
+ * slot of a preallocated ring buffer with one CAS and storing the event type, its numeric
+ * arguments and references to existing objects; it never formats, allocates, takes a lock or
+ * touches I/O. A background thread formats the events and writes them. If the ring is full the
+ * event is dropped and counted in {@link Metrics#JOURNAL_DROPPED} instead of waiting.
+ *
+ * <p>Configuration: {@code -Dpaxos.journal.level=debug|info|warn|error} (default {@code info}),
+ * {@code -Dpaxos.journal.format=text|json|binary} (default {@code text}),
+ * {@code -Dpaxos.journal.file=<path>} (default standard output) and
+ * {@code -Dpaxos.journal.capacity=<events>} (default 16384). A binary journal can be read back
+ * with {@code java EventJournal <file>}, which prints it as JSON lines.
+ */
+public final class EventJournal {
+
+    /**
+     * Severity of an event; events below {@code paxos.journal.level} are discarded on the spot.
+     */
+    public enum Level {
+        DEBUG, INFO, WARN, ERROR
+    }
+
+    /**
+     * Every event the server records. The template's {@code {}} placeholders and the field names
+     * follow the order of the arguments passed to {@code emit}.
+     */
+    public enum Event {
+        // RMIServer
+        SERVER_READY(Level.INFO, "RMIServer: Server ready on port {}", "port"),
+        SERVER_START_FAILED(Level.ERROR, "RMIServer exception: can't start the server. {}", "error"),
+        PREPARE_RETRY(Level.INFO, "RMIServer: retrying prepare after restart."),
+        LEARNER_RECOVERED(Level.INFO, "RMIServer: recovered state up to slot {}", "slot"),
+        LEARNER_RECOVERY_FAILED(Level.ERROR, "RMIServer exception: can't recover learner state. {}", "error"),
+        LEADER_ELECTED(Level.INFO, "RMIServer: leader elected on port {} with ballot {}", "port", "ballot"),
+        REPLICA_CALL_FAILED(Level.WARN, "Error contacting server on port {}: {}", "port", "error"),
+        LATE_UNREACHABLE(Level.DEBUG, "Late response from server on port {}: unreachable", "port"),
+        LATE_REFUSAL(Level.DEBUG, "Late response from server on port {}: refused, promised ballot {}", "port", "ballot"),
+        COMMIT_SEND_FAILED(Level.WARN, "Failed to send commit of slot {} to server on port {}", "slot", "port"),
+        LEARNED_WAITING(Level.INFO, "Learned slot #{} but it is still waiting for earlier slots.", "slot"),
+        LEARNED(Level.DEBUG, "Learned slot #{} with {} commands.", "slot", "commands"),
+        PUT_EXISTING(Level.DEBUG, "Attempted to PUT existing key: {}", "key"),
+        PERFORMED_PUT(Level.DEBUG, "Performed PUT operation: Key = {}, Value = {}", "key", "value"),
+        PERFORMED_DELETE(Level.DEBUG, "Performed DELETE operation: Key = {}", "key"),
+        DELETE_MISSING(Level.DEBUG, "Attempted to DELETE non-existent key: {}", "key"),
+        UNKNOWN_OPERATION(Level.WARN, "Unknown operation {} in proposal #{}", "op", "slot"),
+        HEARTBEAT(Level.DEBUG, "心跳测试 port {}", "port"),
+        HEARTBEAT_REPAIRED(Level.INFO, "Updated {} buckets of the dictionary on server at port {}", "buckets", "port"),
+        REPLICA_UNREACHABLE(Level.WARN, "Failed to contact server on port {}, attempting to reconnect.", "port"),
+        RECONNECTED(Level.INFO, "Reconnected to server on port {}", "port"),
+        RECONNECT_FAILED(Level.ERROR, "Failed to reconnect to server on port {}. {}", "port", "error"),
+        CATCH_UP_FAILED(Level.WARN, "Catch-up of server on port {} failed, retrying at the next heartbeat. {}", "port", "error"),
+        CLUSTER_MEMBER_READY(Level.INFO, "RMIServer: member {} ready on port {}, membership epoch {}", "member", "port", "epoch"),
+        MEMBER_UNREACHABLE(Level.WARN, "RMIServer: member {} at {} is unreachable", "member", "address"),
+        MEMBERSHIP_CHANGED(Level.INFO, "RMIServer: membership is now epoch {} with {} members", "epoch", "members"),
+        MEMBERSHIP_STORE_FAILED(Level.ERROR, "RMIServer exception: can't save membership epoch {}. {}", "epoch", "error"),
+        LEARNER_BEHIND(Level.WARN, "RMIServer: replicas no longer hold slot {}, catching the learner up from the freshest replica", "slot"),
+        BLOB_UPLOAD_FAILED(Level.WARN, "RMIServer: only {} of {} replicas stored blob {}, not proposing it", "stored", "replicas", "digest"),
+        BLOB_MISSING(Level.WARN, "RMIServer: no replica holds the large value {} of slot {}", "digest", "slot"),
+        CATCH_UP_SENT(Level.INFO, "Server on port {} caught up: {} keys ({} bytes) in {} chunks up to slot {}, then {} later slots, in {} ms",
+                "port", "keys", "bytes", "chunks", "slot", "replayed", "millis"),
+        // RMIImplement
+        DICTIONARY_UPDATED(Level.INFO, "Dictionary has been updated."),
+        BUCKETS_REPAIRED(Level.INFO, "Dictionary on port {} repaired {} buckets.", "port", "buckets"),
+        REPLICA_RECOVERED(Level.INFO, "RMIImplement on port {} recovered up to slot {}", "port", "slot"),
+        MALFORMED_VALUE(Level.WARN, "port {} refused a malformed value for slot {}", "port", "slot"),
+        BLOB_REFUSED(Level.WARN, "port {} could not store a large value: {}", "port", "error"),
+        REPLICA_BLOB_MISSING(Level.WARN, "port {} cannot find the large value of slot {} ({}), leaving the key to anti-entropy", "port", "slot", "digest"),
+        SNAPSHOT_INSTALLED(Level.INFO, "RMIImplement on port {} installed a snapshot up to slot {}", "port", "slot"),
+        SNAPSHOT_WRITE_FAILED(Level.ERROR, "RMIImplement on port {} failed to write snapshot at slot {}: {}", "port", "slot", "error"),
+        CATCH_UP_BEGUN(Level.INFO, "RMIImplement on port {} is catching up from a snapshot at slot {}", "port", "slot"),
+        CAUGHT_UP(Level.INFO, "RMIImplement on port {} caught up to slot {}", "port", "slot"),
+        CATCH_UP_READ_FAILED(Level.WARN, "port {} failed to forward a read while catching up: {}", "port", "error"),
+        LOCK_BUSY(Level.DEBUG, "port {} because of some reason, maybe lock, can't {}.", "port", "operation"),
+        PUT_REFUSED(Level.DEBUG, "port {} already has the key, refuse to put.", "port"),
+        DELETE_REFUSED(Level.DEBUG, "port {} has no such key, refuse to delete.", "port"),
+        PROPOSE_FAILED(Level.ERROR, "RMIImplement on port {} error: RemoteException occurred while proposing {} commands", "port", "commands"),
+        SHARD_UNREACHABLE(Level.WARN, "RMIImplement on port {} error: cannot reach shard {}: {}", "port", "shard", "error"),
+        // WriteAheadLog
+        WAL_CORRUPT_RECORD(Level.WARN, "WAL: corrupt record in {}, ignoring the rest of the segment.", "file"),
+        WAL_UNKNOWN_RECORD(Level.WARN, "WAL: unknown record type {}", "type"),
+        // NioTransport
+        NIO_LISTENER_CLOSED(Level.WARN, "NioTransport: listener on port {} closed before registration.", "port"),
+        NIO_SELECTOR_FAILED(Level.ERROR, "NioTransport: selector failed: {}", "error"),
+        NIO_ACCEPT_FAILED(Level.WARN, "NioTransport: accept failed on port {}: {}", "port", "error");
+
+        final Level level;
+        final String template;
+        final String[] fields;
+
+        Event(Level level, String template, String... fields) {
+            this.level = level;
+            this.template = template;
+            this.fields = fields;
+        }
+    }
+
+    private static final int MAX_ARGS = 8;
+    private static final int BINARY_MAGIC = 0x50584a31;
+    private static final byte TAG_LONG = 0;
+    private static final byte TAG_STRING = 1;
+    private static final byte TAG_NULL = 2;
+    private static final DateTimeFormatter TIME = DateTimeFormatter.ofPattern("yyyy-MM-dd HH:mm:ss").withZone(ZoneId.systemDefault());
+
+    /**
+     * One ring-buffer entry. Its fields are written by the producer that claimed the sequence and
+     * become visible to the writer through the volatile {@code sequence}.
+     */
+    private static final class Slot {
+        volatile long sequence = -1;
+        long timeMillis;
+        Event event;
+        int count;
+        int longMask;
+        final long[] longs = new long[MAX_ARGS];
+        final Object[] refs = new Object[MAX_ARGS];
+
+        void set(int i, long value) {
+            longs[i] = value;
+            longMask |= 1 << i;
+        }
+
+        void set(int i, Object value) {
+            refs[i] = value;
+        }
+
+        boolean isLong(int i) {
+            return (longMask & (1 << i)) != 0;
+        }
+    }
+
+    private static final int THRESHOLD = Level.valueOf(System.getProperty("paxos.journal.level", "info").toUpperCase()).ordinal();
+    private static final String FORMAT = System.getProperty("paxos.journal.format", "text").toLowerCase();
+    private static final Slot[] SLOTS = new Slot[Integer.highestOneBit(Math.max(64, Integer.getInteger("paxos.journal.capacity", 16384)))];
+    private static final int MASK = SLOTS.length - 1;
+    private static final AtomicLong CLAIMED = new AtomicLong();
+    // writer 已经处理完的序号；生产者只读它来判断环是否满了
+    private static volatile long consumed;
+    private static volatile boolean stopping;
+
+    static {
+        for (int i = 0; i < SLOTS.length; i++) {
+            SLOTS[i] = new Slot();
+        }
+        if (!FORMAT.equals("text") && !FORMAT.equals("json") && !FORMAT.equals("binary")) {
+            throw new IllegalArgumentException("Unknown paxos.journal.format '" + FORMAT + "', expected text, json or binary");
+        }
+        Thread writer = new Thread(EventJournal::drain, "event-journal");
+        writer.setDaemon(true);
+        writer.start();
+        // 退出前把环里剩下的事件写完
+        Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+            stopping = true;
+            try {
+                writer.join(1000);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }, "event-journal-flush"));
+    }
+
+    private EventJournal() {
+    }
+
+    /**
+     * Whether events of a level are recorded, for callers that would otherwise compute arguments
+     * for nothing.
+     *
+     * @param level The level.
+     * @return {@code true} if the level is at or above {@code paxos.journal.level}.
+     */
+    public static boolean isEnabled(Level level) {
+        return level.ordinal() >= THRESHOLD;
+    }
+
+    /**
+     * Records an event without arguments.
+     *
+     * @param event The event.
+     */
+    public static void emit(Event event) {
+        long sequence = claim(event);
+        if (sequence >= 0) {
+            publish(sequence, 0);
+        }
+    }
+
+    /**
+     * Records an event with one numeric argument.
+     *
+     * @param event The event.
+     * @param a The argument.
+     */
+    public static void emit(Event event, long a) {
+        long sequence = claim(event);
+        if (sequence >= 0) {
+            SLOTS[(int) sequence & MASK].set(0, a);
+            publish(sequence, 1);
+        }
+    }
+
+    /**
+     * Records an event with two numeric arguments.
+     *
+     * @param event The event.
+     * @param a The first argument.
+     * @param b The second argument.
+     */
+    public static void emit(Event event, long a, long b) {
+        long sequence = claim(event);
+        if (sequence >= 0) {
+            Slot slot = SLOTS[(int) sequence & MASK];
+            slot.set(0, a);
+            slot.set(1, b);
+            publish(sequence, 2);
+        }
+    }
+
+    /**
+     * Records an event with a numeric and an object argument.
+     *
+     * @param event The event.
+     * @param a The first argument.
+     * @param x The second argument, formatted with {@code String.valueOf} by the writer.
+     */
+    public static void emit(Event event, long a, Object x) {
+        long sequence = claim(event);
+        if (sequence >= 0) {
+            Slot slot = SLOTS[(int) sequence & MASK];
+            slot.set(0, a);
+            slot.set(1, x);
+            publish(sequence, 2);
+        }
+    }
+
+    /**
+     * Records an event with two numeric arguments and an object argument.
+     *
+     * @param event The event.
+     * @param a The first argument.
+     * @param b The second argument.
+     * @param x The third argument, formatted with {@code String.valueOf} by the writer.
+     */
+    public static void emit(Event event, long a, long b, Object x) {
+        long sequence = claim(event);
+        if (sequence >= 0) {
+            Slot slot = SLOTS[(int) sequence & MASK];
+            slot.set(0, a);
+            slot.set(1, b);
+            slot.set(2, x);
+            publish(sequence, 3);
+        }
+    }
+
+    /**
+     * Records an event with an object and a numeric argument.
+     *
+     * @param event The event.
+     * @param x The first argument, formatted with {@code String.valueOf} by the writer.
+     * @param a The second argument.
+     */
+    public static void emit(Event event, Object x, long a) {
+        long sequence = claim(event);
+        if (sequence >= 0) {
+            Slot slot = SLOTS[(int) sequence & MASK];
+            slot.set(0, x);
+            slot.set(1, a);
+            publish(sequence, 2);
+        }
+    }
+
+    /**
+     * Records an event with one object argument.
+     *
+     * @param event The event.
+     * @param x The argument, formatted with {@code String.valueOf} by the writer.
+     */
+    public static void emit(Event event, Object x) {
+        long sequence = claim(event);
+        if (sequence >= 0) {
+            SLOTS[(int) sequence & MASK].set(0, x);
+            publish(sequence, 1);
+        }
+    }
+
+    /**
+     * Records an event with two object arguments.
+     *
+     * @param event The event.
+     * @param x The first argument, formatted with {@code String.valueOf} by the writer.
+     * @param y The second argument, formatted with {@code String.valueOf} by the writer.
+     */
+    public static void emit(Event event, Object x, Object y) {
+        long sequence = claim(event);
+        if (sequence >= 0) {
+            Slot slot = SLOTS[(int) sequence & MASK];
+            slot.set(0, x);
+            slot.set(1, y);
+            publish(sequence, 2);
+        }
+    }
+
+    /**
+     * Records an event with many numeric arguments. Allocates the varargs array, so it is meant
+     * for rare events.
+     *
+     * @param event The event.
+     * @param args The arguments, at most eight.
+     */
+    public static void emitAll(Event event, long... args) {
+        long sequence = claim(event);
+        if (sequence >= 0) {
+            Slot slot = SLOTS[(int) sequence & MASK];
+            int count = Math.min(args.length, MAX_ARGS);
+            for (int i = 0; i < count; i++) {
+                slot.set(i, args[i]);
+            }
+            publish(sequence, count);
+        }
+    }
+
+    // 一次 CAS 占一个槽位；环满了就丢弃并计数，请求线程绝不等待
+    private static long claim(Event event) {
+        if (event.level.ordinal() < THRESHOLD) {
+            return -1;
+        }
+        long sequence;
+        do {
+            sequence = CLAIMED.get();
+            if (sequence - consumed >= SLOTS.length) {
+                Metrics.JOURNAL_DROPPED.increment();
+                return -1;
+            }
+        } while (!CLAIMED.compareAndSet(sequence, sequence + 1));
+        Slot slot = SLOTS[(int) sequence & MASK];
+        slot.event = event;
+        slot.timeMillis = System.currentTimeMillis();
+        slot.longMask = 0;
+        return sequence;
+    }
+
+    private static void publish(long sequence, int count) {
+        Slot slot = SLOTS[(int) sequence & MASK];
+        slot.count = count;
+        slot.sequence = sequence;
+    }
+
+    private static void drain() {
+        OutputStream target = System.out;
+        String file = System.getProperty("paxos.journal.file");
+        if (file != null) {
+            try {
+                target = new FileOutputStream(file, true);
+            } catch (IOException e) {
+                System.out.println("EventJournal: cannot open " + file + ", writing to standard output. " + e.getMessage());
+            }
+        }
+        DataOutputStream out = new DataOutputStream(new BufferedOutputStream(target, 1 << 16));
+        StringBuilder line = new StringBuilder(256);
+        long next = 0;
+        int idle = 0;
+        try {
+            if (FORMAT.equals("binary")) {
+                out.writeInt(BINARY_MAGIC);
+            }
+            while (true) {
+                Slot slot = SLOTS[(int) next & MASK];
+                if (slot.sequence == next) {
+                    write(slot, out, line);
+                    Arrays.fill(slot.refs, 0, slot.count, null);
+                    slot.event = null;
+                    next++;
+                    consumed = next;
+                    idle = 0;
+                    continue;
+                }
+                if (stopping && next == CLAIMED.get()) {
+                    out.flush();
+                    return;
+                }
+                // 环空了就把缓冲刷出去再睡 1ms：日志晚一点写出去没关系，少醒几次就少抢几次请求线程的 CPU
+                if (idle == 0) {
+                    out.flush();
+                }
+                idle = 1;
+                LockSupport.parkNanos(1_000_000L);
+            }
+        } catch (IOException e) {
+            System.out.println("EventJournal: writer stopped: " + e.getMessage());
+        }
+    }
+
+    private static void write(Slot slot, DataOutputStream out, StringBuilder line) throws IOException {
+        if (FORMAT.equals("binary")) {
+            out.writeLong(slot.timeMillis);
+            out.writeShort(slot.event.ordinal());
+            out.writeByte(slot.count);
+            for (int i = 0; i < slot.count; i++) {
+                if (slot.isLong(i) || slot.refs[i] instanceof Integer || slot.refs[i] instanceof Long) {
+                    out.writeByte(TAG_LONG);
+                    out.writeLong(slot.isLong(i) ? slot.longs[i] : ((Number) slot.refs[i]).longValue());
+                } else if (slot.refs[i] == null) {
+                    out.writeByte(TAG_NULL);
+                } else {
+                    byte[] bytes = String.valueOf(slot.refs[i]).getBytes(StandardCharsets.UTF_8);
+                    out.writeByte(TAG_STRING);
+                    out.writeInt(bytes.length);
+                    out.write(bytes);
+                }
+            }
+            return;
+        }
+        Object[] args = new Object[slot.count];
+        for (int i = 0; i < slot.count; i++) {
+            args[i] = slot.isLong(i) ? (Object) slot.longs[i] : slot.refs[i];
+        }
+        line.setLength(0);
+        if (FORMAT.equals("json")) {
+            appendJson(line, slot.timeMillis, slot.event, args);
+        } else {
+            appendText(line, slot.timeMillis, slot.event, args);
+        }
+        line.append('\n');
+        out.write(line.toString().getBytes(StandardCharsets.UTF_8));
+    }
+
+    // 格式化时间戳很贵：同一秒内的事件复用 "yyyy-MM-dd HH:mm:ss." 前缀，只拼毫秒
+    private static long cachedSecond = Long.MIN_VALUE;
+    private static String cachedPrefix;
+
+    private static StringBuilder appendTime(StringBuilder line, long timeMillis) {
+        long second = Math.floorDiv(timeMillis, 1000L);
+        if (second != cachedSecond) {
+            cachedPrefix = TIME.format(Instant.ofEpochSecond(second)) + ".";
+            cachedSecond = second;
+        }
+        int millis = (int) Math.floorMod(timeMillis, 1000L);
+        line.append(cachedPrefix).append((char) ('0' + millis / 100)).append((char) ('0' + millis / 10 % 10)).append((char) ('0' + millis % 10));
+        return line;
+    }
+
+    private static void appendText(StringBuilder line, long timeMillis, Event event, Object[] args) {
+        appendTime(line, timeMillis).append(' ');
+        String level = event.level.name();
+        line.append(level);
+        for (int i = level.length(); i < 6; i++) {
+            line.append(' ');
+        }
+        String template = event.template;
+        int arg = 0;
+        int from = 0;
+        int at;
+        while ((at = template.indexOf("{}", from)) >= 0) {
+            line.append(template, from, at);
+            line.append(arg < args.length ? String.valueOf(args[arg++]) : "{}");
+            from = at + 2;
+        }
+        line.append(template, from, template.length());
+    }
+
+    private static void appendJson(StringBuilder line, long timeMillis, Event event, Object[] args) {
+        line.append("{\"time\":\"");
+        appendTime(line, timeMillis)
+                .append("\",\"level\":\"").append(event.level.name())
+                .append("\",\"event\":\"").append(event.name()).append('"');
+        for (int i = 0; i < args.length; i++) {
+            line.append(",\"").append(i < event.fields.length ? event.fields[i] : "arg" + i).append("\":");
+            if (args[i] instanceof Long || args[i] instanceof Integer) {
+                line.append(args[i]);
+            } else if (args[i] == null) {
+                line.append("null");
+            } else {
+                appendJsonString(line, String.valueOf(args[i]));
+            }
+        }
+        line.append('}');
+    }
+
+    private static void appendJsonString(StringBuilder line, String value) {
+        line.append('"');
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            if (c == '"' || c == '\\') {
+                line.append('\\').append(c);
+            } else if (c == '\n') {
+                line.append("\\n");
+            } else if (c < 0x20) {
+                line.append(String.format("\\u%04x", (int) c));
+            } else {
+                line.append(c);
+            }
+        }
+        line.append('"');
+    }
+
+    /**
+     * Prints a binary journal as JSON lines.
+     *
+     * @param args The journal file.
+     * @throws IOException If the file cannot be read or is not a binary journal.
+     */
+    public static void main(String[] args) throws IOException {
+        if (args.length != 1) {
+            System.out.println("Usage: java EventJournal <binary journal file>");
+            return;
+        }
+        Event[] events = Event.values();
+        StringBuilder line = new StringBuilder(256);
+        try (DataInputStream in = new DataInputStream(new java.io.BufferedInputStream(new FileInputStream(args[0]), 1 << 16))) {
+            if (in.readInt() != BINARY_MAGIC) {
+                throw new IOException(args[0] + " is not a binary event journal");
+            }
+            while (true) {
+                long timeMillis;
+                try {
+                    timeMillis = in.readLong();
+                } catch (EOFException e) {
+                    return;
+                }
+                Event event = events[in.readShort()];
+                Object[] values = new Object[in.readByte()];
+                for (int i = 0; i < values.length; i++) {
+                    byte tag = in.readByte();
+                    if (tag == TAG_LONG) {
+                        values[i] = in.readLong();
+                    } else if (tag == TAG_STRING) {
+                        byte[] bytes = new byte[in.readInt()];
+                        in.readFully(bytes);
+                        values[i] = new String(bytes, StandardCharsets.UTF_8);
+                    }
+                }
+                line.setLength(0);
+                appendJson(line, timeMillis, event, values);
+                System.out.println(line);
+            }
+        }
+    }
+}
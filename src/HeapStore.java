@@ -0,0 +1,76 @@
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.BiConsumer;
+
+/**
+ * HeapStore is the default {@link KeyValueStore}: a {@link ConcurrentHashMap} of strings.
+ */
+public class HeapStore implements KeyValueStore {
+
+    private final ConcurrentHashMap<String, String> map;
+
+    /**
+     * Constructor for an empty HeapStore.
+     */
+    public HeapStore() {
+        this(new ConcurrentHashMap<>());
+    }
+
+    private HeapStore(ConcurrentHashMap<String, String> map) {
+        this.map = map;
+    }
+
+    @Override
+    public String get(String key) {
+        return map.get(key);
+    }
+
+    @Override
+    public boolean containsKey(String key) {
+        return map.containsKey(key);
+    }
+
+    @Override
+    public String put(String key, String value) {
+        return map.put(key, value);
+    }
+
+    @Override
+    public String putIfAbsent(String key, String value) {
+        return map.putIfAbsent(key, value);
+    }
+
+    @Override
+    public String remove(String key) {
+        return map.remove(key);
+    }
+
+    @Override
+    public boolean remove(String key, String value) {
+        return map.remove(key, value);
+    }
+
+    @Override
+    public void clear() {
+        map.clear();
+    }
+
+    @Override
+    public long size() {
+        return map.mappingCount();
+    }
+
+    @Override
+    public void forEach(BiConsumer<String, String> action) {
+        map.forEach(action);
+    }
+
+    @Override
+    public KeyValueStore copy() {
+        return new HeapStore(new ConcurrentHashMap<>(map));
+    }
+
+    @Override
+    public ConcurrentHashMap<String, String> toMap() {
+        return new ConcurrentHashMap<>(map);
+    }
+}
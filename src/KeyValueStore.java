@@ -0,0 +1,132 @@
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.BiConsumer;
+
+/**
+ * KeyValueStore is the storage engine behind a replica's dictionary and the learner's common
+ * dictionary. Single-key operations are atomic and safe to call from any thread, with the same
+ * semantics as the corresponding {@link ConcurrentHashMap} methods; iteration is weakly
+ * consistent.
+ *
+ * <p>Choose one with {@code -Dpaxos.store=heap|offheap} (default {@code heap}): {@link HeapStore}
+ * keeps a {@code ConcurrentHashMap}, {@link OffHeapStore} keeps UTF-8 bytes in direct memory for
+ * dictionaries with tens of millions of entries.
+ */
+public interface KeyValueStore {
+
+    /**
+     * Returns the value of a key.
+     *
+     * @param key The key.
+     * @return The value, or {@code null} if the key is absent.
+     */
+    String get(String key);
+
+    /**
+     * Whether a key is present.
+     *
+     * @param key The key.
+     * @return {@code true} if the key has a value.
+     */
+    boolean containsKey(String key);
+
+    /**
+     * Sets the value of a key.
+     *
+     * @param key The key.
+     * @param value The new value.
+     * @return The previous value, or {@code null} if the key was absent.
+     */
+    String put(String key, String value);
+
+    /**
+     * Sets the value of a key only if it is absent.
+     *
+     * @param key The key.
+     * @param value The value.
+     * @return The existing value, or {@code null} if the value was inserted.
+     */
+    String putIfAbsent(String key, String value);
+
+    /**
+     * Removes a key.
+     *
+     * @param key The key.
+     * @return The removed value, or {@code null} if the key was absent.
+     */
+    String remove(String key);
+
+    /**
+     * Removes a key only if it has the given value.
+     *
+     * @param key The key.
+     * @param value The expected value.
+     * @return {@code true} if the key was removed.
+     */
+    boolean remove(String key, String value);
+
+    /**
+     * Removes every key.
+     */
+    void clear();
+
+    /**
+     * The number of keys.
+     *
+     * @return The size.
+     */
+    long size();
+
+    /**
+     * Calls an action for every entry. Entries changed during the iteration may or may not be seen,
+     * and an entry may be passed more than once if the store is resized meanwhile. The action may
+     * modify the store.
+     *
+     * @param action The action.
+     */
+    void forEach(BiConsumer<String, String> action);
+
+    /**
+     * Returns an independent copy of the same kind of store, e.g. for a snapshot.
+     *
+     * @return The copy.
+     */
+    KeyValueStore copy();
+
+    /**
+     * Sets every entry of a map.
+     *
+     * @param entries The entries.
+     */
+    default void putAll(Map<String, String> entries) {
+        entries.forEach(this::put);
+    }
+
+    /**
+     * Copies the store into an on-heap map, e.g. to send it to another replica.
+     *
+     * @return The copy.
+     */
+    default ConcurrentHashMap<String, String> toMap() {
+        ConcurrentHashMap<String, String> map = new ConcurrentHashMap<>((int) Math.min(Integer.MAX_VALUE / 2, size() * 2 + 16));
+        forEach(map::put);
+        return map;
+    }
+
+    /**
+     * Creates an empty store of the kind selected by {@code paxos.store}.
+     *
+     * @return The configured store.
+     */
+    static KeyValueStore fromConfig() {
+        String kind = System.getProperty("paxos.store", "heap");
+        switch (kind.toLowerCase()) {
+            case "heap":
+                return new HeapStore();
+            case "offheap":
+                return new OffHeapStore();
+            default:
+                throw new IllegalArgumentException("Unknown paxos.store '" + kind + "', expected heap or offheap");
+        }
+    }
+}
@@ -0,0 +1,121 @@
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * LatencyHistogram records latencies in nanoseconds with a bounded relative error, in the style of
+ * HdrHistogram. Values below 128 ns get one bucket each; above that every power-of-two range is
+ * split into 64 equal buckets, so a reported percentile is at most about 1.6% above the true
+ * value. The bucket array is fixed (about 20 KB for latencies up to an hour), and recording is
+ * one atomic increment, so many threads can record into one histogram.
+ */
+public class LatencyHistogram {
+
+    private static final int LINEAR_BUCKETS = 128;
+    private static final int SUB_BUCKETS = 64;
+    private static final int SUB_BUCKET_BITS = 6;
+    private static final long MAX_VALUE = TimeUnit.HOURS.toNanos(1);
+
+    private final AtomicLongArray counts = new AtomicLongArray(indexOf(MAX_VALUE) + 1);
+    private final AtomicLong total = new AtomicLong();
+    private final AtomicLong max = new AtomicLong();
+
+    /**
+     * Records one latency. Values above an hour are recorded as an hour.
+     *
+     * @param nanos The latency in nanoseconds.
+     */
+    public void record(long nanos) {
+        long value = Math.min(Math.max(nanos, 0), MAX_VALUE);
+        counts.incrementAndGet(indexOf(value));
+        total.incrementAndGet();
+        max.accumulateAndGet(value, Math::max);
+    }
+
+    /**
+     * The number of recorded latencies.
+     *
+     * @return The count.
+     */
+    public long count() {
+        return total.get();
+    }
+
+    /**
+     * The largest recorded latency.
+     *
+     * @return The maximum in nanoseconds, or 0 if nothing was recorded.
+     */
+    public long max() {
+        return max.get();
+    }
+
+    /**
+     * Returns the latency at a percentile: the highest value in the bucket that holds it.
+     *
+     * @param percentile The percentile, e.g. 99.9.
+     * @return The latency in nanoseconds, or 0 if nothing was recorded.
+     */
+    public long percentile(double percentile) {
+        long count = total.get();
+        if (count == 0) {
+            return 0;
+        }
+        long rank = Math.max(1, (long) Math.ceil(percentile / 100.0 * count));
+        long seen = 0;
+        for (int i = 0; i < counts.length(); i++) {
+            seen += counts.get(i);
+            if (seen >= rank) {
+                return Math.min(highestValueIn(i), max.get());
+            }
+        }
+        return max.get();
+    }
+
+    /**
+     * Adds another histogram's counts to this one.
+     *
+     * @param other The histogram to add.
+     */
+    public void add(LatencyHistogram other) {
+        for (int i = 0; i < counts.length(); i++) {
+            long c = other.counts.get(i);
+            if (c != 0) {
+                counts.addAndGet(i, c);
+            }
+        }
+        total.addAndGet(other.total.get());
+        max.accumulateAndGet(other.max.get(), Math::max);
+    }
+
+    /**
+     * Clears all recorded latencies. Latencies recorded concurrently with the reset may be kept
+     * or lost.
+     */
+    public void reset() {
+        for (int i = 0; i < counts.length(); i++) {
+            counts.set(i, 0);
+        }
+        total.set(0);
+        max.set(0);
+    }
+
+    // 128 以下每个值一个桶；之后每个 2 的幂区间分成 64 个桶
+    private static int indexOf(long value) {
+        if (value < LINEAR_BUCKETS) {
+            return (int) value;
+        }
+        int shift = 63 - Long.numberOfLeadingZeros(value) - SUB_BUCKET_BITS;
+        return LINEAR_BUCKETS + (shift - 1) * SUB_BUCKETS + (int) ((value >>> shift) - SUB_BUCKETS);
+    }
+
+    private static long highestValueIn(int index) {
+        if (index < LINEAR_BUCKETS) {
+            return index;
+        }
+        int k = index - LINEAR_BUCKETS;
+        int shift = k / SUB_BUCKETS + 1;
+        long sub = k % SUB_BUCKETS + SUB_BUCKETS;
+        return ((sub + 1) << shift) - 1;
+    }
+}
@@ -0,0 +1,337 @@
+import java.rmi.RemoteException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * LoadGenerator drives the replicated dictionary with a scripted workload through
+ * {@link AsyncClient} and reports throughput and latency percentiles. It runs in one of two modes:
+ *
+ * <ul>
+ *   <li>Open loop ({@code paxos.load.rate > 0}): requests are issued on a fixed schedule whether or
+ *   not earlier ones have completed, and each latency is measured from the request's scheduled
+ *   start. A stall therefore shows up in the latency of every request scheduled during it, which
+ *   corrects for coordinated omission.</li>
+ *   <li>Closed loop ({@code paxos.load.rate = 0}): {@code paxos.load.concurrency} requests are kept
+ *   outstanding, each issued when the previous one completes. This finds the maximum throughput,
+ *   but its latencies are service times: a stall delays the following requests instead of being
+ *   counted against them.</li>
+ * </ul>
+ *
+ * <p>Reads are GETs. A write is a PUT when the generator last saw the key absent and a DELETE when
+ * it last saw it present, so writes keep succeeding instead of turning into conflicts; concurrent
+ * writes to one key can still conflict and are reported as such. Keys are {@code key0} to
+ * {@code key<n-1>}, chosen uniformly or with a scrambled Zipfian distribution. Requests refused
+ * with {@code BUSY} by a replica's admission control are counted and timed on their own row and
+ * left out of the read, write and throughput figures, which cover only the requests served.
+ */
+public class LoadGenerator {
+
+    private final AsyncClient client;
+    private final double rate;
+    private final int concurrency;
+    private final long warmupNanos;
+    private final long durationNanos;
+    private final double readRatio;
+    private final int keyCount;
+    private final KeyChooser keys;
+    private final int valueSize;
+    private final boolean preload;
+    private final String valueSource;
+
+    // 每个键最近一次看到的状态：1 表示存在，下一次写就是 DELETE
+    private final AtomicIntegerArray present;
+    private final LatencyHistogram reads = new LatencyHistogram();
+    private final LatencyHistogram writes = new LatencyHistogram();
+    // 被准入控制拒绝（BUSY）的请求很快返回，单独统计，不混进读写的延迟
+    private final LatencyHistogram refused = new LatencyHistogram();
+    private final LongAdder[] statuses = new LongAdder[Messages.BUSY + 1];
+    private final LongAdder failures = new LongAdder();
+    private final AtomicInteger outstanding = new AtomicInteger();
+    private final AtomicLong lastCompletion = new AtomicLong();
+    private long measureFrom;
+
+    /**
+     * Constructor for LoadGenerator, reading the workload from system properties:
+     * {@code paxos.load.rate} (ops/s, default 0 for closed loop), {@code paxos.load.concurrency}
+     * (default 16), {@code paxos.load.warmupSec} (default 5), {@code paxos.load.durationSec}
+     * (default 30), {@code paxos.load.readRatio} (default 0.9), {@code paxos.load.keys} (default
+     * 10000), {@code paxos.load.distribution} ({@code uniform} or {@code zipfian}, default uniform),
+     * {@code paxos.load.zipfTheta} (default 0.99), {@code paxos.load.valueSize} (bytes, default 100)
+     * and {@code paxos.load.preload} (default true).
+     *
+     * @param client The client to send requests through.
+     */
+    public LoadGenerator(AsyncClient client) {
+        this.client = client;
+        this.rate = Double.parseDouble(System.getProperty("paxos.load.rate", "0"));
+        this.concurrency = Integer.getInteger("paxos.load.concurrency", 16);
+        this.warmupNanos = TimeUnit.SECONDS.toNanos(Long.getLong("paxos.load.warmupSec", 5L));
+        this.durationNanos = TimeUnit.SECONDS.toNanos(Long.getLong("paxos.load.durationSec", 30L));
+        this.readRatio = Double.parseDouble(System.getProperty("paxos.load.readRatio", "0.9"));
+        this.keyCount = Integer.getInteger("paxos.load.keys", 10000);
+        String distribution = System.getProperty("paxos.load.distribution", "uniform");
+        switch (distribution.toLowerCase()) {
+            case "uniform":
+                this.keys = bound -> ThreadLocalRandom.current().nextInt(bound);
+                break;
+            case "zipfian":
+                this.keys = new ZipfianKeys(keyCount, Double.parseDouble(System.getProperty("paxos.load.zipfTheta", "0.99")));
+                break;
+            default:
+                throw new IllegalArgumentException("Unknown paxos.load.distribution '" + distribution + "', expected uniform or zipfian");
+        }
+        this.valueSize = Integer.getInteger("paxos.load.valueSize", 100);
+        this.preload = Boolean.parseBoolean(System.getProperty("paxos.load.preload", "true"));
+        this.present = new AtomicIntegerArray(keyCount);
+        for (int i = 0; i < statuses.length; i++) {
+            statuses[i] = new LongAdder();
+        }
+        StringBuilder source = new StringBuilder(valueSize * 2);
+        String alphabet = "abcdefghijklmnopqrstuvwxyzABCDEFGHIJKLMNOPQRSTUVWXYZ0123456789";
+        for (int i = 0; i < valueSize * 2; i++) {
+            source.append(alphabet.charAt(ThreadLocalRandom.current().nextInt(alphabet.length())));
+        }
+        this.valueSource = source.toString();
+    }
+
+    /**
+     * Connects to the configured servers and runs the configured workload.
+     *
+     * @param args Command line arguments (not used).
+     */
+    public static void main(String[] args) {
+        Membership membership = Membership.fromConfig();
+        int maxInFlight = Integer.getInteger("paxos.client.inflight", 64);
+        try (AsyncClient client = membership != null
+                ? AsyncClient.connect(Transport.fromConfig(), membership, maxInFlight)
+                : AsyncClient.connect(Transport.fromConfig(), "localhost", ShardMap.fromConfig(), maxInFlight)) {
+            new LoadGenerator(client).run();
+        } catch (RemoteException e) {
+            System.out.println("LoadGenerator error: cannot connect to the servers: " + e.getMessage());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Runs the workload: the optional preload, then warm-up and measurement, then prints the report.
+     *
+     * @throws InterruptedException If interrupted while waiting for requests.
+     */
+    public void run() throws InterruptedException {
+        if (preload) {
+            preloadKeys();
+        }
+        System.out.println("LoadGenerator: " + (rate > 0 ? "open loop at " + rate + " ops/s" : "closed loop with " + concurrency + " outstanding")
+                + ", read ratio " + readRatio + ", " + keyCount + " keys, " + valueSize + "-byte values, "
+                + TimeUnit.NANOSECONDS.toSeconds(warmupNanos) + " s warm-up, " + TimeUnit.NANOSECONDS.toSeconds(durationNanos) + " s measured");
+        long start = System.nanoTime();
+        measureFrom = start + warmupNanos;
+        long end = measureFrom + durationNanos;
+        if (rate > 0) {
+            runOpenLoop(start, measureFrom, end);
+        } else {
+            runClosedLoop(measureFrom, end);
+        }
+        // 等所有请求完成，超时的请求会以异常结束
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(60);
+        while (outstanding.get() > 0 && System.nanoTime() < deadline) {
+            Thread.sleep(10);
+        }
+        report();
+    }
+
+    private void preloadKeys() throws InterruptedException {
+        Semaphore window = new Semaphore(Math.max(1, concurrency) * 4);
+        CountDownLatch done = new CountDownLatch(keyCount);
+        for (int k = 0; k < keyCount; k++) {
+            window.acquire();
+            int key = k;
+            client.put("key" + k, value()).whenComplete((response, error) -> {
+                // 已经存在（上一次运行留下的）也算存在
+                if (error == null && (Messages.statusOf(response) == Messages.OK || Messages.statusOf(response) == Messages.CONFLICT)) {
+                    present.set(key, 1);
+                }
+                window.release();
+                done.countDown();
+            });
+        }
+        done.await();
+        System.out.println("LoadGenerator: preloaded " + keyCount + " keys");
+    }
+
+    // 按计划时间发请求，不等前面的请求完成；延迟从计划时间算起
+    private void runOpenLoop(long start, long measureFrom, long end) {
+        double intervalNanos = TimeUnit.SECONDS.toNanos(1) / rate;
+        for (long i = 0; ; i++) {
+            long intended = start + (long) (i * intervalNanos);
+            if (intended >= end) {
+                return;
+            }
+            long wait = intended - System.nanoTime();
+            if (wait > 0) {
+                LockSupport.parkNanos(wait);
+            }
+            issue(intended, measureFrom);
+        }
+    }
+
+    // 每条链上前一个请求完成后立刻发下一个
+    private void runClosedLoop(long measureFrom, long end) throws InterruptedException {
+        CountDownLatch chains = new CountDownLatch(concurrency);
+        for (int i = 0; i < concurrency; i++) {
+            issueChained(measureFrom, end, chains);
+        }
+        chains.await();
+    }
+
+    private void issueChained(long measureFrom, long end, CountDownLatch chains) {
+        long now = System.nanoTime();
+        if (now >= end) {
+            chains.countDown();
+            return;
+        }
+        issue(now, measureFrom).whenComplete((response, error) -> issueChained(measureFrom, end, chains));
+    }
+
+    private CompletableFuture<byte[]> issue(long intendedStart, long measureFrom) {
+        boolean read = ThreadLocalRandom.current().nextDouble() < readRatio;
+        int key = keys.next(keyCount);
+        CompletableFuture<byte[]> result;
+        outstanding.incrementAndGet();
+        if (read) {
+            result = client.get("key" + key);
+        } else if (present.getAndUpdate(key, state -> state ^ 1) == 1) {
+            result = client.delete("key" + key);
+        } else {
+            result = client.put("key" + key, value());
+        }
+        return result.whenComplete((response, error) -> {
+            long now = System.nanoTime();
+            if (!read && error == null && Messages.statusOf(response) == Messages.BUSY) {
+                // 写没有执行，键的状态翻回去
+                present.getAndUpdate(key, state -> state ^ 1);
+            }
+            long latency = now - intendedStart;
+            outstanding.decrementAndGet();
+            if (intendedStart < measureFrom) {
+                return;
+            }
+            lastCompletion.accumulateAndGet(now, Math::max);
+            if (error != null) {
+                failures.increment();
+            } else {
+                statuses[Messages.statusOf(response)].increment();
+            }
+            if (error == null && Messages.statusOf(response) == Messages.BUSY) {
+                refused.record(latency);
+            } else {
+                (read ? reads : writes).record(latency);
+            }
+        });
+    }
+
+    private String value() {
+        int offset = ThreadLocalRandom.current().nextInt(valueSize + 1);
+        return valueSource.substring(offset, offset + valueSize);
+    }
+
+    private void report() {
+        LatencyHistogram all = new LatencyHistogram();
+        all.add(reads);
+        all.add(writes);
+        // 过载时请求在测量结束之后才完成，吞吐量按最后一个完成的时间算
+        double seconds = Math.max(durationNanos, lastCompletion.get() - measureFrom) / 1e9;
+        System.out.printf("LoadGenerator: %.1f ops/s (%d ops in %.1f s)%n", all.count() / seconds, all.count(), seconds);
+        System.out.println("LoadGenerator: OK=" + statuses[Messages.OK] + " NOT_FOUND=" + statuses[Messages.NOT_FOUND]
+                + " CONFLICT=" + statuses[Messages.CONFLICT] + " NO_QUORUM=" + statuses[Messages.NO_QUORUM]
+                + " UNAVAILABLE=" + statuses[Messages.UNAVAILABLE] + " ERROR=" + statuses[Messages.ERROR] + " BUSY=" + statuses[Messages.BUSY] + " failed=" + failures);
+        long cacheLookups = client.cacheHits() + client.cacheMisses();
+        if (cacheLookups > 0) {
+            System.out.printf("LoadGenerator: near cache answered %d of %d reads (%.1f%%), including preload and warm-up%n",
+                    client.cacheHits(), cacheLookups, 100.0 * client.cacheHits() / cacheLookups);
+        }
+        System.out.printf("%-6s %10s %10s %10s %10s %10s %10s   (latency in ms)%n", "", "count", "p50", "p90", "p99", "p99.9", "max");
+        printRow("read", reads);
+        printRow("write", writes);
+        if (refused.count() > 0) {
+            printRow("busy", refused);
+        }
+        printRow("all", all);
+    }
+
+    private static void printRow(String name, LatencyHistogram histogram) {
+        System.out.printf("%-6s %10d %10.3f %10.3f %10.3f %10.3f %10.3f%n", name, histogram.count(),
+                histogram.percentile(50) / 1e6, histogram.percentile(90) / 1e6, histogram.percentile(99) / 1e6,
+                histogram.percentile(99.9) / 1e6, histogram.max() / 1e6);
+    }
+
+    /**
+     * Chooses the index of the next key to access.
+     */
+    @FunctionalInterface
+    interface KeyChooser {
+        int next(int bound);
+    }
+
+    /**
+     * Zipfian key choice as in YCSB (Gray et al., "Quickly generating billion-record synthetic
+     * databases"). Ranks are hashed to key indexes so that the hot keys are spread over the key
+     * space, and over the shards, instead of being {@code key0}, {@code key1} and so on.
+     */
+    static final class ZipfianKeys implements KeyChooser {
+        private final int n;
+        private final double theta;
+        private final double zetaN;
+        private final double alpha;
+        private final double eta;
+
+        ZipfianKeys(int n, double theta) {
+            if (theta <= 0 || theta >= 1) {
+                throw new IllegalArgumentException("paxos.load.zipfTheta must be between 0 and 1, got " + theta);
+            }
+            this.n = n;
+            this.theta = theta;
+            this.zetaN = zeta(n, theta);
+            this.alpha = 1.0 / (1.0 - theta);
+            this.eta = (1 - Math.pow(2.0 / n, 1 - theta)) / (1 - zeta(2, theta) / zetaN);
+        }
+
+        private static double zeta(long n, double theta) {
+            double sum = 0;
+            for (long i = 1; i <= n; i++) {
+                sum += 1 / Math.pow(i, theta);
+            }
+            return sum;
+        }
+
+        @Override
+        public int next(int bound) {
+            double u = ThreadLocalRandom.current().nextDouble();
+            double uz = u * zetaN;
+            long rank;
+            if (uz < 1.0) {
+                rank = 0;
+            } else if (uz < 1.0 + Math.pow(0.5, theta)) {
+                rank = 1;
+            } else {
+                rank = Math.min(n - 1, (long) (n * Math.pow(eta * u - eta + 1, alpha)));
+            }
+            // FNV-1a 打散排名
+            long h = 0xcbf29ce484222325L;
+            for (int i = 0; i < 8; i++) {
+                h ^= (rank >>> (i * 8)) & 0xff;
+                h *= 0x100000001b3L;
+            }
+            return (int) Long.remainderUnsigned(h, bound);
+        }
+    }
+}
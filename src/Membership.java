@@ -0,0 +1,333 @@
+import java.io.IOException;
+import java.io.Reader;
+import java.io.StringReader;
+import java.io.UncheckedIOException;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Properties;
+import java.util.Set;
+import java.util.TreeMap;
+
+/**
+ * Membership is the set of replicas of one consensus group, with an epoch that grows by one on
+ * every change. Quorums are majorities of the current members, so a group of three tolerates one
+ * failure and a group of seven three.
+ *
+ * <p>With {@code -Dpaxos.cluster.file=<path>} every replica runs in its own process. The file is a
+ * properties file listing {@code epoch=<n>} and one {@code member.<id>=<host>:<port>} per replica;
+ * member IDs double as the proposers' node IDs ({@code paxos.node.id}), so they range from 0 to 31,
+ * and every member needs its own address; members on different hosts may share a port. Each process hosts the member whose ID is its node ID and
+ * reaches the others through the transport. Members are added and removed one at a time at runtime
+ * (see {@link RMIInterface#addMember}); the change is chosen through the replicated log like any
+ * write, and every process rewrites its file when it applies it.
+ *
+ * <p>Without a cluster file the five replicas of each shard run inside the server's JVM as before,
+ * and their membership is fixed by {@link ShardMap}.
+ */
+public final class Membership {
+
+    /**
+     * One replica of the group.
+     */
+    public static final class Member {
+        final int id;
+        final String host;
+        final int port;
+
+        Member(int id, String host, int port) {
+            this.id = id;
+            this.host = host;
+            this.port = port;
+        }
+
+        /**
+         * The replica's address.
+         *
+         * @return {@code host:port}.
+         */
+        public String address() {
+            return host + ":" + port;
+        }
+
+        @Override
+        public String toString() {
+            return id + "=" + address();
+        }
+    }
+
+    private static final int MAX_ID = (1 << Ballots.NODE_BITS) - 1;
+
+    private final long epoch;
+    private final TreeMap<Integer, Member> members;
+
+    /**
+     * Constructor for Membership.
+     *
+     * @param epoch The epoch of this membership.
+     * @param members The members by ID.
+     * @throws IllegalArgumentException If there are no members, an ID is out of range or two
+     *         members share an address.
+     */
+    public Membership(long epoch, Map<Integer, Member> members) {
+        if (members.isEmpty()) {
+            throw new IllegalArgumentException("A membership needs at least one member");
+        }
+        Set<String> addresses = new HashSet<>();
+        for (Member member : members.values()) {
+            if (member.id < 0 || member.id > MAX_ID) {
+                throw new IllegalArgumentException("Member ID must be between 0 and " + MAX_ID + ", got " + member.id);
+            }
+            // 副本按成员 ID 认，不同主机上的成员可以用同一个端口
+            if (!addresses.add(member.address())) {
+                throw new IllegalArgumentException("Two members use address " + member.address());
+            }
+        }
+        this.epoch = epoch;
+        this.members = new TreeMap<>(members);
+    }
+
+    /**
+     * The membership of a shard whose replicas all run in this JVM: the five ports given by the
+     * shard map, as members 0 to 4.
+     *
+     * @param shardMap The shard layout.
+     * @param shard The shard.
+     * @return The membership, at epoch 0.
+     */
+    public static Membership inProcess(ShardMap shardMap, int shard) {
+        Map<Integer, Member> members = new TreeMap<>();
+        for (int i = 0; i < ShardMap.REPLICAS_PER_SHARD; i++) {
+            members.put(i, new Member(i, "localhost", shardMap.portOf(shard, i)));
+        }
+        return new Membership(0, members);
+    }
+
+    /**
+     * The cluster file configured by {@code paxos.cluster.file}.
+     *
+     * @return The path, or {@code null} if the replicas run in-process.
+     */
+    public static Path configuredFile() {
+        String file = System.getProperty("paxos.cluster.file");
+        return file == null || file.isEmpty() ? null : Paths.get(file);
+    }
+
+    /**
+     * Reads the membership from the configured cluster file.
+     *
+     * @return The membership, or {@code null} if no cluster file is configured.
+     * @throws UncheckedIOException If the file cannot be read.
+     * @throws IllegalArgumentException If the file is malformed.
+     */
+    public static Membership fromConfig() {
+        Path file = configuredFile();
+        if (file == null) {
+            return null;
+        }
+        try {
+            return load(file);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    /**
+     * Reads a membership from a cluster file.
+     *
+     * @param file The file.
+     * @return The membership.
+     * @throws IOException If the file cannot be read.
+     * @throws IllegalArgumentException If the file is malformed.
+     */
+    public static Membership load(Path file) throws IOException {
+        try (Reader in = Files.newBufferedReader(file, StandardCharsets.UTF_8)) {
+            return parse(in, file.toString());
+        }
+    }
+
+    private static Membership parse(Reader in, String source) throws IOException {
+        Properties properties = new Properties();
+        properties.load(in);
+        long epoch = Long.parseLong(properties.getProperty("epoch", "0").trim());
+        Map<Integer, Member> members = new TreeMap<>();
+        for (String name : properties.stringPropertyNames()) {
+            if (name.startsWith("member.")) {
+                int id = Integer.parseInt(name.substring("member.".length()).trim());
+                members.put(id, parseAddress(id, properties.getProperty(name).trim()));
+            } else if (!name.equals("epoch")) {
+                throw new IllegalArgumentException("Unknown entry '" + name + "' in " + source);
+            }
+        }
+        return new Membership(epoch, members);
+    }
+
+    /**
+     * Parses the address of a member.
+     *
+     * @param id The member's ID.
+     * @param address {@code host:port}.
+     * @return The member.
+     * @throws IllegalArgumentException If the address has no port.
+     */
+    public static Member parseAddress(int id, String address) {
+        int colon = address.lastIndexOf(':');
+        if (colon <= 0 || colon == address.length() - 1) {
+            throw new IllegalArgumentException("Member address must be host:port, got '" + address + "'");
+        }
+        return new Member(id, address.substring(0, colon), Integer.parseInt(address.substring(colon + 1)));
+    }
+
+    /**
+     * Writes the membership to a cluster file. The file is replaced atomically, so a crash leaves
+     * either the old or the new membership, never a mix.
+     *
+     * @param file The file.
+     * @throws IOException If the file cannot be written.
+     */
+    public void store(Path file) throws IOException {
+        Path parent = file.toAbsolutePath().getParent();
+        Path temp = Files.createTempFile(parent, file.getFileName().toString(), ".tmp");
+        try {
+            try (Writer out = Files.newBufferedWriter(temp, StandardCharsets.UTF_8)) {
+                out.write("epoch=" + epoch + "\n");
+                for (Member member : members.values()) {
+                    out.write("member." + member.id + "=" + member.address() + "\n");
+                }
+            }
+            Files.move(temp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } finally {
+            Files.deleteIfExists(temp);
+        }
+    }
+
+    /**
+     * Returns the membership with one member added, at the next epoch.
+     *
+     * @param id The new member's ID.
+     * @param address The new member's {@code host:port}.
+     * @return The new membership.
+     * @throws IllegalArgumentException If the ID is already a member or the address is invalid.
+     */
+    public Membership with(int id, String address) {
+        if (members.containsKey(id)) {
+            throw new IllegalArgumentException("Member " + id + " already exists");
+        }
+        Map<Integer, Member> next = new TreeMap<>(members);
+        next.put(id, parseAddress(id, address));
+        return new Membership(epoch + 1, next);
+    }
+
+    /**
+     * Returns the membership with one member removed, at the next epoch.
+     *
+     * @param id The member to remove.
+     * @return The new membership.
+     * @throws IllegalArgumentException If the ID is not a member or is the last one.
+     */
+    public Membership without(int id) {
+        if (!members.containsKey(id)) {
+            throw new IllegalArgumentException("Member " + id + " does not exist");
+        }
+        Map<Integer, Member> next = new TreeMap<>(members);
+        next.remove(id);
+        return new Membership(epoch + 1, next);
+    }
+
+    /**
+     * The epoch of this membership.
+     *
+     * @return The epoch.
+     */
+    public long epoch() {
+        return epoch;
+    }
+
+    /**
+     * The members, in ID order.
+     *
+     * @return The members.
+     */
+    public Collection<Member> members() {
+        return Collections.unmodifiableCollection(members.values());
+    }
+
+    /**
+     * Returns one member.
+     *
+     * @param id The member's ID.
+     * @return The member, or {@code null} if the ID is not a member.
+     */
+    public Member member(int id) {
+        return members.get(id);
+    }
+
+    /**
+     * Whether an ID is a member.
+     *
+     * @param id The ID.
+     * @return {@code true} if it is.
+     */
+    public boolean contains(int id) {
+        return members.containsKey(id);
+    }
+
+    /**
+     * The number of members.
+     *
+     * @return The size of the group.
+     */
+    public int size() {
+        return members.size();
+    }
+
+    /**
+     * The number of members that make a quorum.
+     *
+     * @return A majority of the members.
+     */
+    public int majority() {
+        return members.size() / 2 + 1;
+    }
+
+    /**
+     * Encodes the membership as the value of a {@link Messages#CONFIG} command, in the cluster
+     * file format.
+     *
+     * @return The encoded membership.
+     */
+    public String encode() {
+        StringBuilder out = new StringBuilder("epoch=").append(epoch).append('\n');
+        for (Member member : members.values()) {
+            out.append("member.").append(member.id).append('=').append(member.address()).append('\n');
+        }
+        return out.toString();
+    }
+
+    /**
+     * Decodes a membership encoded by {@link #encode()}.
+     *
+     * @param encoded The encoded membership.
+     * @return The membership.
+     * @throws IllegalArgumentException If it is malformed.
+     */
+    public static Membership decode(String encoded) {
+        try {
+            return parse(new StringReader(encoded), "membership");
+        } catch (IOException e) {
+            throw new IllegalArgumentException(e);
+        }
+    }
+
+    @Override
+    public String toString() {
+        return "epoch " + epoch + " " + members.values();
+    }
+}
@@ -0,0 +1,132 @@
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * MerkleTree is a hashed range tree over a dictionary's keys. Keys are hashed into a fixed number
+ * of leaf buckets; each bucket's digest is the XOR of its entries' hashes, so it is maintained in
+ * constant time on every put and remove, independent of the order of concurrent updates. Interior
+ * digests are derived from the leaves when a peer asks for them.
+ *
+ * <p>Nodes use heap numbering: node 1 is the root, the children of node {@code i} are {@code 2i}
+ * and {@code 2i + 1}, and the leaves are nodes {@code leafCount()} to {@code 2 * leafCount() - 1}.
+ * Two replicas find the buckets they disagree on by descending only into mismatching subtrees.
+ */
+public class MerkleTree {
+
+    private final int depth;
+    private final AtomicLongArray leaves;
+
+    /**
+     * Constructor for MerkleTree.
+     *
+     * @param depth The number of levels below the root; the tree has {@code 2^depth} buckets.
+     */
+    public MerkleTree(int depth) {
+        this.depth = depth;
+        this.leaves = new AtomicLongArray(1 << depth);
+    }
+
+    /**
+     * The number of leaf buckets.
+     *
+     * @return The leaf count.
+     */
+    public int leafCount() {
+        return leaves.length();
+    }
+
+    /**
+     * Returns the bucket a key belongs to.
+     *
+     * @param key The key.
+     * @return The bucket index, from 0 to {@code leafCount() - 1}.
+     */
+    public int bucketOf(String key) {
+        return (int) (mix(hash(key, 0xcbf29ce484222325L)) >>> (64 - depth));
+    }
+
+    /**
+     * Records that an entry was added.
+     *
+     * @param key The key.
+     * @param value The value stored for it.
+     */
+    public void added(String key, String value) {
+        flip(key, value);
+    }
+
+    /**
+     * Records that an entry was removed.
+     *
+     * @param key The key.
+     * @param value The value that was stored for it.
+     */
+    public void removed(String key, String value) {
+        flip(key, value);
+    }
+
+    /**
+     * Resets every bucket, e.g. before the dictionary is replaced wholesale.
+     */
+    public void clear() {
+        for (int i = 0; i < leaves.length(); i++) {
+            leaves.set(i, 0);
+        }
+    }
+
+    // XOR 可交换，所以并发的修改不管什么顺序，最后的摘要都一样
+    private void flip(String key, String value) {
+        int bucket = bucketOf(key);
+        long entryHash = mix(hash(value, hash(key, 0x84222325cbf29ce4L) ^ 0xff));
+        long current;
+        do {
+            current = leaves.get(bucket);
+        } while (!leaves.compareAndSet(bucket, current, current ^ entryHash));
+    }
+
+    /**
+     * Returns the digests of the given nodes.
+     *
+     * @param nodes Node numbers in heap order.
+     * @return The digest of each node, in the same order.
+     */
+    public long[] digests(int[] nodes) {
+        long[] tree = buildTree();
+        long[] result = new long[nodes.length];
+        for (int i = 0; i < nodes.length; i++) {
+            result[i] = nodes[i] > 0 && nodes[i] < tree.length ? tree[nodes[i]] : 0;
+        }
+        return result;
+    }
+
+    /**
+     * Computes every node digest from the current leaves.
+     *
+     * @return The digests indexed by node number; index 0 is unused.
+     */
+    public long[] buildTree() {
+        int leafCount = leaves.length();
+        long[] tree = new long[2 * leafCount];
+        for (int i = 0; i < leafCount; i++) {
+            tree[leafCount + i] = leaves.get(i);
+        }
+        for (int node = leafCount - 1; node >= 1; node--) {
+            tree[node] = mix(tree[2 * node] * 0x9E3779B97F4A7C15L + tree[2 * node + 1]);
+        }
+        return tree;
+    }
+
+    private static long hash(String s, long seed) {
+        long h = seed;
+        for (int i = 0; i < s.length(); i++) {
+            h ^= s.charAt(i);
+            h *= 0x100000001b3L;
+        }
+        return h;
+    }
+
+    private static long mix(long z) {
+        z = (z ^ (z >>> 30)) * 0xbf58476d1ce4e5b9L;
+        z = (z ^ (z >>> 27)) * 0x94d049bb133111ebL;
+        return z ^ (z >>> 31);
+    }
+}
@@ -0,0 +1,823 @@
+import java.nio.charset.StandardCharsets;
+import java.time.Instant;
+import java.time.ZoneId;
+import java.time.format.DateTimeFormatter;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+
+/**
+ * Messages defines the binary records exchanged through {@link RMIInterface}: log values (batches
+ * of commands), promises, accept and lease acknowledgements, and client responses. Every record is
+ * one flat byte array. Fixed-width numbers are big-endian; strings are UTF-8 prefixed with their
+ * byte length as an unsigned varint, so keys and values may contain any character. Encoders size
+ * the array exactly and write into it directly, and decoders walk it with a cursor, so a message
+ * costs a single allocation to build and nothing is parsed with {@code split} or regular expressions.
+ *
+ * <p>Layouts:
+ * <ul>
+ *     <li>value: {@code [count varint] { [op 1] [key] [value] }*}; a batch with no commands is a noop</li>
+ *     <li>ack: {@code [granted 1] [ballot 8]}</li>
+ *     <li>promise: {@code [granted 1] [ballot 8] [truncated 1] [count varint] { [slot 8] [ballot 8] [len varint] [value] }*}</li>
+ *     <li>response: {@code [status 1] [time 8] [hasValue 1] [value]?}</li>
+ *     <li>versioned response: {@code [version 8] [response]}</li>
+ *     <li>invalidations: {@code [through 8] [reset 1] [count varint] { [key] }*}</li>
+ *     <li>scan page: {@code [status 1] [count varint] { [key] [value] }* [hasNext 1] [next]?}</li>
+ * </ul>
+ */
+public final class Messages {
+
+    /** Command operation: insert a key that does not exist yet. */
+    public static final byte PUT = 1;
+    /** Command operation: remove a key that exists. */
+    public static final byte DELETE = 2;
+    /** Command operation: switch to the {@link Membership} encoded in the value; the key is empty. */
+    public static final byte CONFIG = 3;
+    /** Command operation: like {@link #PUT}, but the value is held by the replicas' {@link BlobStore}s and the command carries its {@link BlobRef}. */
+    public static final byte PUT_BLOB = 4;
+
+    /** Response status: the operation took effect, or the key was found. */
+    public static final byte OK = 0;
+    /** Response status: the key does not exist. */
+    public static final byte NOT_FOUND = 1;
+    /** Response status: refused because the key already exists (PUT) or is missing (DELETE). */
+    public static final byte CONFLICT = 2;
+    /** Response status: no majority of replicas accepted the proposal. */
+    public static final byte NO_QUORUM = 3;
+    /** Response status: leadership could not be confirmed or the replica is catching up; retry. */
+    public static final byte UNAVAILABLE = 4;
+    /** Response status: a remote call failed while serving the request. */
+    public static final byte ERROR = 5;
+    /** Response status: the replica is serving as many requests as it admits; retry after a short delay. */
+    public static final byte BUSY = 6;
+
+    /** The log value of a slot that carries no command, e.g. a gap left by a failed round. */
+    public static final byte[] NOOP = {0};
+
+    private static final DateTimeFormatter TIME_FORMAT =
+            DateTimeFormatter.ofPattern("yyyy-MM-dd HH:mm:ss.SSS").withZone(ZoneId.systemDefault());
+
+    private Messages() {
+    }
+
+    /**
+     * One PUT, PUT_BLOB, DELETE or CONFIG command.
+     */
+    public static final class Command {
+        final byte op;
+        final String key;
+        final String value;
+
+        /**
+         * Constructor for Command.
+         *
+         * @param op {@link #PUT}, {@link #PUT_BLOB}, {@link #DELETE} or {@link #CONFIG}.
+         * @param key The key.
+         * @param value The value to store, its encoded {@link BlobRef}, or the encoded membership;
+         *              ignored (and may be {@code null}) for DELETE.
+         */
+        public Command(byte op, String key, String value) {
+            this.op = op;
+            this.key = key;
+            this.value = op == DELETE ? "" : value;
+        }
+
+        @Override
+        public String toString() {
+            switch (op) {
+                case PUT:
+                    return "put " + key + " " + value;
+                case PUT_BLOB:
+                    return "put " + key + " blob " + value;
+                case DELETE:
+                    return "delete " + key;
+                default:
+                    return "config " + value.replace('\n', ' ').trim();
+            }
+        }
+    }
+
+    /**
+     * The reference a {@link #PUT_BLOB} command carries instead of its value: the value's size in
+     * UTF-8 bytes and the hex SHA-256 of those bytes. Replicas look the value up by the hash, and
+     * check it against the hash when it arrives, so the log never holds the value itself.
+     */
+    public static final class BlobRef {
+        final long size;
+        final String digest;
+
+        /**
+         * Constructor for BlobRef.
+         *
+         * @param size The value's size in UTF-8 bytes.
+         * @param digest The hex SHA-256 of the value's UTF-8 bytes.
+         */
+        public BlobRef(long size, String digest) {
+            this.size = size;
+            this.digest = digest;
+        }
+
+        /**
+         * Encodes the reference as the value of a {@link #PUT_BLOB} command.
+         *
+         * @return {@code <size>:<digest>}.
+         */
+        public String encode() {
+            return size + ":" + digest;
+        }
+
+        /**
+         * Decodes a reference encoded by {@link #encode()}.
+         *
+         * @param encoded The encoded reference.
+         * @return The reference.
+         * @throws IllegalArgumentException If it is malformed.
+         */
+        public static BlobRef decode(String encoded) {
+            int colon = encoded.indexOf(':');
+            if (colon <= 0 || colon == encoded.length() - 1) {
+                throw new IllegalArgumentException("Malformed blob reference '" + encoded + "'");
+            }
+            return new BlobRef(Long.parseLong(encoded.substring(0, colon)), encoded.substring(colon + 1));
+        }
+
+        @Override
+        public String toString() {
+            return encode();
+        }
+    }
+
+    /**
+     * Encodes a batch of commands as one log value.
+     *
+     * @param commands The commands, in the order they will be applied.
+     * @return The encoded value.
+     */
+    public static byte[] encodeBatch(List<Command> commands) {
+        int size = varintSize(commands.size());
+        for (Command command : commands) {
+            size += 1 + stringSize(command.key) + stringSize(command.value);
+        }
+        byte[] out = new byte[size];
+        int pos = putVarint(out, 0, commands.size());
+        for (Command command : commands) {
+            out[pos++] = command.op;
+            pos = putString(out, pos, command.key);
+            pos = putString(out, pos, command.value);
+        }
+        return out;
+    }
+
+    /**
+     * Decodes a log value into its commands.
+     *
+     * @param value An encoded value.
+     * @return The commands; empty for {@link #NOOP}.
+     * @throws IllegalArgumentException If the value is malformed.
+     */
+    public static Command[] decodeBatch(byte[] value) {
+        Reader in = new Reader(value);
+        // 每条命令至少有 op 和两个长度各一个字节
+        Command[] commands = new Command[in.count(3)];
+        for (int i = 0; i < commands.length; i++) {
+            byte op = in.get();
+            if (op != PUT && op != DELETE && op != CONFIG && op != PUT_BLOB) {
+                throw new IllegalArgumentException("Unknown operation " + op);
+            }
+            commands[i] = new Command(op, in.string(), in.string());
+        }
+        in.expectEnd();
+        return commands;
+    }
+
+    /**
+     * The large values a log value refers to, read without decoding its other commands.
+     *
+     * @param value An encoded value.
+     * @return The references of its {@link #PUT_BLOB} commands, in order; usually empty.
+     * @throws IllegalArgumentException If the value is malformed.
+     */
+    public static List<BlobRef> blobRefs(byte[] value) {
+        Reader in = new Reader(value);
+        int count = in.count(3);
+        List<BlobRef> refs = new ArrayList<>(0);
+        for (int i = 0; i < count; i++) {
+            byte op = in.get();
+            in.skipString();
+            if (op == PUT_BLOB) {
+                refs.add(BlobRef.decode(in.string()));
+            } else {
+                in.skipString();
+            }
+        }
+        in.expectEnd();
+        return refs;
+    }
+
+    /**
+     * Whether a log value is well formed.
+     *
+     * @param value The value to check.
+     * @return {@code true} if {@link #decodeBatch(byte[])} would succeed.
+     */
+    public static boolean isValidBatch(byte[] value) {
+        try {
+            decodeBatch(value);
+            return true;
+        } catch (IllegalArgumentException e) {
+            return false;
+        }
+    }
+
+    /**
+     * Encodes the answer to an accept or lease request.
+     *
+     * @param granted Whether the request was granted.
+     * @param ballot The granted ballot, or the higher ballot already promised.
+     * @return The encoded acknowledgement.
+     */
+    public static byte[] ack(boolean granted, long ballot) {
+        byte[] out = new byte[9];
+        out[0] = (byte) (granted ? 1 : 0);
+        putLong(out, 1, ballot);
+        return out;
+    }
+
+    /**
+     * Whether an acknowledgement or promise was granted.
+     *
+     * @param message An encoded ack or promise; {@code null} (no answer) counts as refused.
+     * @return {@code true} if granted.
+     */
+    public static boolean isGranted(byte[] message) {
+        return message != null && message.length >= 9 && message[0] == 1;
+    }
+
+    /**
+     * The ballot carried by an acknowledgement or promise: the granted ballot, or the higher ballot
+     * the replica had already promised.
+     *
+     * @param message An encoded ack or promise.
+     * @return The ballot.
+     */
+    public static long ballotOf(byte[] message) {
+        return getLong(message, 1);
+    }
+
+    /**
+     * A phase 1 answer: whether the ballot was promised, and every slot the replica accepted but
+     * has not seen committed, with the ballot and value it accepted. Slots the replica knows to be
+     * chosen are reported too, with the ballot {@link #CHOSEN}, so that a proposer whose learner
+     * missed them learns them instead of proposing over them.
+     */
+    public static final class Promise {
+        /** The ballot reported for a slot whose value is known to be chosen; above every real ballot. */
+        public static final long CHOSEN = Long.MAX_VALUE;
+
+        final boolean granted;
+        final long ballot;
+        // 副本已经应用过、却不再保留的槽位在请求的范围里：proposer 只能从快照追上来
+        final boolean truncated;
+        final long[] slots;
+        final long[] ballots;
+        final byte[][] values;
+
+        /**
+         * Constructor for Promise.
+         *
+         * @param granted Whether the ballot was promised.
+         * @param ballot The promised ballot, or the higher ballot already promised.
+         * @param truncated Whether the replica applied some of the requested slots but no longer
+         *                  holds their values, so they are missing from {@code slots}.
+         * @param slots The accepted and chosen slots (empty if refused).
+         * @param ballots The ballot each slot was accepted under, or {@link #CHOSEN}.
+         * @param values The value accepted for each slot.
+         */
+        public Promise(boolean granted, long ballot, boolean truncated, long[] slots, long[] ballots, byte[][] values) {
+            this.granted = granted;
+            this.ballot = ballot;
+            this.truncated = truncated;
+            this.slots = slots;
+            this.ballots = ballots;
+            this.values = values;
+        }
+
+        /**
+         * Encodes the promise.
+         *
+         * @return The encoded promise.
+         */
+        public byte[] encode() {
+            int size = 10 + varintSize(slots.length);
+            for (byte[] value : values) {
+                size += 16 + varintSize(value.length) + value.length;
+            }
+            byte[] out = new byte[size];
+            out[0] = (byte) (granted ? 1 : 0);
+            putLong(out, 1, ballot);
+            out[9] = (byte) (truncated ? 1 : 0);
+            int pos = putVarint(out, 10, slots.length);
+            for (int i = 0; i < slots.length; i++) {
+                putLong(out, pos, slots[i]);
+                putLong(out, pos + 8, ballots[i]);
+                pos = putVarint(out, pos + 16, values[i].length);
+                System.arraycopy(values[i], 0, out, pos, values[i].length);
+                pos += values[i].length;
+            }
+            return out;
+        }
+
+        /**
+         * Decodes a promise.
+         *
+         * @param message An encoded promise.
+         * @return The promise.
+         * @throws IllegalArgumentException If the message is malformed.
+         */
+        public static Promise decode(byte[] message) {
+            Reader in = new Reader(message);
+            boolean granted = in.get() == 1;
+            long ballot = in.getLong();
+            boolean truncated = in.get() == 1;
+            int count = in.count(17);
+            long[] slots = new long[count];
+            long[] ballots = new long[count];
+            byte[][] values = new byte[count][];
+            for (int i = 0; i < count; i++) {
+                slots[i] = in.getLong();
+                ballots[i] = in.getLong();
+                values[i] = in.bytes();
+            }
+            in.expectEnd();
+            return new Promise(granted, ballot, truncated, slots, ballots, values);
+        }
+    }
+
+    /**
+     * Encodes a client response stamped with the current time.
+     *
+     * @param status One of the status constants.
+     * @param value The value read by a GET, or {@code null}.
+     * @return The encoded response.
+     */
+    public static byte[] response(byte status, String value) {
+        byte[] out = new byte[10 + (value == null ? 0 : stringSize(value))];
+        out[0] = status;
+        putLong(out, 1, System.currentTimeMillis());
+        if (value != null) {
+            out[9] = 1;
+            putString(out, 10, value);
+        }
+        return out;
+    }
+
+    /**
+     * The status of an encoded client response.
+     *
+     * @param response An encoded response.
+     * @return The status constant.
+     */
+    public static byte statusOf(byte[] response) {
+        return response[0];
+    }
+
+    /**
+     * A decoded client response.
+     */
+    public static final class Response {
+        final byte status;
+        final long timeMillis;
+        final String value;
+
+        private Response(byte status, long timeMillis, String value) {
+            this.status = status;
+            this.timeMillis = timeMillis;
+            this.value = value;
+        }
+
+        /**
+         * Decodes a client response.
+         *
+         * @param response An encoded response.
+         * @return The response.
+         * @throws IllegalArgumentException If the response is malformed.
+         */
+        public static Response decode(byte[] response) {
+            Reader in = new Reader(response);
+            byte status = in.get();
+            long timeMillis = in.getLong();
+            String value = in.get() == 1 ? in.string() : null;
+            in.expectEnd();
+            return new Response(status, timeMillis, value);
+        }
+
+        @Override
+        public String toString() {
+            String text;
+            switch (status) {
+                case OK:
+                    text = value != null ? "success with value (" + value + ")" : "success";
+                    break;
+                case NOT_FOUND:
+                    text = "error: There is no such key.";
+                    break;
+                case CONFLICT:
+                    // 成员变更被拒时带上原因
+                    text = value != null ? "error: " + value : "error: Not allowed, the key already exists or does not exist.";
+                    break;
+                case NO_QUORUM:
+                    text = "error: didn't got promise from majority.";
+                    break;
+                case UNAVAILABLE:
+                    text = "error: leadership could not be confirmed or the replica is catching up, try again.";
+                    break;
+                case BUSY:
+                    text = "error: server busy, try again later.";
+                    break;
+                default:
+                    text = "error: RemoteException occurred.";
+                    break;
+            }
+            return "RMIImplement: " + text + " Current time: " + TIME_FORMAT.format(Instant.ofEpochMilli(timeMillis));
+        }
+    }
+
+    /**
+     * Prefixes a client response with the log slot the replica had applied before serving it, so
+     * the value is known to reflect every write up to that slot.
+     *
+     * @param version The replica's last applied slot, or -1 if it cannot vouch for any.
+     * @param response An encoded response.
+     * @return The encoded versioned response.
+     */
+    public static byte[] versioned(long version, byte[] response) {
+        byte[] out = new byte[8 + response.length];
+        putLong(out, 0, version);
+        System.arraycopy(response, 0, out, 8, response.length);
+        return out;
+    }
+
+    /**
+     * The version of a versioned response.
+     *
+     * @param versioned An encoded versioned response.
+     * @return The slot the value reflects.
+     */
+    public static long versionOf(byte[] versioned) {
+        return new Reader(versioned).getLong();
+    }
+
+    /**
+     * The client response inside a versioned response.
+     *
+     * @param versioned An encoded versioned response.
+     * @return The encoded response.
+     */
+    public static byte[] unversioned(byte[] versioned) {
+        return java.util.Arrays.copyOfRange(versioned, 8, versioned.length);
+    }
+
+    /**
+     * The keys written by a run of log slots, for clients that cache values.
+     */
+    public static final class Invalidations {
+        final long through;
+        final boolean reset;
+        final String[] keys;
+
+        /**
+         * Constructor for Invalidations.
+         *
+         * @param through The last slot covered.
+         * @param reset Whether the requested slots are no longer available, so the client must
+         *              drop everything it cached and continue from {@code through}.
+         * @param keys The keys written by the covered slots.
+         */
+        public Invalidations(long through, boolean reset, Collection<String> keys) {
+            this.through = through;
+            this.reset = reset;
+            this.keys = keys.toArray(new String[0]);
+        }
+
+        private Invalidations(long through, boolean reset, String[] keys) {
+            this.through = through;
+            this.reset = reset;
+            this.keys = keys;
+        }
+
+        /**
+         * Encodes the invalidations.
+         *
+         * @return The encoded message.
+         */
+        public byte[] encode() {
+            int size = 9 + varintSize(keys.length);
+            for (String key : keys) {
+                size += stringSize(key);
+            }
+            byte[] out = new byte[size];
+            putLong(out, 0, through);
+            out[8] = (byte) (reset ? 1 : 0);
+            int pos = putVarint(out, 9, keys.length);
+            for (String key : keys) {
+                pos = putString(out, pos, key);
+            }
+            return out;
+        }
+
+        /**
+         * Decodes invalidations.
+         *
+         * @param message An encoded message.
+         * @return The decoded invalidations.
+         * @throws IllegalArgumentException If the message is malformed.
+         */
+        public static Invalidations decode(byte[] message) {
+            Reader in = new Reader(message);
+            long through = in.getLong();
+            boolean reset = in.get() == 1;
+            String[] keys = new String[in.count(1)];
+            for (int i = 0; i < keys.length; i++) {
+                keys[i] = in.string();
+            }
+            in.expectEnd();
+            return new Invalidations(through, reset, keys);
+        }
+    }
+
+    /**
+     * One page of a key-ordered scan: entries in ascending key order, and the continuation token
+     * to pass back for the next page.
+     */
+    public static final class ScanPage {
+        final byte status;
+        final String[] keys;
+        final String[] values;
+        final String next;
+
+        /**
+         * Constructor for ScanPage.
+         *
+         * @param status {@link #OK}, or the status the scan was refused with (no entries then).
+         * @param keys The keys of the page, ascending.
+         * @param values The value of each key, in the same order.
+         * @param next The continuation token, or {@code null} if the scan is complete.
+         */
+        public ScanPage(byte status, List<String> keys, List<String> values, String next) {
+            this(status, keys.toArray(new String[0]), values.toArray(new String[0]), next);
+        }
+
+        private ScanPage(byte status, String[] keys, String[] values, String next) {
+            this.status = status;
+            this.keys = keys;
+            this.values = values;
+            this.next = next;
+        }
+
+        /**
+         * Encodes an empty page for a scan that was refused.
+         *
+         * @param status The status, e.g. {@link #BUSY} or {@link #UNAVAILABLE}.
+         * @return The encoded page.
+         */
+        public static byte[] refused(byte status) {
+            return new ScanPage(status, new String[0], new String[0], null).encode();
+        }
+
+        /**
+         * Encodes the page.
+         *
+         * @return The encoded message.
+         */
+        public byte[] encode() {
+            int size = 2 + varintSize(keys.length) + (next == null ? 0 : stringSize(next));
+            for (int i = 0; i < keys.length; i++) {
+                size += stringSize(keys[i]) + stringSize(values[i]);
+            }
+            byte[] out = new byte[size];
+            out[0] = status;
+            int pos = putVarint(out, 1, keys.length);
+            for (int i = 0; i < keys.length; i++) {
+                pos = putString(out, pos, keys[i]);
+                pos = putString(out, pos, values[i]);
+            }
+            out[pos++] = (byte) (next == null ? 0 : 1);
+            if (next != null) {
+                putString(out, pos, next);
+            }
+            return out;
+        }
+
+        /**
+         * Decodes a scan page.
+         *
+         * @param message An encoded message.
+         * @return The decoded page.
+         * @throws IllegalArgumentException If the message is malformed.
+         */
+        public static ScanPage decode(byte[] message) {
+            Reader in = new Reader(message);
+            byte status = in.get();
+            int count = in.count(2);
+            String[] keys = new String[count];
+            String[] values = new String[count];
+            for (int i = 0; i < count; i++) {
+                keys[i] = in.string();
+                values[i] = in.string();
+            }
+            String next = in.get() == 1 ? in.string() : null;
+            in.expectEnd();
+            return new ScanPage(status, keys, values, next);
+        }
+    }
+
+    /**
+     * Renders an encoded client response for display.
+     *
+     * @param response An encoded response.
+     * @return A human-readable description.
+     */
+    public static String describe(byte[] response) {
+        return Response.decode(response).toString();
+    }
+
+    // ---- 编码工具：先算准长度，直接写进一个数组 ----
+
+    private static int stringSize(String s) {
+        int length = utf8Length(s);
+        return varintSize(length) + length;
+    }
+
+    private static int putString(byte[] out, int pos, String s) {
+        pos = putVarint(out, pos, utf8Length(s));
+        for (int i = 0; i < s.length(); i++) {
+            char c = s.charAt(i);
+            if (c < 0x80) {
+                out[pos++] = (byte) c;
+            } else if (c < 0x800) {
+                out[pos++] = (byte) (0xc0 | (c >> 6));
+                out[pos++] = (byte) (0x80 | (c & 0x3f));
+            } else if (Character.isHighSurrogate(c) && i + 1 < s.length() && Character.isLowSurrogate(s.charAt(i + 1))) {
+                int cp = Character.toCodePoint(c, s.charAt(++i));
+                out[pos++] = (byte) (0xf0 | (cp >> 18));
+                out[pos++] = (byte) (0x80 | ((cp >> 12) & 0x3f));
+                out[pos++] = (byte) (0x80 | ((cp >> 6) & 0x3f));
+                out[pos++] = (byte) (0x80 | (cp & 0x3f));
+            } else if (Character.isSurrogate(c)) {
+                out[pos++] = '?';  // 和 String.getBytes 一样，落单的代理字符写成 '?'
+            } else {
+                out[pos++] = (byte) (0xe0 | (c >> 12));
+                out[pos++] = (byte) (0x80 | ((c >> 6) & 0x3f));
+                out[pos++] = (byte) (0x80 | (c & 0x3f));
+            }
+        }
+        return pos;
+    }
+
+    // 字符串编码成 UTF-8 之后的字节数，不用真的编码一遍
+    static int utf8Length(String s) {
+        int length = 0;
+        for (int i = 0; i < s.length(); i++) {
+            char c = s.charAt(i);
+            if (c < 0x80) {
+                length++;
+            } else if (c < 0x800) {
+                length += 2;
+            } else if (Character.isHighSurrogate(c) && i + 1 < s.length() && Character.isLowSurrogate(s.charAt(i + 1))) {
+                length += 4;
+                i++;
+            } else if (Character.isSurrogate(c)) {
+                length++;
+            } else {
+                length += 3;
+            }
+        }
+        return length;
+    }
+
+    private static int varintSize(int v) {
+        int size = 1;
+        while ((v & ~0x7f) != 0) {
+            v >>>= 7;
+            size++;
+        }
+        return size;
+    }
+
+    private static int putVarint(byte[] out, int pos, int v) {
+        while ((v & ~0x7f) != 0) {
+            out[pos++] = (byte) ((v & 0x7f) | 0x80);
+            v >>>= 7;
+        }
+        out[pos++] = (byte) v;
+        return pos;
+    }
+
+    private static void putInt(byte[] out, int pos, int v) {
+        out[pos] = (byte) (v >>> 24);
+        out[pos + 1] = (byte) (v >>> 16);
+        out[pos + 2] = (byte) (v >>> 8);
+        out[pos + 3] = (byte) v;
+    }
+
+    private static void putLong(byte[] out, int pos, long v) {
+        putInt(out, pos, (int) (v >>> 32));
+        putInt(out, pos + 4, (int) v);
+    }
+
+    private static int getInt(byte[] in, int pos) {
+        return (in[pos] & 0xff) << 24 | (in[pos + 1] & 0xff) << 16 | (in[pos + 2] & 0xff) << 8 | (in[pos + 3] & 0xff);
+    }
+
+    private static long getLong(byte[] in, int pos) {
+        return (long) getInt(in, pos) << 32 | (getInt(in, pos + 4) & 0xffffffffL);
+    }
+
+    /**
+     * Reads a record front to back; every read is bounds-checked so a truncated or corrupt record
+     * fails with {@link IllegalArgumentException} instead of an index error. Element counts and
+     * lengths are checked against the bytes left before anything is allocated for them.
+     */
+    private static final class Reader {
+        private final byte[] in;
+        private int pos;
+
+        Reader(byte[] in) {
+            this.in = in;
+        }
+
+        private void need(int n) {
+            if (n < 0 || n > in.length - pos) {
+                throw new IllegalArgumentException("Truncated message");
+            }
+        }
+
+        // 元素个数：每个元素至少占 minBytes 个字节，剩下的字节装不下就是坏消息，不按它分配数组
+        int count(int minBytes) {
+            int n = varint();
+            if (n < 0 || n > (in.length - pos) / minBytes) {
+                throw new IllegalArgumentException("Element count " + n + " exceeds the message");
+            }
+            return n;
+        }
+
+        byte get() {
+            need(1);
+            return in[pos++];
+        }
+
+        int getInt() {
+            need(4);
+            int v = Messages.getInt(in, pos);
+            pos += 4;
+            return v;
+        }
+
+        long getLong() {
+            need(8);
+            long v = Messages.getLong(in, pos);
+            pos += 8;
+            return v;
+        }
+
+        int varint() {
+            int v = 0;
+            for (int shift = 0; shift < 35; shift += 7) {
+                byte b = get();
+                v |= (b & 0x7f) << shift;
+                if (b >= 0) {
+                    return v;
+                }
+            }
+            throw new IllegalArgumentException("Malformed varint");
+        }
+
+        String string() {
+            int length = varint();
+            need(length);
+            String s = new String(in, pos, length, StandardCharsets.UTF_8);
+            pos += length;
+            return s;
+        }
+
+        void skipString() {
+            int length = varint();
+            need(length);
+            pos += length;
+        }
+
+        byte[] bytes() {
+            int length = varint();
+            need(length);
+            byte[] b = java.util.Arrays.copyOfRange(in, pos, pos + length);
+            pos += length;
+            return b;
+        }
+
+        void expectEnd() {
+            if (pos != in.length) {
+                throw new IllegalArgumentException("Trailing bytes in message");
+            }
+        }
+    }
+}
@@ -0,0 +1,225 @@
+import javax.management.Attribute;
+import javax.management.AttributeList;
+import javax.management.AttributeNotFoundException;
+import javax.management.DynamicMBean;
+import javax.management.JMException;
+import javax.management.MBeanAttributeInfo;
+import javax.management.MBeanInfo;
+import javax.management.MBeanOperationInfo;
+import javax.management.MBeanParameterInfo;
+import javax.management.ObjectName;
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Metrics holds the process-wide latency histograms and counters of the consensus path, summed
+ * over every replica and shard in the process. Recording is a few atomic increments on
+ * preallocated arrays and adders, so the hot path does not allocate.
+ *
+ * <p>{@link #start()} registers them as the MBean {@code paxos:type=Metrics}: each counter is one
+ * attribute, and each histogram has {@code <name>Count}, {@code <name>P50Micros},
+ * {@code <name>P99Micros}, {@code <name>P999Micros} and {@code <name>MaxMicros}; the
+ * {@code reset} operation clears everything. With {@code -Dpaxos.metrics.dumpSec=<n>} a snapshot is
+ * also printed every n seconds.
+ */
+public final class Metrics {
+
+    private static final Map<String, LatencyHistogram> HISTOGRAMS = new LinkedHashMap<>();
+    private static final Map<String, LongAdder> COUNTERS = new LinkedHashMap<>();
+
+    /** Time an acceptor spends answering a prepare, including the WAL sync. */
+    public static final LatencyHistogram PROMISE = histogram("promise");
+    /** Time an acceptor spends answering an accept, including the WAL sync. */
+    public static final LatencyHistogram ACCEPTED = histogram("accepted");
+    /** Time the proposer waits for a quorum of promises. */
+    public static final LatencyHistogram PREPARE_QUORUM_WAIT = histogram("prepareQuorumWait");
+    /** Time the proposer waits for a quorum of accepts. */
+    public static final LatencyHistogram ACCEPT_QUORUM_WAIT = histogram("acceptQuorumWait");
+    /** Time the learner spends committing a chosen value to its log and the replicas. */
+    public static final LatencyHistogram LEARN = histogram("learn");
+    /** Time one anti-entropy exchange with one replica takes. */
+    public static final LatencyHistogram HEARTBEAT_SYNC = histogram("heartbeatSync");
+    /** Time the proposer waits for a quorum of replicas to store a large value before proposing its reference. */
+    public static final LatencyHistogram BLOB_UPLOAD = histogram("blobUpload");
+
+    /** Prepares refused because the acceptor promised a higher ballot or a lease is held. */
+    public static final LongAdder PROMISES_REFUSED = counter("promisesRefused");
+    /** Accepts refused because the acceptor promised a higher ballot or the value was malformed. */
+    public static final LongAdder ACCEPTS_REFUSED = counter("acceptsRefused");
+    /** Prepare or accept rounds that ended without a majority. */
+    public static final LongAdder QUORUM_FAILURES = counter("quorumFailures");
+    /** Prepare or accept rounds retried under a higher ballot after losing to a competing proposer. */
+    public static final LongAdder PROPOSAL_RETRIES = counter("proposalRetries");
+    /** Writes refused by {@code prepareToOperation} because the key lock was still held after retrying. */
+    public static final LongAdder LOCK_FAILURES = counter("lockFailures");
+    /** Writes refused by {@code prepareToOperation} because the key exists (PUT) or not (DELETE). */
+    public static final LongAdder CONFLICTS = counter("conflicts");
+    /** Approximate payload bytes sent and received by anti-entropy: digests, bucket ids, keys and values. */
+    public static final LongAdder HEARTBEAT_BYTES = counter("heartbeatBytes");
+    /** Buckets repaired by anti-entropy. */
+    public static final LongAdder HEARTBEAT_REPAIRED_BUCKETS = counter("heartbeatRepairedBuckets");
+    /** Events dropped because the event journal's ring buffer was full. */
+    public static final LongAdder JOURNAL_DROPPED = counter("journalDropped");
+    /** Client requests refused with {@code BUSY} because the replica was at its in-flight limit. */
+    public static final LongAdder ADMISSION_REJECTED = counter("admissionRejected");
+    /** Bytes of large values sent to replicas in chunks, outside the consensus messages. */
+    public static final LongAdder BLOB_BYTES_SENT = counter("blobBytesSent");
+    /** Large values a replica or learner did not hold when it applied their slot and fetched from a peer. */
+    public static final LongAdder BLOB_FETCHES = counter("blobFetches");
+
+    private static boolean started;
+
+    private Metrics() {
+    }
+
+    private static LatencyHistogram histogram(String name) {
+        LatencyHistogram histogram = new LatencyHistogram();
+        HISTOGRAMS.put(name, histogram);
+        return histogram;
+    }
+
+    private static LongAdder counter(String name) {
+        LongAdder counter = new LongAdder();
+        COUNTERS.put(name, counter);
+        return counter;
+    }
+
+    /**
+     * Registers the MBean and starts the periodic dump if configured. Calling it again does nothing.
+     */
+    public static synchronized void start() {
+        if (started) {
+            return;
+        }
+        started = true;
+        try {
+            ManagementFactory.getPlatformMBeanServer().registerMBean(new Bean(), new ObjectName("paxos:type=Metrics"));
+        } catch (JMException e) {
+            System.out.println("Metrics: cannot register the MBean: " + e.getMessage());
+        }
+        long dumpSeconds = Long.getLong("paxos.metrics.dumpSec", 0L);
+        if (dumpSeconds > 0) {
+            ScheduledExecutorService dumper = Executors.newSingleThreadScheduledExecutor(r -> {
+                Thread t = new Thread(r, "metrics-dump");
+                t.setDaemon(true);
+                return t;
+            });
+            dumper.scheduleWithFixedDelay(() -> System.out.print(snapshot()), dumpSeconds, dumpSeconds, TimeUnit.SECONDS);
+        }
+    }
+
+    /**
+     * Formats every histogram and counter, one per line.
+     *
+     * @return The snapshot.
+     */
+    public static String snapshot() {
+        StringBuilder out = new StringBuilder();
+        HISTOGRAMS.forEach((name, h) -> out.append(String.format("Metrics: %-18s count=%d p50=%.1fus p99=%.1fus p99.9=%.1fus max=%.1fus%n",
+                name, h.count(), h.percentile(50) / 1e3, h.percentile(99) / 1e3, h.percentile(99.9) / 1e3, h.max() / 1e3)));
+        COUNTERS.forEach((name, c) -> out.append("Metrics: ").append(name).append('=').append(c.sum()).append(System.lineSeparator()));
+        return out.toString();
+    }
+
+    /**
+     * Clears every histogram and counter.
+     */
+    public static void reset() {
+        HISTOGRAMS.values().forEach(LatencyHistogram::reset);
+        COUNTERS.values().forEach(LongAdder::reset);
+    }
+
+    /**
+     * Exposes the histograms and counters as read-only attributes.
+     */
+    private static final class Bean implements DynamicMBean {
+
+        private static final String[] SUFFIXES = {"Count", "P50Micros", "P99Micros", "P999Micros", "MaxMicros"};
+
+        @Override
+        public Object getAttribute(String attribute) throws AttributeNotFoundException {
+            LongAdder counter = COUNTERS.get(attribute);
+            if (counter != null) {
+                return counter.sum();
+            }
+            for (String suffix : SUFFIXES) {
+                if (attribute.endsWith(suffix)) {
+                    LatencyHistogram h = HISTOGRAMS.get(attribute.substring(0, attribute.length() - suffix.length()));
+                    if (h == null) {
+                        break;
+                    }
+                    switch (suffix) {
+                        case "Count":
+                            return h.count();
+                        case "P50Micros":
+                            return h.percentile(50) / 1e3;
+                        case "P99Micros":
+                            return h.percentile(99) / 1e3;
+                        case "P999Micros":
+                            return h.percentile(99.9) / 1e3;
+                        default:
+                            return h.max() / 1e3;
+                    }
+                }
+            }
+            throw new AttributeNotFoundException(attribute);
+        }
+
+        @Override
+        public void setAttribute(Attribute attribute) throws AttributeNotFoundException {
+            throw new AttributeNotFoundException("Metrics are read-only: " + attribute.getName());
+        }
+
+        @Override
+        public AttributeList getAttributes(String[] attributes) {
+            AttributeList list = new AttributeList();
+            for (String name : attributes) {
+                try {
+                    list.add(new Attribute(name, getAttribute(name)));
+                } catch (AttributeNotFoundException e) {
+                    // 未知属性按 JMX 约定直接跳过
+                }
+            }
+            return list;
+        }
+
+        @Override
+        public AttributeList setAttributes(AttributeList attributes) {
+            return new AttributeList();
+        }
+
+        @Override
+        public Object invoke(String actionName, Object[] params, String[] signature) {
+            if ("reset".equals(actionName)) {
+                reset();
+                return null;
+            }
+            throw new UnsupportedOperationException(actionName);
+        }
+
+        @Override
+        public MBeanInfo getMBeanInfo() {
+            List<MBeanAttributeInfo> attributes = new ArrayList<>();
+            for (String name : HISTOGRAMS.keySet()) {
+                for (String suffix : SUFFIXES) {
+                    String type = suffix.equals("Count") ? "long" : "double";
+                    attributes.add(new MBeanAttributeInfo(name + suffix, type, name + " " + suffix, true, false, false));
+                }
+            }
+            for (String name : COUNTERS.keySet()) {
+                attributes.add(new MBeanAttributeInfo(name, "long", name, true, false, false));
+            }
+            MBeanOperationInfo reset = new MBeanOperationInfo("reset", "Clears every histogram and counter",
+                    new MBeanParameterInfo[0], "void", MBeanOperationInfo.ACTION);
+            return new MBeanInfo(Metrics.class.getName(), "Consensus path latencies and counters",
+                    attributes.toArray(new MBeanAttributeInfo[0]), null, new MBeanOperationInfo[]{reset}, null);
+        }
+    }
+}
@@ -0,0 +1,178 @@
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * NearCache is a bounded client-side cache of the values of one shard, evicted in LRU order. It
+ * is kept correct by the shard's stream of {@link Messages.Invalidations}: every slot the learner
+ * applies names the keys it wrote, and the cached values of those keys are dropped. Values are
+ * tagged with the slot they are known to reflect (see {@link RMIInterface#versionedGet}), which
+ * settles the race between a read and an invalidation passing each other: a value read before a
+ * write is never cached after that write's invalidation has been seen.
+ *
+ * <p>For that check the cache remembers the invalidation slot of recently written keys, in a map
+ * bounded like the cache itself. Keys that fall out of it raise a floor instead, and a read
+ * older than the floor is not cached. A cached value can be stale for as long as its invalidation
+ * takes to arrive, about one poll round trip; it is never stale after that.
+ *
+ * <p>The cache answers nothing until the stream has started, and is emptied whenever the stream
+ * breaks off, since invalidations may have been missed.
+ */
+public class NearCache {
+
+    // 缓存的值；value 为 null 表示键不存在
+    private static final class Entry {
+        final String value;
+        final long version;
+
+        Entry(String value, long version) {
+            this.value = value;
+            this.version = version;
+        }
+    }
+
+    private final int capacity;
+    private final LinkedHashMap<String, Entry> entries;
+    // 最近被写过的键和失效通知里的槽位；被挤出去的槽位抬高 floor
+    private final LinkedHashMap<String, Long> invalidated;
+    private long floor;
+    private boolean ready;
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+
+    /**
+     * Constructor for NearCache.
+     *
+     * @param capacity The maximum number of cached keys.
+     */
+    public NearCache(int capacity) {
+        this.capacity = Math.max(1, capacity);
+        this.entries = new LinkedHashMap<String, Entry>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, Entry> eldest) {
+                return size() > NearCache.this.capacity;
+            }
+        };
+        this.invalidated = new LinkedHashMap<String, Long>() {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, Long> eldest) {
+                if (size() > NearCache.this.capacity) {
+                    floor = Math.max(floor, eldest.getValue());
+                    return true;
+                }
+                return false;
+            }
+        };
+    }
+
+    /**
+     * Returns the cached response for a key.
+     *
+     * @param key The key.
+     * @return An encoded {@code OK} or {@code NOT_FOUND} response, or {@code null} on a miss.
+     */
+    public byte[] lookup(String key) {
+        Entry entry;
+        synchronized (this) {
+            entry = ready ? entries.get(key) : null;
+        }
+        if (entry == null) {
+            misses.increment();
+            return null;
+        }
+        hits.increment();
+        return entry.value == null ? Messages.response(Messages.NOT_FOUND, null) : Messages.response(Messages.OK, entry.value);
+    }
+
+    /**
+     * Caches the answer to a versioned read, unless the key has been invalidated after the slot
+     * the answer reflects. Only {@code OK} and {@code NOT_FOUND} answers are cached.
+     *
+     * @param key The key that was read.
+     * @param versioned The encoded versioned response.
+     */
+    public void fill(String key, byte[] versioned) {
+        long version = Messages.versionOf(versioned);
+        Messages.Response response = Messages.Response.decode(Messages.unversioned(versioned));
+        if (response.status != Messages.OK && response.status != Messages.NOT_FOUND) {
+            return;
+        }
+        synchronized (this) {
+            Long slot = invalidated.get(key);
+            if (!ready || version < (slot != null ? slot : floor)) {
+                return;
+            }
+            entries.put(key, new Entry(response.value, version));
+        }
+    }
+
+    /**
+     * Drops the cached value of a key this client is writing.
+     *
+     * @param key The key.
+     */
+    public synchronized void remove(String key) {
+        entries.remove(key);
+    }
+
+    /**
+     * Applies one batch of the invalidation stream.
+     *
+     * @param batch The decoded invalidations.
+     */
+    public synchronized void apply(Messages.Invalidations batch) {
+        if (batch.reset) {
+            entries.clear();
+            invalidated.clear();
+            floor = batch.through;
+            ready = true;
+            return;
+        }
+        // 只知道写发生在 through 之前，按 through 算偏保守：可能多丢一些，但不会留下旧值
+        for (String key : batch.keys) {
+            Entry entry = entries.get(key);
+            if (entry != null && entry.version < batch.through) {
+                entries.remove(key);
+            }
+            invalidated.remove(key);
+            invalidated.put(key, batch.through);
+        }
+    }
+
+    /**
+     * Empties the cache and stops answering until the stream is restarted, e.g. after the
+     * replica serving the stream could not be reached.
+     */
+    public synchronized void suspend() {
+        ready = false;
+        entries.clear();
+        invalidated.clear();
+    }
+
+    /**
+     * Whether lookups can be answered, i.e. the invalidation stream is running.
+     *
+     * @return {@code true} if the cache is in use.
+     */
+    public synchronized boolean isReady() {
+        return ready;
+    }
+
+    /**
+     * The number of lookups answered from the cache.
+     *
+     * @return The hit count.
+     */
+    public long hits() {
+        return hits.sum();
+    }
+
+    /**
+     * The number of lookups that had to go to a replica.
+     *
+     * @return The miss count.
+     */
+    public long misses() {
+        return misses.sum();
+    }
+}
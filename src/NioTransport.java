@@ -0,0 +1,973 @@
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.rmi.ConnectException;
+import java.rmi.NoSuchObjectException;
+import java.rmi.RemoteException;
+import java.rmi.server.UnicastRemoteObject;
+import java.util.ArrayDeque;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * NioTransport carries {@link RMIInterface} calls over non-blocking NIO sockets instead of RMI.
+ * One selector thread serves every exported replica and every outgoing connection of the process.
+ * Each call is one length-prefixed frame tagged with a request ID. Any number of threads can
+ * pipeline calls over the single connection kept per replica, and responses are matched back by
+ * ID in whatever order they complete. Each request runs on its own virtual thread, so a slow call
+ * (e.g. one waiting for a consensus round) never holds up the selector or the other calls on its
+ * connection, and thousands of calls waiting at once cost no more than their stacks.
+ *
+ * <p>Frames: request {@code [len 4][id 8][method 1][args]}, response {@code [len 4][id 8][status 1][result]},
+ * where {@code len} counts the bytes after itself. Arguments are written field by field; there is
+ * no Java serialization.
+ *
+ * <p>{@code -Dpaxos.nio.timeoutMs} bounds how long a call waits to connect and for its response
+ * (default 30000).
+ */
+public class NioTransport implements Transport {
+
+    private static final int HEADER = 4 + 8 + 1;
+    private static final int MAX_FRAME = 256 * 1024 * 1024;
+    private static final byte STATUS_OK = 0;
+    private static final byte STATUS_ERROR = 1;
+
+    // 方法编号，和 RMIInterface 的方法一一对应
+    private static final byte PUT = 1;
+    private static final byte GET = 2;
+    private static final byte DELETE = 3;
+    private static final byte PREPARE_TO_OPERATION = 4;
+    private static final byte FINALLY_UPDATE = 5;
+    private static final byte PROMISE = 6;
+    private static final byte ACCEPTED = 7;
+    private static final byte GRANT_LEASE = 8;
+    private static final byte COMMIT = 9;
+    private static final byte LAST_APPLIED_SLOT = 10;
+    private static final byte INSTALL_SNAPSHOT = 11;
+    private static final byte GET_DICTIONARY = 12;
+    private static final byte MERKLE_DIGESTS = 13;
+    private static final byte REPAIR_BUCKETS = 14;
+    private static final byte UPDATE_DICTIONARY = 15;
+    private static final byte LEADER_ID = 16;
+    private static final byte MULTI_PUT = 17;
+    private static final byte MULTI_GET = 18;
+    private static final byte MULTI_DELETE = 19;
+    private static final byte BEGIN_CATCH_UP = 20;
+    private static final byte CATCH_UP_CHUNK = 21;
+    private static final byte FINISH_CATCH_UP = 22;
+    private static final byte VERSIONED_GET = 23;
+    private static final byte INVALIDATIONS = 24;
+    private static final byte SCAN = 25;
+    private static final byte SCAN_SHARD = 26;
+    private static final byte ADD_MEMBER = 27;
+    private static final byte REMOVE_MEMBER = 28;
+    private static final byte MEMBERSHIP = 29;
+    private static final byte STORE_BLOB_CHUNK = 30;
+    private static final byte FETCH_BLOB_CHUNK = 31;
+
+    private final long callTimeoutMillis = Long.getLong("paxos.nio.timeoutMs", 30000L);
+    private final Selector selector;
+    private final Thread loop;
+    private final ConcurrentLinkedQueue<Runnable> loopTasks = new ConcurrentLinkedQueue<>();
+    private final ExecutorService workers;
+    // 每个端口当前导出的副本；重新导出只替换这里的对象，监听的 socket 不变
+    private final Map<Integer, RMIInterface> exports = new ConcurrentHashMap<>();
+    // 每个副本只保留一条连接，所有调用复用它
+    private final Map<String, Stub> stubs = new ConcurrentHashMap<>();
+    // 大值分块走另一条连接，不挡在同一个 socket 上的共识消息前面
+    private final Map<String, Stub> bulkStubs = new ConcurrentHashMap<>();
+
+    /**
+     * Constructor for NioTransport. Starts the selector thread.
+     */
+    public NioTransport() {
+        try {
+            selector = Selector.open();
+        } catch (IOException e) {
+            throw new java.io.UncheckedIOException(e);
+        }
+        // 每个请求一个虚拟线程：等共识的请求只占一点堆内存，不占平台线程；同时处理多少请求由副本的准入控制决定
+        workers = Executors.newThreadPerTaskExecutor(Thread.ofVirtual().name("nio-worker-", 0).factory());
+        loop = new Thread(this::selectLoop, "nio-selector");
+        loop.setDaemon(true);
+        loop.start();
+    }
+
+    @Override
+    public void export(RMIInterface replica, int port, String name) throws RemoteException {
+        if (replica instanceof UnicastRemoteObject) {
+            // 不走 RMI 的话就不需要 RMI 的匿名端口监听
+            try {
+                UnicastRemoteObject.unexportObject(replica, true);
+            } catch (NoSuchObjectException e) {
+                // 本来就没有导出
+            }
+        }
+        if (exports.put(port, replica) != null) {
+            return;
+        }
+        try {
+            ServerSocketChannel server = ServerSocketChannel.open();
+            server.setOption(StandardSocketOptions.SO_REUSEADDR, true);
+            server.bind(new InetSocketAddress(port));
+            server.configureBlocking(false);
+            onLoop(() -> {
+                try {
+                    server.register(selector, SelectionKey.OP_ACCEPT, port);
+                } catch (ClosedChannelException e) {
+                    EventJournal.emit(EventJournal.Event.NIO_LISTENER_CLOSED, port);
+                }
+            }).join();
+        } catch (IOException e) {
+            exports.remove(port);
+            throw new RemoteException("Cannot listen on port " + port, e);
+        }
+    }
+
+    @Override
+    public RMIInterface connect(String host, int port, String name) throws RemoteException {
+        Stub stub = stubs.computeIfAbsent(host + ":" + port, k -> new Stub(host, port));
+        stub.connection();
+        return stub;
+    }
+
+    @Override
+    public RMIInterface connectBulk(String host, int port, String name) throws RemoteException {
+        Stub stub = bulkStubs.computeIfAbsent(host + ":" + port, k -> new Stub(host, port));
+        stub.connection();
+        return stub;
+    }
+
+    private CompletableFuture<Void> onLoop(Runnable task) {
+        CompletableFuture<Void> done = new CompletableFuture<>();
+        loopTasks.add(() -> {
+            try {
+                task.run();
+                done.complete(null);
+            } catch (RuntimeException e) {
+                done.completeExceptionally(e);
+            }
+        });
+        selector.wakeup();
+        return done;
+    }
+
+    private void selectLoop() {
+        while (true) {
+            try {
+                selector.select();
+                Runnable task;
+                while ((task = loopTasks.poll()) != null) {
+                    task.run();
+                }
+                Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+                while (keys.hasNext()) {
+                    SelectionKey key = keys.next();
+                    keys.remove();
+                    handle(key);
+                }
+            } catch (IOException e) {
+                EventJournal.emit(EventJournal.Event.NIO_SELECTOR_FAILED, e);
+                return;
+            }
+        }
+    }
+
+    private void handle(SelectionKey key) {
+        if (!key.isValid()) {
+            return;
+        }
+        if (key.isAcceptable()) {
+            int port = (Integer) key.attachment();
+            try {
+                SocketChannel channel = ((ServerSocketChannel) key.channel()).accept();
+                if (channel != null) {
+                    channel.configureBlocking(false);
+                    channel.setOption(StandardSocketOptions.TCP_NODELAY, true);
+                    Connection connection = new Connection(channel, port, null);
+                    connection.key = channel.register(selector, SelectionKey.OP_READ, connection);
+                }
+            } catch (IOException e) {
+                EventJournal.emit(EventJournal.Event.NIO_ACCEPT_FAILED, port, e);
+            }
+            return;
+        }
+        Connection connection = (Connection) key.attachment();
+        try {
+            if (key.isReadable()) {
+                connection.read();
+            }
+            if (key.isValid() && key.isWritable()) {
+                connection.flush();
+            }
+        } catch (IOException | RuntimeException e) {
+            connection.close(e);
+        }
+    }
+
+    /**
+     * One socket, on either side. Reads happen on the selector thread; writes are attempted
+     * directly by the sending thread and only queued for the selector when the socket is full.
+     */
+    private final class Connection {
+        final SocketChannel channel;
+        final int exportPort;      // 服务端连接：请求发给这个端口导出的副本
+        final Stub stub;           // 客户端连接：响应交给这个 stub
+        SelectionKey key;
+        private ByteBuffer readBuffer = ByteBuffer.allocate(64 * 1024);
+        private final ArrayDeque<ByteBuffer> writeQueue = new ArrayDeque<>();
+        // 发送方多是虚拟线程，用 ReentrantLock 而不是监视器，等锁时不占住载体线程
+        private final ReentrantLock writeLock = new ReentrantLock();
+        private volatile boolean closed;
+
+        Connection(SocketChannel channel, int exportPort, Stub stub) {
+            this.channel = channel;
+            this.exportPort = exportPort;
+            this.stub = stub;
+        }
+
+        void send(ByteBuffer frame) throws IOException {
+            writeLock.lock();
+            try {
+                if (closed) {
+                    throw new ClosedChannelException();
+                }
+                if (writeQueue.isEmpty()) {
+                    channel.write(frame);
+                }
+                if (frame.hasRemaining()) {
+                    // socket 缓冲区满了，剩下的交给 selector 线程在可写时发送
+                    writeQueue.add(frame);
+                    key.interestOps(SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+                    selector.wakeup();
+                }
+            } finally {
+                writeLock.unlock();
+            }
+        }
+
+        void flush() throws IOException {
+            writeLock.lock();
+            try {
+                while (!writeQueue.isEmpty()) {
+                    ByteBuffer head = writeQueue.peek();
+                    channel.write(head);
+                    if (head.hasRemaining()) {
+                        return;
+                    }
+                    writeQueue.poll();
+                }
+                key.interestOps(SelectionKey.OP_READ);
+            } finally {
+                writeLock.unlock();
+            }
+        }
+
+        void read() throws IOException {
+            if (channel.read(readBuffer) < 0) {
+                close(new ClosedChannelException());
+                return;
+            }
+            readBuffer.flip();
+            int needed = 0;
+            while (readBuffer.remaining() >= 4) {
+                int length = readBuffer.getInt(readBuffer.position());
+                if (length < HEADER - 4 || length > MAX_FRAME) {
+                    throw new IOException("Bad frame length " + length);
+                }
+                if (readBuffer.remaining() < 4 + length) {
+                    needed = 4 + length;
+                    break;
+                }
+                readBuffer.getInt();
+                long id = readBuffer.getLong();
+                byte code = readBuffer.get();
+                byte[] body = new byte[length - (HEADER - 4)];
+                readBuffer.get(body);
+                onFrame(id, code, body);
+            }
+            readBuffer.compact();
+            if (needed > readBuffer.capacity()) {
+                // 大帧（比如整个字典的快照）：扩大读缓冲区
+                ByteBuffer larger = ByteBuffer.allocate(needed);
+                readBuffer.flip();
+                larger.put(readBuffer);
+                readBuffer = larger;
+            }
+        }
+
+        private void onFrame(long id, byte code, byte[] body) {
+            if (stub != null) {
+                stub.complete(id, code, body);
+                return;
+            }
+            workers.execute(() -> {
+                Out result = new Out();
+                byte status = STATUS_OK;
+                try {
+                    RMIInterface target = exports.get(exportPort);
+                    dispatch(target, code, new In(body), result);
+                } catch (Exception e) {
+                    status = STATUS_ERROR;
+                    result = new Out();
+                    result.putString(e.toString());
+                }
+                try {
+                    send(result.frame(id, status));
+                } catch (IOException e) {
+                    close(e);
+                }
+            });
+        }
+
+        void close(Exception cause) {
+            writeLock.lock();
+            try {
+                if (closed) {
+                    return;
+                }
+                closed = true;
+            } finally {
+                writeLock.unlock();
+            }
+            try {
+                channel.close();
+            } catch (IOException e) {
+                // 已经关掉了
+            }
+            if (stub != null) {
+                stub.connectionClosed(this, cause);
+            }
+        }
+    }
+
+    // 服务端：解码参数，调用副本，编码结果
+    private static void dispatch(RMIInterface target, byte method, In in, Out out) throws RemoteException {
+        switch (method) {
+            case PUT:
+                out.putBytes(target.put(in.string(), in.string()));
+                break;
+            case GET:
+                out.putBytes(target.get(in.string()));
+                break;
+            case DELETE:
+                out.putBytes(target.delete(in.string()));
+                break;
+            case PREPARE_TO_OPERATION:
+                out.putBoolean(target.prepareToOperation(in.string(), in.string(), in.string()));
+                break;
+            case FINALLY_UPDATE:
+                target.finallyGotCommitSoReallyUpdate(in.string(), in.string(), in.string());
+                break;
+            case PROMISE:
+                out.putBytes(target.promise(in.getLong(), in.getLong()));
+                break;
+            case ACCEPTED:
+                out.putBytes(target.accepted(in.getLong(), in.getLong(), in.bytes()));
+                break;
+            case GRANT_LEASE:
+                out.putBytes(target.grantLease(in.getLong()));
+                break;
+            case COMMIT:
+                target.commit(in.getLong(), in.bytes());
+                break;
+            case LAST_APPLIED_SLOT:
+                out.putLong(target.lastAppliedSlot());
+                break;
+            case INSTALL_SNAPSHOT:
+                target.installSnapshot(in.getLong(), in.map());
+                break;
+            case BEGIN_CATCH_UP:
+                target.beginCatchUp(in.getLong());
+                break;
+            case CATCH_UP_CHUNK:
+                target.catchUpChunk(in.getLong(), in.map());
+                break;
+            case FINISH_CATCH_UP:
+                target.finishCatchUp(in.getLong());
+                break;
+            case GET_DICTIONARY:
+                out.putMap(target.getDictionary());
+                break;
+            case MERKLE_DIGESTS:
+                out.putLongs(target.merkleDigests(in.ints()));
+                break;
+            case REPAIR_BUCKETS:
+                target.repairBuckets(in.ints(), in.map());
+                break;
+            case UPDATE_DICTIONARY:
+                target.updateDictionary(in.map());
+                break;
+            case LEADER_ID:
+                out.putInt(target.leaderId());
+                break;
+            case MULTI_PUT:
+                out.putByteArrays(target.multiPut(in.strings(), in.strings()));
+                break;
+            case MULTI_GET:
+                out.putByteArrays(target.multiGet(in.strings()));
+                break;
+            case MULTI_DELETE:
+                out.putByteArrays(target.multiDelete(in.strings()));
+                break;
+            case VERSIONED_GET:
+                out.putBytes(target.versionedGet(in.string()));
+                break;
+            case INVALIDATIONS:
+                out.putBytes(target.invalidations(in.getLong(), in.getLong()));
+                break;
+            case SCAN:
+                out.putBytes(target.scan(in.string(), in.string(), in.string(), in.getInt()));
+                break;
+            case SCAN_SHARD:
+                out.putBytes(target.scanShard(in.string(), in.string(), in.string(), in.getInt()));
+                break;
+            case ADD_MEMBER:
+                out.putBytes(target.addMember(in.getInt(), in.string()));
+                break;
+            case REMOVE_MEMBER:
+                out.putBytes(target.removeMember(in.getInt()));
+                break;
+            case MEMBERSHIP:
+                out.putString(target.membership());
+                break;
+            case STORE_BLOB_CHUNK:
+                out.putLong(target.storeBlobChunk(in.string(), in.getLong(), in.getLong(), in.bytes()));
+                break;
+            case FETCH_BLOB_CHUNK:
+                out.putBytes(target.fetchBlobChunk(in.string(), in.getLong(), in.getInt()));
+                break;
+            default:
+                throw new RemoteException("Unknown method " + method);
+        }
+    }
+
+    /**
+     * Client-side proxy for one replica. Calls from any number of threads share its connection;
+     * if the connection drops, pending calls fail and the next call reconnects. Client operations
+     * are also available without blocking through {@link AsyncReplica}.
+     */
+    private final class Stub implements RMIInterface, AsyncReplica {
+        private final String host;
+        private final int port;
+        private final AtomicLong requestIds = new AtomicLong();
+        private final Map<Long, CompletableFuture<byte[]>> pending = new ConcurrentHashMap<>();
+        private final AtomicReference<Connection> connection = new AtomicReference<>();
+        // 重连时要等建立连接，调用方多是虚拟线程：用 ReentrantLock，等待时不占住载体线程
+        private final ReentrantLock connectLock = new ReentrantLock();
+
+        Stub(String host, int port) {
+            this.host = host;
+            this.port = port;
+        }
+
+        Connection connection() throws RemoteException {
+            Connection current = connection.get();
+            if (current != null && !current.closed) {
+                return current;
+            }
+            if (Thread.currentThread() == loop) {
+                // 新连接要由 selector 线程注册，在 selector 线程上等它只会把事件循环卡死
+                throw new ConnectException("Connection to " + host + ":" + port + " is down; not reconnecting on the selector thread");
+            }
+            connectLock.lock();
+            try {
+                return reconnect();
+            } finally {
+                connectLock.unlock();
+            }
+        }
+
+        private Connection reconnect() throws RemoteException {
+            Connection current = connection.get();
+            if (current != null && !current.closed) {
+                return current;
+            }
+            try {
+                SocketChannel channel = SocketChannel.open();
+                try {
+                    // 连不上的副本最多让调用方等一个调用超时，而不是操作系统的连接超时
+                    channel.socket().connect(new InetSocketAddress(host, port), (int) Math.min(callTimeoutMillis, Integer.MAX_VALUE));
+                    channel.setOption(StandardSocketOptions.TCP_NODELAY, true);
+                    channel.configureBlocking(false);
+                } catch (IOException e) {
+                    channel.close();
+                    throw e;
+                }
+                Connection opened = new Connection(channel, -1, this);
+                onLoop(() -> {
+                    try {
+                        opened.key = channel.register(selector, SelectionKey.OP_READ, opened);
+                    } catch (ClosedChannelException e) {
+                        throw new IllegalStateException(e);
+                    }
+                }).join();
+                connection.set(opened);
+                return opened;
+            } catch (IOException | RuntimeException e) {
+                throw new ConnectException("Cannot connect to " + host + ":" + port, e);
+            }
+        }
+
+        void complete(long id, byte status, byte[] body) {
+            CompletableFuture<byte[]> call = pending.remove(id);
+            if (call == null) {
+                return;  // 已经超时放弃了
+            }
+            if (status == STATUS_OK) {
+                call.complete(body);
+            } else {
+                call.completeExceptionally(new RemoteException("Remote call failed: " + new In(body).string()));
+            }
+        }
+
+        // 在 selector 线程上调用：不能拿重连的锁，持锁的线程可能正在等 selector 线程注册新连接
+        void connectionClosed(Connection closed, Exception cause) {
+            connection.compareAndSet(closed, null);
+            // 这条连接上还没回来的调用都失败；新的调用会重新连接
+            ConnectException failure = new ConnectException("Connection to " + host + ":" + port + " lost", cause);
+            for (Long id : pending.keySet()) {
+                CompletableFuture<byte[]> call = pending.remove(id);
+                if (call != null) {
+                    call.completeExceptionally(failure);
+                }
+            }
+        }
+
+        // 发出请求就返回，不占用调用线程；响应由 selector 线程按请求编号完成
+        private CompletableFuture<byte[]> callAsync(byte method, Out args) {
+            CompletableFuture<byte[]> result = new CompletableFuture<>();
+            Connection conn;
+            try {
+                conn = connection();
+            } catch (RemoteException e) {
+                result.completeExceptionally(e);
+                return result;
+            }
+            long id = requestIds.incrementAndGet();
+            pending.put(id, result);
+            try {
+                conn.send(args.frame(id, method));
+            } catch (IOException e) {
+                pending.remove(id);
+                conn.close(e);
+                result.completeExceptionally(new ConnectException("Cannot send to " + host + ":" + port, e));
+                return result;
+            }
+            result.orTimeout(callTimeoutMillis, TimeUnit.MILLISECONDS).whenComplete((body, error) -> {
+                if (error instanceof TimeoutException) {
+                    pending.remove(id);
+                }
+            });
+            return result;
+        }
+
+        private In call(byte method, Out args) throws RemoteException {
+            try {
+                return new In(callAsync(method, args).get());
+            } catch (ExecutionException e) {
+                if (e.getCause() instanceof RemoteException) {
+                    throw (RemoteException) e.getCause();
+                }
+                if (e.getCause() instanceof TimeoutException) {
+                    throw new RemoteException("Call to " + host + ":" + port + " timed out after " + callTimeoutMillis + " ms");
+                }
+                throw new RemoteException("Call to " + host + ":" + port + " failed", e.getCause());
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new RemoteException("Interrupted while calling " + host + ":" + port);
+            }
+        }
+
+        @Override
+        public CompletableFuture<byte[]> putAsync(String key, String value) {
+            return callAsync(PUT, new Out().putString(key).putString(value)).thenApply(body -> new In(body).bytes());
+        }
+
+        @Override
+        public CompletableFuture<byte[]> getAsync(String key) {
+            return callAsync(GET, new Out().putString(key)).thenApply(body -> new In(body).bytes());
+        }
+
+        @Override
+        public CompletableFuture<byte[]> deleteAsync(String key) {
+            return callAsync(DELETE, new Out().putString(key)).thenApply(body -> new In(body).bytes());
+        }
+
+        @Override
+        public CompletableFuture<byte[]> versionedGetAsync(String key) {
+            return callAsync(VERSIONED_GET, new Out().putString(key)).thenApply(body -> new In(body).bytes());
+        }
+
+        @Override
+        public byte[] put(String key, String value) throws RemoteException {
+            return call(PUT, new Out().putString(key).putString(value)).bytes();
+        }
+
+        @Override
+        public byte[] get(String key) throws RemoteException {
+            return call(GET, new Out().putString(key)).bytes();
+        }
+
+        @Override
+        public byte[] delete(String key) throws RemoteException {
+            return call(DELETE, new Out().putString(key)).bytes();
+        }
+
+        @Override
+        public byte[][] multiPut(String[] keys, String[] values) throws RemoteException {
+            return call(MULTI_PUT, new Out().putStrings(keys).putStrings(values)).byteArrays();
+        }
+
+        @Override
+        public byte[][] multiGet(String[] keys) throws RemoteException {
+            return call(MULTI_GET, new Out().putStrings(keys)).byteArrays();
+        }
+
+        @Override
+        public byte[][] multiDelete(String[] keys) throws RemoteException {
+            return call(MULTI_DELETE, new Out().putStrings(keys)).byteArrays();
+        }
+
+        @Override
+        public byte[] versionedGet(String key) throws RemoteException {
+            return call(VERSIONED_GET, new Out().putString(key)).bytes();
+        }
+
+        @Override
+        public byte[] invalidations(long afterSlot, long waitMillis) throws RemoteException {
+            return call(INVALIDATIONS, new Out().putLong(afterSlot).putLong(waitMillis)).bytes();
+        }
+
+        @Override
+        public byte[] scan(String from, String to, String after, int limit) throws RemoteException {
+            return call(SCAN, new Out().putString(from).putString(to).putString(after).putInt(limit)).bytes();
+        }
+
+        @Override
+        public byte[] scanShard(String from, String to, String after, int limit) throws RemoteException {
+            return call(SCAN_SHARD, new Out().putString(from).putString(to).putString(after).putInt(limit)).bytes();
+        }
+
+        @Override
+        public byte[] addMember(int id, String address) throws RemoteException {
+            return call(ADD_MEMBER, new Out().putInt(id).putString(address)).bytes();
+        }
+
+        @Override
+        public byte[] removeMember(int id) throws RemoteException {
+            return call(REMOVE_MEMBER, new Out().putInt(id)).bytes();
+        }
+
+        @Override
+        public String membership() throws RemoteException {
+            return call(MEMBERSHIP, new Out()).string();
+        }
+
+        @Override
+        public long storeBlobChunk(String digest, long size, long offset, byte[] chunk) throws RemoteException {
+            return call(STORE_BLOB_CHUNK, new Out().putString(digest).putLong(size).putLong(offset).putBytes(chunk)).getLong();
+        }
+
+        @Override
+        public byte[] fetchBlobChunk(String digest, long offset, int length) throws RemoteException {
+            return call(FETCH_BLOB_CHUNK, new Out().putString(digest).putLong(offset).putInt(length)).bytes();
+        }
+
+        @Override
+        public boolean prepareToOperation(String key, String value, String operation) throws RemoteException {
+            return call(PREPARE_TO_OPERATION, new Out().putString(key).putString(value).putString(operation)).getBoolean();
+        }
+
+        @Override
+        public void finallyGotCommitSoReallyUpdate(String key, String value, String operation) throws RemoteException {
+            call(FINALLY_UPDATE, new Out().putString(key).putString(value).putString(operation));
+        }
+
+        @Override
+        public byte[] promise(long proposalNumber, long fromSlot) throws RemoteException {
+            return call(PROMISE, new Out().putLong(proposalNumber).putLong(fromSlot)).bytes();
+        }
+
+        @Override
+        public byte[] accepted(long promiseNum, long slot, byte[] val) throws RemoteException {
+            return call(ACCEPTED, new Out().putLong(promiseNum).putLong(slot).putBytes(val)).bytes();
+        }
+
+        @Override
+        public byte[] grantLease(long ballot) throws RemoteException {
+            return call(GRANT_LEASE, new Out().putLong(ballot)).bytes();
+        }
+
+        @Override
+        public void commit(long slot, byte[] val) throws RemoteException {
+            call(COMMIT, new Out().putLong(slot).putBytes(val));
+        }
+
+        @Override
+        public long lastAppliedSlot() throws RemoteException {
+            return call(LAST_APPLIED_SLOT, new Out()).getLong();
+        }
+
+        @Override
+        public void installSnapshot(long lastAppliedSlot, Map<String, String> commonDictionary) throws RemoteException {
+            call(INSTALL_SNAPSHOT, new Out().putLong(lastAppliedSlot).putMap(commonDictionary));
+        }
+
+        @Override
+        public void beginCatchUp(long snapshotSlot) throws RemoteException {
+            call(BEGIN_CATCH_UP, new Out().putLong(snapshotSlot));
+        }
+
+        @Override
+        public void catchUpChunk(long snapshotSlot, Map<String, String> entries) throws RemoteException {
+            call(CATCH_UP_CHUNK, new Out().putLong(snapshotSlot).putMap(entries));
+        }
+
+        @Override
+        public void finishCatchUp(long snapshotSlot) throws RemoteException {
+            call(FINISH_CATCH_UP, new Out().putLong(snapshotSlot));
+        }
+
+        @Override
+        public ConcurrentHashMap<String, String> getDictionary() throws RemoteException {
+            return call(GET_DICTIONARY, new Out()).map();
+        }
+
+        @Override
+        public long[] merkleDigests(int[] nodes) throws RemoteException {
+            return call(MERKLE_DIGESTS, new Out().putInts(nodes)).longs();
+        }
+
+        @Override
+        public void repairBuckets(int[] buckets, Map<String, String> entries) throws RemoteException {
+            call(REPAIR_BUCKETS, new Out().putInts(buckets).putMap(entries));
+        }
+
+        @Override
+        public void updateDictionary(Map<String, String> commonDictionary) throws RemoteException {
+            call(UPDATE_DICTIONARY, new Out().putMap(commonDictionary));
+        }
+
+        @Override
+        public int leaderId() throws RemoteException {
+            return call(LEADER_ID, new Out()).getInt();
+        }
+
+        @Override
+        public String toString() {
+            return "NioTransport.Stub[" + host + ":" + port + "]";
+        }
+    }
+
+    /**
+     * Builds a frame: the header is reserved up front and filled in by {@link #frame}.
+     */
+    private static final class Out {
+        private byte[] buf = new byte[64];
+        private int pos = HEADER;
+
+        private void ensure(int n) {
+            if (pos + n > buf.length) {
+                buf = java.util.Arrays.copyOf(buf, Math.max(buf.length * 2, pos + n));
+            }
+        }
+
+        Out putBoolean(boolean v) {
+            ensure(1);
+            buf[pos++] = (byte) (v ? 1 : 0);
+            return this;
+        }
+
+        Out putInt(int v) {
+            ensure(4);
+            ByteBuffer.wrap(buf, pos, 4).putInt(v);
+            pos += 4;
+            return this;
+        }
+
+        Out putLong(long v) {
+            ensure(8);
+            ByteBuffer.wrap(buf, pos, 8).putLong(v);
+            pos += 8;
+            return this;
+        }
+
+        Out putBytes(byte[] v) {
+            putInt(v.length);
+            ensure(v.length);
+            System.arraycopy(v, 0, buf, pos, v.length);
+            pos += v.length;
+            return this;
+        }
+
+        Out putString(String v) {
+            if (v == null) {
+                return putInt(-1);
+            }
+            return putBytes(v.getBytes(StandardCharsets.UTF_8));
+        }
+
+        Out putStrings(String[] v) {
+            putInt(v.length);
+            for (String x : v) {
+                putString(x);
+            }
+            return this;
+        }
+
+        Out putByteArrays(byte[][] v) {
+            putInt(v.length);
+            for (byte[] x : v) {
+                putBytes(x);
+            }
+            return this;
+        }
+
+        Out putInts(int[] v) {
+            putInt(v.length);
+            for (int x : v) {
+                putInt(x);
+            }
+            return this;
+        }
+
+        Out putLongs(long[] v) {
+            putInt(v.length);
+            for (long x : v) {
+                putLong(x);
+            }
+            return this;
+        }
+
+        Out putMap(Map<String, String> map) {
+            // 先拷贝一份，避免并发修改时写出的条数和声明的不一致
+            Object[] entries = map.entrySet().toArray();
+            putInt(entries.length);
+            for (Object entry : entries) {
+                @SuppressWarnings("unchecked")
+                Map.Entry<String, String> e = (Map.Entry<String, String>) entry;
+                putString(e.getKey());
+                putString(e.getValue());
+            }
+            return this;
+        }
+
+        ByteBuffer frame(long id, byte code) {
+            ByteBuffer.wrap(buf, 0, HEADER).putInt(pos - 4).putLong(id).put(code);
+            return ByteBuffer.wrap(buf, 0, pos);
+        }
+    }
+
+    /**
+     * Reads the body of a frame in the order {@link Out} wrote it. Lengths and element counts are
+     * checked against the bytes left in the frame, so a corrupt frame fails with an exception
+     * that is answered as an error instead of an oversized allocation.
+     */
+    private static final class In {
+        private final ByteBuffer buf;
+
+        In(byte[] body) {
+            this.buf = ByteBuffer.wrap(body);
+        }
+
+        boolean getBoolean() {
+            return buf.get() != 0;
+        }
+
+        int getInt() {
+            return buf.getInt();
+        }
+
+        long getLong() {
+            return buf.getLong();
+        }
+
+        // 长度和个数先和剩下的字节比一比，坏帧不会让这里分配出离谱的数组
+        private int count(int minBytes) {
+            int n = buf.getInt();
+            if (n < 0 || n > buf.remaining() / minBytes) {
+                throw new IllegalArgumentException("Length " + n + " exceeds the frame");
+            }
+            return n;
+        }
+
+        byte[] bytes() {
+            byte[] v = new byte[count(1)];
+            buf.get(v);
+            return v;
+        }
+
+        String string() {
+            int length = buf.getInt();
+            if (length < 0) {
+                return null;
+            }
+            if (length > buf.remaining()) {
+                throw new IllegalArgumentException("Length " + length + " exceeds the frame");
+            }
+            String v = new String(buf.array(), buf.position(), length, StandardCharsets.UTF_8);
+            buf.position(buf.position() + length);
+            return v;
+        }
+
+        String[] strings() {
+            String[] v = new String[count(4)];
+            for (int i = 0; i < v.length; i++) {
+                v[i] = string();
+            }
+            return v;
+        }
+
+        byte[][] byteArrays() {
+            byte[][] v = new byte[count(4)][];
+            for (int i = 0; i < v.length; i++) {
+                v[i] = bytes();
+            }
+            return v;
+        }
+
+        int[] ints() {
+            int[] v = new int[count(4)];
+            for (int i = 0; i < v.length; i++) {
+                v[i] = buf.getInt();
+            }
+            return v;
+        }
+
+        long[] longs() {
+            long[] v = new long[count(8)];
+            for (int i = 0; i < v.length; i++) {
+                v[i] = buf.getLong();
+            }
+            return v;
+        }
+
+        ConcurrentHashMap<String, String> map() {
+            int size = count(8);
+            ConcurrentHashMap<String, String> v = new ConcurrentHashMap<>(Math.max(16, size * 2));
+            for (int i = 0; i < size; i++) {
+                v.put(string(), string());
+            }
+            return v;
+        }
+    }
+}
@@ -0,0 +1,485 @@
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.locks.StampedLock;
+import java.util.function.BiConsumer;
+
+/**
+ * OffHeapStore is a {@link KeyValueStore} for very large dictionaries. Keys and values are kept
+ * as UTF-8 bytes in direct-memory pages, so an entry costs its encoded length plus 20 bytes
+ * instead of two {@code String} objects and a hash-map node, and the garbage collector never
+ * scans them.
+ *
+ * <p>Layout: records {@code [hash 4][key length 4][value length 4][key][value]} are appended to
+ * pages of {@code -Dpaxos.store.pageMB} megabytes (default 16; a record must fit in one page). The
+ * index is an open-addressing table with linear probing, also in direct memory, whose 8-byte slots
+ * hold a 24-bit hash tag and the 40-bit record address; a removed key leaves a tombstone. The
+ * index is rebuilt when live keys plus tombstones pass 3/4 of it, and the pages are compacted
+ * when more than half of their bytes belong to overwritten or removed records.
+ *
+ * <p>Writers take an exclusive lock. Readers first read optimistically without locking and only
+ * fall back to a shared lock if a write raced with them. Iteration copies a chunk of entries at a
+ * time under the shared lock and calls the action outside it, so the action may modify the store;
+ * if the index is rebuilt during an iteration, some entries may be passed twice.
+ */
+public class OffHeapStore implements KeyValueStore {
+
+    private static final int HEADER = 12;
+    private static final long EMPTY = 0L;
+    private static final long TOMBSTONE = -1L;
+    private static final int ADDRESS_BITS = 40;
+    private static final long ADDRESS_MASK = (1L << ADDRESS_BITS) - 1;
+    private static final int MAX_CAPACITY = 1 << 28;
+    private static final int ITERATION_CHUNK = 4096;
+
+    private final int pageSize;
+    private final int pageShift;
+    private final int initialCapacity;
+    private final StampedLock lock = new StampedLock();
+
+    // 以下字段只在写锁下修改；乐观读之后用 validate 确认没有被并发修改
+    private ByteBuffer[] pages = new ByteBuffer[0];
+    private long writeAddress;
+    private ByteBuffer index;
+    private int capacity;
+    private long live;
+    private int tombstones;
+    private long totalBytes;
+    private long garbageBytes;
+    private int indexGeneration;
+
+    /**
+     * Constructor for an empty OffHeapStore with the configured page size and capacity.
+     */
+    public OffHeapStore() {
+        this(Integer.getInteger("paxos.store.pageMB", 16) << 20, Integer.getInteger("paxos.store.capacity", 1 << 15));
+    }
+
+    /**
+     * Constructor for an empty OffHeapStore.
+     *
+     * @param pageSize The size of one memory page in bytes, rounded down to a power of two.
+     * @param expectedKeys The number of keys the index holds before its first rebuild.
+     */
+    public OffHeapStore(int pageSize, int expectedKeys) {
+        this.pageSize = Integer.highestOneBit(Math.max(pageSize, 1 << 12));
+        this.pageShift = Integer.numberOfTrailingZeros(this.pageSize);
+        int capacity = 1 << 4;
+        while (capacity < MAX_CAPACITY && capacity / 4L * 3 < expectedKeys) {
+            capacity <<= 1;
+        }
+        this.initialCapacity = capacity;
+        resetIndex(initialCapacity);
+    }
+
+    @Override
+    public String get(String key) {
+        byte[] keyBytes = key.getBytes(StandardCharsets.UTF_8);
+        int hash = hash(key);
+        long stamp = lock.tryOptimisticRead();
+        if (stamp != 0) {
+            try {
+                long address = addressOf(find(keyBytes, hash));
+                String value = address < 0 ? null : readValue(address);
+                if (lock.validate(stamp)) {
+                    return value;
+                }
+            } catch (RuntimeException e) {
+                // 和写操作撞上了，读到的是不一致的状态，下面加读锁重读
+            }
+        }
+        stamp = lock.readLock();
+        try {
+            long address = addressOf(find(keyBytes, hash));
+            return address < 0 ? null : readValue(address);
+        } finally {
+            lock.unlockRead(stamp);
+        }
+    }
+
+    @Override
+    public boolean containsKey(String key) {
+        byte[] keyBytes = key.getBytes(StandardCharsets.UTF_8);
+        int hash = hash(key);
+        long stamp = lock.tryOptimisticRead();
+        if (stamp != 0) {
+            try {
+                boolean found = find(keyBytes, hash) >= 0;
+                if (lock.validate(stamp)) {
+                    return found;
+                }
+            } catch (RuntimeException e) {
+                // 同上，加读锁重读
+            }
+        }
+        stamp = lock.readLock();
+        try {
+            return find(keyBytes, hash) >= 0;
+        } finally {
+            lock.unlockRead(stamp);
+        }
+    }
+
+    @Override
+    public String put(String key, String value) {
+        return write(key, value, true);
+    }
+
+    @Override
+    public String putIfAbsent(String key, String value) {
+        return write(key, value, false);
+    }
+
+    @Override
+    public String remove(String key) {
+        return delete(key, null);
+    }
+
+    @Override
+    public boolean remove(String key, String value) {
+        return value != null && delete(key, value) != null;
+    }
+
+    @Override
+    public void clear() {
+        long stamp = lock.writeLock();
+        try {
+            pages = new ByteBuffer[0];
+            writeAddress = 0;
+            resetIndex(initialCapacity);
+            live = 0;
+            totalBytes = 0;
+            garbageBytes = 0;
+        } finally {
+            lock.unlockWrite(stamp);
+        }
+    }
+
+    @Override
+    public long size() {
+        long stamp = lock.tryOptimisticRead();
+        long size = live;
+        if (lock.validate(stamp)) {
+            return size;
+        }
+        stamp = lock.readLock();
+        try {
+            return live;
+        } finally {
+            lock.unlockRead(stamp);
+        }
+    }
+
+    @Override
+    public void forEach(BiConsumer<String, String> action) {
+        List<String> chunk = new ArrayList<>(ITERATION_CHUNK * 2);
+        int generation = -1;
+        int next = 0;
+        boolean wholeUnderLock = false;
+        while (true) {
+            chunk.clear();
+            long stamp = lock.readLock();
+            try {
+                if (generation == -1) {
+                    generation = indexGeneration;
+                } else if (generation != indexGeneration) {
+                    // 迭代过程中索引重建了，槽位顺序全变了：从头在一次读锁内走完，保证不漏
+                    wholeUnderLock = true;
+                    next = 0;
+                }
+                int end = wholeUnderLock ? capacity : Math.min(capacity, next + ITERATION_CHUNK);
+                for (int slot = next; slot < end; slot++) {
+                    long entry = index.getLong(slot * 8);
+                    if (entry != EMPTY && entry != TOMBSTONE) {
+                        long address = entry & ADDRESS_MASK;
+                        chunk.add(readKey(address));
+                        chunk.add(readValue(address));
+                    }
+                }
+                next = end;
+                if (next >= capacity) {
+                    wholeUnderLock = true;
+                }
+            } finally {
+                lock.unlockRead(stamp);
+            }
+            for (int i = 0; i < chunk.size(); i += 2) {
+                action.accept(chunk.get(i), chunk.get(i + 1));
+            }
+            if (wholeUnderLock) {
+                return;
+            }
+        }
+    }
+
+    @Override
+    public KeyValueStore copy() {
+        OffHeapStore copy = new OffHeapStore(pageSize, 0);
+        long stamp = lock.readLock();
+        try {
+            copy.pages = new ByteBuffer[pages.length];
+            for (int i = 0; i < pages.length; i++) {
+                copy.pages[i] = ByteBuffer.allocateDirect(pageSize);
+                copy.pages[i].put(0, pages[i], 0, pageSize);
+            }
+            copy.index = ByteBuffer.allocateDirect(capacity * 8);
+            copy.index.put(0, index, 0, capacity * 8);
+            copy.capacity = capacity;
+            copy.writeAddress = writeAddress;
+            copy.live = live;
+            copy.tombstones = tombstones;
+            copy.totalBytes = totalBytes;
+            copy.garbageBytes = garbageBytes;
+        } finally {
+            lock.unlockRead(stamp);
+        }
+        return copy;
+    }
+
+    private String write(String key, String value, boolean overwrite) {
+        byte[] keyBytes = key.getBytes(StandardCharsets.UTF_8);
+        byte[] valueBytes = value.getBytes(StandardCharsets.UTF_8);
+        int hash = hash(key);
+        int size = HEADER + keyBytes.length + valueBytes.length;
+        if (size > pageSize) {
+            throw new IllegalArgumentException("Entry of " + size + " bytes does not fit in a " + pageSize + "-byte page");
+        }
+        long stamp = lock.writeLock();
+        try {
+            int slot = find(keyBytes, hash);
+            if (slot >= 0) {
+                long oldAddress = addressOf(slot);
+                String old = readValue(oldAddress);
+                if (overwrite) {
+                    garbageBytes += recordSize(oldAddress);
+                    index.putLong(slot * 8, entry(hash, append(hash, keyBytes, valueBytes)));
+                    maybeCompact();
+                }
+                return old;
+            }
+            if (live + tombstones + 1 > capacity / 4L * 3) {
+                rebuildIndex();
+            }
+            long address = append(hash, keyBytes, valueBytes);
+            insert(hash, entry(hash, address));
+            live++;
+            return null;
+        } finally {
+            lock.unlockWrite(stamp);
+        }
+    }
+
+    private String delete(String key, String expected) {
+        byte[] keyBytes = key.getBytes(StandardCharsets.UTF_8);
+        int hash = hash(key);
+        long stamp = lock.writeLock();
+        try {
+            int slot = find(keyBytes, hash);
+            if (slot < 0) {
+                return null;
+            }
+            long address = addressOf(slot);
+            String old = readValue(address);
+            if (expected != null && !expected.equals(old)) {
+                return null;
+            }
+            index.putLong(slot * 8, TOMBSTONE);
+            live--;
+            tombstones++;
+            garbageBytes += recordSize(address);
+            maybeCompact();
+            return old;
+        } finally {
+            lock.unlockWrite(stamp);
+        }
+    }
+
+    // 线性探测找键所在的槽位，找不到返回 -1；探测次数有上限，乐观读碰上并发修改时不会死循环
+    private int find(byte[] keyBytes, int hash) {
+        ByteBuffer index = this.index;
+        int mask = capacity - 1;
+        long tag = tagOf(hash);
+        int slot = hash & mask;
+        for (int probes = 0; probes <= mask; probes++) {
+            long entry = index.getLong(slot * 8);
+            if (entry == EMPTY) {
+                return -1;
+            }
+            if (entry != TOMBSTONE && (entry >>> ADDRESS_BITS) == tag && keyEquals(entry & ADDRESS_MASK, keyBytes)) {
+                return slot;
+            }
+            slot = (slot + 1) & mask;
+        }
+        return -1;
+    }
+
+    private void insert(int hash, long entry) {
+        int mask = capacity - 1;
+        int slot = hash & mask;
+        while (true) {
+            long current = index.getLong(slot * 8);
+            if (current == EMPTY || current == TOMBSTONE) {
+                if (current == TOMBSTONE) {
+                    tombstones--;
+                }
+                index.putLong(slot * 8, entry);
+                return;
+            }
+            slot = (slot + 1) & mask;
+        }
+    }
+
+    private long addressOf(int slot) {
+        return slot < 0 ? -1 : index.getLong(slot * 8) & ADDRESS_MASK;
+    }
+
+    private long append(int hash, byte[] keyBytes, byte[] valueBytes) {
+        int size = HEADER + keyBytes.length + valueBytes.length;
+        int offset = (int) (writeAddress & (pageSize - 1));
+        if ((writeAddress >>> pageShift) == pages.length || offset + size > pageSize) {
+            // 当前页放不下就开新页，记录不跨页
+            if (offset > 0) {
+                garbageBytes += pageSize - offset;
+                totalBytes += pageSize - offset;
+            }
+            if ((long) (pages.length + 1) << pageShift > ADDRESS_MASK) {
+                throw new IllegalStateException("Off-heap store is full");
+            }
+            pages = Arrays.copyOf(pages, pages.length + 1);
+            pages[pages.length - 1] = ByteBuffer.allocateDirect(pageSize);
+            writeAddress = (long) (pages.length - 1) << pageShift;
+            offset = 0;
+        }
+        ByteBuffer page = pages[pages.length - 1];
+        page.putInt(offset, hash);
+        page.putInt(offset + 4, keyBytes.length);
+        page.putInt(offset + 8, valueBytes.length);
+        page.put(offset + HEADER, keyBytes);
+        page.put(offset + HEADER + keyBytes.length, valueBytes);
+        long address = writeAddress;
+        writeAddress += size;
+        totalBytes += size;
+        return address;
+    }
+
+    private boolean keyEquals(long address, byte[] keyBytes) {
+        ByteBuffer page = pages[(int) (address >>> pageShift)];
+        int offset = (int) (address & (pageSize - 1));
+        if (page.getInt(offset + 4) != keyBytes.length) {
+            return false;
+        }
+        int start = offset + HEADER;
+        for (int i = 0; i < keyBytes.length; i++) {
+            if (page.get(start + i) != keyBytes[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private String readKey(long address) {
+        ByteBuffer page = pages[(int) (address >>> pageShift)];
+        int offset = (int) (address & (pageSize - 1));
+        int keyLength = page.getInt(offset + 4);
+        checkRecord(offset, keyLength, 0);
+        byte[] bytes = new byte[keyLength];
+        page.get(offset + HEADER, bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    private String readValue(long address) {
+        ByteBuffer page = pages[(int) (address >>> pageShift)];
+        int offset = (int) (address & (pageSize - 1));
+        int keyLength = page.getInt(offset + 4);
+        int valueLength = page.getInt(offset + 8);
+        checkRecord(offset, keyLength, valueLength);
+        byte[] bytes = new byte[valueLength];
+        page.get(offset + HEADER + keyLength, bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    // 乐观读可能读到写了一半的记录；长度不合理就抛异常，让调用方加锁重读，而不是按垃圾长度分配内存
+    private void checkRecord(int offset, int keyLength, int valueLength) {
+        if (keyLength < 0 || valueLength < 0 || (long) offset + HEADER + keyLength + valueLength > pageSize) {
+            throw new IllegalStateException("Inconsistent record at offset " + offset);
+        }
+    }
+
+    private int recordSize(long address) {
+        ByteBuffer page = pages[(int) (address >>> pageShift)];
+        int offset = (int) (address & (pageSize - 1));
+        return HEADER + page.getInt(offset + 4) + page.getInt(offset + 8);
+    }
+
+    // 重建索引：扔掉墓碑，必要时扩容，使装载率回到一半以下
+    private void rebuildIndex() {
+        int newCapacity = initialCapacity;
+        while ((live + 1) * 2 > newCapacity) {
+            if (newCapacity == MAX_CAPACITY) {
+                throw new IllegalStateException("Off-heap store index is full at " + live + " keys");
+            }
+            newCapacity <<= 1;
+        }
+        ByteBuffer old = index;
+        int oldCapacity = capacity;
+        resetIndex(newCapacity);
+        for (int slot = 0; slot < oldCapacity; slot++) {
+            long entry = old.getLong(slot * 8);
+            if (entry != EMPTY && entry != TOMBSTONE) {
+                long address = entry & ADDRESS_MASK;
+                insert(pages[(int) (address >>> pageShift)].getInt((int) (address & (pageSize - 1))), entry);
+            }
+        }
+    }
+
+    private void resetIndex(int newCapacity) {
+        index = ByteBuffer.allocateDirect(newCapacity * 8);
+        capacity = newCapacity;
+        tombstones = 0;
+        indexGeneration++;
+    }
+
+    // 一半以上的字节是被覆盖或删除的旧记录时，把活记录搬到新页上；槽位不变，只改地址
+    private void maybeCompact() {
+        if (garbageBytes < pageSize || garbageBytes * 2 < totalBytes) {
+            return;
+        }
+        ByteBuffer[] oldPages = pages;
+        pages = new ByteBuffer[0];
+        writeAddress = 0;
+        totalBytes = 0;
+        garbageBytes = 0;
+        for (int slot = 0; slot < capacity; slot++) {
+            long entry = index.getLong(slot * 8);
+            if (entry == EMPTY || entry == TOMBSTONE) {
+                continue;
+            }
+            long address = entry & ADDRESS_MASK;
+            ByteBuffer page = oldPages[(int) (address >>> pageShift)];
+            int offset = (int) (address & (pageSize - 1));
+            byte[] keyBytes = new byte[page.getInt(offset + 4)];
+            byte[] valueBytes = new byte[page.getInt(offset + 8)];
+            page.get(offset + HEADER, keyBytes);
+            page.get(offset + HEADER + keyBytes.length, valueBytes);
+            int hash = page.getInt(offset);
+            index.putLong(slot * 8, entry(hash, append(hash, keyBytes, valueBytes)));
+        }
+    }
+
+    private static long entry(int hash, long address) {
+        return tagOf(hash) << ADDRESS_BITS | address;
+    }
+
+    // 标签取哈希的高 24 位，0 留给空槽位
+    private static long tagOf(int hash) {
+        long tag = (hash >>> 8) & 0xFFFFFF;
+        return tag == 0 ? 1 : tag;
+    }
+
+    private static int hash(String key) {
+        int h = key.hashCode() * 0x9E3779B9;
+        return h ^ (h >>> 16);
+    }
+}
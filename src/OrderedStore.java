@@ -0,0 +1,194 @@
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NavigableSet;
+import java.util.concurrent.ConcurrentSkipListSet;
+import java.util.function.BiConsumer;
+
+/**
+ * OrderedStore keeps a sorted index of the keys of another {@link KeyValueStore}, so that a
+ * replica can answer range and prefix scans a page at a time without walking or copying its
+ * whole dictionary. Reads and writes still go to the wrapped store.
+ *
+ * <p>The index is built the first time the store is scanned and maintained from then on: every
+ * write that adds or removes a key also inserts or removes it in a skip list, which with a few
+ * hundred thousand keys costs several microseconds of cache misses. Replicas that are never
+ * asked to scan (e.g. Multi-Paxos followers, whose scans go to the leader) never pay for it.
+ * The index holds the key strings on the heap, also when the wrapped store is an {@link OffHeapStore}.
+ */
+public class OrderedStore implements KeyValueStore {
+
+    private final KeyValueStore store;
+    private final ConcurrentSkipListSet<String> index = new ConcurrentSkipListSet<>();
+    // 同一个键的索引更新按条带串行，最后一次更新一定看到最终的存在状态
+    private final Object[] stripes = new Object[64];
+    // 第一次扫描时才建索引；之前的写不碰索引
+    private volatile boolean indexed;
+
+    /**
+     * Constructor for OrderedStore. The index is not built until the first scan.
+     *
+     * @param store The store to index.
+     */
+    public OrderedStore(KeyValueStore store) {
+        this.store = store;
+        for (int i = 0; i < stripes.length; i++) {
+            stripes[i] = new Object();
+        }
+    }
+
+    @Override
+    public String get(String key) {
+        return store.get(key);
+    }
+
+    @Override
+    public boolean containsKey(String key) {
+        return store.containsKey(key);
+    }
+
+    @Override
+    public String put(String key, String value) {
+        String old = store.put(key, value);
+        if (old == null && indexed) {
+            reindex(key);
+        }
+        return old;
+    }
+
+    @Override
+    public String putIfAbsent(String key, String value) {
+        String old = store.putIfAbsent(key, value);
+        if (old == null && indexed) {
+            reindex(key);
+        }
+        return old;
+    }
+
+    @Override
+    public String remove(String key) {
+        String old = store.remove(key);
+        if (old != null && indexed) {
+            reindex(key);
+        }
+        return old;
+    }
+
+    @Override
+    public boolean remove(String key, String value) {
+        boolean removed = store.remove(key, value);
+        if (removed && indexed) {
+            reindex(key);
+        }
+        return removed;
+    }
+
+    @Override
+    public void clear() {
+        // 清空后索引作废，下次扫描重建；和并发的写抢着清索引反而可能漏键
+        synchronized (index) {
+            indexed = false;
+            index.clear();
+        }
+        store.clear();
+    }
+
+    @Override
+    public long size() {
+        return store.size();
+    }
+
+    @Override
+    public void forEach(BiConsumer<String, String> action) {
+        store.forEach(action);
+    }
+
+    /**
+     * Returns a copy of the wrapped store, without the index: copies are taken for snapshots,
+     * which only need the entries.
+     *
+     * @return The copy.
+     */
+    @Override
+    public KeyValueStore copy() {
+        return store.copy();
+    }
+
+    // 开始维护索引：先打开开关，之后的写都会自己更新索引；再把已有的键排好序逐个对账。
+    // 写先改存储再读开关，没看到开关的写，它改的键一定能被这里的遍历看到
+    private void buildIndex() {
+        synchronized (index) {
+            if (indexed) {
+                return;
+            }
+            indexed = true;
+            List<String> keys = new ArrayList<>();
+            store.forEach((key, value) -> keys.add(key));
+            keys.sort(null);
+            for (String key : keys) {
+                reindex(key);
+            }
+        }
+    }
+
+    // 只在键出现或消失时调用；在条带锁内按存储的当前状态改索引，并发的增删不会让两者不一致
+    private void reindex(String key) {
+        synchronized (stripes[key.hashCode() & (stripes.length - 1)]) {
+            if (store.containsKey(key)) {
+                index.add(key);
+            } else {
+                index.remove(key);
+            }
+        }
+    }
+
+    /**
+     * Returns the entries of a key range in ascending key order, a bounded page at a time. Pages
+     * are weakly consistent: an entry written while the page is read may or may not be in it.
+     * The first call builds the index, which takes a sort of every key.
+     *
+     * @param from The first key of the range (inclusive), or {@code null} to start at the lowest key.
+     * @param to The end of the range (exclusive), or {@code null} for no end.
+     * @param after The continuation token of the previous page, or {@code null} for the first page.
+     * @param limit The maximum number of entries.
+     * @param maxBytes Stop adding entries once their keys and values hold this many characters;
+     *                 a page always has at least one entry if the range is not exhausted.
+     * @return The page; its {@code next} token is {@code null} when the range is exhausted.
+     */
+    public Messages.ScanPage scan(String from, String to, String after, int limit, int maxBytes) {
+        if (!indexed) {
+            buildIndex();
+        }
+        NavigableSet<String> range;
+        if (after != null && (from == null || after.compareTo(from) >= 0)) {
+            range = index.tailSet(after, false);
+        } else {
+            range = from == null ? index : index.tailSet(from, true);
+        }
+        if (to != null) {
+            range = range.headSet(to, false);
+        }
+        List<String> keys = new ArrayList<>(Math.min(limit, 256));
+        List<String> values = new ArrayList<>(Math.min(limit, 256));
+        Iterator<String> it = range.iterator();
+        long bytes = 0;
+        String last = null;
+        while (it.hasNext()) {
+            if (keys.size() >= limit || (bytes >= maxBytes && !keys.isEmpty())) {
+                // 还有剩余：从最后一个看过的键继续，被跳过的已删除键不必再看一遍
+                return new Messages.ScanPage(Messages.OK, keys, values, last);
+            }
+            String key = it.next();
+            last = key;
+            String value = store.get(key);
+            if (value == null) {
+                // 索引里还在、存储里已经删掉的键
+                continue;
+            }
+            keys.add(key);
+            values.add(value);
+            bytes += key.length() + value.length();
+        }
+        return new Messages.ScanPage(Messages.OK, keys, values, null);
+    }
+}
@@ -1,8 +1,8 @@
 import java.rmi.ConnectException;
 import java.rmi.RemoteException;
-import java.rmi.registry.LocateRegistry;
-import java.rmi.registry.Registry;
 import java.util.ArrayList;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
 import java.util.Scanner;
 import java.text.SimpleDateFormat;
 import java.util.Date;
@@ -12,6 +12,7 @@ import java.util.Date;
 public class RMIClient {
 
     private static ArrayList<RMIInterface> stubsList = new ArrayList<>();
+    private static ArrayList<Membership.Member> membersList = new ArrayList<>();
 
     /**
      * The main method that starts the client.
@@ -19,20 +20,35 @@ public class RMIClient {
      * @param args Command line arguments, expects a single argument: the port number.
      */
     public static void main(String[] args) {
+        // -Dpaxos.client.mode=load：跳过试跑和交互命令，按配置压测并输出延迟分布
+        if ("load".equals(System.getProperty("paxos.client.mode", "interactive"))) {
+            LoadGenerator.main(args);
+            return;
+        }
 
-        int port = 2000;
+        int port = ShardMap.BASE_PORT;
+        Transport transport = Transport.fromConfig();
+        ShardMap shardMap = ShardMap.fromConfig();
+        // -Dpaxos.cluster.file：副本各自一个进程，按集群文件里的地址连接
+        Membership membership = Membership.fromConfig();
+        if (membership != null) {
+            shardMap = new ShardMap(1);
+            membersList.addAll(membership.members());
+        } else {
+            for (int shard = 0; shard < shardMap.count(); shard++) {
+                membersList.addAll(Membership.inProcess(shardMap, shard).members());
+            }
+        }
 
-        for (int i = 0; i < 5; i++) {
+        // 连上所有分片的副本；前五次试跑用的是分片 0 的五个副本，键会被转给所属的分片
+        for (Membership.Member member : membersList) {
             RMIInterface stub = null;
+            port = member.port;
             try {
-                // Get the registry
-                Registry registry = LocateRegistry.getRegistry("localhost", port);
-
-                // Lookup the remote object
-                stub = (RMIInterface) registry.lookup("RMIDictionary" + i);
+                // Lookup the remote object through the configured transport
+                stub = transport.connect(member.host, port, shardMap.nameOf(port));
 
                 stubsList.add(stub);
-                port++;
 
             } catch (ConnectException e) {
                 System.out.println("RMIClient error: Connection exception -- Could not connect to the registry on port " +
@@ -52,7 +68,7 @@ public class RMIClient {
             int stubIndex = (i - 1) % stubsList.size(); // 计算当前使用的 stub 索引
             RMIInterface stub = stubsList.get(stubIndex); // 获取当前使用的 stub
             try {
-                System.out.println(stub.put("" + i*1000, "" + i*-20));
+                System.out.println(Messages.describe(stub.put("" + i*1000, "" + i*-20)));
             } catch (RemoteException e) {
                 System.out.println("RMIClient error: tryFive unsuccessful for stub on port " + (port + stubIndex) + " (Test " + i + ")");
             }
@@ -61,7 +77,7 @@ public class RMIClient {
             int stubIndex = (i - 1) % stubsList.size(); // 计算当前使用的 stub 索引
             RMIInterface stub = stubsList.get(stubIndex); // 获取当前使用的 stub
             try {
-                System.out.println(stub.get("" + i*1000));
+                System.out.println(Messages.describe(stub.get("" + i*1000)));
             } catch (RemoteException e) {
                 System.out.println("RMIClient error: tryFive unsuccessful for stub on port " + (port + stubIndex) + " (Test " + i + ")");
             }
@@ -70,18 +86,19 @@ public class RMIClient {
             int stubIndex = (i - 1) % stubsList.size(); // 计算当前使用的 stub 索引
             RMIInterface stub = stubsList.get(stubIndex); // 获取当前使用的 stub
             try {
-                System.out.println(stub.delete("" + i*1000));
+                System.out.println(Messages.describe(stub.delete("" + i*1000)));
             } catch (RemoteException e) {
                 System.out.println("RMIClient error: tryFive unsuccessful for stub on port " + (port + stubIndex) + " (Test " + i + ")");
             }
         }
         System.out.println("Five try over.");
 
+        // 交互命令走异步客户端：按键找到分片，写请求发给该分片的 leader，读请求发给负载最低的副本
+        AsyncClient asyncClient = new AsyncClient(stubsList, membersList, shardMap, Integer.getInteger("paxos.client.inflight", 64));
+
         boolean stop = false;
         Scanner scanner = new Scanner(System.in);
-        int requestNum = 0;
         while (!stop) {
-            requestNum = requestNum%5;
             System.out.print("Please enter your command (enter stop to stop): ");
             String input = scanner.nextLine().trim();
             if (input.equals("stop")) {
@@ -93,13 +110,17 @@ public class RMIClient {
                 continue;
             } else {
                 try {
-                    int currentAskingPort = requestNum+port;
                     System.out.println("RMIClient: Processed command -- " + String.join(" ", result));
-                    String response = callRemoteMethod(stubsList.get(requestNum), result);
                     SimpleDateFormat sdf = new SimpleDateFormat("yyyy-MM-dd HH:mm:ss.SSS");
-                    System.out.println("RMIClient send request current time to port "+currentAskingPort+": " + sdf.format(new Date(System.currentTimeMillis())));
-                    System.out.println(response);
-                    requestNum++;
+                    System.out.println("RMIClient send request current time: " + sdf.format(new Date(System.currentTimeMillis())));
+                    if (result[0].equals("SCAN")) {
+                        printScan(stubsList.get(0), result.length > 1 ? result[1] : "");
+                    } else if (result[0].equals("JOIN") || result[0].equals("LEAVE")) {
+                        // 成员变更由收到的副本转给 leader
+                        System.out.println(callRemoteMethod(stubsList.get(0), result));
+                    } else {
+                        System.out.println(callAsyncMethod(asyncClient, result).join());
+                    }
                 }catch (Exception ex) {
                     System.err.println("RMIClient error: An error occurred while callRemoteMethod: " + ex.getMessage());
                 }
@@ -107,6 +128,7 @@ public class RMIClient {
             }
         }
         scanner.close();
+        asyncClient.close();
     }
 
     /**
@@ -119,13 +141,13 @@ public class RMIClient {
         try {
             System.out.println("RMIClient: First five try start.");
             for (int i = 1; i <= 5; i++) {
-                System.out.println(stub.put("" + i*1000, "" + i*-20));
+                System.out.println(Messages.describe(stub.put("" + i*1000, "" + i*-20)));
             }
             for (int i = 1; i <= 5; i++) {
-                System.out.println(stub.put("" + i*1000, "" + i*-20));
+                System.out.println(Messages.describe(stub.put("" + i*1000, "" + i*-20)));
             }
             for (int i = 1; i <= 5; i++) {
-                System.out.println(stub.put("" + i*1000, "" + i*-20));
+                System.out.println(Messages.describe(stub.put("" + i*1000, "" + i*-20)));
             }
             System.out.println("RMIClient: First five try end.");
         } catch (RemoteException e) {
@@ -139,7 +161,8 @@ public class RMIClient {
      * @return An array of command components, or null if the command is invalid.
      */
     public static String[] processCommand(String command) {
-        String[] parts = command.split("\\s+"); // 使用空白字符分割命令
+        // 使用空白字符分割命令；PUT 的值是剩下的整段，可以包含空格
+        String[] parts = command.split("\\s+", 3);
 
         if (parts.length == 0) {
             System.out.println("RMIClient error: The input is not standardized and the command cannot be empty.");
@@ -162,6 +185,26 @@ public class RMIClient {
                     return null;
                 }
                 break;
+            case "SCAN":
+                // SCAN 不带参数列出全部键，带一个参数按前缀列出
+                if (parts.length > 2) {
+                    System.out.println("RMIClient error: The input is not standardized，SCAN takes at most one prefix.");
+                    return null;
+                }
+                break;
+            case "JOIN":
+                // JOIN <id> <host:port> 把一个副本加入集群，LEAVE <id> 把它移出
+                if (parts.length != 3 || !parts[1].matches("\\d+")) {
+                    System.out.println("RMIClient error: The input is not standardized，JOIN needs a member ID and host:port.");
+                    return null;
+                }
+                break;
+            case "LEAVE":
+                if (parts.length != 2 || !parts[1].matches("\\d+")) {
+                    System.out.println("RMIClient error: The input is not standardized，LEAVE needs a member ID.");
+                    return null;
+                }
+                break;
             default:
                 System.out.println("RMIClient error: The input is not standardized with " + action);
                 return null;
@@ -185,11 +228,15 @@ public class RMIClient {
             String action = commandParts[0];
             switch (action) {
                 case "PUT":
-                    return stub.put(commandParts[1], commandParts[2]);
+                    return Messages.describe(stub.put(commandParts[1], commandParts[2]));
                 case "GET":
-                    return stub.get(commandParts[1]);
+                    return Messages.describe(stub.get(commandParts[1]));
                 case "DELETE":
-                    return stub.delete(commandParts[1]);
+                    return Messages.describe(stub.delete(commandParts[1]));
+                case "JOIN":
+                    return Messages.describe(stub.addMember(Integer.parseInt(commandParts[1]), commandParts[2]));
+                case "LEAVE":
+                    return Messages.describe(stub.removeMember(Integer.parseInt(commandParts[1])));
                 default:
                     return "Unrecognized command: " + action;
             }
@@ -199,5 +246,47 @@ public class RMIClient {
         }
     }
 
+    /**
+     * Prints the entries whose keys start with a prefix, in key order, fetching them a page at a time.
+     *
+     * @param stub Any replica.
+     * @param prefix The prefix; empty for every key.
+     */
+    public static void printScan(RMIInterface stub, String prefix) {
+        ScanCursor cursor = ScanCursor.prefix(stub, prefix, Integer.getInteger("paxos.scan.pageSize", 1000));
+        long count = 0;
+        while (cursor.hasNext()) {
+            Map.Entry<String, String> entry = cursor.next();
+            System.out.println(entry.getKey() + " = " + entry.getValue());
+            count++;
+        }
+        System.out.println("RMIClient: " + count + " keys.");
+    }
 
+    /**
+     * Sends a command through the asynchronous client without blocking.
+     *
+     * @param client The asynchronous client.
+     * @param commandParts The parts of the command to execute.
+     * @return A future completed with the readable result of the command.
+     */
+    public static CompletableFuture<String> callAsyncMethod(AsyncClient client, String[] commandParts) {
+        CompletableFuture<byte[]> response;
+        switch (commandParts[0]) {
+            case "PUT":
+                response = client.put(commandParts[1], commandParts[2]);
+                break;
+            case "GET":
+                response = client.get(commandParts[1]);
+                break;
+            case "DELETE":
+                response = client.delete(commandParts[1]);
+                break;
+            default:
+                return CompletableFuture.completedFuture("Unrecognized command: " + commandParts[0]);
+        }
+        return response.handle((bytes, error) -> error != null
+                ? "Remote exception occurred: " + error.getMessage()
+                : Messages.describe(bytes));
+    }
 }
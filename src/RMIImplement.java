@@ -1,91 +1,624 @@
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Paths;
 import java.rmi.RemoteException;
 import java.rmi.server.UnicastRemoteObject;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
 import java.util.concurrent.ConcurrentHashMap;
-import java.text.SimpleDateFormat;
-import java.util.Date;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
 import java.util.concurrent.locks.Lock;
 import java.util.concurrent.locks.ReentrantLock;
 
 /**
  * RMIImplement is the implementation of the RMIInterface for a dictionary service.
  */
-public class RMIImplement extends UnicastRemoteObject implements RMIInterface {
+// 对象只导出不序列化：RMI 传给客户端的是 stub，所以字段不用可序列化，也不需要 serialVersionUID
+@SuppressWarnings("serial")
+public final class RMIImplement extends UnicastRemoteObject implements RMIInterface {
 
-    private ConcurrentHashMap<String, String> dictionary;
+    private volatile OrderedStore dictionary;
+    // acrossShards 里表示读请求的 op
+    private static final byte READ = 0;
+    // 字典的 Merkle 摘要，心跳只比较摘要，只传输不一致的桶
+    private final MerkleTree merkle = new MerkleTree(Integer.getInteger("paxos.merkle.depth", 12));
 
     @Override
     public void updateDictionary(Map<String, String> commonDictionary) throws RemoteException {
         // 更新本地字典
+        replaceDictionary(commonDictionary);
+        EventJournal.emit(EventJournal.Event.DICTIONARY_UPDATED);
+    }
+
+    @Override
+    public long[] merkleDigests(int[] nodes) {
+        return merkle.digests(nodes);
+    }
+
+    @Override
+    public void repairBuckets(int[] buckets, Map<String, String> entries) throws RemoteException {
+        java.util.BitSet repaired = new java.util.BitSet(merkle.leafCount());
+        for (int bucket : buckets) {
+            repaired.set(bucket);
+        }
+        // 只替换这几个桶里的键，其他键不动
+        dictionary.forEach((key, value) -> {
+            if (repaired.get(merkle.bucketOf(key)) && !entries.containsKey(key) && dictionary.remove(key, value)) {
+                merkle.removed(key, value);
+            }
+        });
+        for (Map.Entry<String, String> entry : entries.entrySet()) {
+            String old = dictionary.put(entry.getKey(), entry.getValue());
+            if (old != null) {
+                merkle.removed(entry.getKey(), old);
+            }
+            merkle.added(entry.getKey(), entry.getValue());
+        }
+        EventJournal.emit(EventJournal.Event.BUCKETS_REPAIRED, port, buckets.length);
+    }
+
+    private void replaceDictionary(Map<String, String> entries) {
         dictionary.clear();
-        dictionary.putAll(commonDictionary);
-        System.out.println("Dictionary has been updated.");
+        merkle.clear();
+        dictionary.putAll(entries);
+        for (Map.Entry<String, String> entry : entries.entrySet()) {
+            merkle.added(entry.getKey(), entry.getValue());
+        }
     }
     public ConcurrentHashMap<String, String> getDictionary() {
-        return dictionary;
+        return dictionary.toMap();
     }
-    private ConcurrentHashMap<String, ReentrantLock> locks;
+    // 两阶段接口（prepareToOperation 到 finallyGotCommitSoReallyUpdate）持有的锁：固定数量的条带，
+    // 键按哈希映射到条带，内存不随历史上出现过的键增长。提交路径不加锁，靠 putIfAbsent/remove 的原子性
+    private final ReentrantLock[] lockStripes;
+    private final Backoff lockBackoff = Backoff.fromConfig();
     private RMIServer server;
     private int port;
 
-    private int promiseNumber;
-    private String currentAccepting;
+    // acceptor 状态：一个全局的承诺提案号，外加每个槽位各自接受过的值。
+    // 用 ReentrantLock 保护：NIO 的请求跑在虚拟线程上，monitor 里写 WAL 换段会钉住载体线程
+    private final ReentrantLock acceptorLock = new ReentrantLock();
+    private long promiseNumber;
+    private final ConcurrentSkipListMap<Long, AcceptedSlot> acceptedSlots = new ConcurrentSkipListMap<>();
+    private final ReplicatedLog log;
+    // 最近选定的值：集群部署时每个进程有自己的 learner，promise 要把 proposer 还没学到的选定值报给它，
+    // 否则它会在已经选定的槽位上提出别的值。从 retainedFrom 起提交过的值都在，更早的只能靠快照追上
+    private final int retainSlots;
+    private final ConcurrentSkipListMap<Long, byte[]> chosenSlots = new ConcurrentSkipListMap<>();
+    private volatile long retainedFrom;
+    // 授予 leader 的租约：租约期间拒绝其他提案号的 prepare
+    private long leaseBallot;
+    private long leaseExpiryNanos;
+
+    // 持久化：-Dpaxos.data.dir 设置时，acceptor 状态写 WAL，字典定期做快照
+    private final WriteAheadLog wal;
+    private final long snapshotEvery = Long.getLong("paxos.snapshot.every", 10000L);
+    // 最近一次开始拍的快照，决定下一次什么时候拍；lastSnapshotSlot 是最近一次已经落盘的快照
+    private long snapshotStartedSlot;
+    private volatile long lastSnapshotSlot;
+    // 超过阈值的大值：提案之前分块传到这里，日志里只有引用，应用槽位时按摘要取出
+    private final BlobStore blobs;
+    private boolean recovering;
+
+    // 追赶：新副本暂停应用日志，learner 分块发来的快照先装进 staging，装完再换上并接着应用
+    private final ReentrantLock catchUpLock = new ReentrantLock();
+    private volatile boolean catchingUp;
+    private long catchUpSlot = -1;
+    private KeyValueStore catchUpStaging;
+    // 准入控制：同时处理的客户端请求有上限，超出的立即回 BUSY，而不是排队拖慢已经接下的请求
+    private final AdmissionController admission = AdmissionController.fromConfig();
+    // 扫描：每页的条目数上限，以及页里键和值的总字符数上限
+    private final int scanPageSize = Math.max(1, Integer.getInteger("paxos.scan.pageSize", 1000));
+    private static final int SCAN_PAGE_CHARS = 1 << 20;
+    private static final ExecutorService snapshotWriter = Executors.newSingleThreadExecutor(r -> {
+        Thread t = new Thread(r, "snapshot-writer");
+        t.setDaemon(true);
+        return t;
+    });
+
+    /**
+     * The value an acceptor accepted for one slot, and the ballot it was accepted under.
+     */
+    private static final class AcceptedSlot {
+        final long ballot;
+        final byte[] value;
+
+        AcceptedSlot(long ballot, byte[] value) {
+            this.ballot = ballot;
+            this.value = value;
+        }
+    }
+
     /**
      * Constructor for RMIImplement.
      *
      * @throws RemoteException If a remote method call fails.
      */
     public RMIImplement(RMIServer server, int port) throws RemoteException {
+        this(server, port, 0);
+    }
+
+    /**
+     * Constructor for RMIImplement that starts applying the replicated log at a given slot,
+     * used when a replica is replaced after the group has already committed some slots.
+     * If {@code paxos.data.dir} is set, the replica first recovers from its latest snapshot
+     * and the write-ahead log written since then.
+     *
+     * @param server The server coordinating the replicas.
+     * @param port The port this replica is registered on.
+     * @param firstSlot The first log slot this replica will apply.
+     * @throws RemoteException If a remote method call fails.
+     */
+    public RMIImplement(RMIServer server, int port, long firstSlot) throws RemoteException {
         super();
-        dictionary = new ConcurrentHashMap<>();
-        locks = new ConcurrentHashMap<>();
+        dictionary = new OrderedStore(KeyValueStore.fromConfig());
+        lockStripes = new ReentrantLock[Integer.highestOneBit(Math.max(1, Integer.getInteger("paxos.lock.stripes", 1024)))];
+        for (int i = 0; i < lockStripes.length; i++) {
+            lockStripes[i] = new ReentrantLock();
+        }
         this.server = server;
         this.port = port;
+        this.retainSlots = Integer.getInteger("paxos.cluster.retainSlots", server.isClustered() ? 4096 : 0);
+
+        String dataDir = System.getProperty("paxos.data.dir");
+        WriteAheadLog.Snapshot snapshot = null;
+        try {
+            this.wal = dataDir == null ? null : new WriteAheadLog(Paths.get(dataDir, "replica-" + port));
+            this.blobs = new BlobStore(dataDir == null ? null : Paths.get(dataDir, "blobs-" + port));
+            if (wal != null) {
+                snapshot = wal.loadSnapshot();
+            }
+        } catch (IOException e) {
+            throw new RemoteException("Cannot open the write-ahead log for port " + port, e);
+        }
+
+        long startSlot = firstSlot;
+        if (snapshot != null) {
+            // 快照读出来的就是配置的存储引擎，直接接管，不再复制一遍
+            dictionary = new OrderedStore(snapshot.dictionary);
+            dictionary.forEach(merkle::added);
+            promiseNumber = snapshot.promiseNumber;
+            for (Map.Entry<Long, byte[]> entry : snapshot.acceptedValues.entrySet()) {
+                acceptedSlots.put(entry.getKey(), new AcceptedSlot(snapshot.acceptedBallots.get(entry.getKey()), entry.getValue()));
+            }
+            startSlot = Math.max(firstSlot, snapshot.lastAppliedSlot + 1);
+            lastSnapshotSlot = snapshot.lastAppliedSlot;
+            snapshotStartedSlot = snapshot.lastAppliedSlot;
+        }
+        this.log = new ReplicatedLog(startSlot, this::applyCommitted);
+        this.retainedFrom = startSlot;
+        if (wal != null) {
+            recoverFromLogTail(snapshot);
+        }
+    }
+
+    // 只重放上一次快照之后的日志，恢复时间和日志尾部长度成正比
+    private void recoverFromLogTail(WriteAheadLog.Snapshot snapshot) throws RemoteException {
+        recovering = true;
+        try {
+            if (snapshot != null) {
+                // 快照时已经选定、还在等前面空洞的槽位，它们的记录已经随旧段删掉了
+                for (Map.Entry<Long, byte[]> entry : snapshot.committedValues.entrySet()) {
+                    prefetchBlobs(entry.getKey(), entry.getValue());
+                    log.commit(entry.getKey(), entry.getValue());
+                    retainChosen(entry.getKey(), entry.getValue());
+                }
+            }
+            wal.replay(new WriteAheadLog.Replayer() {
+                @Override
+                public void promise(long ballot) {
+                    promiseNumber = Math.max(promiseNumber, ballot);
+                }
+
+                @Override
+                public void accept(long ballot, long slot, byte[] value) {
+                    promiseNumber = Math.max(promiseNumber, ballot);
+                    if (!log.isCommitted(slot)) {
+                        acceptedSlots.put(slot, new AcceptedSlot(ballot, value));
+                    }
+                }
+
+                @Override
+                public void commit(long slot, byte[] value) {
+                    prefetchBlobs(slot, value);
+                    log.commit(slot, value);
+                    acceptedSlots.remove(slot);
+                    retainChosen(slot, value);
+                }
+            });
+        } catch (IOException e) {
+            throw new RemoteException("Cannot replay the write-ahead log for port " + port, e);
+        } finally {
+            recovering = false;
+        }
+        if (log.nextToApply() > 0) {
+            EventJournal.emit(EventJournal.Event.REPLICA_RECOVERED, port, log.nextToApply() - 1);
+        }
     }
 
     public String requestAPrepare() throws RemoteException {
         return server.prepare();
     }
 
-    public String promise(int proposalNum){
-        if (proposalNum<=promiseNumber){
-            return "false";
+    public byte[] promise(long proposalNum, long fromSlot){
+        long startNanos = System.nanoTime();
+        try {
+            Messages.Promise response;
+            long walPosition = -1;
+            acceptorLock.lock();
+            try {
+                if (proposalNum<=promiseNumber){
+                    // 带上已经承诺的提案号，proposer 下一次可以直接跳过去
+                    Metrics.PROMISES_REFUSED.increment();
+                    return Messages.ack(false, promiseNumber);
+                }
+                if (proposalNum != leaseBallot && System.nanoTime() < leaseExpiryNanos) {
+                    // leader 的租约还没过期，不能承诺新的提案号，否则 leader 的本地读就不再线性一致
+                    Metrics.PROMISES_REFUSED.increment();
+                    return Messages.ack(false, promiseNumber);
+                }
+                this.promiseNumber = proposalNum;
+                if (wal != null) {
+                    walPosition = wal.logPromise(proposalNum);
+                }
+                // 把接受过但还没看到提交的槽位都报给 proposer，新的 proposer 必须沿用这些值
+                Map<Long, byte[]> chosen = retainSlots > 0 ? chosenSlots.tailMap(fromSlot, true) : Collections.emptyMap();
+                int count = acceptedSlots.size() + chosen.size();
+                long[] slots = new long[count];
+                long[] ballots = new long[count];
+                byte[][] values = new byte[count][];
+                int i = 0;
+                for (Map.Entry<Long, AcceptedSlot> entry : acceptedSlots.entrySet()) {
+                    if (i == count) {
+                        break;
+                    }
+                    slots[i] = entry.getKey();
+                    ballots[i] = entry.getValue().ballot;
+                    values[i++] = entry.getValue().value;
+                }
+                // 已经选定的槽位也报上去，proposer 直接学，不会在上面提出别的值
+                for (Map.Entry<Long, byte[]> entry : chosen.entrySet()) {
+                    if (i == count) {
+                        break;
+                    }
+                    slots[i] = entry.getKey();
+                    ballots[i] = Messages.Promise.CHOSEN;
+                    values[i++] = entry.getValue();
+                }
+                boolean truncated = retainSlots > 0 && fromSlot < log.nextToApply() && fromSlot < retainedFrom;
+                response = new Messages.Promise(true, proposalNum, truncated, java.util.Arrays.copyOf(slots, i),
+                        java.util.Arrays.copyOf(ballots, i), java.util.Arrays.copyOf(values, i));
+            } finally {
+                acceptorLock.unlock();
+            }
+            // 承诺必须先落盘再回复
+            if (wal != null) {
+                wal.sync(walPosition);
+            }
+            return response.encode();
+        } finally {
+            Metrics.PROMISE.record(System.nanoTime() - startNanos);
         }
-        this.promiseNumber = proposalNum;
-        if (currentAccepting!=null) {
-            return "true " + proposalNum + " " + currentAccepting;
+    }
+
+    public byte[] accepted(long proposalNum, long slot, byte[] command) throws RemoteException {
+        long startNanos = System.nanoTime();
+        try {
+            // 一个提案值可能是 group commit 的一整批命令，也可能是补空洞的 noop（空批次）
+            if (!Messages.isValidBatch(command)) {
+                EventJournal.emit(EventJournal.Event.MALFORMED_VALUE, port, slot);
+                Metrics.ACCEPTS_REFUSED.increment();
+                return Messages.ack(false, promiseNumber);
+            }
+
+            long walPosition = -1;
+            acceptorLock.lock();
+            try {
+                if (proposalNum<promiseNumber){
+                    Metrics.ACCEPTS_REFUSED.increment();
+                    return Messages.ack(false, promiseNumber);
+                }
+                this.promiseNumber = proposalNum;
+                if (!log.isCommitted(slot)) {
+                    acceptedSlots.put(slot, new AcceptedSlot(proposalNum, command));
+                    if (wal != null) {
+                        walPosition = wal.logAccept(proposalNum, slot, command);
+                    }
+                }
+            } finally {
+                acceptorLock.unlock();
+            }
+            // 接受的值必须先落盘再回复 done；group 策略下并发的 accept 共用一次 fsync
+            if (walPosition >= 0) {
+                wal.sync(walPosition);
+            }
+            // 接受不等于选定：字典要等到 commit 之后按槽位顺序更新
+            return Messages.ack(true, proposalNum);
+        } finally {
+            Metrics.ACCEPTED.record(System.nanoTime() - startNanos);
         }
-        return "true " + proposalNum;
     }
 
-    public String accepted(int proposalNum, String command) throws RemoteException {
-        if (proposalNum<promiseNumber){
-            return "This sever in port "+port+" already promised to a higher proposal number "+promiseNumber;
+    public void commit(long slot, byte[] command) throws RemoteException {
+        prefetchBlobs(slot, command);
+        // 先交给日志再写提交记录：写进旧段的提交记录，拍快照时一定已经应用了或者在日志里等着，会被快照带上
+        if (log.commit(slot, command) && wal != null) {
+            wal.logCommit(slot, command);
         }
+        acceptedSlots.remove(slot);
+        retainChosen(slot, command);
+        // 集群部署时本进程的 learner 从本地副本学到别的进程选定的值
+        server.learnCommitted(this, slot, command);
+    }
 
-        String[] parts = command.split(" ");  // Split the command based on spaces
-        if (parts.length != 3) {  // Ensure that the command has exactly three parts
-            return proposalNum+"Invalid command format. Expected format: 'key value operation'";
+    // 保留最近 retainSlots 个槽位的选定值，更早的丢掉并抬高 retainedFrom
+    private void retainChosen(long slot, byte[] value) {
+        if (retainSlots <= 0) {
+            return;
         }
+        chosenSlots.put(slot, value);
+        long floor = slot - retainSlots;
+        if (floor > retainedFrom) {
+            synchronized (chosenSlots) {
+                if (floor > retainedFrom) {
+                    chosenSlots.headMap(floor).clear();
+                    retainedFrom = floor;
+                }
+            }
+        }
+    }
 
-        this.currentAccepting = command;
+    // 装了快照之后，快照覆盖的槽位不再保留，只能让落后的 proposer 也从快照追上
+    private void discardChosenThrough(long slot) {
+        synchronized (chosenSlots) {
+            chosenSlots.headMap(slot, true).clear();
+            retainedFrom = Math.max(retainedFrom, slot + 1);
+        }
+    }
 
-        String key = parts[0];
-        String value = parts[1];
-        String operation = parts[2];
-        if (!prepareToOperation(key,value,operation)){
-            return proposalNum+"This sever in port "+port+" does not allow such operation";
+    @Override
+    public byte[] grantLease(long ballot) {
+        acceptorLock.lock();
+        try {
+            if (ballot < promiseNumber) {
+                return Messages.ack(false, promiseNumber);
+            }
+            this.promiseNumber = ballot;
+            this.leaseBallot = ballot;
+            this.leaseExpiryNanos = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(server.leaseMillis());
+            return Messages.ack(true, ballot);
+        } finally {
+            acceptorLock.unlock();
         }
+    }
 
-        finallyGotCommitSoReallyUpdate(key,value,operation);
-        this.currentAccepting = null;
+    @Override
+    public int leaderId() {
+        return server.leaderId();
+    }
+
+    @Override
+    public long lastAppliedSlot() {
+        return log.nextToApply() - 1;
+    }
+
+    @Override
+    public void installSnapshot(long lastAppliedSlot, Map<String, String> commonDictionary) throws RemoteException {
+        log.skipTo(lastAppliedSlot + 1, () -> {
+            replaceDictionary(commonDictionary);
+            acceptedSlots.headMap(lastAppliedSlot, true).clear();
+            discardChosenThrough(lastAppliedSlot);
+            if (wal != null) {
+                takeSnapshot(lastAppliedSlot);
+            }
+        });
+        EventJournal.emit(EventJournal.Event.SNAPSHOT_INSTALLED, port, lastAppliedSlot);
+    }
+
+    @Override
+    public void beginCatchUp(long snapshotSlot) {
+        catchUpLock.lock();
+        try {
+            catchingUp = true;
+            log.hold();
+            catchUpSlot = snapshotSlot;
+            catchUpStaging = KeyValueStore.fromConfig();
+        } finally {
+            catchUpLock.unlock();
+        }
+        EventJournal.emit(EventJournal.Event.CATCH_UP_BEGUN, port, snapshotSlot);
+    }
+
+    @Override
+    public void catchUpChunk(long snapshotSlot, Map<String, String> entries) throws RemoteException {
+        catchUpLock.lock();
+        try {
+            checkCatchUpSlot(snapshotSlot);
+            catchUpStaging.putAll(entries);
+        } finally {
+            catchUpLock.unlock();
+        }
+    }
+
+    @Override
+    public void finishCatchUp(long snapshotSlot) throws RemoteException {
+        catchUpLock.lock();
+        try {
+            checkCatchUpSlot(snapshotSlot);
+            KeyValueStore staged = catchUpStaging;
+            KeyValueStore[] learnerCopy = new KeyValueStore[1];
+            log.skipTo(snapshotSlot + 1, () -> {
+                dictionary = new OrderedStore(staged);
+                merkle.clear();
+                staged.forEach(merkle::added);
+                acceptedSlots.headMap(snapshotSlot, true).clear();
+                discardChosenThrough(snapshotSlot);
+                if (server.isClustered()) {
+                    // 后面攒着的槽位马上就要应用到 staged 上，learner 要的是快照那一刻的状态
+                    learnerCopy[0] = staged.copy();
+                }
+                if (wal != null) {
+                    takeSnapshot(snapshotSlot);
+                }
+            });
+            catchUpStaging = null;
+            catchUpSlot = -1;
+            catchingUp = false;
+            if (learnerCopy[0] != null) {
+                server.replicaCaughtUp(this, snapshotSlot, learnerCopy[0]);
+            }
+        } finally {
+            catchUpLock.unlock();
+        }
+        EventJournal.emit(EventJournal.Event.CAUGHT_UP, port, lastAppliedSlot());
+    }
+
+    private void checkCatchUpSlot(long snapshotSlot) throws RemoteException {
+        if (catchUpStaging == null || catchUpSlot != snapshotSlot) {
+            throw new RemoteException("Port " + port + " is not catching up from slot " + snapshotSlot);
+        }
+    }
+
+    /**
+     * Puts this replica on hold before it is registered, so that nothing is applied to its empty
+     * dictionary until a catch-up installs the group's state.
+     */
+    void holdForCatchUp() {
+        catchingUp = true;
+        log.hold();
+    }
+
+    // 先换段，再在日志锁里拍下状态，最后在后台写快照并删掉被覆盖的旧段。
+    // 只在应用槽位的路径上调用：拍下的已提交未应用的槽位和字典是同一时刻的
+    private void takeSnapshot(long slot) {
+        int firstLiveSegment = wal.rollSegment();
+        long promised;
+        Map<Long, Long> acceptedBallots = new HashMap<>();
+        Map<Long, byte[]> acceptedValues = new HashMap<>();
+        acceptorLock.lock();
+        try {
+            promised = promiseNumber;
+            for (Map.Entry<Long, AcceptedSlot> entry : acceptedSlots.entrySet()) {
+                acceptedBallots.put(entry.getKey(), entry.getValue().ballot);
+                acceptedValues.put(entry.getKey(), entry.getValue().value);
+            }
+        } finally {
+            acceptorLock.unlock();
+        }
+        WriteAheadLog.Snapshot snapshot = new WriteAheadLog.Snapshot(slot, promised, acceptedBallots, acceptedValues,
+                log.pendingCommits(), dictionary.copy());
+        snapshotStartedSlot = slot;
+        snapshotWriter.execute(() -> {
+            try {
+                wal.writeSnapshot(snapshot, firstLiveSegment);
+                // 落盘之后才算数：大值要一直留到有快照覆盖它的槽位
+                lastSnapshotSlot = Math.max(lastSnapshotSlot, slot);
+            } catch (IOException e) {
+                EventJournal.emit(EventJournal.Event.SNAPSHOT_WRITE_FAILED, port, slot, e);
+            }
+        });
+    }
+
+    // 槽位按顺序提交后真正修改字典；提案值作为一个整体被选定，里面单条冲突的命令跳过
+    private boolean[] applyCommitted(long slot, byte[] value) {
+        Messages.Command[] commands = Messages.decodeBatch(value);
+        boolean[] applied = new boolean[commands.length];
+        for (int i = 0; i < commands.length; i++) {
+            Messages.Command command = commands[i];
+            // 条件更新本身是原子的；摘要按实际插入/删除的值做异或，和其他更新的先后无关
+            if (command.op == Messages.PUT) {
+                applied[i] = dictionary.putIfAbsent(command.key, command.value) == null;
+                if (applied[i]) {
+                    merkle.added(command.key, command.value);
+                }
+            } else if (command.op == Messages.PUT_BLOB) {
+                String resolved = resolveBlob(slot, command);
+                applied[i] = resolved != null && dictionary.putIfAbsent(command.key, resolved) == null;
+                if (applied[i]) {
+                    merkle.added(command.key, resolved);
+                }
+            } else if (command.op == Messages.CONFIG) {
+                // 成员变更只改变 learner 的副本列表，字典不动
+                applied[i] = true;
+            } else {
+                String old = dictionary.remove(command.key);
+                applied[i] = old != null;
+                if (applied[i]) {
+                    merkle.removed(command.key, old);
+                }
+            }
+        }
+        if (wal != null && !recovering && slot - snapshotStartedSlot >= snapshotEvery) {
+            takeSnapshot(slot);
+        }
+        blobs.release(slot, wal != null ? lastSnapshotSlot : Long.MAX_VALUE);
+        return applied;
+    }
+
+    // 大值一般在提案之前已经传过来了；没有的话在交给日志之前向其他副本要。
+    // 应用在日志锁里进行，不能在那里走网络
+    private void prefetchBlobs(long slot, byte[] value) {
+        if (log.isCommitted(slot)) {
+            return;
+        }
+        for (Messages.BlobRef ref : Messages.blobRefs(value)) {
+            if (blobs.contains(ref.digest)) {
+                continue;
+            }
+            byte[] content = server.fetchBlob(ref, this);
+            if (content == null) {
+                // 应用时报告缺失，留给反熵修复
+                continue;
+            }
+            try {
+                blobs.put(ref.digest, content);
+            } catch (UncheckedIOException e) {
+                // 存不下只影响以后重放和别的副本来取，这一次放在内存里照样应用
+                EventJournal.emit(EventJournal.Event.BLOB_REFUSED, port, e);
+                blobs.hold(ref.digest, content);
+            }
+        }
+    }
+
+    // 只读本地：提交之前已经取过了，都没有就留给反熵修复
+    private String resolveBlob(long slot, Messages.Command command) {
+        Messages.BlobRef ref = Messages.BlobRef.decode(command.value);
+        byte[] content = blobs.get(ref.digest);
+        if (content == null) {
+            EventJournal.emit(EventJournal.Event.REPLICA_BLOB_MISSING, port, slot, ref.digest);
+            return null;
+        }
+        blobs.used(ref.digest, slot);
+        return new String(content, StandardCharsets.UTF_8);
+    }
+
+    @Override
+    public long storeBlobChunk(String digest, long size, long offset, byte[] chunk) {
+        try {
+            return blobs.store(digest, size, offset, chunk);
+        } catch (IllegalArgumentException | UncheckedIOException e) {
+            EventJournal.emit(EventJournal.Event.BLOB_REFUSED, port, e.getMessage());
+            return -1;
+        }
+    }
 
-        return proposalNum+" done";
+    @Override
+    public byte[] fetchBlobChunk(String digest, long offset, int length) {
+        byte[] chunk = blobs.read(digest, offset, length);
+        return chunk != null ? chunk : new byte[0];
     }
 
     /**
      * Prepares the server for an operation (PUT or DELETE) by acquiring a lock and checking for conflicts.
+     * If the key's lock is held the attempt is retried a few times after a randomized backoff.
      *
      * @param key The key to be put or deleted.
      * @param value The value to be associated with the key (ignored for DELETE operation).
@@ -95,23 +628,21 @@ public class RMIImplement extends UnicastRemoteObject implements RMIInterface {
      * @throws RemoteException if a remote communication error occurs.
      */
     public boolean prepareToOperation(String key, String value, String operation) throws RemoteException {
-        ReentrantLock lock = locks.computeIfAbsent(key, k -> new ReentrantLock());
-        if (lock.tryLock()) {
-            // 检查是否存在冲突的更新
-            if ("put".equals(operation) && dictionary.containsKey(key)) {
-                System.out.println("port "+port+" already has the key, refuse to put.");
-                lock.unlock();
-                return false;
-            } else if ("delete".equals(operation) && !dictionary.containsKey(key)) {
-                System.out.println("port "+port+" has no such key, refuse to delete.");
-                lock.unlock();
+        ReentrantLock lock = lockFor(key);
+        // 锁被占用时随机退避几次再试，而不是立刻拒绝
+        for (int attempt = 0; !lock.tryLock(); attempt++) {
+            if (!lockBackoff.pause(attempt)) {
+                Metrics.LOCK_FAILURES.increment();
+                EventJournal.emit(EventJournal.Event.LOCK_BUSY, port, operation);
                 return false;
             }
-            return true;
-        } else {
-            System.out.println("port "+port+" because of some reason, maybe lock, can't "+operation+".");
+        }
+        // 检查是否存在冲突的更新
+        if (conflicts(key, operation)) {
+            lock.unlock();
             return false;
         }
+        return true;
     }
     /**
      * Commits an update to the dictionary by performing the actual PUT or DELETE operation,
@@ -123,115 +654,559 @@ public class RMIImplement extends UnicastRemoteObject implements RMIInterface {
      * @throws RemoteException if a remote communication error occurs.
      */
     public void finallyGotCommitSoReallyUpdate(String key, String value, String operation) throws RemoteException {
-        ReentrantLock lock = locks.get(key);
-        if (lock != null && lock.isHeldByCurrentThread()) {
+        ReentrantLock lock = lockFor(key);
+        if (lock.isHeldByCurrentThread()) {
             try {
                 if ("put".equals(operation)) {
-                    dictionary.put(key, value);
+                    String old = dictionary.put(key, value);
+                    if (old != null) {
+                        merkle.removed(key, old);
+                    }
+                    merkle.added(key, value);
                 } else if ("delete".equals(operation)) {
-                    dictionary.remove(key);
+                    String old = dictionary.remove(key);
+                    if (old != null) {
+                        merkle.removed(key, old);
+                    }
                 }
             } finally {
                 lock.unlock();
             }
         }
     }
+    // 条带按键的哈希选；哈希再打散一次，避免低位相同的键挤在同一个条带
+    private ReentrantLock lockFor(String key) {
+        int h = key.hashCode();
+        return lockStripes[(h ^ (h >>> 16)) & (lockStripes.length - 1)];
+    }
+
+    // PUT 要求键不存在，DELETE 要求键存在
+    private boolean conflicts(String key, String operation) {
+        if ("put".equals(operation) && dictionary.containsKey(key)) {
+            Metrics.CONFLICTS.increment();
+            EventJournal.emit(EventJournal.Event.PUT_REFUSED, port);
+            return true;
+        } else if ("delete".equals(operation) && !dictionary.containsKey(key)) {
+            Metrics.CONFLICTS.increment();
+            EventJournal.emit(EventJournal.Event.DELETE_REFUSED, port);
+            return true;
+        }
+        return false;
+    }
+
     /**
-     * Puts a key-value pair into the dictionary.
+     * Runs the same conflict check as {@link #prepareToOperation} without taking any lock. The check
+     * only saves a consensus round for a command that would fail anyway: the command is applied
+     * with an atomic {@code putIfAbsent}/{@code remove} once chosen, which decides between
+     * concurrent writes to the same key, so concurrent writers no longer refuse each other here.
      *
-     * @param key The key to be added or updated.
-     * @param value The value associated with the key.
-     * @return A success message if the operation is successful, or an error message if the key already exists.
-     * @throws RemoteException If a remote method call fails.
+     * @param key The key to be put or deleted.
+     * @param value The value to be associated with the key (ignored for DELETE operation).
+     * @param operation The type of operation ("put" or "delete").
+     * @return {@code true} if the operation can be proposed, {@code false} otherwise.
+     * @throws RemoteException if a remote communication error occurs.
      */
-    public String put(String key, String value) throws RemoteException {
-        SimpleDateFormat sdf = new SimpleDateFormat("yyyy-MM-dd HH:mm:ss.SSS");
-        String responseForClient = null;
-
+    private boolean checkBeforePropose(String key, String value, String operation) throws RemoteException {
+        return !conflicts(key, operation);
+    }
+    /**
+     * Runs the write path shared by every PUT and DELETE, single- or multi-key. Each key gets the
+     * replica's own conflict check first, and keys that fail it are answered with {@code CONFLICT}
+     * without being proposed. The remaining commands go through consensus as one value: in
+     * Multi-Paxos mode they are forwarded to the leader if another replica leads (this replica
+     * takes over if the leader cannot be reached), otherwise a prepare plus accept, shared with
+     * concurrent writes when group commit is on.
+     *
+     * @param op {@link Messages#PUT} or {@link Messages#DELETE}.
+     * @param keys The keys to write.
+     * @param values The value for each key (ignored for DELETE).
+     * @return One encoded response per key, in the same order.
+     */
+    private byte[][] writeAll(byte op, String[] keys, String[] values) {
+        String operation = op == Messages.PUT ? "put" : "delete";
+        byte[][] responses = new byte[keys.length][];
+        List<Messages.Command> proposed = new ArrayList<>(keys.length);
+        int[] positions = new int[keys.length];
         try {
             //先自行判断一遍
-            if (!prepareToOperation(key, value, "put")) {
-                return "RMIImplement on port " + port + " error: Not allowed by self-checking. Current time: " + sdf.format(new Date(System.currentTimeMillis()));
-            }
-            //第一步！！！！！！！！！！！！！先让总server做个prepare来回，如果总server提案号成功，则会返回一段话
-            else {
-                responseForClient = requestAPrepare();
-                if (responseForClient.equals("didn't got promise from majority.")){
-                    return "didn't got promise from majority.";
-                }
-                //第二步！！！！！！！！！！！！如果成功，进行第二步
-                else if (responseForClient.equals("got promise success from most acceptors")) {
-                    //如果返回的时候没有带specialMeassage，则直接使用自己从client那里拿到的参数作为指令
-                    responseForClient = server.accept(promiseNumber,key+" "+value+" put");
+            for (int i = 0; i < keys.length; i++) {
+                Messages.Command command = new Messages.Command(op, keys[i], values == null ? null : values[i]);
+                if (!checkBeforePropose(command.key, command.value, operation)) {
+                    responses[i] = Messages.response(Messages.CONFLICT, null);
                 } else {
-                    //如果带了specialMessage，则使用specialMessage作为指令
-                    String specialMessage = responseForClient.split(":")[1];
-                    responseForClient = server.accept(promiseNumber,specialMessage);
+                    positions[proposed.size()] = i;
+                    proposed.add(command);
                 }
-                return responseForClient + sdf.format(new Date(System.currentTimeMillis()));
             }
-
+            if (proposed.isEmpty()) {
+                return responses;
+            }
+            List<byte[]> results = null;
+            //Multi-Paxos 模式：交给 leader，稳态下跳过 prepare
+            RMIInterface leader = server.isMultiPaxos() ? server.currentLeader() : null;
+            if (leader != null && leader != this) {
+                try {
+                    results = forward(leader, op, proposed);
+                } catch (RemoteException e) {
+                    // leader 联系不上，自己接管
+                    server.leaderFailed(leader);
+                }
+            }
+            if (results == null) {
+                //所有命令作为同一个值提交，要么一起被选定，要么都没有
+                results = server.proposeAll(this, proposed);
+                // 集群部署时选主可能发现别的进程已经是 leader，整批转给它再试一次
+                RMIInterface discovered = server.isMultiPaxos() ? server.currentLeader() : null;
+                if (discovered != null && discovered != this && discovered != leader && allNoQuorum(results)) {
+                    try {
+                        results = forward(discovered, op, proposed);
+                    } catch (RemoteException e) {
+                        server.leaderFailed(discovered);
+                    }
+                }
+            }
+            for (int i = 0; i < proposed.size(); i++) {
+                responses[positions[i]] = results.get(i);
+            }
         } catch (RemoteException e) {
             //e.printStackTrace();
-            return "RMIImplement on port " + port + " error: RemoteException occurred. Current time: " + sdf.format(new Date(System.currentTimeMillis()));
+            EventJournal.emit(EventJournal.Event.PROPOSE_FAILED, port, proposed.size());
+        }
+        for (int i = 0; i < responses.length; i++) {
+            if (responses[i] == null) {
+                responses[i] = Messages.response(Messages.ERROR, null);
+            }
         }
+        return responses;
+    }
+
+    private static boolean allNoQuorum(List<byte[]> results) {
+        for (byte[] result : results) {
+            if (Messages.statusOf(result) != Messages.NO_QUORUM) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static List<byte[]> forward(RMIInterface leader, byte op, List<Messages.Command> commands) throws RemoteException {
+        if (commands.size() == 1) {
+            Messages.Command command = commands.get(0);
+            return Collections.singletonList(op == Messages.PUT ? leader.put(command.key, command.value) : leader.delete(command.key));
+        }
+        String[] keys = new String[commands.size()];
+        String[] values = new String[commands.size()];
+        for (int i = 0; i < keys.length; i++) {
+            keys[i] = commands.get(i).key;
+            values[i] = commands.get(i).value;
+        }
+        return Arrays.asList(op == Messages.PUT ? leader.multiPut(keys, values) : leader.multiDelete(keys));
+    }
+
+    /**
+     * Puts a key-value pair into the dictionary.
+     *
+     * @param key The key to be added or updated.
+     * @param value The value associated with the key.
+     * @return A {@link Messages} response: {@code OK}, or {@code CONFLICT} if the key already exists.
+     * @throws RemoteException If a remote method call fails.
+     */
+    public byte[] put(String key, String value) throws RemoteException {
+        return admitted(Messages.PUT, new String[]{key}, new String[]{value})[0];
+    }
+
+    @Override
+    public byte[][] multiPut(String[] keys, String[] values) throws RemoteException {
+        if (keys.length != values.length) {
+            throw new RemoteException("multiPut needs one value per key, got " + keys.length + " keys and " + values.length + " values");
+        }
+        return admitted(Messages.PUT, keys, values);
     }
 
     /**
      * Retrieves the value associated with a key from the dictionary.
      *
      * @param key The key whose value is to be retrieved.
-     * @return The value associated with the key, or an error message if the key is not found.
+     * @return A {@link Messages} response: {@code OK} carrying the value, or {@code NOT_FOUND}.
      * @throws RemoteException If a remote method call fails.
      */
     @Override
-    public String get(String key) {
-        SimpleDateFormat sdf = new SimpleDateFormat("yyyy-MM-dd HH:mm:ss.SSS");
-        //System.out.println("Current time: " + sdf.format(new Date(System.currentTimeMillis())));
-        if (!dictionary.containsKey(key)){
-            return "RMIImplement get error: There is no such key."
-                    + "Current time: " + sdf.format(new Date(System.currentTimeMillis()));
+    public byte[] get(String key) throws RemoteException {
+        return multiGet(new String[]{key})[0];
+    }
+
+    @Override
+    public byte[][] multiGet(String[] keys) throws RemoteException {
+        return admitted(READ, keys, null);
+    }
+
+    // 本分片内的读
+    private byte[][] readAll(String[] keys) throws RemoteException {
+        byte[][] responses = new byte[keys.length][];
+        if (server.isMultiPaxos()) {
+            // 线性一致读：follower 转发给 leader；leader 持有租约时直接读本地，不需要任何来回
+            RMIInterface leader = server.currentLeader();
+            if (leader != null && leader != this) {
+                try {
+                    return keys.length == 1 ? new byte[][]{leader.get(keys[0])} : leader.multiGet(keys);
+                } catch (RemoteException e) {
+                    server.leaderFailed(leader);
+                }
+            }
+            // 整批键只需要确认一次 readIndex
+            if (!awaitReadIndex()) {
+                Arrays.fill(responses, Messages.response(Messages.UNAVAILABLE, null));
+                return responses;
+            }
+        } else if (catchingUp) {
+            // 追赶期间本地字典还不完整，读转给一个已经追上的副本，而不是返回空结果
+            RMIInterface peer = server.caughtUpPeer(this);
+            if (peer != null) {
+                try {
+                    return keys.length == 1 ? new byte[][]{peer.get(keys[0])} : peer.multiGet(keys);
+                } catch (RemoteException e) {
+                    EventJournal.emit(EventJournal.Event.CATCH_UP_READ_FAILED, port, e);
+                }
+            }
+            Arrays.fill(responses, Messages.response(Messages.UNAVAILABLE, null));
+            return responses;
+        }
+        for (int i = 0; i < keys.length; i++) {
+            String value = dictionary.get(keys[i]);
+            responses[i] = value == null ? Messages.response(Messages.NOT_FOUND, null) : Messages.response(Messages.OK, value);
+        }
+        return responses;
+    }
+
+    // 等本副本应用到 readIndex，保证能看到所有已经确认给客户端的写
+    private boolean awaitReadIndex() throws RemoteException {
+        long readIndex = server.readIndex(this);
+        if (readIndex < 0) {
+            return false;
+        }
+        try {
+            log.whenApplied(readIndex).get(server.leaseMillis(), TimeUnit.MILLISECONDS);
+            return true;
+        } catch (Exception e) {
+            return false;
+        }
+    }
+
+    @Override
+    public byte[] versionedGet(String key) throws RemoteException {
+        int owner = server.shardMap().shardOf(key);
+        if (owner != server.shard()) {
+            // 版本号是所属分片日志的槽位，只能由那个分片给出
+            RMIInterface replica = server.shardReplica(owner);
+            try {
+                return replica.versionedGet(key);
+            } catch (RemoteException e) {
+                server.shardReplicaFailed(owner, replica);
+                throw e;
+            }
+        }
+        // 先取版本再读，读到的值至少反映了这个槽位之前的所有写；追赶期间读的是别的副本，不给版本
+        long version = catchingUp ? -1 : log.nextToApply() - 1;
+        return Messages.versioned(version, get(key));
+    }
+
+    @Override
+    public byte[] invalidations(long afterSlot, long waitMillis) {
+        return server.invalidationsAfter(afterSlot, waitMillis);
+    }
+
+    @Override
+    public byte[] scan(String from, String to, String after, int limit) throws RemoteException {
+        if (!admission.tryAdmit()) {
+            return Messages.ScanPage.refused(Messages.BUSY);
+        }
+        try {
+            int pageLimit = Math.max(1, Math.min(limit, scanPageSize));
+            ShardMap shards = server.shardMap();
+            if (shards.count() == 1) {
+                return scanLocal(from, to, after, pageLimit);
+            }
+            // 键按哈希分布在各分片上，每个分片取一页再按键合并
+            Messages.ScanPage[] pages = new Messages.ScanPage[shards.count()];
+            for (int shard = 0; shard < pages.length; shard++) {
+                byte[] page = shard == server.shard() ? scanLocal(from, to, after, pageLimit) : forwardScan(shard, from, to, after, pageLimit);
+                pages[shard] = Messages.ScanPage.decode(page);
+                if (pages[shard].status != Messages.OK) {
+                    return Messages.ScanPage.refused(pages[shard].status);
+                }
+            }
+            return mergePages(pages, pageLimit).encode();
+        } finally {
+            admission.release();
         }
-        return "RMIImplement: GET success for key (" + key + ")" + " with value (" + dictionary.get(key) + ")"
-                + "Current time: " + sdf.format(new Date(System.currentTimeMillis()));
     }
+
+    @Override
+    public byte[] scanShard(String from, String to, String after, int limit) throws RemoteException {
+        if (!admission.tryAdmit()) {
+            return Messages.ScanPage.refused(Messages.BUSY);
+        }
+        try {
+            return scanLocal(from, to, after, Math.max(1, Math.min(limit, scanPageSize)));
+        } finally {
+            admission.release();
+        }
+    }
+
+    // 本分片内的扫描，和 readAll 一样：Multi-Paxos 下转给 leader 或等 readIndex，追赶期间转给已追上的副本
+    private byte[] scanLocal(String from, String to, String after, int limit) throws RemoteException {
+        if (server.isMultiPaxos()) {
+            RMIInterface leader = server.currentLeader();
+            if (leader != null && leader != this) {
+                try {
+                    return leader.scanShard(from, to, after, limit);
+                } catch (RemoteException e) {
+                    server.leaderFailed(leader);
+                }
+            }
+            if (!awaitReadIndex()) {
+                return Messages.ScanPage.refused(Messages.UNAVAILABLE);
+            }
+        } else if (catchingUp) {
+            RMIInterface peer = server.caughtUpPeer(this);
+            if (peer != null) {
+                try {
+                    return peer.scanShard(from, to, after, limit);
+                } catch (RemoteException e) {
+                    EventJournal.emit(EventJournal.Event.CATCH_UP_READ_FAILED, port, e);
+                }
+            }
+            return Messages.ScanPage.refused(Messages.UNAVAILABLE);
+        }
+        return dictionary.scan(from, to, after, limit, SCAN_PAGE_CHARS).encode();
+    }
+
+    private byte[] forwardScan(int shard, String from, String to, String after, int limit) {
+        RMIInterface replica = null;
+        try {
+            replica = server.shardReplica(shard);
+            return replica.scanShard(from, to, after, limit);
+        } catch (RemoteException e) {
+            EventJournal.emit(EventJournal.Event.SHARD_UNREACHABLE, port, shard, e);
+            if (replica != null) {
+                server.shardReplicaFailed(shard, replica);
+            }
+            return Messages.ScanPage.refused(Messages.ERROR);
+        }
+    }
+
+    /**
+     * Merges one page from every shard into a page of the whole key space. A shard whose page has
+     * a continuation has not yet returned the keys after it, so the merged page stops at the
+     * smallest such continuation; within that bound every shard's keys are complete.
+     *
+     * @param pages One page per shard, each in ascending key order.
+     * @param limit The maximum number of entries of the merged page.
+     * @return The merged page.
+     */
+    static Messages.ScanPage mergePages(Messages.ScanPage[] pages, int limit) {
+        String bound = null;
+        for (Messages.ScanPage page : pages) {
+            if (page.next != null && (bound == null || page.next.compareTo(bound) < 0)) {
+                bound = page.next;
+            }
+        }
+        int[] positions = new int[pages.length];
+        List<String> keys = new ArrayList<>();
+        List<String> values = new ArrayList<>();
+        while (keys.size() < limit) {
+            int best = -1;
+            for (int i = 0; i < pages.length; i++) {
+                if (positions[i] < pages[i].keys.length
+                        && (best < 0 || pages[i].keys[positions[i]].compareTo(pages[best].keys[positions[best]]) < 0)) {
+                    best = i;
+                }
+            }
+            if (best < 0 || (bound != null && pages[best].keys[positions[best]].compareTo(bound) > 0)) {
+                break;
+            }
+            keys.add(pages[best].keys[positions[best]]);
+            values.add(pages[best].values[positions[best]++]);
+        }
+        boolean more = bound != null;
+        for (int i = 0; i < pages.length; i++) {
+            more |= positions[i] < pages[i].keys.length;
+        }
+        String next = !more ? null : keys.isEmpty() ? bound : keys.get(keys.size() - 1);
+        return new Messages.ScanPage(Messages.OK, keys, values, next);
+    }
+
+    @Override
+    public byte[] addMember(int id, String address) throws RemoteException {
+        return changeMembership(id, address);
+    }
+
+    @Override
+    public byte[] removeMember(int id) throws RemoteException {
+        return changeMembership(id, null);
+    }
+
+    @Override
+    public String membership() {
+        return server.membership().encode();
+    }
+
+    // 成员变更和写一样走共识；Multi-Paxos 下交给 leader 提出。address 为 null 表示删除
+    private byte[] changeMembership(int id, String address) throws RemoteException {
+        RMIInterface leader = server.isMultiPaxos() ? server.currentLeader() : null;
+        if (leader != null && leader != this) {
+            try {
+                return address == null ? leader.removeMember(id) : leader.addMember(id, address);
+            } catch (RemoteException e) {
+                server.leaderFailed(leader);
+            }
+        }
+        return server.changeMembership(this, id, address);
+    }
+
     /**
      * Deletes a key-value pair from the dictionary.
      *
      * @param key The key to be deleted.
-     * @return A success message if the operation is successful, or an error message if the key is not found or already deleted.
+     * @return A {@link Messages} response: {@code OK}, or {@code CONFLICT} if the key is not found or already deleted.
      * @throws RemoteException If a remote method call fails.
      */
     @Override
-    public String delete(String key) throws RemoteException {
-        SimpleDateFormat sdf = new SimpleDateFormat("yyyy-MM-dd HH:mm:ss.SSS");
-        String responseForClient = null;
+    public byte[] delete(String key) throws RemoteException {
+        return admitted(Messages.DELETE, new String[]{key}, null)[0];
+    }
 
-        try {
-            // 第一步：先自行判断一遍
-            if (!prepareToOperation(key, "", "delete")) {
-                return "RMIImplement on port " + port + " delete error: Not allowed by self-checking. Current time: " + sdf.format(new Date(System.currentTimeMillis()));
+    @Override
+    public byte[][] multiDelete(String[] keys) throws RemoteException {
+        return admitted(Messages.DELETE, keys, null);
+    }
+
+    /**
+     * Serves a client request if the admission controller lets it in, and answers every key with
+     * {@code BUSY} otherwise. A {@code null} key, or a {@code null} value of a PUT, cannot be
+     * encoded into a log value and is answered with {@code CONFLICT} without being served.
+     *
+     * @param op {@link Messages#PUT}, {@link Messages#DELETE} or {@link #READ}.
+     * @param keys The keys.
+     * @param values The value for each key (PUT only).
+     * @return One encoded response per key, in the same order.
+     * @throws RemoteException If a local read fails.
+     */
+    private byte[][] admitted(byte op, String[] keys, String[] values) throws RemoteException {
+        for (int i = 0; i < keys.length; i++) {
+            if (keys[i] == null || (op == Messages.PUT && values[i] == null)) {
+                return withoutNulls(op, keys, values);
             }
+        }
+        if (!admission.tryAdmit()) {
+            byte[][] responses = new byte[keys.length][];
+            Arrays.fill(responses, Messages.response(Messages.BUSY, null));
+            return responses;
+        }
+        try {
+            return acrossShards(op, keys, values);
+        } finally {
+            admission.release();
+        }
+    }
 
-            // 第二步：让总server做个prepare来回，如果总server提案号成功，则会返回一段话
-            responseForClient = requestAPrepare();
-            if (responseForClient.equals("didn't got promise from majority.")){
-                return "didn't got promise from majority.";
+    // 把带 null 的键单独回复，剩下的照常处理
+    private byte[][] withoutNulls(byte op, String[] keys, String[] values) throws RemoteException {
+        byte[][] responses = new byte[keys.length][];
+        List<Integer> positions = new ArrayList<>(keys.length);
+        for (int i = 0; i < keys.length; i++) {
+            if (keys[i] == null || (op == Messages.PUT && values[i] == null)) {
+                responses[i] = Messages.response(Messages.CONFLICT, "Keys and values must not be null.");
+            } else {
+                positions.add(i);
             }
+        }
+        if (positions.isEmpty()) {
+            return responses;
+        }
+        String[] validKeys = new String[positions.size()];
+        String[] validValues = values == null ? null : new String[positions.size()];
+        for (int i = 0; i < validKeys.length; i++) {
+            validKeys[i] = keys[positions.get(i)];
+            if (values != null) {
+                validValues[i] = values[positions.get(i)];
+            }
+        }
+        byte[][] results = admitted(op, validKeys, validValues);
+        for (int i = 0; i < validKeys.length; i++) {
+            responses[positions.get(i)] = results[i];
+        }
+        return responses;
+    }
 
-            // 第三步：如果成功，进行第二步
-            else if (responseForClient.equals("got promise success from most acceptors")) {
-                // 如果返回的时候没有带specialMessage，则直接使用自己从client那里拿到的参数作为指令
-                responseForClient = server.accept(promiseNumber, key + " null delete");
+    /**
+     * Routes every key to the shard that owns it. Keys of this replica's shard are read or written
+     * here; the others are sent, one call per shard, to a replica of the owning shard, which then
+     * finds all of them local. A multi-key write is atomic within each shard but not across
+     * shards. If another shard cannot be reached its keys are answered with {@code ERROR}.
+     *
+     * @param op {@link Messages#PUT}, {@link Messages#DELETE} or {@link #READ}.
+     * @param keys The keys.
+     * @param values The value for each key (PUT only).
+     * @return One encoded response per key, in the same order.
+     * @throws RemoteException If a local read fails.
+     */
+    private byte[][] acrossShards(byte op, String[] keys, String[] values) throws RemoteException {
+        ShardMap shards = server.shardMap();
+        Map<Integer, List<Integer>> byShard = new HashMap<>();
+        boolean allLocal = true;
+        for (int i = 0; i < keys.length; i++) {
+            int shard = shards.shardOf(keys[i]);
+            allLocal &= shard == server.shard();
+            byShard.computeIfAbsent(shard, s -> new ArrayList<>()).add(i);
+        }
+        if (allLocal) {
+            return op == READ ? readAll(keys) : writeAll(op, keys, values);
+        }
+        byte[][] responses = new byte[keys.length][];
+        for (Map.Entry<Integer, List<Integer>> group : byShard.entrySet()) {
+            List<Integer> positions = group.getValue();
+            String[] groupKeys = new String[positions.size()];
+            String[] groupValues = values == null ? null : new String[positions.size()];
+            for (int i = 0; i < groupKeys.length; i++) {
+                groupKeys[i] = keys[positions.get(i)];
+                if (values != null) {
+                    groupValues[i] = values[positions.get(i)];
+                }
+            }
+            byte[][] results;
+            if (group.getKey() == server.shard()) {
+                results = op == READ ? readAll(groupKeys) : writeAll(op, groupKeys, groupValues);
             } else {
-                // 如果带了specialMessage，则使用specialMessage作为指令
-                String specialMessage = responseForClient.split(":")[1];
-                responseForClient = server.accept(promiseNumber, specialMessage);
+                results = forwardToShard(group.getKey(), op, groupKeys, groupValues);
+            }
+            for (int i = 0; i < groupKeys.length; i++) {
+                responses[positions.get(i)] = results[i];
+            }
+        }
+        return responses;
+    }
+
+    private byte[][] forwardToShard(int shard, byte op, String[] keys, String[] values) {
+        RMIInterface replica = null;
+        try {
+            replica = server.shardReplica(shard);
+            switch (op) {
+                case Messages.PUT:
+                    return replica.multiPut(keys, values);
+                case Messages.DELETE:
+                    return replica.multiDelete(keys);
+                default:
+                    return replica.multiGet(keys);
             }
-            return responseForClient + sdf.format(new Date(System.currentTimeMillis()));
         } catch (RemoteException e) {
-            // e.printStackTrace();
-            return "RMIImplement on port " + port + " delete error: RemoteException occurred. Current time: " + sdf.format(new Date(System.currentTimeMillis()));
+            EventJournal.emit(EventJournal.Event.SHARD_UNREACHABLE, port, shard, e);
+            if (replica != null) {
+                server.shardReplicaFailed(shard, replica);
+            }
+            byte[][] responses = new byte[keys.length][];
+            Arrays.fill(responses, Messages.response(Messages.ERROR, null));
+            return responses;
         }
     }
 
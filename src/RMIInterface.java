@@ -12,26 +12,102 @@ public interface RMIInterface extends Remote {
      *
      * @param key The key to be added or updated.
      * @param value The value associated with the key.
-     * @return A success message if the operation is successful, or an error message if the key already exists.
+     * @return A {@link Messages} response: {@code OK}, or {@code CONFLICT} if the key already exists.
      * @throws RemoteException If a remote method call fails.
      */
-    String put(String key, String value) throws RemoteException;
+    byte[] put(String key, String value) throws RemoteException;
     /**
      * Retrieves the value associated with a key from the dictionary.
      *
      * @param key The key whose value is to be retrieved.
-     * @return The value associated with the key, or an error message if the key is not found.
+     * @return A {@link Messages} response: {@code OK} carrying the value, or {@code NOT_FOUND}.
      * @throws RemoteException If a remote method call fails.
      */
-    String get(String key) throws RemoteException;
+    byte[] get(String key) throws RemoteException;
     /**
      * Deletes a key-value pair from the dictionary.
      *
      * @param key The key to be deleted.
-     * @return A success message if the operation is successful, or an error message if the key is not found or already deleted.
+     * @return A {@link Messages} response: {@code OK}, or {@code CONFLICT} if the key is not found or already deleted.
      * @throws RemoteException If a remote method call fails.
      */
-    String delete(String key) throws RemoteException;
+    byte[] delete(String key) throws RemoteException;
+    /**
+     * Puts many key-value pairs with one request. The pairs that pass the replica's conflict check
+     * are committed as one consensus value, so they are chosen together and applied back to back.
+     *
+     * @param keys The keys to be added.
+     * @param values The value for each key, in the same order.
+     * @return One {@link Messages} response per key, in the same order.
+     * @throws RemoteException If a remote method call fails.
+     */
+    byte[][] multiPut(String[] keys, String[] values) throws RemoteException;
+    /**
+     * Retrieves many keys with one request. In Multi-Paxos mode leadership is confirmed once for
+     * the whole request rather than once per key.
+     *
+     * @param keys The keys whose values are to be retrieved.
+     * @return One {@link Messages} response per key, in the same order.
+     * @throws RemoteException If a remote method call fails.
+     */
+    byte[][] multiGet(String[] keys) throws RemoteException;
+    /**
+     * Deletes many keys with one request, committed as one consensus value like {@link #multiPut}.
+     *
+     * @param keys The keys to be deleted.
+     * @return One {@link Messages} response per key, in the same order.
+     * @throws RemoteException If a remote method call fails.
+     */
+    byte[][] multiDelete(String[] keys) throws RemoteException;
+    /**
+     * Retrieves a key like {@link #get}, and tells a caching client how fresh the answer is.
+     *
+     * @param key The key whose value is to be retrieved.
+     * @return A {@link Messages#versioned versioned} response: the log slot of the key's shard the
+     *         value is known to reflect (-1 if none), and the same response {@link #get} gives.
+     * @throws RemoteException If a remote method call fails.
+     */
+    byte[] versionedGet(String key) throws RemoteException;
+    /**
+     * Returns the keys written after a log slot of this replica's shard, waiting for a write if
+     * there has been none yet. Caching clients poll it to drop values that changed.
+     *
+     * @param afterSlot The last slot the caller has seen, or -1 to start.
+     * @param waitMillis How long to wait for a new slot when the caller is up to date.
+     * @return Encoded {@link Messages.Invalidations}; with {@code reset} set when the slots after
+     *         {@code afterSlot} are not available (or the caller is starting).
+     * @throws RemoteException If a remote method call fails.
+     */
+    byte[] invalidations(long afterSlot, long waitMillis) throws RemoteException;
+    /**
+     * Returns one page of the entries of a key range, in ascending key order across all shards.
+     * Call it again with the page's continuation token until the token is {@code null}; neither
+     * side ever holds more than a page. A scan is not a snapshot: an entry written while the scan
+     * runs may or may not be returned, but every entry present and unchanged for the whole scan is
+     * returned exactly once.
+     *
+     * @param from The first key of the range (inclusive), or {@code null} to start at the lowest key.
+     * @param to The end of the range (exclusive), or {@code null} for no end. For a prefix scan
+     *           use {@link ScanCursor#prefixEnd}.
+     * @param after The continuation token of the previous page, or {@code null} for the first page.
+     * @param limit The maximum number of entries; the replica may return fewer.
+     * @return An encoded {@link Messages.ScanPage}; a refused page ({@code BUSY},
+     *         {@code UNAVAILABLE} or {@code ERROR}) has no entries and may be retried with the same token.
+     * @throws RemoteException If a remote method call fails.
+     */
+    byte[] scan(String from, String to, String after, int limit) throws RemoteException;
+    /**
+     * Like {@link #scan}, but only over the keys of this replica's shard. Replicas use it to
+     * collect the pages they merge.
+     *
+     * @param from The first key of the range (inclusive), or {@code null}.
+     * @param to The end of the range (exclusive), or {@code null}.
+     * @param after The continuation token of the previous page, or {@code null}.
+     * @param limit The maximum number of entries.
+     * @return An encoded {@link Messages.ScanPage}.
+     * @throws RemoteException If a remote method call fails.
+     */
+    byte[] scanShard(String from, String to, String after, int limit) throws RemoteException;
     /**
      * Prepares the server for an operation (PUT or DELETE) by acquiring a lock and checking for conflicts.
      *
@@ -54,12 +130,188 @@ public interface RMIInterface extends Remote {
      */
     void finallyGotCommitSoReallyUpdate(String key, String value, String operation)throws RemoteException;
 
-    String promise(int proposalNumber) throws RemoteException;
+    /**
+     * Phase 1 of Paxos. Promises not to accept any ballot lower than {@code proposalNumber}, in any slot.
+     *
+     * @param proposalNumber The ballot being prepared.
+     * @param fromSlot The first slot the proposer's learner has not applied; chosen values the
+     *                 replica still holds from this slot on are reported with the accepted ones.
+     * @return An encoded {@link Messages.Promise}: refused with the ballot already promised, or granted
+     *         with every slot this replica accepted but has not seen committed, and every slot from
+     *         {@code fromSlot} on it knows to be chosen.
+     * @throws RemoteException if a remote communication error occurs.
+     */
+    byte[] promise(long proposalNumber, long fromSlot) throws RemoteException;
+
+    /**
+     * Phase 2 of Paxos. Accepts a value for one slot of the replicated log.
+     *
+     * @param promiseNum The ballot the value is proposed under.
+     * @param slot The log slot.
+     * @param val The value: an encoded batch of commands.
+     * @return An encoded {@link Messages#ack ack}, granted if the value was accepted.
+     * @throws RemoteException if a remote communication error occurs.
+     */
+    byte[] accepted(long promiseNum, long slot, byte[] val) throws RemoteException;
+
+    /**
+     * Grants the leader of {@code ballot} a time-bounded lease. Until it expires this replica
+     * refuses to promise any other ballot, so no other proposer can get values chosen and the
+     * leader can serve reads from its local state.
+     *
+     * @param ballot The leader's ballot.
+     * @return An encoded {@link Messages#ack ack}, refused with the ballot already promised.
+     * @throws RemoteException if a remote communication error occurs.
+     */
+    byte[] grantLease(long ballot) throws RemoteException;
+
+    /**
+     * Tells the replica that a slot's value has been chosen. Values are applied to the dictionary
+     * strictly in slot order.
+     *
+     * @param slot The chosen slot.
+     * @param val The chosen value.
+     * @throws RemoteException if a remote communication error occurs.
+     */
+    void commit(long slot, byte[] val) throws RemoteException;
+
+
+    /**
+     * Returns the highest log slot this replica has applied to its dictionary.
+     *
+     * @return The last applied slot, or -1 if nothing has been applied.
+     * @throws RemoteException if a remote communication error occurs.
+     */
+    long lastAppliedSlot() throws RemoteException;
+
+    /**
+     * Replaces the replica's dictionary with the group's state as of a log slot and continues
+     * applying the log after that slot.
+     *
+     * @param lastAppliedSlot The slot the dictionary reflects.
+     * @param commonDictionary The dictionary as of that slot.
+     * @throws RemoteException if a remote communication error occurs.
+     */
+    void installSnapshot(long lastAppliedSlot, Map<String, String> commonDictionary) throws RemoteException;
+
+    /**
+     * Starts rebuilding the replica from the group's state as of a log slot. Until
+     * {@link #finishCatchUp} the replica keeps committed slots without applying them and serves
+     * reads from a replica that is up to date. Calling it again restarts the catch-up.
+     *
+     * @param snapshotSlot The slot the streamed state reflects.
+     * @throws RemoteException if a remote communication error occurs.
+     */
+    void beginCatchUp(long snapshotSlot) throws RemoteException;
 
-    String accepted(int promiseNum, String val) throws RemoteException;
+    /**
+     * Adds one chunk of the streamed state.
+     *
+     * @param snapshotSlot The slot passed to {@link #beginCatchUp}.
+     * @param entries Some of the entries of the dictionary as of that slot.
+     * @throws RemoteException if a remote communication error occurs, or the catch-up was restarted
+     *         for another slot.
+     */
+    void catchUpChunk(long snapshotSlot, Map<String, String> entries) throws RemoteException;
 
+    /**
+     * Replaces the replica's dictionary with the streamed state and applies the slots committed
+     * after it.
+     *
+     * @param snapshotSlot The slot passed to {@link #beginCatchUp}.
+     * @throws RemoteException if a remote communication error occurs, or the catch-up was restarted
+     *         for another slot.
+     */
+    void finishCatchUp(long snapshotSlot) throws RemoteException;
 
     ConcurrentHashMap<String, String> getDictionary()throws RemoteException;;
 
+    /**
+     * Returns digests of nodes of the replica's Merkle tree over its dictionary.
+     *
+     * @param nodes Node numbers in heap order (1 is the root).
+     * @return The digest of each requested node.
+     * @throws RemoteException if a remote communication error occurs.
+     */
+    long[] merkleDigests(int[] nodes) throws RemoteException;
+
+    /**
+     * Replaces the contents of some Merkle buckets: keys in those buckets that are missing from
+     * {@code entries} are removed, and every entry in {@code entries} is stored.
+     *
+     * @param buckets The leaf buckets being repaired.
+     * @param entries The correct entries of those buckets.
+     * @throws RemoteException if a remote communication error occurs.
+     */
+    void repairBuckets(int[] buckets, Map<String, String> entries) throws RemoteException;
+
     void updateDictionary(Map<String, String> commonDictionary) throws RemoteException;
+
+    /**
+     * Returns the member ID of the replica currently acting as the Multi-Paxos leader, so that
+     * clients can send writes to it directly instead of having them forwarded. In-process the
+     * replicas of a shard are members 0 to 4 in port order; in a cluster the IDs are those of
+     * {@code paxos.cluster.file}.
+     *
+     * @return The leader's member ID, or -1 if there is no leader or Multi-Paxos mode is off.
+     * @throws RemoteException if a remote communication error occurs.
+     */
+    int leaderId() throws RemoteException;
+
+    /**
+     * Adds a replica to the consensus group. The change is chosen through the replicated log like
+     * a write; once it is applied, quorums are majorities of the new membership and the new
+     * replica is brought up to date from a snapshot. Only one change runs at a time.
+     *
+     * @param id The new member's ID, from 0 to 31; in a cluster, the {@code paxos.node.id} of the
+     *           process hosting it.
+     * @param address The new member's {@code host:port}.
+     * @return A {@link Messages} response: {@code OK}, {@code CONFLICT} (with the reason) if the
+     *         change is invalid or lost to a concurrent one, or {@code BUSY} while another change runs.
+     * @throws RemoteException if a remote communication error occurs.
+     */
+    byte[] addMember(int id, String address) throws RemoteException;
+
+    /**
+     * Removes a replica from the consensus group, through the replicated log like {@link #addMember}.
+     *
+     * @param id The member to remove.
+     * @return A {@link Messages} response, as for {@link #addMember}.
+     * @throws RemoteException if a remote communication error occurs.
+     */
+    byte[] removeMember(int id) throws RemoteException;
+
+    /**
+     * Returns the membership this replica's group has applied.
+     *
+     * @return The membership, encoded by {@link Membership#encode()}.
+     * @throws RemoteException if a remote communication error occurs.
+     */
+    String membership() throws RemoteException;
+
+    /**
+     * Stores one chunk of a large value uploaded before its {@link Messages#PUT_BLOB} is proposed
+     * (see {@link BlobStore}). Chunks are sent in order; once the last one is in, the value is
+     * checked against its digest.
+     *
+     * @param digest The hex SHA-256 of the value's UTF-8 bytes.
+     * @param size The value's size in bytes.
+     * @param offset The chunk's offset in the value.
+     * @param chunk The chunk.
+     * @return The number of bytes of the value the replica holds, {@code size} once it is stored
+     *         (also if it was stored before), or -1 if the chunk was refused.
+     * @throws RemoteException if a remote communication error occurs.
+     */
+    long storeBlobChunk(String digest, long size, long offset, byte[] chunk) throws RemoteException;
+
+    /**
+     * Reads part of a large value this replica holds, for a replica or learner that is missing it.
+     *
+     * @param digest The value's digest.
+     * @param offset The offset to read from.
+     * @param length The number of bytes to read at most.
+     * @return The bytes, or an empty array if this replica does not hold the value.
+     * @throws RemoteException if a remote communication error occurs.
+     */
+    byte[] fetchBlobChunk(String digest, long offset, int length) throws RemoteException;
 }
@@ -1,162 +1,1637 @@
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.lang.reflect.Proxy;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
 import java.rmi.RemoteException;
-import java.rmi.registry.LocateRegistry;
-import java.rmi.registry.Registry;
-import java.text.SimpleDateFormat;
 import java.util.*;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
 
-import java.rmi.RemoteException;
+/**
+ * RMIServer is the server for the RMI dictionary service.
+ */
+public final class RMIServer {
+
+    // 副本列表随成员变更整体替换；每一轮共识先拍一份快照，多数派按快照的大小算
+    private final CopyOnWriteArrayList<RMIInterface> serverStubs = new CopyOnWriteArrayList<>();
+    // 提案号 = 轮次 + 节点 ID，不同提案者、同一提案者的并发线程都不会拿到同一个提案号
+    private final Ballots ballots = Ballots.fromConfig();
+    // 被更高的提案号抢占时随机指数退避再重试，避免并发的提案者反复互相抢占
+    private final Backoff backoff = Backoff.fromConfig();
+    private final ReentrantLock classicLock = new ReentrantLock();
+    private final Map<RMIInterface, Integer> portStubMap = new ConcurrentHashMap<>();
+    // 客户端访问副本走的传输层：默认 RMI，-Dpaxos.transport=nio 换成 NIO
+    private final Transport transport = Transport.fromConfig();
+
+    // 成员：设置了 paxos.cluster.file 时每个副本是一个独立进程，本进程只托管 paxos.node.id 对应的成员；
+    // 否则本分片的五个副本都在这个 JVM 里
+    private final Path clusterFile = Membership.configuredFile();
+    private volatile Membership membership;
+    private final Map<Integer, RMIInterface> memberStubs = new ConcurrentHashMap<>();
+    private volatile RMIInterface localReplica;
+    // 联系不上的成员用占位的 stub：调用总是失败，但仍然算在多数派的分母里
+    private final Set<RMIInterface> placeholders = ConcurrentHashMap.newKeySet();
+    // 成员变更一次只跑一个；新旧成员各自的多数派一定有交集
+    private final ReentrantLock membershipLock = new ReentrantLock();
+    // 换成员列表：应用路径上只发布新的成员列表，连接新成员和写集群文件按纪元顺序在后台做
+    private final ReentrantLock switchLock = new ReentrantLock();
+    private final ExecutorService membershipExecutor = Executors.newSingleThreadExecutor(r -> {
+        Thread t = new Thread(r, "membership");
+        t.setDaemon(true);
+        return t;
+    });
+    // 心跳时补发给落后成员的槽位数上限
+    private static final int REPLAY_SLOTS = 1024;
+    private long heartbeatApplied = -1;
+
+    // Multi-Paxos：稳定的 leader 保留自己的提案号，稳态下只发 accept
+    private final boolean multiPaxos = Boolean.parseBoolean(System.getProperty("paxos.multi", "false"));
+    private volatile RMIInterface leader;
+    private volatile long leaderBallot = -1;
+    // 集群部署时别的成员当选的 leader：被它的提案号拒绝时记下来，写和读转给它
+    private volatile RMIInterface remoteLeader;
+    // 刚联系不上的远端 leader；它的提案号在租约过期前还会出现在拒绝里，不能再认它做 leader
+    private volatile RMIInterface failedLeader;
+    private final ReentrantLock electionLock = new ReentrantLock();
+
+    // leader 租约：多数派授予租约后，租约期内 leader 可以直接读本地；提前 10% 当作过期以容忍时钟漂移
+    private final long leaseMillis = Long.getLong("paxos.lease.ms", 2000L);
+    private volatile long leaseBallot = -1;
+    private volatile long leaseExpiryNanos;
+
+    // 复制日志：每个共识实例占一个槽位，最多 pipelineDepth 个实例同时在跑
+    private final AtomicLong nextSlot = new AtomicLong(0);
+    private final int pipelineDepth = Integer.getInteger("paxos.pipeline.depth", 8);
+    private final Semaphore pipeline = new Semaphore(pipelineDepth);
+
+    // group commit：并发的写命令攒成一批，一轮共识提交一整批；batch.size 为 1 时关闭
+    private final CommandBatcher batcher;
+
+    // prepare/accept 并发发送给所有副本，拿到多数派结果就返回，剩下的在后台处理
+    private final ExecutorService quorumExecutor;
+    private long quorumTimeoutMillis = 3000;
+    // 联系不上的副本在 fan-out 结果里用空数组表示，算作拒绝
+    private static final byte[] NO_ANSWER = new byte[0];
+
+    // 大值：超过阈值（UTF-8 字节数，0 表示关闭）的值先分块传给副本，共识只对引用（键、大小、摘要）进行
+    private final int blobThreshold = Integer.getInteger("paxos.blob.threshold", 64 * 1024);
+    private final int blobChunkBytes = Math.max(1, Integer.getInteger("paxos.blob.chunkBytes", 256 * 1024));
+    // 本 server 正在提案的大值，learner 应用时不必再向副本要
+    private final Map<String, byte[]> proposedBlobs = new ConcurrentHashMap<>();
+    // 集群部署时每个成员一条专门传大值的连接
+    private final Map<RMIInterface, RMIInterface> bulkStubs = new ConcurrentHashMap<>();
+
+    // prepare 的结果
+    private static final String PREPARED = "got promise success from most acceptors";
+    private static final String NO_MAJORITY = "didn't got promise from majority.";
+    private static final String STALE_LEARNER = "learner was behind, prepare again.";
+    // learner 刚追上或成员刚变更之后，立即重新 prepare 的次数上限
+    private static final int MAX_STALE_PREPARES = 3;
+
+    /**
+     * A single promise()/accepted() call made against one replica during a quorum round.
+     */
+    @FunctionalInterface
+    interface RemoteCall {
+        byte[] call(RMIInterface stub) throws RemoteException;
+    }
+
+    // 分片：本 server 只负责一个分片，其他分片的键转给对应分片的副本
+    private final ShardMap shardMap;
+    private final int shard;
+    private final Map<Integer, RMIInterface> shardRoutes = new ConcurrentHashMap<>();
+
+    // 追赶：被替换或落后的副本从 learner 分块接收快照；一次只传一个，learner 同时只多一份字典副本
+    private final int catchUpChunkBytes = Integer.getInteger("paxos.catchup.chunkKB", 1024) * 1024;
+    private final Map<RMIInterface, CompletableFuture<Void>> catchUps = new ConcurrentHashMap<>();
+    private final ExecutorService catchUpExecutor = Executors.newSingleThreadExecutor(r -> {
+        Thread t = new Thread(r, "catch-up");
+        t.setDaemon(true);
+        return t;
+    });
+
+    /**
+     * constructor
+     */
+    public RMIServer() {
+        this(new ShardMap(1), 0);
+    }
+
+    /**
+     * Constructor for the coordinator of one shard.
+     *
+     * @param shardMap The shard layout shared by every shard.
+     * @param shard The shard this server runs the consensus group for.
+     */
+    public RMIServer(ShardMap shardMap, int shard) {
+        if (clusterFile != null && shardMap.count() != 1) {
+            // 集群文件只描述一个共识组，别的分片的副本没有地址可连
+            throw new IllegalArgumentException("paxos.cluster.file runs a single consensus group; leave paxos.shards at 1");
+        }
+        Metrics.start();
+        this.shardMap = shardMap;
+        this.shard = shard;
+        this.membership = clusterFile == null ? Membership.inProcess(shardMap, shard) : Membership.fromConfig();
+        quorumExecutor = Executors.newCachedThreadPool(r -> {
+            Thread t = new Thread(r, "quorum-fanout");
+            t.setDaemon(true);
+            return t;
+        });
+        if (multiPaxos) {
+            startLeaseRenewal();
+        }
+        int batchSize = Integer.getInteger("paxos.batch.size", 64);
+        long batchDelayMillis = Long.getLong("paxos.batch.delayMs", 0L);
+        // 经典模式下每批都要 prepare，并发的批次只会互相抢提案号，所以只有 Multi-Paxos 才流水线化
+        int batchesInFlight = multiPaxos ? pipelineDepth : 1;
+        batcher = batchSize > 1 ? new CommandBatcher(this::proposeBatch, batchSize, batchDelayMillis, batchesInFlight) : null;
+    }
+
+    /**
+     * The main method that starts the RMIServer.
+     *
+     * @param args Command line arguments (not used in this implementation).
+     */
+    public static void main(String[] args) {
+        if (Membership.configuredFile() != null) {
+            // 集群部署：本进程只运行一个成员，整个集群是一个共识组
+            new RMIServer(ShardMap.fromConfig(), 0).startMember();
+            return;
+        }
+        // 每个分片一个独立的共识组：各自的提案号、日志和副本
+        ShardMap shardMap = ShardMap.fromConfig();
+        for (int shard = 0; shard < shardMap.count(); shard++) {
+            RMIServer server = new RMIServer(shardMap, shard); // 创建 RMIServer 实例
+            server.startServers(); // 启动服务器
+        }
+    }
+    /**
+     * Starts multiple RMI server instances, each on a different port, and binds remote objects to the RMI registry.
+     */
+    public void startServers() {
+        for (Membership.Member member : membership.members()) {
+            try {
+                RMIInterface obj = new RMIImplement(this, member.port); // 使用 server 实例
+                transport.export(obj, member.port, shardMap.nameOf(member.port));
+                EventJournal.emit(EventJournal.Event.SERVER_READY, member.port);
+                addStub(member, obj);  // 存储stub和端口的映射，加入副本列表
+            } catch (Exception e) {
+                EventJournal.emit(EventJournal.Event.SERVER_START_FAILED, e);
+            }
+        }
+        recoverLearnerState();
+        startHeartbeat();
+    }
+
+    /**
+     * Starts this process's member of the cluster in {@code paxos.cluster.file}: the member whose
+     * ID is {@code paxos.node.id} is created and exported here, and the other members are reached
+     * through the transport. Members that cannot be reached yet count towards the quorum size and
+     * are connected by the heartbeat once they are up.
+     *
+     * <p>A process whose ID is not in the file joins as a new member: it listens on
+     * {@code -Dpaxos.cluster.join=<host>:<port>}, proposes nothing, and applies nothing until a
+     * member has added it with {@link RMIInterface#addMember} and sent it a snapshot.
+     */
+    public void startMember() {
+        int self = ballots.nodeId();
+        Membership.Member own = membership.member(self);
+        boolean joining = own == null;
+        if (joining) {
+            String join = System.getProperty("paxos.cluster.join");
+            if (join == null) {
+                throw new IllegalArgumentException("Node " + self + " is not a member in " + clusterFile
+                        + "; set paxos.cluster.join=<host>:<port> to join as a new member");
+            }
+            own = Membership.parseAddress(self, join);
+        }
+        try {
+            RMIImplement obj = new RMIImplement(this, own.port);
+            if (joining) {
+                // 加入之前不应用任何槽位，等现有成员把快照发过来
+                obj.holdForCatchUp();
+            }
+            transport.export(obj, own.port, shardMap.nameOf(own.port));
+            localReplica = obj;
+            portStubMap.put(obj, own.port);
+            if (!joining) {
+                addStub(own, obj);
+            }
+            EventJournal.emitAll(EventJournal.Event.CLUSTER_MEMBER_READY, self, own.port, membership.epoch());
+        } catch (Exception e) {
+            EventJournal.emit(EventJournal.Event.SERVER_START_FAILED, e);
+            return;
+        }
+        for (Membership.Member member : membership.members()) {
+            if (member.id != self) {
+                addStub(member, connectMember(member));
+            }
+        }
+        recoverLearnerState();
+        startHeartbeat();
+    }
+
+    /**
+     * Whether the replicas run as separate processes listed in {@code paxos.cluster.file}.
+     *
+     * @return {@code true} in a multi-process cluster.
+     */
+    public boolean isClustered() {
+        return clusterFile != null;
+    }
+
+    /**
+     * The membership the learner has applied.
+     *
+     * @return The current membership.
+     */
+    public Membership membership() {
+        return membership;
+    }
+
+    // 本进程能不能提案：集群部署时还没加入、或者已经被删掉的成员不能
+    private boolean isVoter() {
+        return clusterFile == null || membership.contains(ballots.nodeId());
+    }
+
+    private void addStub(Membership.Member member, RMIInterface stub) {
+        memberStubs.put(member.id, stub);
+        portStubMap.put(stub, member.port);
+        serverStubs.add(stub);
+    }
+
+    // 成员重连之后换掉它的 stub
+    private void replaceStub(Membership.Member member, RMIInterface old, RMIInterface fresh) {
+        if (!memberStubs.replace(member.id, old, fresh)) {
+            return;
+        }
+        int index = serverStubs.indexOf(old);
+        if (index >= 0) {
+            serverStubs.set(index, fresh);
+        }
+        portStubMap.remove(old);
+        portStubMap.put(fresh, member.port);
+        catchUps.remove(old);
+        placeholders.remove(old);
+        bulkStubs.remove(old);
+        leaderFailed(old);
+    }
+
+    // 通过传输层连上另一个进程里的成员；连不上的话先放一个占位，心跳时再连
+    private RMIInterface connectMember(Membership.Member member) {
+        try {
+            return transport.connect(member.host, member.port, shardMap.nameOf(member.port));
+        } catch (RemoteException e) {
+            EventJournal.emit(EventJournal.Event.MEMBER_UNREACHABLE, member.id, member.address());
+            return unreachable(member);
+        }
+    }
+
+    private RMIInterface unreachable(Membership.Member member) {
+        RMIInterface placeholder = (RMIInterface) Proxy.newProxyInstance(RMIInterface.class.getClassLoader(),
+                new Class<?>[]{RMIInterface.class}, (proxy, method, args) -> {
+                    if (method.getDeclaringClass() == Object.class) {
+                        switch (method.getName()) {
+                            case "equals":
+                                return proxy == args[0];
+                            case "hashCode":
+                                return System.identityHashCode(proxy);
+                            default:
+                                return "unreachable member " + member;
+                        }
+                    }
+                    throw new RemoteException("Member " + member + " is unreachable");
+                });
+        placeholders.add(placeholder);
+        return placeholder;
+    }
+
+    // 进程内模式下新成员也在这个 JVM 里：先暂停应用再注册，等提出变更的一方发来快照
+    private RMIInterface hostInProcess(Membership.Member member) {
+        try {
+            RMIImplement obj = new RMIImplement(this, member.port, learnerLog.nextToApply());
+            obj.holdForCatchUp();
+            transport.export(obj, member.port, shardMap.nameOf(member.port));
+            EventJournal.emit(EventJournal.Event.SERVER_READY, member.port);
+            return obj;
+        } catch (Exception e) {
+            EventJournal.emit(EventJournal.Event.SERVER_START_FAILED, e);
+            return unreachable(member);
+        }
+    }
+    /**
+     * Creates this shard's replicas in this JVM without exporting them through the transport, so
+     * that prepare and accept rounds are direct method calls. Used by the benchmarks to measure the
+     * consensus path without network cost; no heartbeat or anti-entropy is started.
+     *
+     * @return The replicas, in port order.
+     * @throws RemoteException If a replica cannot be created.
+     */
+    public List<RMIInterface> startInProcess() throws RemoteException {
+        for (Membership.Member member : membership.members()) {
+            addStub(member, new RMIImplement(this, member.port));
+        }
+        recoverLearnerState();
+        return new ArrayList<>(serverStubs);
+    }
+    /**
+     * Rebuilds the learner's state after a restart from the most advanced replica. Replicas
+     * recover their own state from their write-ahead logs; the learner adopts the dictionary of the
+     * replica that applied the most slots, brings lagging replicas up to it, and runs one prepare so
+     * that slots accepted before the restart are completed.
+     */
+    private void recoverLearnerState() {
+        try {
+            long lastApplied = adoptFreshestState();
+            if (lastApplied < 0) {
+                return;
+            }
+            for (RMIInterface stub : serverStubs) {
+                // 集群部署时别的成员由它们自己的进程追赶
+                if ((clusterFile == null || stub == localReplica) && appliedSlotOf(stub) < lastApplied) {
+                    startCatchUp(stub, portStubMap.get(stub));
+                }
+            }
+            // 第一次 prepare 可能因为提案号太小被拒绝，拒绝里带着已承诺的提案号，第二次就能成功
+            for (int attempt = 0; isVoter() && attempt < 2 && nextBallotAfterPrepare() <= 0; attempt++) {
+                EventJournal.emit(EventJournal.Event.PREPARE_RETRY);
+            }
+            EventJournal.emit(EventJournal.Event.LEARNER_RECOVERED, lastApplied);
+        } catch (RemoteException e) {
+            EventJournal.emit(EventJournal.Event.LEARNER_RECOVERY_FAILED, e);
+        }
+    }
+
+    /**
+     * Moves the learner to the state of the replica that applied the most slots, if that replica
+     * is ahead of it: the dictionary as of that slot and, in a cluster, the membership that
+     * replica's process has applied.
+     *
+     * @return The slot the learner now starts after, or -1 if no replica is ahead of the learner.
+     * @throws RemoteException If the freshest replica cannot be read.
+     */
+    private long adoptFreshestState() throws RemoteException {
+        RMIInterface freshest = null;
+        long applied = learnerLog.nextToApply() - 1;
+        for (RMIInterface stub : serverStubs) {
+            long stubApplied = appliedSlotOf(stub);
+            if (stubApplied > applied) {
+                applied = stubApplied;
+                freshest = stub;
+            }
+        }
+        if (freshest == null) {
+            return -1;
+        }
+        if (clusterFile != null) {
+            switchMembership(Membership.decode(freshest.membership()));
+        }
+        Map<String, String> recovered = freshest.getDictionary();
+        long lastApplied = applied;
+        learnerLog.skipTo(lastApplied + 1, () -> installLearnerState(recovered::forEach));
+        learnerBlobs.headMap(lastApplied, true).clear();
+        learnedProposals.headMap(lastApplied, true).clear();
+        nextSlot.accumulateAndGet(lastApplied + 1, Math::max);
+        return lastApplied;
+    }
+
+    // 换掉 learner 的字典和 Merkle 树；调用方在 learner 日志锁里调用
+    private void installLearnerState(java.util.function.Consumer<java.util.function.BiConsumer<String, String>> entries) {
+        commonDictionary.clear();
+        commonMerkle.clear();
+        entries.accept((key, value) -> {
+            commonDictionary.put(key, value);
+            commonMerkle.added(key, value);
+        });
+    }
+
+    private long appliedSlotOf(RMIInterface stub) {
+        try {
+            return stub.lastAppliedSlot();
+        } catch (RemoteException e) {
+            EventJournal.emit(EventJournal.Event.REPLICA_CALL_FAILED, portStubMap.get(stub), e);
+            return Long.MIN_VALUE;
+        }
+    }
+
+    // learner 缺的槽位副本们已经不保留了：从应用得最多的副本接管状态，本地副本再从 learner 追上
+    private void catchUpLearner() {
+        try {
+            long applied = adoptFreshestState();
+            RMIInterface local = localReplica;
+            if (applied >= 0 && local != null && !catchUps.containsKey(local) && appliedSlotOf(local) < applied) {
+                startCatchUp(local, portStubMap.get(local));
+            }
+        } catch (RemoteException e) {
+            EventJournal.emit(EventJournal.Event.LEARNER_RECOVERY_FAILED, e);
+        }
+    }
+
+    public String prepare() throws RemoteException {
+        return prepare(ballots.next());
+    }
+
+    private String prepare(long proposalNumber) throws RemoteException {
+        String responseForClient = null;
+        int countPromises = 0;  // 用于计数承诺的数量
+        List<RMIInterface> stubs = new ArrayList<>(serverStubs);  // 这一轮用的成员
+        long epoch = membership.epoch();
+        boolean truncated = false;
+
+        // 每个副本回报自己接受过但还没提交的槽位，按槽位保留提案号最大的那个值；
+        // 已经选定的槽位用 CHOSEN 报上来，一定胜过接受过的值
+        Map<Long, Long> recoveredBallots = new HashMap<>();
+        Map<Long, byte[]> recoveredValues = new HashMap<>();
+
+        // 并发发送 prepare 请求，多数派承诺或者多数派已经不可能时就停止等待
+        int majority = stubs.size() / 2 + 1;
+        long fromSlot = learnerLog.nextToApply();
+        long waitStart = System.nanoTime();
+        List<byte[]> responses = fanOutToQuorum(stubs, stub -> stub.promise(proposalNumber, fromSlot), Messages::isGranted, majority);
+        Metrics.PREPARE_QUORUM_WAIT.record(System.nanoTime() - waitStart);
+
+        for (byte[] response : responses) {
+            if (response == NO_ANSWER) {
+                continue;
+            }
+            if (!Messages.isGranted(response)) {
+                // 副本已经承诺了更高的提案号，下一次直接从它后面开始
+                observeRefusal(Messages.ballotOf(response));
+                continue;
+            }
+            countPromises++;
+            Messages.Promise promise = Messages.Promise.decode(response);
+            truncated |= promise.truncated;
+            for (int i = 0; i < promise.slots.length; i++) {
+                long slot = promise.slots[i];
+                if (promise.ballots[i] > recoveredBallots.getOrDefault(slot, -1L)) {
+                    recoveredBallots.put(slot, promise.ballots[i]);
+                    recoveredValues.put(slot, promise.values[i]);
+                }
+            }
+        }
+
+        // 判断是否获得了大多数的承诺
+        if (countPromises < majority) {
+            Metrics.QUORUM_FAILURES.increment();
+            responseForClient = NO_MAJORITY;
+        } else if (truncated) {
+            // 有副本已经应用了 learner 缺的槽位却不再保留它们的值，先追上再重新 prepare
+            EventJournal.emit(EventJournal.Event.LEARNER_BEHIND, fromSlot);
+            catchUpLearner();
+            responseForClient = STALE_LEARNER;
+        } else if (!recover(proposalNumber, epoch, recoveredBallots, recoveredValues)) {
+            // 补槽位时应用了一次成员变更，后面的槽位要在新成员的多数派上重新 prepare
+            if (membership.epoch() != epoch) {
+                responseForClient = STALE_LEARNER;
+            } else {
+                Metrics.QUORUM_FAILURES.increment();
+                responseForClient = NO_MAJORITY;
+            }
+        } else {
+            responseForClient = PREPARED;
+        }
+        return responseForClient;
+    }
+
+    // 被拒绝时记下对方的提案号；Multi-Paxos 集群里这个提案号的主人就是当前的 leader
+    private void observeRefusal(long ballot) {
+        ballots.observe(ballot);
+        if (multiPaxos && clusterFile != null) {
+            int owner = Ballots.nodeOf(ballot);
+            RMIInterface stub = owner == ballots.nodeId() ? null : memberStubs.get(owner);
+            if (stub != null && stub != failedLeader && !placeholders.contains(stub)) {
+                remoteLeader = stub;
+            }
+        }
+    }
+
+    /**
+     * Completes every slot that is not yet known to be chosen under a freshly promised ballot, in
+     * slot order: slots some acceptor reported as chosen are learned as they are, slots some
+     * acceptor reported an accepted value for are re-proposed with that value, and gaps left by
+     * failed rounds are filled with {@link Messages#NOOP} so the log can keep applying. Stops at
+     * the first slot that cannot be completed, and after a membership change is applied, since the
+     * ballot was only promised by a majority of the old members.
+     *
+     * @param ballot The ballot that was just promised by a majority.
+     * @param epoch The membership epoch the ballot was promised under.
+     * @param recoveredBallots The highest ballot reported for each slot, or {@link Messages.Promise#CHOSEN}.
+     * @param recoveredValues The value reported with that ballot.
+     * @return {@code true} if every slot was completed under this membership.
+     */
+    private boolean recover(long ballot, long epoch, Map<Long, Long> recoveredBallots, Map<Long, byte[]> recoveredValues) {
+        long highest = Math.max(nextSlot.get() - 1, learnerLog.highestCommitted());
+        for (long slot : recoveredValues.keySet()) {
+            highest = Math.max(highest, slot);
+        }
+        long finalHighest = highest;
+        nextSlot.updateAndGet(current -> Math.max(current, finalHighest + 1));
+
+        for (long slot = learnerLog.nextToApply(); slot <= highest; slot++) {
+            if (membership.epoch() != epoch) {
+                return false;
+            }
+            if (learnerLog.isCommitted(slot)) {
+                continue;
+            }
+            byte[] value = recoveredValues.get(slot);
+            if (value != null && recoveredBallots.get(slot) == Messages.Promise.CHOSEN) {
+                learn(slot, value);
+            } else {
+                acceptRound(ballot, slot, value != null ? value : Messages.NOOP);
+            }
+            if (!learnerLog.isCommitted(slot)) {
+                return false;
+            }
+        }
+        return membership.epoch() == epoch;
+    }
+
+    /**
+     * Proposes a value in the next free slot of the log. At most {@code paxos.pipeline.depth}
+     * instances are in flight at once; the caller waits until its slot has been applied, so the
+     * returned results reflect every command ordered before it.
+     *
+     * @param promisedNum The ballot the value is proposed under.
+     * @param value The value: an encoded batch of commands.
+     * @param slot Receives the slot the value was proposed in, or -1 if none was taken.
+     * @return Whether each command of the value was applied, or {@code null} if no majority accepted it.
+     */
+    private boolean[] runInstance(long promisedNum, byte[] value, long[] slot) {
+        slot[0] = -1;
+        try {
+            pipeline.acquire();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return null;
+        }
+        try {
+            // 没有拿到多数派的话这个槽位会留下空洞，下一次 prepare 会用 noop 补上
+            slot[0] = nextSlot.getAndIncrement();
+            return acceptRound(promisedNum, slot[0], value);
+        } finally {
+            pipeline.release();
+        }
+    }
+
+    /**
+     * Runs one accept phase for a slot and learns the value if a majority accepted it.
+     *
+     * @param promisedNum The ballot the value is proposed under.
+     * @param slot The log slot of the value.
+     * @param command The value: an encoded batch of commands.
+     * @return Whether each command of the value was applied, or {@code null} if no majority accepted it.
+     */
+    private boolean[] acceptRound(long promisedNum, long slot, byte[] command) {
+        int acceptCount = 0; // 计数器，用于记录成功接受并完成的服务器数量
+
+        // 并发发送 accept 请求，拿到多数派接受就可以学习，不用等最慢的副本
+        List<RMIInterface> stubs = new ArrayList<>(serverStubs);
+        int majority = stubs.size() / 2 + 1;
+        long waitStart = System.nanoTime();
+        List<byte[]> responses = fanOutToQuorum(stubs, stub -> stub.accepted(promisedNum, slot, command), Messages::isGranted, majority);
+        Metrics.ACCEPT_QUORUM_WAIT.record(System.nanoTime() - waitStart);
+
+        for (byte[] response : responses) {
+            if (Messages.isGranted(response)) {
+                acceptCount++; // 如果是，计数+1
+            } else if (response != NO_ANSWER) {
+                observeRefusal(Messages.ballotOf(response));
+            }
+        }
+
+        // 如果接受的服务器数量达到多数派，执行学习
+        if (acceptCount >= majority) {
+            return learn(slot, command);
+        }
+        Metrics.QUORUM_FAILURES.increment();
+        return null;
+    }
+
+    /**
+     * Whether the server runs in Multi-Paxos mode, where a stable leader skips the prepare phase.
+     *
+     * @return {@code true} if Multi-Paxos mode is enabled.
+     */
+    public boolean isMultiPaxos() {
+        return multiPaxos;
+    }
+
+    /**
+     * Returns the replica currently acting as the distinguished proposer, or {@code null} if
+     * no leader has been elected yet (or the last one lost its ballot). In a cluster this may be
+     * the replica of another process, whose ballot this process was refused with.
+     *
+     * @return The current leader replica, or {@code null}.
+     */
+    public RMIInterface currentLeader() {
+        return leaderBallot > 0 ? leader : remoteLeader;
+    }
+
+    /**
+     * The shard layout.
+     *
+     * @return The shard map.
+     */
+    public ShardMap shardMap() {
+        return shardMap;
+    }
+
+    /**
+     * The shard this server coordinates.
+     *
+     * @return The shard.
+     */
+    public int shard() {
+        return shard;
+    }
+
+    /**
+     * Returns a replica of another shard to forward requests for that shard's keys to. The
+     * connection is made through the transport and reused; if the first replica cannot be reached
+     * the next one is tried. Shards only exist in-process: a cluster is a single consensus group.
+     *
+     * @param target The shard that owns the keys.
+     * @return A replica of that shard.
+     * @throws RemoteException If no replica of the shard can be reached, or the server runs as a
+     *         cluster member.
+     */
+    public RMIInterface shardReplica(int target) throws RemoteException {
+        if (clusterFile != null) {
+            throw new RemoteException("A cluster member has no other shards to forward shard " + target + " to");
+        }
+        RMIInterface route = shardRoutes.get(target);
+        if (route != null) {
+            return route;
+        }
+        RemoteException last = null;
+        for (int i = 0; i < ShardMap.REPLICAS_PER_SHARD; i++) {
+            int port = shardMap.portOf(target, i);
+            try {
+                route = transport.connect("localhost", port, shardMap.nameOf(port));
+                shardRoutes.put(target, route);
+                return route;
+            } catch (RemoteException e) {
+                last = e;
+            }
+        }
+        throw last;
+    }
+
+    /**
+     * Forgets a route returned by {@link #shardReplica} after a call through it failed.
+     *
+     * @param target The shard.
+     * @param failed The replica that could not be reached.
+     */
+    public void shardReplicaFailed(int target, RMIInterface failed) {
+        shardRoutes.remove(target, failed);
+    }
+
+    /**
+     * The member ID of the current leader, for clients that route writes to it. Members on
+     * different hosts may share a port, so clients recognize the leader by its ID.
+     *
+     * @return The leader's member ID, or -1 if there is no leader.
+     */
+    public int leaderId() {
+        RMIInterface current = currentLeader();
+        if (current == null) {
+            return -1;
+        }
+        for (Map.Entry<Integer, RMIInterface> entry : memberStubs.entrySet()) {
+            if (entry.getValue() == current) {
+                return entry.getKey();
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Proposes a value on behalf of the leader in Multi-Paxos mode. While the leader's ballot is
+     * still promised by a majority only the accept phase is run. If the accept is rejected the
+     * ballot has been superseded, so leadership is re-established with a fresh prepare and the
+     * value is retried once under the new ballot.
+     *
+     * @param proposer The replica that proposes the value.
+     * @param value The encoded batch of commands.
+     * @return Whether each command was applied, or {@code null} if no majority could be reached.
+     * @throws RemoteException If a remote method call fails.
+     */
+    private boolean[] leaderRound(RMIInterface proposer, byte[] value) throws RemoteException {
+        for (int attempt = 0; attempt < 2; attempt++) {
+            // 已经有 leader 的话直接沿用它的提案号，只有没有 leader 时才选主
+            long ballot = leaderBallot;
+            if (ballot <= 0) {
+                ballot = electLeader(proposer, ballot);
+                if (ballot <= 0) {
+                    return null;
+                }
+            }
+            boolean[] applied = runInstance(ballot, value, new long[1]);
+            if (applied != null || attempt == 1) {
+                return applied;
+            }
+            // 有更高的提案号出现了，说明领导权已经变更，下一轮重新 prepare
+            synchronized (this) {
+                if (leaderBallot == ballot) {
+                    leaderBallot = -1;
+                }
+            }
+            // 别的提案者在抢领导权的话先随机退避，免得双方轮流 prepare 谁也提交不了
+            if (ballots.preempted(ballot) && !backoff.pause(0)) {
+                return null;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Whether client writes go through the group commit stage.
+     *
+     * @return {@code true} if commands are batched before being proposed.
+     */
+    public boolean isBatching() {
+        return batcher != null;
+    }
+
+    /**
+     * Proposes a single command through the group commit stage and waits for its own result.
+     * Concurrent commands are proposed together as one consensus value.
+     *
+     * @param proposer The replica that received the client request.
+     * @param command The command to propose.
+     * @return The encoded response for this command.
+     * @throws RemoteException If the batch could not be proposed.
+     */
+    public byte[] propose(RMIInterface proposer, Messages.Command command) throws RemoteException {
+        return proposeAll(proposer, Collections.singletonList(command)).get(0);
+    }
+
+    /**
+     * Proposes a group of commands as part of one consensus value, so they are chosen atomically
+     * and applied back to back in the given order. With group commit on, the group may share its
+     * value with other concurrent commands but is never split.
+     *
+     * @param proposer The replica that received the client request.
+     * @param commands The commands to propose.
+     * @return One encoded response per command, in the same order.
+     * @throws RemoteException If the value could not be proposed.
+     */
+    public List<byte[]> proposeAll(RMIInterface proposer, List<Messages.Command> commands) throws RemoteException {
+        if (!isVoter()) {
+            // 还没加入或者已经被删掉的成员不能提案
+            return Collections.nCopies(commands.size(), Messages.response(Messages.UNAVAILABLE, null));
+        }
+        if (blobThreshold > 0) {
+            for (Messages.Command command : commands) {
+                if (command.op == Messages.PUT && command.value.length() * 3L > blobThreshold) {
+                    return proposeWithBlobs(proposer, commands);
+                }
+            }
+        }
+        return proposeCommands(proposer, commands);
+    }
+
+    private List<byte[]> proposeCommands(RMIInterface proposer, List<Messages.Command> commands) throws RemoteException {
+        if (batcher == null) {
+            return proposeBatch(proposer, commands);
+        }
+        try {
+            return batcher.submitAll(proposer, commands).join();
+        } catch (java.util.concurrent.CompletionException e) {
+            throw new RemoteException("Batch proposal failed", e.getCause());
+        }
+    }
+
+    // 大值先分块传给所有副本，多数派存好之后只对引用提案；存不够多数派的命令不提案，直接回 NO_QUORUM
+    private List<byte[]> proposeWithBlobs(RMIInterface proposer, List<Messages.Command> commands) throws RemoteException {
+        byte[][] responses = new byte[commands.size()][];
+        List<Messages.Command> proposed = new ArrayList<>(commands.size());
+        int[] positions = new int[commands.size()];
+        List<String> uploaded = new ArrayList<>();
+        try {
+            for (int i = 0; i < commands.size(); i++) {
+                Messages.Command command = commands.get(i);
+                byte[] content = command.op == Messages.PUT ? command.value.getBytes(StandardCharsets.UTF_8) : null;
+                if (content != null && content.length > blobThreshold) {
+                    Messages.BlobRef ref = new Messages.BlobRef(content.length, BlobStore.digest(content));
+                    proposedBlobs.put(ref.digest, content);
+                    uploaded.add(ref.digest);
+                    if (!uploadBlob(ref, content)) {
+                        responses[i] = Messages.response(Messages.NO_QUORUM, null);
+                        continue;
+                    }
+                    command = new Messages.Command(Messages.PUT_BLOB, command.key, ref.encode());
+                }
+                positions[proposed.size()] = i;
+                proposed.add(command);
+            }
+            if (!proposed.isEmpty()) {
+                List<byte[]> results = proposeCommands(proposer, proposed);
+                for (int i = 0; i < proposed.size(); i++) {
+                    responses[positions[i]] = results.get(i);
+                }
+            }
+        } finally {
+            for (String digest : uploaded) {
+                proposedBlobs.remove(digest);
+            }
+        }
+        return Arrays.asList(responses);
+    }
+
+    // 分块并发传给所有副本，多数派确认存好（摘要也对上）就返回；其余的在后台传完
+    private boolean uploadBlob(Messages.BlobRef ref, byte[] content) {
+        long startNanos = System.nanoTime();
+        List<byte[]> chunks = new ArrayList<>(content.length / blobChunkBytes + 1);
+        for (int offset = 0; offset < content.length; offset += blobChunkBytes) {
+            chunks.add(Arrays.copyOfRange(content, offset, Math.min(content.length, offset + blobChunkBytes)));
+        }
+        List<RMIInterface> stubs = new ArrayList<>(serverStubs);
+        int majority = stubs.size() / 2 + 1;
+        List<byte[]> responses = fanOutToQuorum(stubs, stub -> sendBlob(bulkChannel(stub), ref, chunks), Messages::isGranted, majority);
+        int stored = 0;
+        for (byte[] response : responses) {
+            if (Messages.isGranted(response)) {
+                stored++;
+            }
+        }
+        Metrics.BLOB_UPLOAD.record(System.nanoTime() - startNanos);
+        if (stored < majority) {
+            EventJournal.emit(EventJournal.Event.BLOB_UPLOAD_FAILED, stored, stubs.size(), ref.digest);
+            return false;
+        }
+        return true;
+    }
+
+    // 按顺序发一个副本的全部分块；副本已经有这个值的话第一块的回复就是完整大小
+    private byte[] sendBlob(RMIInterface stub, Messages.BlobRef ref, List<byte[]> chunks) throws RemoteException {
+        long offset = 0;
+        for (byte[] chunk : chunks) {
+            long held = stub.storeBlobChunk(ref.digest, ref.size, offset, chunk);
+            Metrics.BLOB_BYTES_SENT.add(chunk.length);
+            if (held < 0 || held == ref.size) {
+                return Messages.ack(held == ref.size, 0);
+            }
+            offset += chunk.length;
+        }
+        return Messages.ack(false, 0);
+    }
+
+    /**
+     * Fetches a large value for a replica or the learner that did not receive it before its slot
+     * was chosen, from this process's replica first and then the others.
+     *
+     * @param ref The value's reference.
+     * @param requester The replica asking, which is not asked itself, or {@code null} for the learner.
+     * @return The value, checked against its digest, or {@code null} if no reachable replica holds it.
+     */
+    byte[] fetchBlob(Messages.BlobRef ref, RMIInterface requester) {
+        byte[] proposing = proposedBlobs.get(ref.digest);
+        if (proposing != null) {
+            return proposing;
+        }
+        if (ref.size > Integer.MAX_VALUE - 8) {
+            return null;
+        }
+        Metrics.BLOB_FETCHES.increment();
+        List<RMIInterface> sources = new ArrayList<>(serverStubs);
+        RMIInterface local = localReplica;
+        if (local != null && sources.remove(local)) {
+            sources.add(0, local);
+        }
+        for (RMIInterface stub : sources) {
+            if (stub == requester || placeholders.contains(stub)) {
+                continue;
+            }
+            try {
+                byte[] content = readBlob(bulkChannel(stub), ref);
+                if (content != null) {
+                    return content;
+                }
+            } catch (RemoteException e) {
+                // 这个副本联系不上，换下一个
+            }
+        }
+        return null;
+    }
+
+    private byte[] readBlob(RMIInterface stub, Messages.BlobRef ref) throws RemoteException {
+        byte[] content = new byte[(int) ref.size];
+        int offset = 0;
+        while (offset < content.length) {
+            byte[] chunk = stub.fetchBlobChunk(ref.digest, offset, Math.min(blobChunkBytes, content.length - offset));
+            if (chunk.length == 0 || chunk.length > content.length - offset) {
+                return null;
+            }
+            System.arraycopy(chunk, 0, content, offset, chunk.length);
+            offset += chunk.length;
+        }
+        return BlobStore.digest(content).equals(ref.digest) ? content : null;
+    }
+
+    // 集群部署时大值走每个成员单独的一条连接；进程内的副本直接调用
+    private RMIInterface bulkChannel(RMIInterface stub) {
+        if (clusterFile == null || stub == localReplica || placeholders.contains(stub)) {
+            return stub;
+        }
+        RMIInterface bulk = bulkStubs.get(stub);
+        if (bulk != null) {
+            return bulk;
+        }
+        for (Membership.Member member : membership.members()) {
+            if (memberStubs.get(member.id) == stub) {
+                try {
+                    bulk = transport.connectBulk(member.host, member.port, shardMap.nameOf(member.port));
+                } catch (RemoteException e) {
+                    return stub;
+                }
+                RMIInterface raced = bulkStubs.putIfAbsent(stub, bulk);
+                return raced != null ? raced : bulk;
+            }
+        }
+        return stub;
+    }
+
+    private long nextBallotAfterPrepare() throws RemoteException {
+        int stale = 0;
+        for (int attempt = 0; ; ) {
+            long ballot = ballots.next();
+            // prepare 成功时会先把之前被接受但没完成的槽位补完
+            String response = prepare(ballot);
+            if (response.equals(PREPARED)) {
+                return ballot;
+            }
+            if (response.equals(STALE_LEARNER)) {
+                // learner 刚追上或者成员刚变更：用新的状态马上重新 prepare
+                if (++stale > MAX_STALE_PREPARES) {
+                    return -1;
+                }
+                continue;
+            }
+            // 另一个成员是 leader 的话不和它抢，调用方把请求转给它
+            if (remoteLeader != null) {
+                return -1;
+            }
+            // 输给了更高的提案号才退避重试；只是联系不上多数派的话重试也没用
+            if (!ballots.preempted(ballot) || !backoff.pause(attempt++)) {
+                return -1;
+            }
+            Metrics.PROPOSAL_RETRIES.increment();
+        }
+    }
+
+    /**
+     * Proposes a value in classic mode: a fresh prepare, then an accept. When a competing proposer
+     * preempts the accept, the value is retried under a higher ballot after a randomized backoff.
+     * A preempted value may still have been accepted by some acceptors, so before it is proposed
+     * again the slot it was first proposed in must be decided: each retry's prepare completes that
+     * slot, and if it ends up holding this very value its results are returned instead.
+     *
+     * @param value The encoded batch of commands.
+     * @return Whether each command was applied, or {@code null} if no majority could be reached.
+     * @throws RemoteException If a remote method call fails.
+     */
+    private boolean[] classicRound(byte[] value) throws RemoteException {
+        long[] slot = new long[1];
+        // 被抢占的那一轮用的槽位：决定之前不能在新槽位里再提一次，否则同一批命令可能被应用两次
+        long pending = -1;
+        CompletableFuture<boolean[]> pendingResult = null;
+        long ballot = nextBallotAfterPrepare();
+        for (int attempt = 0; ballot > 0; attempt++) {
+            if (pending >= 0) {
+                byte[] chosen = learnedProposals.get(pending);
+                if (chosen != null && Arrays.equals(chosen, value)) {
+                    try {
+                        return pendingResult.get(quorumTimeoutMillis, TimeUnit.MILLISECONDS);
+                    } catch (Exception e) {
+                        return null;
+                    }
+                }
+                if (chosen == null) {
+                    // 还没决定：再退避一次，下一次 prepare 会接着补这个槽位
+                    if (!backoff.pause(attempt)) {
+                        return null;
+                    }
+                    Metrics.PROPOSAL_RETRIES.increment();
+                    ballot = nextBallotAfterPrepare();
+                    continue;
+                }
+                pending = -1;  // 槽位选了别的值，这批命令没有生效，可以放心重提
+            }
+            boolean[] applied = runInstance(ballot, value, slot);
+            if (applied != null || slot[0] < 0 || !ballots.preempted(ballot)) {
+                return applied;
+            }
+            // 先登记等待，槽位如果被之后的 prepare 用这个值补完，结果从这里拿
+            pending = slot[0];
+            pendingResult = learnerLog.whenApplied(pending);
+            if (!backoff.pause(attempt)) {
+                return null;
+            }
+            Metrics.PROPOSAL_RETRIES.increment();
+            ballot = nextBallotAfterPrepare();
+        }
+        return null;
+    }
 
-/**
- * RMIServer is the server for the RMI dictionary service.
- */
-public class RMIServer {
+    // group commit：整批命令作为一个值跑一轮共识，学到之后按命令分别给出结果
+    private List<byte[]> proposeBatch(RMIInterface proposer, List<Messages.Command> commands) throws RemoteException {
+        byte[] value = Messages.encodeBatch(commands);
+        boolean[] applied;
+        if (multiPaxos) {
+            applied = leaderRound(proposer, value);
+        } else {
+            // 同一节点的经典轮次排队：本地的提案者互相抢占只会让大家都失败，和其他节点的竞争靠随机退避解决
+            classicLock.lock();
+            try {
+                applied = classicRound(value);
+            } finally {
+                classicLock.unlock();
+            }
+        }
 
-    private ArrayList<RMIInterface> serverStubs;
-    private int proposalNumber = 1;
-    private HashMap<RMIInterface, Integer> portStubMap = new HashMap<>();
+        List<byte[]> results = new ArrayList<>(commands.size());
+        for (int i = 0; i < commands.size(); i++) {
+            if (applied == null) {
+                results.add(Messages.response(Messages.NO_QUORUM, null));
+            } else if (applied == ReplicatedLog.APPLIED_WITHOUT_RESULTS || applied[i]) {
+                // 没有单条结果的槽位（比如装快照时跳过的）也已经选定了：回失败的话客户端重试，会把已经生效的写再做一遍
+                results.add(Messages.response(Messages.OK, null));
+            } else {
+                // 已经选定但和之前的命令冲突，没有生效
+                results.add(Messages.response(Messages.CONFLICT, null));
+            }
+        }
+        return results;
+    }
 
     /**
-     * constructor
+     * How long a lease granted to the leader lasts.
+     *
+     * @return The lease duration in milliseconds.
      */
-    public RMIServer() {
-        serverStubs = new ArrayList<>();
+    public long leaseMillis() {
+        return leaseMillis;
     }
 
     /**
-     * The main method that starts the RMIServer.
+     * Returns the log index a linearizable read must observe. If the leader holds a valid lease
+     * this costs nothing; otherwise leadership is confirmed with one quorum round first (electing
+     * {@code reader} if there is no leader at all).
      *
-     * @param args Command line arguments (not used in this implementation).
+     * @param reader The replica serving the read.
+     * @return The last slot applied by the learner, or -1 if leadership could not be confirmed.
+     * @throws RemoteException If a remote method call fails.
      */
-    public static void main(String[] args) {
-        RMIServer server = new RMIServer(); // 创建 RMIServer 实例
-        server.startServers(); // 启动服务器
+    public long readIndex(RMIInterface reader) throws RemoteException {
+        if (!isVoter()) {
+            return -1;
+        }
+        long ballot = leaderBallot;
+        if (ballot <= 0) {
+            ballot = electLeader(reader, ballot);
+            if (ballot <= 0) {
+                return -1;
+            }
+        }
+        if (leaseBallot != ballot || System.nanoTime() >= leaseExpiryNanos) {
+            if (!renewLease(ballot)) {
+                return -1;
+            }
+        }
+        return learnerLog.nextToApply() - 1;
+    }
+
+    // 向多数派续租；租约从发出请求之前开始算，所以 leader 认为的到期时间一定早于副本上的
+    private boolean renewLease(long ballot) {
+        long start = System.nanoTime();
+        List<RMIInterface> stubs = new ArrayList<>(serverStubs);
+        int majority = stubs.size() / 2 + 1;
+        List<byte[]> responses = fanOutToQuorum(stubs, stub -> stub.grantLease(ballot), Messages::isGranted, majority);
+        int granted = 0;
+        for (byte[] response : responses) {
+            if (Messages.isGranted(response)) {
+                granted++;
+            }
+        }
+        if (granted < majority) {
+            synchronized (this) {
+                if (leaderBallot == ballot) {
+                    leaderBallot = -1;
+                }
+            }
+            return false;
+        }
+        leaseBallot = ballot;
+        leaseExpiryNanos = start + TimeUnit.MILLISECONDS.toNanos(leaseMillis * 9 / 10);
+        return true;
     }
+
+    private void startLeaseRenewal() {
+        ScheduledExecutorService renewer = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread t = new Thread(r, "lease-renewal");
+            t.setDaemon(true);
+            return t;
+        });
+        renewer.scheduleAtFixedRate(() -> {
+            long ballot = leaderBallot;
+            if (ballot > 0) {
+                renewLease(ballot);
+            }
+        }, leaseMillis / 3, leaseMillis / 3, TimeUnit.MILLISECONDS);
+    }
+
     /**
-     * Starts multiple RMI server instances, each on a different port, and binds remote objects to the RMI registry.
+     * Marks the given replica as failed; if it was the leader, the next write elects a new one.
+     *
+     * @param failed The replica that could not be reached.
      */
-    public void startServers() {
-        int port = 2000;
-        for (int i = 0; i < 5; i++) {
+    public synchronized void leaderFailed(RMIInterface failed) {
+        if (leader == failed) {
+            leaderBallot = -1;
+            leader = null;
+        }
+        if (remoteLeader == failed) {
+            remoteLeader = null;
+            failedLeader = failed;
+        }
+    }
+
+    // 选主：只有领导权变化时才跑一次完整的 prepare。
+    // 用 ReentrantLock 而不是 synchronized：选主要等一轮 prepare，等待的可能是虚拟线程，
+    // 在 monitor 里阻塞会钉住载体线程，而 NIO 传输下 prepare 本身也要在虚拟线程上处理
+    private long electLeader(RMIInterface candidate, long staleBallot) throws RemoteException {
+        electionLock.lock();
+        try {
+            if (leaderBallot > 0 && leaderBallot != staleBallot) {
+                return leaderBallot;  // 别的线程已经重新选好了 leader
+            }
+            // 先把之前被接受但没完成的值提交掉，再开始处理新命令
+            long ballot = nextBallotAfterPrepare();
+            if (ballot <= 0) {
+                return -1;
+            }
+            synchronized (this) {
+                leader = candidate;
+                leaderBallot = ballot;
+                remoteLeader = null;
+            }
+            renewLease(ballot);
+            EventJournal.emit(EventJournal.Event.LEADER_ELECTED, portStubMap.get(candidate), ballot);
+            return ballot;
+        } finally {
+            electionLock.unlock();
+        }
+    }
+
+    /**
+     * Sends the same call to every replica concurrently and waits only until a quorum is decided:
+     * either {@code quorum} replicas answered positively, or so many answered negatively that a
+     * quorum can no longer be reached, or the quorum timeout expired. Answers that arrive after
+     * that point are handled in the background and never delay the caller.
+     *
+     * @param stubs The replicas of this round, a snapshot of the current members.
+     * @param call The remote call to make against each replica.
+     * @param granted Decides whether a response counts towards the quorum.
+     * @param quorum The number of positive responses needed.
+     * @return The responses received before the round was decided, in arrival order; a replica
+     *         that could not be reached is represented by an empty array.
+     */
+    List<byte[]> fanOutToQuorum(List<RMIInterface> stubs, RemoteCall call, java.util.function.Predicate<byte[]> granted, int quorum) {
+        LinkedBlockingQueue<byte[]> answers = new LinkedBlockingQueue<>();
+        AtomicBoolean decided = new AtomicBoolean(false);
+
+        for (RMIInterface stub : stubs) {
+            CompletableFuture.supplyAsync(() -> {
+                try {
+                    return call.call(stub);
+                } catch (RemoteException e) {
+                    EventJournal.emit(EventJournal.Event.REPLICA_CALL_FAILED, portStubMap.get(stub), e);
+                    return NO_ANSWER;
+                }
+            }, quorumExecutor).whenComplete((response, error) -> {
+                if (error != null) {
+                    response = NO_ANSWER;
+                }
+                if (decided.get()) {
+                    // 迟到的回复：轮次已经结束，只记录失败
+                    if (!granted.test(response)) {
+                        if (response.length == 0) {
+                            EventJournal.emit(EventJournal.Event.LATE_UNREACHABLE, portStubMap.get(stub));
+                        } else {
+                            EventJournal.emit(EventJournal.Event.LATE_REFUSAL, portStubMap.get(stub), Messages.ballotOf(response));
+                        }
+                    }
+                    return;
+                }
+                answers.offer(response);
+            });
+        }
+
+        List<byte[]> responses = new ArrayList<>();
+        int positive = 0;
+        int negative = 0;
+        long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(quorumTimeoutMillis);
+        try {
+            while (positive < quorum && negative <= stubs.size() - quorum) {
+                long remaining = deadline - System.nanoTime();
+                byte[] response = answers.poll(remaining, TimeUnit.NANOSECONDS);
+                if (response == null) {
+                    break;
+                }
+                responses.add(response);
+                if (granted.test(response)) {
+                    positive++;
+                } else {
+                    negative++;
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } finally {
+            decided.set(true);
+        }
+        return responses;
+    }
+
+    // learner 学到的值只留最近 learnedWindow 个已应用的槽位：失效通知、心跳补发和追赶只用到这一段，
+    // 更早的状态在字典和快照里
+    private final ConcurrentSkipListMap<Long, byte[]> learnedProposals = new ConcurrentSkipListMap<>();
+    private final int learnedWindow = Math.max(Math.max(INVALIDATION_SLOTS_PER_POLL, REPLAY_SLOTS),
+            Integer.getInteger("paxos.learner.retainSlots", 4096));
+    private final KeyValueStore commonDictionary = KeyValueStore.fromConfig();
+    private final MerkleTree commonMerkle = new MerkleTree(Integer.getInteger("paxos.merkle.depth", 12));
+    // learner 端的日志：槽位可以乱序选定，但严格按槽位顺序应用到 commonDictionary
+    private final ReplicatedLog learnerLog = new ReplicatedLog(0, this::applyLearned);
+    // PUT_BLOB 引用的大值，交给 learner 日志之前按槽位取好，应用之后丢掉
+    private final ConcurrentSkipListMap<Long, Map<String, byte[]>> learnerBlobs = new ConcurrentSkipListMap<>();
+
+    // 一次失效通知最多覆盖的槽位数，落后很多的客户端分几次追上
+    private static final int INVALIDATION_SLOTS_PER_POLL = 1024;
+
+    /**
+     * Returns the keys written by the slots the learner applied after {@code afterSlot}, for
+     * clients that cache values. If there are none yet, waits up to {@code waitMillis} for the
+     * next slot to be applied. A caller that is starting, is ahead of the learner (e.g. the server
+     * restarted without a data directory), or asks for slots the learner did not learn itself
+     * (they came with a recovered snapshot) or no longer keeps (more than
+     * {@code paxos.learner.retainSlots} behind) gets a reset at the current slot instead.
+     *
+     * @param afterSlot The last slot the caller has seen, or -1 to start.
+     * @param waitMillis How long to wait for a new slot when the caller is up to date.
+     * @return Encoded {@link Messages.Invalidations}.
+     */
+    public byte[] invalidationsAfter(long afterSlot, long waitMillis) {
+        long applied = learnerLog.nextToApply() - 1;
+        if (afterSlot >= 0 && afterSlot == applied && waitMillis > 0) {
             try {
-                RMIInterface obj = new RMIImplement(this, port); // 使用 server 实例
-                java.rmi.registry.Registry registry = java.rmi.registry.LocateRegistry.createRegistry(port);
-                registry.bind("RMIDictionary" + i, obj);
-                System.out.println("RMIServer: Server ready on port " + port);
-                portStubMap.put(obj, port);  // 存储stub和端口的映射
-                serverStubs.add(obj); // 将远程对象引用添加到列表中
-                port++;
+                learnerLog.whenApplied(afterSlot + 1).get(waitMillis, TimeUnit.MILLISECONDS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
             } catch (Exception e) {
-                System.out.println("RMIServer exception: can't start the server.\n" + e.toString());
+                // 等待超时：没有新的写，返回空的通知
             }
+            applied = learnerLog.nextToApply() - 1;
         }
-        startHeartbeat();
+        if (afterSlot < 0 || afterSlot > applied) {
+            return new Messages.Invalidations(applied, true, Collections.emptyList()).encode();
+        }
+        long through = Math.min(applied, afterSlot + INVALIDATION_SLOTS_PER_POLL);
+        Set<String> keys = new LinkedHashSet<>();
+        long expected = afterSlot + 1;
+        for (Map.Entry<Long, byte[]> entry : learnedProposals.subMap(afterSlot, false, through, true).entrySet()) {
+            if (entry.getKey() != expected) {
+                break;
+            }
+            for (Messages.Command command : Messages.decodeBatch(entry.getValue())) {
+                if (command.op != Messages.CONFIG) {
+                    keys.add(command.key);
+                }
+            }
+            expected++;
+        }
+        if (expected != through + 1) {
+            return new Messages.Invalidations(applied, true, Collections.emptyList()).encode();
+        }
+        return new Messages.Invalidations(through, false, keys).encode();
     }
-    public String prepare() throws RemoteException {
-        String responseForClient = null;
-        int proposalNumber = this.proposalNumber;
-        this.proposalNumber++;
-        int countPromises = 0;  // 用于计数承诺的数量
-        int totalStubs = serverStubs.size();  // 总的实例数量
-        String promiseInfoFromStub;
-        promiseInfoFromStub = null;
-
-        String specialMessage = null;
 
-        for (RMIInterface stub : serverStubs) {
-            // 发送 prepare 请求并获取响应
-            String response = stub.promise(proposalNumber);
-            String[] responseParts = response.split(" ");  // 解析响应
+    // Learner 学习提案的方法；等到这个槽位按顺序应用之后，返回批次里每条命令是否真正生效
+    private boolean[] learn(long slot, byte[] proposalValue) {
+        long startNanos = System.nanoTime();
+        try {
+            // 存储提案
+            learnedProposals.put(slot, proposalValue);
+            prefetchLearnerBlobs(slot, proposalValue);
+            // 先登记等待再提交，槽位连续的话 commit 里就直接应用了
+            CompletableFuture<boolean[]> applied = learnerLog.whenApplied(slot);
+            learnerLog.commit(slot, proposalValue);
 
-            if (responseParts[0].equals("false")){
-                continue;
-            } else if (responseParts[0].equals("true") && (responseParts.length == 2)) {
-                countPromises++;
-            } else if (responseParts[0].equals("true") && (responseParts.length == 4)) {
-                countPromises++;
-                specialMessage = responseParts[3];
-            } else {
-                specialMessage = "something wrong";
+            // 通知所有副本这个槽位已经选定，副本也按槽位顺序应用
+            for (RMIInterface stub : new ArrayList<>(serverStubs)) {
+                quorumExecutor.execute(() -> {
+                    try {
+                        stub.commit(slot, proposalValue);
+                    } catch (RemoteException e) {
+                        EventJournal.emit(EventJournal.Event.COMMIT_SEND_FAILED, slot, portStubMap.get(stub));
+                    }
+                });
             }
 
+            try {
+                return applied.get(quorumTimeoutMillis, TimeUnit.MILLISECONDS);
+            } catch (Exception e) {
+                // 前面还有没补上的空洞，结果要等下一次 prepare 之后才知道
+                EventJournal.emit(EventJournal.Event.LEARNED_WAITING, slot);
+                return null;
+            }
+        } finally {
+            Metrics.LEARN.record(System.nanoTime() - startNanos);
         }
-        if ((countPromises > totalStubs / 2) && specialMessage==null){
-            responseForClient = "got promise success from most acceptors";
-        } else if (countPromises <= totalStubs / 2) {
-            responseForClient = "didn't got promise from majority.";
-        } else {
-            responseForClient = "got promise success from most acceptors, but need to change to:"+specialMessage;
+    }
+
+    /**
+     * Learns a value chosen by another member's proposer, as it is committed to this process's
+     * replica. Only used in a cluster, where every process has its own learner; in-process the
+     * learner has learned every value before it is committed to the replicas.
+     *
+     * @param replica The replica the value was committed to.
+     * @param slot The chosen slot.
+     * @param value The chosen value.
+     */
+    void learnCommitted(RMIInterface replica, long slot, byte[] value) {
+        if (replica != localReplica || learnerLog.isCommitted(slot)) {
+            return;
         }
+        learnedProposals.putIfAbsent(slot, value);
+        nextSlot.accumulateAndGet(slot + 1, Math::max);
+        prefetchLearnerBlobs(slot, value);
+        learnerLog.commit(slot, value);
+    }
 
-        // 判断是否获得了大多数的承诺
-        return responseForClient;
+    // 应用在 learner 日志锁里进行，不能在那里走网络：大值在提交之前取好
+    private void prefetchLearnerBlobs(long slot, byte[] value) {
+        if (learnerLog.isCommitted(slot)) {
+            return;
+        }
+        for (Messages.BlobRef ref : Messages.blobRefs(value)) {
+            byte[] content = fetchBlob(ref, null);
+            if (content != null) {
+                learnerBlobs.computeIfAbsent(slot, s -> new ConcurrentHashMap<>()).put(ref.digest, content);
+            }
+        }
     }
 
-    public String accept(int promisedNum, String command) throws RemoteException {
-        StringBuilder responseForClient = new StringBuilder();
-        int acceptCount = 0; // 计数器，用于记录成功接受并完成的服务器数量
+    /**
+     * Moves the learner to the snapshot this process's replica was just rebuilt from, if the
+     * learner is behind it, e.g. a new member that was sent the group's state. Only used in a
+     * cluster. The slots chosen after the snapshot reach the learner through {@link #learnCommitted}.
+     *
+     * @param replica The replica that caught up.
+     * @param snapshotSlot The slot the snapshot reflects.
+     * @param state A copy of the snapshot.
+     */
+    void replicaCaughtUp(RMIInterface replica, long snapshotSlot, KeyValueStore state) {
+        if (replica != localReplica || snapshotSlot < learnerLog.nextToApply()) {
+            return;
+        }
+        learnerLog.skipTo(snapshotSlot + 1, () -> installLearnerState(state::forEach));
+        learnerBlobs.headMap(snapshotSlot, true).clear();
+        learnedProposals.headMap(snapshotSlot, true).clear();
+        nextSlot.accumulateAndGet(snapshotSlot + 1, Math::max);
+        // 快照里可能包含了成员变更，向其他成员要一份最新的成员列表
+        catchUpExecutor.execute(this::refreshMembership);
+    }
 
-        for (RMIInterface stub : serverStubs) {
+    private void refreshMembership() {
+        for (RMIInterface stub : new ArrayList<>(serverStubs)) {
+            if (stub == localReplica || placeholders.contains(stub)) {
+                continue;
+            }
             try {
-                // Assuming command is a string like "key value operation"
-                String response = stub.accepted(promisedNum, command);
-                if (response.endsWith(" done")) { // 检查服务器返回的响应是否以 "数字 done" 结尾
-                    acceptCount++; // 如果是，计数+1
-                }
-                responseForClient.append(" ").append(response);
+                switchMembership(Membership.decode(stub.membership()));
             } catch (RemoteException e) {
-                responseForClient.append(" Error contacting server: ").append(e.getMessage());
+                EventJournal.emit(EventJournal.Event.REPLICA_CALL_FAILED, portStubMap.get(stub), e);
             }
         }
+    }
 
-        // 如果接受的服务器数量达到或超过3个，执行学习
-        if (acceptCount >= 3) {
-            learn(promisedNum, command);
+    /**
+     * Proposes adding or removing one member. The new membership goes through the replicated log
+     * as a {@link Messages#CONFIG} command, so every learner switches to it at the same slot; an
+     * added member is then rebuilt from a snapshot.
+     *
+     * @param proposer The replica that received the request.
+     * @param id The member to add or remove.
+     * @param address The new member's {@code host:port}, or {@code null} to remove the member.
+     * @return An encoded response: {@code OK}, {@code CONFLICT} with the reason, or {@code BUSY}.
+     * @throws RemoteException If the change could not be proposed.
+     */
+    public byte[] changeMembership(RMIInterface proposer, int id, String address) throws RemoteException {
+        if (!membershipLock.tryLock()) {
+            return Messages.response(Messages.BUSY, null);
+        }
+        try {
+            Membership next;
+            try {
+                next = address == null ? membership.without(id) : membership.with(id, address);
+                Membership.Member added = next.member(id);
+                if (clusterFile == null && added != null && shardMap.count() > 1 && portStolen(added.port)) {
+                    throw new IllegalArgumentException("Port " + added.port + " belongs to another shard");
+                }
+            } catch (IllegalArgumentException e) {
+                return Messages.response(Messages.CONFLICT, e.getMessage());
+            }
+            byte[] result = propose(proposer, new Messages.Command(Messages.CONFIG, "", next.encode()));
+            if (Messages.statusOf(result) == Messages.OK && address != null) {
+                // 新成员连上之后从快照追上；在那之前它暂停应用，读转给已经追上的副本。连不上的由心跳再连
+                membershipExecutor.execute(() -> {
+                    RMIInterface added = memberStubs.get(id);
+                    if (added != null && added != localReplica && !placeholders.contains(added)) {
+                        startCatchUp(added, portStubMap.get(added));
+                    }
+                });
+            }
+            return result;
+        } finally {
+            membershipLock.unlock();
         }
+    }
 
-        return responseForClient.toString();
+    private boolean portStolen(int port) {
+        return port >= ShardMap.BASE_PORT && port < ShardMap.BASE_PORT + shardMap.count() * ShardMap.REPLICAS_PER_SHARD
+                && shardMap.shardOfPort(port) != shard;
     }
 
-    private ConcurrentHashMap<Integer, String> learnedProposals = new ConcurrentHashMap<>();
-    private ConcurrentHashMap<String, String> commonDictionary = new ConcurrentHashMap<>();
+    /**
+     * Switches to a newer membership. Removed members are dropped from the replica list at once,
+     * and every quorum round started afterwards counts a majority of the new members. New members
+     * start out as unreachable placeholders; they are connected (or, in-process, created in this
+     * JVM) in the background, and in a cluster the file is rewritten there too, so applying a
+     * change never waits for the network or the disk. A member that cannot be connected is retried
+     * by the heartbeat. Memberships that are not newer than the current one are ignored.
+     *
+     * @param next The membership to switch to.
+     * @return {@code true} if the membership changed.
+     */
+    private boolean switchMembership(Membership next) {
+        List<Membership.Member> joined = new ArrayList<>();
+        switchLock.lock();
+        try {
+            Membership current = membership;
+            if (next.epoch() <= current.epoch()) {
+                return false;
+            }
+            int self = ballots.nodeId();
+            for (Membership.Member member : current.members()) {
+                Membership.Member kept = next.member(member.id);
+                if (kept == null || !kept.address().equals(member.address())) {
+                    RMIInterface stub = memberStubs.remove(member.id);
+                    if (stub != null) {
+                        serverStubs.remove(stub);
+                        placeholders.remove(stub);
+                        bulkStubs.remove(stub);
+                        if (stub != localReplica) {
+                            portStubMap.remove(stub);
+                        }
+                        leaderFailed(stub);
+                    }
+                }
+            }
+            for (Membership.Member member : next.members()) {
+                if (memberStubs.containsKey(member.id)) {
+                    continue;
+                }
+                if (clusterFile != null && member.id == self && localReplica != null) {
+                    addStub(member, localReplica);
+                } else {
+                    addStub(member, unreachable(member));
+                    joined.add(member);
+                }
+            }
+            membership = next;
+            if (clusterFile != null && !next.contains(self)) {
+                // 自己被删掉了：不再当 leader，也不再提案
+                synchronized (this) {
+                    leaderBallot = -1;
+                    leader = null;
+                }
+            }
+        } finally {
+            switchLock.unlock();
+        }
+        membershipExecutor.execute(() -> connectJoined(next, joined));
+        EventJournal.emit(EventJournal.Event.MEMBERSHIP_CHANGED, next.epoch(), next.size());
+        return true;
+    }
 
-    // Learner 学习提案的方法
-    private void learn(int proposalNum, String proposalValue) {
-        // 存储提案
-        learnedProposals.put(proposalNum, proposalValue);
+    // 后台：换掉新成员的占位，再把成员列表写进集群文件；连不上的成员留着占位，等心跳再连
+    private void connectJoined(Membership next, List<Membership.Member> joined) {
+        for (Membership.Member member : joined) {
+            RMIInterface placeholder = memberStubs.get(member.id);
+            if (placeholder == null || !placeholders.contains(placeholder)) {
+                continue;  // 之后的变更已经删掉了它
+            }
+            RMIInterface fresh = clusterFile == null ? hostInProcess(member) : connectMember(member);
+            if (!placeholders.remove(fresh)) {
+                replaceStub(member, placeholder, fresh);
+            }
+        }
+        // 更新的成员列表会由它自己的任务写
+        if (clusterFile != null && membership.epoch() == next.epoch()) {
+            try {
+                next.store(clusterFile);
+            } catch (IOException e) {
+                EventJournal.emit(EventJournal.Event.MEMBERSHIP_STORE_FAILED, next.epoch(), e);
+            }
+        }
+    }
 
-        // 解析提案值
-        String[] parts = proposalValue.split(" ");
-        if (parts.length != 3) {
-            System.out.println(proposalNum + " Invalid command format. Expected format: 'key value operation'");
-            return;
+    private boolean[] applyLearned(long slot, byte[] proposalValue) {
+        Messages.Command[] commands = Messages.decodeBatch(proposalValue);
+        boolean[] applied = new boolean[commands.length];
+        for (int i = 0; i < commands.length; i++) {
+            applied[i] = applyToCommonDictionary(slot, commands[i]);
         }
+        learnerBlobs.remove(slot);
+        learnedProposals.headMap(slot - learnedWindow, true).clear();
 
-        String key = parts[0];
-        String value = parts[1];
-        String operation = parts[2];
+        // 打印已学习提案的信息
+        EventJournal.emit(EventJournal.Event.LEARNED, slot, commands.length);
+        return applied;
+    }
 
-        // 根据操作类型更新字典
-        switch (operation.toLowerCase()) {
-            case "put":
-                commonDictionary.put(key, value);
-                System.out.println("Performed PUT operation: Key = " + key + ", Value = " + value);
-                break;
-            case "delete":
-                if (commonDictionary.containsKey(key)) {
-                    commonDictionary.remove(key);
-                    System.out.println("Performed DELETE operation: Key = " + key);
-                } else {
-                    System.out.println("Attempted to DELETE non-existent key: " + key);
+    private boolean applyToCommonDictionary(long proposalNum, Messages.Command command) {
+        String key = command.key;
+        String value = command.value;
+
+        // 根据操作类型更新字典；和副本的检查一致：PUT 只插入不存在的键，DELETE 只删除存在的键
+        switch (command.op) {
+            case Messages.PUT:
+                if (commonDictionary.putIfAbsent(key, value) != null) {
+                    EventJournal.emit(EventJournal.Event.PUT_EXISTING, key);
+                    return false;
+                }
+                commonMerkle.added(key, value);
+                EventJournal.emit(EventJournal.Event.PERFORMED_PUT, key, value);
+                return true;
+            case Messages.PUT_BLOB:
+                // 日志里只有引用：大值在提交之前已经取好，再和 PUT 一样应用
+                Messages.BlobRef ref = Messages.BlobRef.decode(value);
+                Map<String, byte[]> fetched = learnerBlobs.get(proposalNum);
+                byte[] content = fetched != null ? fetched.get(ref.digest) : null;
+                if (content == null) {
+                    EventJournal.emit(EventJournal.Event.BLOB_MISSING, ref.digest, proposalNum);
+                    if (clusterFile != null) {
+                        // 其他成员应用过这个槽位之后，从最新的成员追上
+                        catchUpExecutor.execute(this::catchUpLearner);
+                    }
+                    return false;
+                }
+                String blobValue = new String(content, StandardCharsets.UTF_8);
+                if (commonDictionary.putIfAbsent(key, blobValue) != null) {
+                    EventJournal.emit(EventJournal.Event.PUT_EXISTING, key);
+                    return false;
+                }
+                commonMerkle.added(key, blobValue);
+                EventJournal.emit(EventJournal.Event.PERFORMED_PUT, key, ref);
+                return true;
+            case Messages.DELETE:
+                String removed = commonDictionary.remove(key);
+                if (removed != null) {
+                    commonMerkle.removed(key, removed);
+                    EventJournal.emit(EventJournal.Event.PERFORMED_DELETE, key);
+                    return true;
+                }
+                EventJournal.emit(EventJournal.Event.DELETE_MISSING, key);
+                return false;
+            case Messages.CONFIG:
+                // 按日志顺序换成员；同一个纪元的并发变更只有先选定的那个生效
+                try {
+                    return switchMembership(Membership.decode(value));
+                } catch (IllegalArgumentException e) {
+                    EventJournal.emit(EventJournal.Event.UNKNOWN_OPERATION, command.op, proposalNum);
+                    return false;
                 }
-                break;
             default:
-                System.out.println("Unknown operation '" + operation + "' in proposal #" + proposalNum);
-                break;
+                EventJournal.emit(EventJournal.Event.UNKNOWN_OPERATION, command.op, proposalNum);
+                return false;
         }
-
-        // 打印已学习提案的信息
-        System.out.println("Learned proposal #" + proposalNum + " with value: " + proposalValue);
     }
 
     private Timer heartbeatTimer;
@@ -165,34 +1640,281 @@ public class RMIServer {
         heartbeatTimer.schedule(new TimerTask() {
             @Override
             public void run() {
+                if (clusterFile != null) {
+                    clusterHeartbeat();
+                    return;
+                }
                 portStubMap.forEach((stub, port) -> {
+                    if (checkCatchUp(stub, port)) {
+                        return;
+                    }
                     try {
-                        ConcurrentHashMap<String, String> remoteDictionary = stub.getDictionary();
-                        if (!remoteDictionary.equals(commonDictionary)) {
-                            stub.updateDictionary(commonDictionary);
-                            System.out.println("Updated dictionary on server at port " + port);
-                        }
-                        SimpleDateFormat sdf = new SimpleDateFormat("yyyy-MM-dd HH:mm:ss.SSS");
-                        System.out.println("心跳测试 "+sdf.format(new Date(System.currentTimeMillis())));
+                        antiEntropy(stub, port);
                     } catch (RemoteException e) {
-                        System.out.println("Failed to contact server on port " + port + ", attempting to reconnect.");
-                        reconnectStub(stub, port);
+                        EventJournal.emit(EventJournal.Event.REPLICA_UNREACHABLE, port);
+                        // 和连接新成员在同一个线程上排队，同一个端口不会被两边同时换掉
+                        membershipExecutor.execute(() -> reconnectStub(stub, port));
                     }
                 });
             }
         }, 0, 10000); // 每隔5秒执行一次
     }
 
+    // 还在追赶的副本不做反熵；上一次追赶失败了就重来
+    private boolean checkCatchUp(RMIInterface stub, int port) {
+        CompletableFuture<Void> catchUp = catchUps.get(stub);
+        if (catchUp == null) {
+            return false;
+        }
+        if (catchUp.isCompletedExceptionally()) {
+            startCatchUp(stub, port);
+        }
+        return true;
+    }
+
+    private void antiEntropy(RMIInterface stub, int port) throws RemoteException {
+        long syncStart = System.nanoTime();
+        int repairedBuckets = syncWithReplica(stub);
+        Metrics.HEARTBEAT_SYNC.record(System.nanoTime() - syncStart);
+        Metrics.HEARTBEAT_REPAIRED_BUCKETS.add(repairedBuckets);
+        if (repairedBuckets > 0) {
+            EventJournal.emit(EventJournal.Event.HEARTBEAT_REPAIRED, repairedBuckets, port);
+        }
+        EventJournal.emit(EventJournal.Event.HEARTBEAT, port);
+    }
+
+    /**
+     * The heartbeat of a cluster member. The local replica is compared with this process's learner
+     * as in-process. Every other member is reconnected if it could not be reached, handed a newer
+     * membership if it has one, and sent again the slots it is missing that this learner has,
+     * up to {@value #REPLAY_SLOTS} at a time. A learner that is behind another member and made no
+     * progress since the last heartbeat catches up from the freshest replica.
+     */
+    private void clusterHeartbeat() {
+        long applied = learnerLog.nextToApply() - 1;
+        long peerApplied = -1;
+        for (Membership.Member member : membership.members()) {
+            RMIInterface stub = memberStubs.get(member.id);
+            if (stub == null || stub == localReplica) {
+                continue;
+            }
+            if (placeholders.contains(stub)) {
+                RMIInterface fresh = connectMember(member);
+                if (!placeholders.remove(fresh)) {
+                    replaceStub(member, stub, fresh);
+                    EventJournal.emit(EventJournal.Event.RECONNECTED, member.port);
+                }
+                continue;
+            }
+            if (checkCatchUp(stub, member.port)) {
+                continue;
+            }
+            try {
+                switchMembership(Membership.decode(stub.membership()));
+                long stubApplied = stub.lastAppliedSlot();
+                peerApplied = Math.max(peerApplied, stubApplied);
+                // 对方缺的槽位本进程有的话再提交一次；更早的由它自己的进程从快照追上
+                long through = Math.min(applied, stubApplied + REPLAY_SLOTS);
+                for (long slot = stubApplied + 1; slot <= through; slot++) {
+                    byte[] value = learnedProposals.get(slot);
+                    if (value == null) {
+                        break;
+                    }
+                    stub.commit(slot, value);
+                }
+                EventJournal.emit(EventJournal.Event.HEARTBEAT, member.port);
+            } catch (RemoteException e) {
+                EventJournal.emit(EventJournal.Event.REPLICA_UNREACHABLE, member.port);
+                replaceStub(member, stub, connectMember(member));
+            }
+        }
+        RMIInterface local = localReplica;
+        Integer localPort = local == null ? null : portStubMap.get(local);
+        if (localPort != null && isVoter() && !checkCatchUp(local, localPort)) {
+            try {
+                antiEntropy(local, localPort);
+            } catch (RemoteException e) {
+                EventJournal.emit(EventJournal.Event.REPLICA_UNREACHABLE, localPort);
+            }
+        }
+        if (peerApplied > applied && applied == heartbeatApplied) {
+            EventJournal.emit(EventJournal.Event.LEARNER_BEHIND, applied + 1);
+            catchUpLearner();
+        }
+        heartbeatApplied = applied;
+    }
+
+    /**
+     * Anti-entropy for one replica. The Merkle trees of the learner and the replica are compared
+     * top-down, descending only into subtrees whose digests differ, and then only the entries of
+     * the differing leaf buckets are sent to the replica.
+     *
+     * @param stub The replica to synchronize.
+     * @return The number of buckets that had to be repaired.
+     * @throws RemoteException If the replica cannot be reached.
+     */
+    private int syncWithReplica(RMIInterface stub) throws RemoteException {
+        long[] local = commonMerkle.buildTree();
+        int leafCount = commonMerkle.leafCount();
+        int[] frontier = {1};
+        while (true) {
+            long[] remote = stub.merkleDigests(frontier);
+            Metrics.HEARTBEAT_BYTES.add(4L * frontier.length + 8L * remote.length);
+            int[] mismatched = new int[frontier.length];
+            int count = 0;
+            for (int i = 0; i < frontier.length; i++) {
+                if (remote[i] != local[frontier[i]]) {
+                    mismatched[count++] = frontier[i];
+                }
+            }
+            if (count == 0) {
+                return 0;
+            }
+            if (mismatched[0] >= leafCount) {
+                // 到叶子了：不一致的桶就是要修复的键范围
+                int[] buckets = new int[count];
+                BitSet bucketSet = new BitSet(leafCount);
+                for (int i = 0; i < count; i++) {
+                    buckets[i] = mismatched[i] - leafCount;
+                    bucketSet.set(buckets[i]);
+                }
+                Map<String, String> entries = new HashMap<>();
+                long[] payload = {4L * buckets.length};
+                commonDictionary.forEach((key, value) -> {
+                    if (bucketSet.get(commonMerkle.bucketOf(key))) {
+                        entries.put(key, value);
+                        payload[0] += key.length() + value.length();
+                    }
+                });
+                Metrics.HEARTBEAT_BYTES.add(payload[0]);
+                stub.repairBuckets(buckets, entries);
+                return count;
+            }
+            int[] children = new int[count * 2];
+            for (int i = 0; i < count; i++) {
+                children[2 * i] = 2 * mismatched[i];
+                children[2 * i + 1] = 2 * mismatched[i] + 1;
+            }
+            frontier = children;
+        }
+    }
+
     private void reconnectStub(RMIInterface stub, int port) {
+        if (!portStubMap.containsKey(stub)) {
+            return;  // 排队期间已经换掉或者删掉了
+        }
         try {
-            RMIInterface obj = new RMIImplement(this,port);
-            Registry registry = LocateRegistry.getRegistry(port);
-            registry.rebind("RMIDictionary", obj);
+            leaderFailed(stub);
+            RMIImplement obj = new RMIImplement(this, port, learnerLog.nextToApply());
+            // 注册之前先暂停应用：在装好快照之前，提交到空字典上的结果是错的
+            obj.holdForCatchUp();
+            transport.export(obj, port, shardMap.nameOf(port));
+            int index = serverStubs.indexOf(stub);
+            if (index >= 0) {
+                serverStubs.set(index, obj);
+            }
+            memberStubs.replaceAll((id, current) -> current == stub ? obj : current);
+            portStubMap.remove(stub);
             portStubMap.put(obj, port);  // 更新映射
-            System.out.println("Reconnected to server on port " + port);
+            catchUps.remove(stub);
+            placeholders.remove(stub);
+            EventJournal.emit(EventJournal.Event.RECONNECTED, port);
+            startCatchUp(obj, port);
         } catch (Exception e) {
-            System.out.println("Failed to reconnect to server on port " + port + ". " + e.getMessage());
+            EventJournal.emit(EventJournal.Event.RECONNECT_FAILED, port, e);
+        }
+    }
+
+    private void startCatchUp(RMIInterface stub, int port) {
+        CompletableFuture<Void> done = new CompletableFuture<>();
+        catchUps.put(stub, done);
+        catchUpExecutor.execute(() -> {
+            try {
+                catchUp(stub, port);
+                catchUps.remove(stub, done);
+                done.complete(null);
+            } catch (Exception e) {
+                EventJournal.emit(EventJournal.Event.CATCH_UP_FAILED, port, e);
+                done.completeExceptionally(e);
+            }
+        });
+    }
+
+    /**
+     * Rebuilds a replica from the learner's state without one call carrying the whole dictionary.
+     * The learner copies its dictionary as of its last applied slot, the replica puts its log on
+     * hold, and the copy is streamed in chunks of about {@code paxos.catchup.chunkKB} kilobytes of
+     * UTF-8 keys and values. Then every slot learned after the copy is sent again, so slots whose
+     * commit the replica missed are filled in, and the replica installs the copy and applies the
+     * held slots in order.
+     *
+     * @param stub The replica to rebuild.
+     * @param port The replica's port.
+     * @throws RemoteException If the replica cannot be reached.
+     */
+    private void catchUp(RMIInterface stub, int port) throws RemoteException {
+        long startNanos = System.nanoTime();
+        long[] snapshotSlot = new long[1];
+        // 在 learner 日志锁里拷贝，拷贝期间没有槽位被应用，副本和槽位号是一致的
+        KeyValueStore snapshot = learnerLog.atAppliedSlot(slot -> {
+            snapshotSlot[0] = slot;
+            return commonDictionary.copy();
+        });
+        stub.beginCatchUp(snapshotSlot[0]);
+        Map<String, String> chunk = new HashMap<>();
+        long[] bytes = {0, 0};
+        int[] chunks = {0};
+        try {
+            snapshot.forEach((key, value) -> {
+                chunk.put(key, value);
+                // 按编码后的字节数算，非 ASCII 的数据不会超出块的大小
+                bytes[0] += Messages.utf8Length(key) + Messages.utf8Length(value);
+                if (bytes[0] >= catchUpChunkBytes) {
+                    sendChunk(stub, snapshotSlot[0], chunk, bytes, chunks);
+                }
+            });
+        } catch (UncheckedIOException e) {
+            throw (RemoteException) e.getCause();
+        }
+        if (!chunk.isEmpty()) {
+            sendChunk(stub, snapshotSlot[0], chunk, bytes, chunks);
+        }
+        int replayed = 0;
+        for (Map.Entry<Long, byte[]> entry : learnedProposals.tailMap(snapshotSlot[0], false).entrySet()) {
+            stub.commit(entry.getKey(), entry.getValue());
+            replayed++;
+        }
+        stub.finishCatchUp(snapshotSlot[0]);
+        EventJournal.emitAll(EventJournal.Event.CATCH_UP_SENT, port, snapshot.size(), bytes[1], chunks[0], snapshotSlot[0], replayed,
+                TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - startNanos));
+    }
+
+    private void sendChunk(RMIInterface stub, long snapshotSlot, Map<String, String> chunk, long[] bytes, int[] chunks) {
+        try {
+            stub.catchUpChunk(snapshotSlot, chunk);
+        } catch (RemoteException e) {
+            throw new UncheckedIOException(e);
+        }
+        bytes[1] += bytes[0];
+        bytes[0] = 0;
+        chunks[0]++;
+        chunk.clear();
+    }
+
+    /**
+     * Returns a replica of this shard other than the given one that is not catching up, to serve
+     * reads for a replica whose dictionary is still being rebuilt.
+     *
+     * @param self The replica asking.
+     * @return An up-to-date replica, or {@code null} if there is none.
+     */
+    public RMIInterface caughtUpPeer(RMIInterface self) {
+        for (RMIInterface stub : new ArrayList<>(serverStubs)) {
+            if (stub != self && portStubMap.containsKey(stub) && !catchUps.containsKey(stub) && !placeholders.contains(stub)) {
+                return stub;
+            }
         }
+        return null;
     }
 
 
@@ -0,0 +1,225 @@
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.LongFunction;
+
+/**
+ * ReplicatedLog is the slot-indexed log of chosen values. Values may be committed in any order
+ * (several consensus instances are in flight at once), but they are handed to the state machine
+ * strictly in slot order: a slot is only applied once every slot before it has been applied.
+ * Applying runs under a {@link ReentrantLock} rather than a monitor: the applier may write a
+ * snapshot, and the threads that commit are often virtual threads of the NIO transport, which
+ * a monitor would pin to their carrier for as long as that takes.
+ */
+public class ReplicatedLog {
+
+    /**
+     * Applies one committed value to the state machine.
+     */
+    @FunctionalInterface
+    interface Applier {
+        /**
+         * Applies the value of one slot.
+         *
+         * @param slot The slot being applied.
+         * @param value The chosen value: an encoded batch of commands, or {@link Messages#NOOP}.
+         * @return Whether each command of the value took effect.
+         */
+        boolean[] apply(long slot, byte[] value);
+    }
+
+    /**
+     * The result of a slot that was applied without its per-command results being kept: it is
+     * covered by an installed snapshot, or it had been applied before the waiter was registered.
+     * The slot's value was chosen either way, so a proposer must not report it as failed.
+     */
+    static final boolean[] APPLIED_WITHOUT_RESULTS = new boolean[0];
+
+    private final Applier applier;
+    // 已经选定但还在等前面的槽位的值
+    private final ConcurrentSkipListMap<Long, byte[]> committed = new ConcurrentSkipListMap<>();
+    private final Map<Long, CompletableFuture<boolean[]>> waiters = new ConcurrentHashMap<>();
+    private final ReentrantLock lock = new ReentrantLock();
+    private volatile long nextToApply;
+    // 追赶期间暂停应用：提交的值先攒着，装好快照之后再按顺序应用
+    private boolean held;
+
+    /**
+     * Constructor for ReplicatedLog.
+     *
+     * @param firstSlot The first slot this log will apply.
+     * @param applier Applies committed values to the state machine.
+     */
+    public ReplicatedLog(long firstSlot, Applier applier) {
+        this.nextToApply = firstSlot;
+        this.applier = applier;
+    }
+
+    /**
+     * Records the chosen value of a slot and applies every slot that has become contiguous.
+     *
+     * @param slot The slot that was chosen.
+     * @param value The chosen value.
+     * @return {@code false} if the slot had already been committed or applied.
+     */
+    public boolean commit(long slot, byte[] value) {
+        lock.lock();
+        try {
+            if (slot < nextToApply || committed.putIfAbsent(slot, value) != null) {
+                return false;
+            }
+            applyContiguous();
+            return true;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Moves the log past slots whose effects are already contained in an installed state,
+     * e.g. a snapshot, and resumes applying if the log was on {@link #hold()}. The state is
+     * installed while no slot is being applied.
+     *
+     * @param nextSlot The first slot not covered by the installed state.
+     * @param installState Installs the state; not run if the log has already applied past it.
+     */
+    public void skipTo(long nextSlot, Runnable installState) {
+        lock.lock();
+        try {
+            held = false;
+            if (nextSlot >= nextToApply) {
+                if (installState != null) {
+                    installState.run();
+                }
+                committed.headMap(nextSlot).clear();
+                nextToApply = nextSlot;
+                waiters.entrySet().removeIf(entry -> {
+                    if (entry.getKey() < nextSlot) {
+                        // 这些槽位的效果已经在装好的状态里了
+                        entry.getValue().complete(APPLIED_WITHOUT_RESULTS);
+                        return true;
+                    }
+                    return false;
+                });
+            }
+            applyContiguous();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Stops applying slots until the next {@link #skipTo}. Slots committed meanwhile are kept and
+     * applied afterwards, so a replica can be rebuilt from a snapshot without losing them.
+     */
+    public void hold() {
+        lock.lock();
+        try {
+            held = true;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Captures the applied state while no slot is being applied.
+     *
+     * @param capture Receives the last applied slot and copies whatever it needs.
+     * @param <T> The type of the copy.
+     * @return The copy.
+     */
+    public <T> T atAppliedSlot(LongFunction<T> capture) {
+        lock.lock();
+        try {
+            return capture.apply(nextToApply - 1);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Copies the values that have been committed but not applied yet because a slot before them
+     * is still missing. Called from the applier, e.g. to put them in a snapshot, so that no slot
+     * is being committed meanwhile.
+     *
+     * @return The waiting values by slot.
+     */
+    Map<Long, byte[]> pendingCommits() {
+        lock.lock();
+        try {
+            return new TreeMap<>(committed);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // 只按槽位顺序应用，前面有空洞就先等着
+    private void applyContiguous() {
+        if (held) {
+            return;
+        }
+        byte[] next;
+        while ((next = committed.remove(nextToApply)) != null) {
+            boolean[] applied = applier.apply(nextToApply, next);
+            CompletableFuture<boolean[]> waiter = waiters.remove(nextToApply);
+            if (waiter != null) {
+                waiter.complete(applied);
+            }
+            nextToApply++;
+        }
+    }
+
+    /**
+     * Returns a future completed with the per-command results once the slot has been applied.
+     *
+     * @param slot The slot to wait for.
+     * @return The future for the slot's results, completed with {@link #APPLIED_WITHOUT_RESULTS}
+     *         if the slot is skipped by {@link #skipTo} or was applied before this call.
+     */
+    public CompletableFuture<boolean[]> whenApplied(long slot) {
+        CompletableFuture<boolean[]> waiter = waiters.computeIfAbsent(slot, s -> new CompletableFuture<>());
+        lock.lock();
+        try {
+            if (slot < nextToApply && !waiter.isDone()) {
+                // 已经应用过了，结果没有保留
+                waiters.remove(slot);
+                waiter.complete(APPLIED_WITHOUT_RESULTS);
+            }
+        } finally {
+            lock.unlock();
+        }
+        return waiter;
+    }
+
+    /**
+     * Whether the slot has been chosen (committed or already applied).
+     *
+     * @param slot The slot to check.
+     * @return {@code true} if the slot's value is known.
+     */
+    public boolean isCommitted(long slot) {
+        return slot < nextToApply || committed.containsKey(slot);
+    }
+
+    /**
+     * The lowest slot that has not been applied yet.
+     *
+     * @return The next slot to apply.
+     */
+    public long nextToApply() {
+        return nextToApply;
+    }
+
+    /**
+     * The highest slot committed so far, or {@code nextToApply() - 1} if nothing is waiting.
+     *
+     * @return The highest known chosen slot.
+     */
+    public long highestCommitted() {
+        Map.Entry<Long, byte[]> last = committed.lastEntry();
+        return last != null ? last.getKey() : nextToApply - 1;
+    }
+}
@@ -0,0 +1,34 @@
+import java.rmi.NotBoundException;
+import java.rmi.RemoteException;
+import java.rmi.registry.LocateRegistry;
+import java.rmi.registry.Registry;
+import java.rmi.server.ExportException;
+
+/**
+ * RmiTransport is the original Java RMI transport: every replica gets its own registry on its
+ * port, and clients look the replica up by name.
+ */
+public class RmiTransport implements Transport {
+
+    @Override
+    public void export(RMIInterface replica, int port, String name) throws RemoteException {
+        Registry registry;
+        try {
+            registry = LocateRegistry.createRegistry(port);
+        } catch (ExportException e) {
+            // 这个端口已经有注册表了（副本被替换的情况），直接重新绑定
+            registry = LocateRegistry.getRegistry(port);
+        }
+        registry.rebind(name, replica);
+    }
+
+    @Override
+    public RMIInterface connect(String host, int port, String name) throws RemoteException {
+        Registry registry = LocateRegistry.getRegistry(host, port);
+        try {
+            return (RMIInterface) registry.lookup(name);
+        } catch (NotBoundException e) {
+            throw new RemoteException("No replica bound as " + name + " on port " + port, e);
+        }
+    }
+}
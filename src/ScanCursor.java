@@ -0,0 +1,113 @@
+import java.io.UncheckedIOException;
+import java.rmi.RemoteException;
+import java.util.AbstractMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.NoSuchElementException;
+
+/**
+ * ScanCursor iterates over the entries of a key range through {@link RMIInterface#scan}, in
+ * ascending key order. It fetches the next page only when the current one is used up, so it holds
+ * one page at a time however large the range is. Pages refused with {@code BUSY} or
+ * {@code UNAVAILABLE} are asked for again after a {@link Backoff} pause.
+ */
+public class ScanCursor implements Iterator<Map.Entry<String, String>> {
+
+    private final RMIInterface replica;
+    private final String from;
+    private final String to;
+    private final int pageSize;
+    private final Backoff backoff = Backoff.fromConfig();
+    private Messages.ScanPage page;
+    private int position;
+    private String token;
+    private boolean done;
+
+    /**
+     * Constructor for ScanCursor.
+     *
+     * @param replica The replica to scan through; any replica of any shard will do.
+     * @param from The first key of the range (inclusive), or {@code null} to start at the lowest key.
+     * @param to The end of the range (exclusive), or {@code null} for no end.
+     * @param pageSize The number of entries to ask for per page.
+     */
+    public ScanCursor(RMIInterface replica, String from, String to, int pageSize) {
+        this.replica = replica;
+        this.from = from;
+        this.to = to;
+        this.pageSize = pageSize;
+    }
+
+    /**
+     * Creates a cursor over the keys that start with a prefix.
+     *
+     * @param replica The replica to scan through.
+     * @param prefix The prefix.
+     * @param pageSize The number of entries to ask for per page.
+     * @return The cursor.
+     */
+    public static ScanCursor prefix(RMIInterface replica, String prefix, int pageSize) {
+        return new ScanCursor(replica, prefix, prefixEnd(prefix), pageSize);
+    }
+
+    /**
+     * Returns the smallest string greater than every string that starts with a prefix, i.e. the
+     * exclusive end of a prefix scan.
+     *
+     * @param prefix The prefix.
+     * @return The end key, or {@code null} if there is none (the prefix is empty or all
+     *         {@link Character#MAX_VALUE}).
+     */
+    public static String prefixEnd(String prefix) {
+        for (int i = prefix.length() - 1; i >= 0; i--) {
+            char c = prefix.charAt(i);
+            if (c != Character.MAX_VALUE) {
+                return prefix.substring(0, i) + (char) (c + 1);
+            }
+        }
+        return null;
+    }
+
+    @Override
+    public boolean hasNext() {
+        while (page == null || position == page.keys.length) {
+            if (done) {
+                return false;
+            }
+            fetch();
+        }
+        return true;
+    }
+
+    @Override
+    public Map.Entry<String, String> next() {
+        if (!hasNext()) {
+            throw new NoSuchElementException();
+        }
+        Map.Entry<String, String> entry = new AbstractMap.SimpleImmutableEntry<>(page.keys[position], page.values[position]);
+        position++;
+        return entry;
+    }
+
+    private void fetch() {
+        for (int attempt = 0; ; attempt++) {
+            Messages.ScanPage fetched;
+            try {
+                fetched = Messages.ScanPage.decode(replica.scan(from, to, token, pageSize));
+            } catch (RemoteException e) {
+                throw new UncheckedIOException(e);
+            }
+            if (fetched.status == Messages.OK) {
+                page = fetched;
+                position = 0;
+                token = fetched.next;
+                done = token == null;
+                return;
+            }
+            // 同一个续传令牌可以重试，已经给出的条目不会重复
+            if ((fetched.status != Messages.BUSY && fetched.status != Messages.UNAVAILABLE) || !backoff.pause(attempt)) {
+                throw new UncheckedIOException(new RemoteException("Scan page refused with status " + fetched.status));
+            }
+        }
+    }
+}
@@ -0,0 +1,102 @@
+/**
+ * ShardMap splits the key space into independent consensus groups. Each shard is a group of
+ * {@link #REPLICAS_PER_SHARD} replicas with its own coordinator, ballot counter and replicated
+ * log. A key belongs to exactly one shard, chosen by hashing the key, so writes to different
+ * shards never contend for the same ballot or log slot.
+ *
+ * <p>Shard {@code s} uses ports {@code 2000 + 5s} to {@code 2000 + 5s + 4}; with one shard this is
+ * the original layout. The number of shards is {@code -Dpaxos.shards} (default 1) and must be the
+ * same for servers and clients. Changing it re-maps keys, so existing data directories cannot be
+ * reused with a different count.
+ */
+public class ShardMap {
+
+    /** The port of the first replica of shard 0. */
+    public static final int BASE_PORT = 2000;
+    /** The number of replicas in every shard. */
+    public static final int REPLICAS_PER_SHARD = 5;
+
+    private final int shards;
+
+    /**
+     * Constructor for ShardMap.
+     *
+     * @param shards The number of shards.
+     */
+    public ShardMap(int shards) {
+        if (shards < 1) {
+            throw new IllegalArgumentException("At least one shard is needed, got " + shards);
+        }
+        this.shards = shards;
+    }
+
+    /**
+     * Creates the shard map configured by {@code paxos.shards}.
+     *
+     * @return The configured shard map.
+     */
+    public static ShardMap fromConfig() {
+        return new ShardMap(Integer.getInteger("paxos.shards", 1));
+    }
+
+    /**
+     * The number of shards.
+     *
+     * @return The shard count.
+     */
+    public int count() {
+        return shards;
+    }
+
+    /**
+     * Returns the shard that owns a key.
+     *
+     * @param key The key.
+     * @return The shard, from 0 to {@code count() - 1}.
+     */
+    public int shardOf(String key) {
+        if (shards == 1) {
+            return 0;
+        }
+        // FNV-1a 加上一次混合，和 JVM 的 String.hashCode 无关，不同进程算出来一样
+        long h = 0xcbf29ce484222325L;
+        for (int i = 0; i < key.length(); i++) {
+            h ^= key.charAt(i);
+            h *= 0x100000001b3L;
+        }
+        h = (h ^ (h >>> 33)) * 0xff51afd7ed558ccdL;
+        h ^= h >>> 33;
+        return (int) Long.remainderUnsigned(h, shards);
+    }
+
+    /**
+     * The port of one replica of a shard.
+     *
+     * @param shard The shard.
+     * @param replica The replica index within the shard, from 0 to {@code REPLICAS_PER_SHARD - 1}.
+     * @return The replica's port.
+     */
+    public int portOf(int shard, int replica) {
+        return BASE_PORT + shard * REPLICAS_PER_SHARD + replica;
+    }
+
+    /**
+     * Returns the shard a replica port belongs to.
+     *
+     * @param port A replica port.
+     * @return The shard.
+     */
+    public int shardOfPort(int port) {
+        return (port - BASE_PORT) / REPLICAS_PER_SHARD;
+    }
+
+    /**
+     * The name a replica is exported under.
+     *
+     * @param port The replica's port.
+     * @return The export name.
+     */
+    public String nameOf(int port) {
+        return "RMIDictionary" + (port - BASE_PORT);
+    }
+}
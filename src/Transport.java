@@ -0,0 +1,65 @@
+import java.rmi.RemoteException;
+
+/**
+ * Transport carries {@link RMIInterface} calls between clients and replicas. The replica and
+ * client code only see {@code RMIInterface}; the transport decides how a call gets there.
+ *
+ * <p>Choose one with {@code -Dpaxos.transport=rmi|nio} (default {@code rmi}); servers and clients
+ * must use the same one.
+ */
+public interface Transport {
+
+    /**
+     * Makes a replica reachable on a port under a name. Exporting again on the same port replaces
+     * the replica previously exported there.
+     *
+     * @param replica The replica to export.
+     * @param port The port to listen on.
+     * @param name The name clients look the replica up by.
+     * @throws RemoteException If the replica cannot be exported.
+     */
+    void export(RMIInterface replica, int port, String name) throws RemoteException;
+
+    /**
+     * Returns a proxy for a replica exported by another process (or this one).
+     *
+     * @param host The replica's host.
+     * @param port The port the replica is exported on.
+     * @param name The name the replica was exported under.
+     * @return A proxy whose calls are sent to the replica.
+     * @throws RemoteException If the replica cannot be reached.
+     */
+    RMIInterface connect(String host, int port, String name) throws RemoteException;
+
+    /**
+     * Returns a proxy for bulk transfers to a replica, such as the chunks of large values, that
+     * should not queue in front of consensus calls. RMI already opens a connection per concurrent
+     * call, so by default this is the same as {@link #connect}.
+     *
+     * @param host The replica's host.
+     * @param port The port the replica is exported on.
+     * @param name The name the replica was exported under.
+     * @return A proxy for bulk calls.
+     * @throws RemoteException If the replica cannot be reached.
+     */
+    default RMIInterface connectBulk(String host, int port, String name) throws RemoteException {
+        return connect(host, port, name);
+    }
+
+    /**
+     * Creates the transport selected by {@code paxos.transport}.
+     *
+     * @return The configured transport.
+     */
+    static Transport fromConfig() {
+        String kind = System.getProperty("paxos.transport", "rmi");
+        switch (kind.toLowerCase()) {
+            case "nio":
+                return new NioTransport();
+            case "rmi":
+                return new RmiTransport();
+            default:
+                throw new IllegalArgumentException("Unknown paxos.transport '" + kind + "', expected rmi or nio");
+        }
+    }
+}
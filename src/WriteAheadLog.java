@@ -0,0 +1,510 @@
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.stream.Stream;
+import java.util.zip.CRC32;
+
+/**
+ * WriteAheadLog makes a replica's acceptor state and dictionary durable. Promises, accepted values
+ * and commits are appended to memory-mapped segment files before the replica answers; how often the
+ * segments are forced to disk is set by the fsync policy. Periodic snapshots capture the dictionary,
+ * the promise, the accepted-but-uncommitted slots and the slots committed but not yet applied, after
+ * which older segments are deleted, so a restart only replays the log written since the last snapshot.
+ *
+ * <p>Configuration (system properties):
+ * <ul>
+ *     <li>{@code paxos.wal.fsync}: {@code always} forces every record before it is acknowledged,
+ *     {@code group} lets concurrent writers share one force, {@code periodic} forces in the
+ *     background every {@code paxos.wal.fsyncMs} milliseconds (default 50).</li>
+ *     <li>{@code paxos.wal.segmentMB}: size of each mapped segment (default 64).</li>
+ * </ul>
+ */
+public class WriteAheadLog {
+
+    /** When appended records are forced to disk. */
+    public enum FsyncPolicy { ALWAYS, GROUP, PERIODIC }
+
+    // 提案号是 long；旧日志里 int 提案号的记录照样能重放
+    private static final byte PROMISE_V1 = 1;
+    private static final byte ACCEPT_V1 = 2;
+    private static final byte COMMIT = 3;
+    private static final byte PROMISE = 4;
+    private static final byte ACCEPT = 5;
+    private static final int HEADER = 8;  // int 长度 + int CRC32
+    private static final int SNAPSHOT_MAGIC = 0x534e5034;  // "SNP4"：提案号是 long
+    private static final int SNAPSHOT_MAGIC_V3 = 0x534e5033;  // "SNP3"：旧格式，int 提案号
+    private static final int SNAPSHOT_MAGIC_V2 = 0x534e5032;  // "SNP2"：旧格式，还没有已提交未应用的槽位
+
+    /**
+     * Receives the records found in the log tail during recovery, in the order they were written.
+     */
+    interface Replayer {
+        void promise(long ballot);
+
+        void accept(long ballot, long slot, byte[] value);
+
+        void commit(long slot, byte[] value);
+    }
+
+    /**
+     * A replica's state as of one applied slot.
+     */
+    public static class Snapshot {
+        final long lastAppliedSlot;
+        final long promiseNumber;
+        final Map<Long, Long> acceptedBallots;
+        final Map<Long, byte[]> acceptedValues;
+        // 选定了但还在等前面空洞的槽位：它们已经不在 acceptedValues 里，记录所在的段又会被删掉
+        final Map<Long, byte[]> committedValues;
+        final KeyValueStore dictionary;
+
+        Snapshot(long lastAppliedSlot, long promiseNumber, Map<Long, Long> acceptedBallots,
+                 Map<Long, byte[]> acceptedValues, Map<Long, byte[]> committedValues, KeyValueStore dictionary) {
+            this.lastAppliedSlot = lastAppliedSlot;
+            this.promiseNumber = promiseNumber;
+            this.acceptedBallots = acceptedBallots;
+            this.acceptedValues = acceptedValues;
+            this.committedValues = committedValues;
+            this.dictionary = dictionary;
+        }
+    }
+
+    private final Path directory;
+    private final FsyncPolicy fsyncPolicy;
+    private final int segmentSize;
+
+    // 用 ReentrantLock 而不是 monitor：追加和等待刷盘的多是 NIO 的虚拟线程，换段和 force 期间不钉住载体线程
+    private final ReentrantLock appendLock = new ReentrantLock();
+    private int segmentIndex;
+    private FileChannel segmentChannel;
+    private MappedByteBuffer segment;
+    private long appendedBytes;       // 所有段累计写入的字节数，用来判断是否已经落盘
+
+    private final ReentrantLock syncLock = new ReentrantLock();
+    private final Condition forced = syncLock.newCondition();
+    private long durableBytes;
+    private boolean forcing;
+
+    /**
+     * Opens (or creates) the log in a directory. New records always go to a fresh segment after the
+     * existing ones, so recovery can read the old segments without racing with new appends.
+     *
+     * @param directory The directory holding this replica's segments and snapshots.
+     * @throws IOException If the directory or the first segment cannot be created.
+     */
+    public WriteAheadLog(Path directory) throws IOException {
+        this.directory = directory;
+        this.fsyncPolicy = FsyncPolicy.valueOf(System.getProperty("paxos.wal.fsync", "group").toUpperCase());
+        this.segmentSize = Integer.getInteger("paxos.wal.segmentMB", 64) * 1024 * 1024;
+        Files.createDirectories(directory);
+        List<Integer> existing = segmentIndexes();
+        segmentIndex = existing.isEmpty() ? 0 : existing.get(existing.size() - 1);
+        openNextSegment();
+
+        if (fsyncPolicy == FsyncPolicy.PERIODIC) {
+            long interval = Long.getLong("paxos.wal.fsyncMs", 50L);
+            Thread flusher = new Thread(() -> {
+                while (true) {
+                    try {
+                        Thread.sleep(interval);
+                    } catch (InterruptedException e) {
+                        return;
+                    }
+                    forceUpTo(currentAppended());
+                }
+            }, "wal-flusher-" + directory.getFileName());
+            flusher.setDaemon(true);
+            flusher.start();
+        }
+    }
+
+    /**
+     * Appends a promise record.
+     *
+     * @param ballot The promised ballot.
+     * @return The log position to pass to {@link #sync(long)} before answering.
+     */
+    public long logPromise(long ballot) {
+        byte[] record = new byte[1 + 8];
+        java.nio.ByteBuffer.wrap(record).put(PROMISE).putLong(ballot);
+        return append(record);
+    }
+
+    /**
+     * Appends an accepted value record.
+     *
+     * @param ballot The ballot the value was accepted under.
+     * @param slot The log slot.
+     * @param value The accepted value, as encoded by {@link Messages}.
+     * @return The log position to pass to {@link #sync(long)} before answering.
+     */
+    public long logAccept(long ballot, long slot, byte[] value) {
+        byte[] record = new byte[1 + 8 + 8 + 4 + value.length];
+        java.nio.ByteBuffer.wrap(record).put(ACCEPT).putLong(ballot).putLong(slot).putInt(value.length).put(value);
+        return append(record);
+    }
+
+    /**
+     * Appends a chosen value record. Commits need not be synced: a lost commit is learned again.
+     *
+     * @param slot The chosen slot.
+     * @param value The chosen value.
+     * @return The log position of the record.
+     */
+    public long logCommit(long slot, byte[] value) {
+        byte[] record = new byte[1 + 8 + 4 + value.length];
+        java.nio.ByteBuffer.wrap(record).put(COMMIT).putLong(slot).putInt(value.length).put(value);
+        return append(record);
+    }
+
+    private long append(byte[] payload) {
+        appendLock.lock();
+        try {
+            try {
+                if (segment.remaining() < HEADER + payload.length + HEADER) {
+                    if (HEADER + payload.length + HEADER > segmentSize) {
+                        throw new IOException("WAL record of " + payload.length + " bytes is larger than a segment");
+                    }
+                    // 换段之前先把旧段刷盘，之后只需要 force 当前段
+                    segment.force();
+                    openNextSegment();
+                }
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+            CRC32 crc = new CRC32();
+            crc.update(payload);
+            segment.putInt(payload.length).putInt((int) crc.getValue()).put(payload);
+            appendedBytes += HEADER + payload.length;
+            return appendedBytes;
+        } finally {
+            appendLock.unlock();
+        }
+    }
+
+    /**
+     * Waits until the log is durable up to a position, according to the fsync policy. Callers
+     * append while holding their own locks and sync after releasing them, so that concurrent
+     * writers can share one force under the group policy.
+     *
+     * @param position A position returned by one of the append methods.
+     */
+    public void sync(long position) {
+        switch (fsyncPolicy) {
+            case ALWAYS:
+                appendLock.lock();
+                try {
+                    segment.force();
+                } finally {
+                    appendLock.unlock();
+                }
+                break;
+            case GROUP:
+                forceUpTo(position);
+                break;
+            default:
+                // periodic：后台线程定时刷盘
+                break;
+        }
+    }
+
+    // group commit：正在 force 的线程顺便把别人已经写进去的记录一起刷掉，其他线程只需要等它
+    private void forceUpTo(long end) {
+        while (true) {
+            syncLock.lock();
+            try {
+                while (forcing && durableBytes < end) {
+                    try {
+                        forced.await();
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                        return;
+                    }
+                }
+                if (durableBytes >= end) {
+                    return;
+                }
+                forcing = true;
+            } finally {
+                syncLock.unlock();
+            }
+            long target;
+            MappedByteBuffer toForce;
+            appendLock.lock();
+            try {
+                target = appendedBytes;
+                toForce = segment;
+            } finally {
+                appendLock.unlock();
+            }
+            try {
+                toForce.force();
+            } finally {
+                syncLock.lock();
+                try {
+                    durableBytes = Math.max(durableBytes, target);
+                    forcing = false;
+                    forced.signalAll();
+                } finally {
+                    syncLock.unlock();
+                }
+            }
+        }
+    }
+
+    private long currentAppended() {
+        appendLock.lock();
+        try {
+            return appendedBytes;
+        } finally {
+            appendLock.unlock();
+        }
+    }
+
+    private void openNextSegment() throws IOException {
+        if (segmentChannel != null) {
+            segmentChannel.close();
+        }
+        segmentIndex++;
+        Path file = directory.resolve(String.format("wal-%010d.log", segmentIndex));
+        segmentChannel = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        segment = segmentChannel.map(FileChannel.MapMode.READ_WRITE, 0, segmentSize);
+    }
+
+    private List<Integer> segmentIndexes() throws IOException {
+        List<Integer> indexes = new ArrayList<>();
+        try (Stream<Path> files = Files.list(directory)) {
+            files.map(p -> p.getFileName().toString())
+                    .filter(name -> name.startsWith("wal-") && name.endsWith(".log"))
+                    .forEach(name -> indexes.add(Integer.parseInt(name.substring(4, name.length() - 4))));
+        }
+        indexes.sort(null);
+        return indexes;
+    }
+
+    /**
+     * Replays every record in the segments written before this log was opened. Reading a segment
+     * stops at its end marker or at the first torn or corrupt record.
+     *
+     * @param replayer Receives the records.
+     * @throws IOException If a segment cannot be read.
+     */
+    public void replay(Replayer replayer) throws IOException {
+        for (int index : segmentIndexes()) {
+            if (index >= segmentIndex) {
+                break;
+            }
+            Path file = directory.resolve(String.format("wal-%010d.log", index));
+            try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+                MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+                while (buffer.remaining() >= HEADER) {
+                    int length = buffer.getInt();
+                    int checksum = buffer.getInt();
+                    if (length <= 0 || length > buffer.remaining()) {
+                        break;
+                    }
+                    byte[] payload = new byte[length];
+                    buffer.get(payload);
+                    CRC32 crc = new CRC32();
+                    crc.update(payload);
+                    if ((int) crc.getValue() != checksum) {
+                        EventJournal.emit(EventJournal.Event.WAL_CORRUPT_RECORD, file.getFileName());
+                        break;
+                    }
+                    replayRecord(java.nio.ByteBuffer.wrap(payload), replayer);
+                }
+            }
+        }
+    }
+
+    private void replayRecord(java.nio.ByteBuffer record, Replayer replayer) {
+        byte type = record.get();
+        switch (type) {
+            case PROMISE:
+                replayer.promise(record.getLong());
+                break;
+            case PROMISE_V1:
+                replayer.promise(record.getInt());
+                break;
+            case ACCEPT:
+            case ACCEPT_V1: {
+                long ballot = type == ACCEPT ? record.getLong() : record.getInt();
+                long slot = record.getLong();
+                replayer.accept(ballot, slot, readBytes(record));
+                break;
+            }
+            case COMMIT: {
+                long slot = record.getLong();
+                replayer.commit(slot, readBytes(record));
+                break;
+            }
+            default:
+                EventJournal.emit(EventJournal.Event.WAL_UNKNOWN_RECORD, type);
+        }
+    }
+
+    private static byte[] readBytes(java.nio.ByteBuffer record) {
+        byte[] bytes = new byte[record.getInt()];
+        record.get(bytes);
+        return bytes;
+    }
+
+    /**
+     * Starts a new segment and returns its index. Every record appended after this call lands in
+     * that segment or a later one, so a snapshot captured afterwards covers all older segments.
+     *
+     * @return The index of the first segment not covered by the coming snapshot.
+     */
+    public int rollSegment() {
+        appendLock.lock();
+        try {
+            segment.force();
+            openNextSegment();
+            return segmentIndex;
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        } finally {
+            appendLock.unlock();
+        }
+    }
+
+    /**
+     * Writes a snapshot atomically and deletes the segments and snapshots it supersedes.
+     *
+     * @param snapshot The state to persist.
+     * @param firstLiveSegment The segment index returned by {@link #rollSegment()} before the state was captured.
+     * @throws IOException If the snapshot cannot be written.
+     */
+    public void writeSnapshot(Snapshot snapshot, int firstLiveSegment) throws IOException {
+        Path tmp = directory.resolve("snapshot.tmp");
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(tmp), 1 << 16))) {
+            out.writeInt(SNAPSHOT_MAGIC);
+            out.writeLong(snapshot.lastAppliedSlot);
+            out.writeLong(snapshot.promiseNumber);
+            out.writeInt(snapshot.acceptedValues.size());
+            for (Map.Entry<Long, byte[]> entry : snapshot.acceptedValues.entrySet()) {
+                out.writeLong(entry.getKey());
+                out.writeLong(snapshot.acceptedBallots.get(entry.getKey()));
+                out.writeInt(entry.getValue().length);
+                out.write(entry.getValue());
+            }
+            out.writeInt(snapshot.committedValues.size());
+            for (Map.Entry<Long, byte[]> entry : snapshot.committedValues.entrySet()) {
+                out.writeLong(entry.getKey());
+                out.writeInt(entry.getValue().length);
+                out.write(entry.getValue());
+            }
+            // 快照里的字典是私有副本，没有并发修改，条数和遍历结果一致
+            out.writeInt((int) snapshot.dictionary.size());
+            try {
+                snapshot.dictionary.forEach((key, value) -> {
+                    try {
+                        writeString(out, key);
+                        writeString(out, value);
+                    } catch (IOException e) {
+                        throw new UncheckedIOException(e);
+                    }
+                });
+            } catch (UncheckedIOException e) {
+                throw e.getCause();
+            }
+        }
+        try (FileChannel channel = FileChannel.open(tmp, StandardOpenOption.WRITE)) {
+            channel.force(true);
+        }
+        Path target = directory.resolve(String.format("snapshot-%020d.snap", snapshot.lastAppliedSlot));
+        Files.move(tmp, target, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+
+        // 快照落盘之后，旧的快照和它覆盖的段都可以删掉
+        try (Stream<Path> files = Files.list(directory)) {
+            for (Path file : (Iterable<Path>) files::iterator) {
+                String name = file.getFileName().toString();
+                if (name.startsWith("snapshot-") && !file.equals(target)) {
+                    Files.deleteIfExists(file);
+                } else if (name.startsWith("wal-") && name.endsWith(".log")
+                        && Integer.parseInt(name.substring(4, name.length() - 4)) < firstLiveSegment) {
+                    Files.deleteIfExists(file);
+                }
+            }
+        }
+    }
+
+    /**
+     * Loads the most recent snapshot, if any.
+     *
+     * @return The snapshot, or {@code null} if none has been written.
+     * @throws IOException If the snapshot cannot be read.
+     */
+    public Snapshot loadSnapshot() throws IOException {
+        TreeMap<String, Path> snapshots = new TreeMap<>();
+        try (Stream<Path> files = Files.list(directory)) {
+            files.filter(p -> p.getFileName().toString().startsWith("snapshot-"))
+                    .forEach(p -> snapshots.put(p.getFileName().toString(), p));
+        }
+        if (snapshots.isEmpty()) {
+            return null;
+        }
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(snapshots.lastEntry().getValue()), 1 << 16))) {
+            int magic = in.readInt();
+            if (magic != SNAPSHOT_MAGIC && magic != SNAPSHOT_MAGIC_V3 && magic != SNAPSHOT_MAGIC_V2) {
+                throw new IOException("Not a snapshot file: " + snapshots.lastKey());
+            }
+            long lastAppliedSlot = in.readLong();
+            boolean longBallots = magic == SNAPSHOT_MAGIC;
+            long promiseNumber = longBallots ? in.readLong() : in.readInt();
+            int acceptedCount = in.readInt();
+            Map<Long, Long> acceptedBallots = new HashMap<>();
+            Map<Long, byte[]> acceptedValues = new HashMap<>();
+            for (int i = 0; i < acceptedCount; i++) {
+                long slot = in.readLong();
+                acceptedBallots.put(slot, longBallots ? in.readLong() : in.readInt());
+                byte[] value = new byte[in.readInt()];
+                in.readFully(value);
+                acceptedValues.put(slot, value);
+            }
+            Map<Long, byte[]> committedValues = new TreeMap<>();
+            int committedCount = magic != SNAPSHOT_MAGIC_V2 ? in.readInt() : 0;
+            for (int i = 0; i < committedCount; i++) {
+                long slot = in.readLong();
+                byte[] value = new byte[in.readInt()];
+                in.readFully(value);
+                committedValues.put(slot, value);
+            }
+            int size = in.readInt();
+            KeyValueStore dictionary = KeyValueStore.fromConfig();
+            for (int i = 0; i < size; i++) {
+                dictionary.put(readString(in), readString(in));
+            }
+            return new Snapshot(lastAppliedSlot, promiseNumber, acceptedBallots, acceptedValues, committedValues, dictionary);
+        }
+    }
+
+    private static void writeString(DataOutputStream out, String value) throws IOException {
+        byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+        out.writeInt(bytes.length);
+        out.write(bytes);
+    }
+
+    private static String readString(DataInputStream in) throws IOException {
+        byte[] bytes = new byte[in.readInt()];
+        in.readFully(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+}
@@ -0,0 +1,33 @@
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * {@link AdmissionController} refuses requests over its limit without waiting, and admits again
+ * once a request finishes.
+ */
+class AdmissionControllerTest {
+
+    @Test
+    void refusesOverTheLimitAndAdmitsAfterARelease() {
+        AdmissionController admission = new AdmissionController(2);
+        long rejected = Metrics.ADMISSION_REJECTED.sum();
+        assertTrue(admission.tryAdmit());
+        assertTrue(admission.tryAdmit());
+        assertEquals(2, admission.inFlight());
+        assertFalse(admission.tryAdmit());
+        assertEquals(rejected + 1, Metrics.ADMISSION_REJECTED.sum());
+        admission.release();
+        assertEquals(1, admission.inFlight());
+        assertTrue(admission.tryAdmit());
+    }
+
+    @Test
+    void zeroLimitAdmitsEverything() {
+        AdmissionController admission = new AdmissionController(0);
+        for (int i = 0; i < 10_000; i++) {
+            assertTrue(admission.tryAdmit());
+        }
+        assertEquals(10_000, admission.inFlight());
+    }
+}
@@ -0,0 +1,98 @@
+import org.junit.jupiter.api.Test;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.rmi.RemoteException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * {@link AsyncClient} over {@link NioTransport} against a replica that speaks the NIO frame format
+ * directly, so the test decides when the replica answers and when it drops the connection.
+ */
+class AsyncClientTest {
+
+    // NioTransport 的方法编号
+    private static final byte LEADER_ID = 16;
+
+    @Test
+    void queuedOperationsReconnectAfterTheReplicaDropsTheConnection() throws Exception {
+        try (ServerSocket server = new ServerSocket(0)) {
+            int port = server.getLocalPort();
+            Thread replica = new Thread(() -> serve(server), "fake-replica");
+            replica.setDaemon(true);
+            replica.start();
+            RMIInterface stub = new NioTransport().connect("localhost", port, "RMIDictionary0");
+            try (AsyncClient client = new AsyncClient(List.of(stub), List.of(new Membership.Member(0, "localhost", port)), 1)) {
+                // 一个连接上只允许一个在途请求：第一个发出去，其余在队列里等
+                List<CompletableFuture<byte[]>> results = new ArrayList<>();
+                for (int i = 0; i < 5; i++) {
+                    results.add(client.put("k" + i, "v" + i));
+                }
+                ExecutionException dropped = assertThrows(ExecutionException.class, () -> results.get(0).get(10, TimeUnit.SECONDS));
+                assertInstanceOf(RemoteException.class, dropped.getCause());
+                for (int i = 1; i < results.size(); i++) {
+                    assertEquals(Messages.OK, Messages.statusOf(results.get(i).get(10, TimeUnit.SECONDS)));
+                }
+            }
+        }
+    }
+
+    // 第一条连接收到第一个写请求就断开，相当于副本进程被杀；之后的连接正常应答
+    private static void serve(ServerSocket server) {
+        try {
+            try (Socket first = server.accept()) {
+                answer(first, true);
+            }
+            while (true) {
+                Socket next = server.accept();
+                Thread t = new Thread(() -> {
+                    try (next) {
+                        answer(next, false);
+                    } catch (IOException e) {
+                        // 客户端断开
+                    }
+                });
+                t.setDaemon(true);
+                t.start();
+            }
+        } catch (IOException e) {
+            // 测试结束，监听关闭
+        }
+    }
+
+    private static void answer(Socket socket, boolean dropOnWrite) throws IOException {
+        DataInputStream in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+        DataOutputStream out = new DataOutputStream(socket.getOutputStream());
+        while (true) {
+            int length = in.readInt();
+            long id = in.readLong();
+            byte method = in.readByte();
+            in.skipNBytes(length - 9);
+            byte[] result;
+            if (method == LEADER_ID) {
+                result = ByteBuffer.allocate(4).putInt(-1).array();
+            } else if (dropOnWrite) {
+                return;
+            } else {
+                byte[] response = Messages.response(Messages.OK, null);
+                result = ByteBuffer.allocate(4 + response.length).putInt(response.length).put(response).array();
+            }
+            out.writeInt(8 + 1 + result.length);
+            out.writeLong(id);
+            out.writeByte(0);
+            out.write(result);
+            out.flush();
+        }
+    }
+}
@@ -0,0 +1,32 @@
+import org.junit.jupiter.api.Test;
+
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * {@link Backoff} gives up after its attempts, and its bound stays at the maximum however many
+ * attempts are made instead of overflowing.
+ */
+class BackoffTest {
+
+    @Test
+    void givesUpAfterTheAllowedAttempts() {
+        Backoff backoff = new Backoff(1, 10, 3);
+        assertTrue(backoff.pause(0));
+        assertTrue(backoff.pause(2));
+        assertFalse(backoff.pause(3));
+        assertFalse(new Backoff(1, 10, 0).pause(0));
+    }
+
+    @Test
+    void largeAttemptNumbersStayAtTheMaximum() {
+        // 1 微秒左移 63 次会溢出成负数；上界必须停在 max
+        Backoff backoff = new Backoff(1, 200, Integer.MAX_VALUE);
+        long start = System.nanoTime();
+        for (int attempt = 25; attempt < 100; attempt++) {
+            assertTrue(backoff.pause(attempt));
+        }
+        assertTrue(System.nanoTime() - start < TimeUnit.SECONDS.toNanos(5));
+    }
+}
@@ -0,0 +1,82 @@
+import org.junit.jupiter.api.Test;
+
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * {@link Ballots} never hands out a ballot twice, across proposers or threads, and never wraps
+ * when the rounds run out.
+ */
+class BallotsTest {
+
+    @Test
+    void ballotsOfDifferentNodesNeverCollide() {
+        Ballots a = new Ballots(1);
+        Ballots b = new Ballots(2);
+        for (int i = 0; i < 1000; i++) {
+            long x = a.next();
+            long y = b.next();
+            assertNotEquals(x, y);
+            assertEquals(1, Ballots.nodeOf(x));
+            assertEquals(2, Ballots.nodeOf(y));
+            assertEquals(Ballots.roundOf(x), Ballots.roundOf(y));
+        }
+    }
+
+    @Test
+    void concurrentCallersGetDistinctBallots() throws InterruptedException {
+        Ballots ballots = new Ballots(3);
+        Set<Long> seen = ConcurrentHashMap.newKeySet();
+        CountDownLatch start = new CountDownLatch(1);
+        Thread[] threads = new Thread[8];
+        for (int t = 0; t < threads.length; t++) {
+            threads[t] = new Thread(() -> {
+                try {
+                    start.await();
+                } catch (InterruptedException e) {
+                    return;
+                }
+                for (int i = 0; i < 10_000; i++) {
+                    assertTrue(seen.add(ballots.next()));
+                }
+            });
+            threads[t].start();
+        }
+        start.countDown();
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        assertEquals(80_000, seen.size());
+    }
+
+    @Test
+    void nextIsAboveAnObservedBallot() {
+        Ballots ballots = new Ballots(0);
+        long competing = new Ballots(31).next() + (100L << Ballots.NODE_BITS);
+        assertFalse(ballots.preempted(ballots.next()));
+        long mine = ballots.next();
+        ballots.observe(competing);
+        assertTrue(ballots.preempted(mine));
+        assertTrue(ballots.next() > competing);
+    }
+
+    @Test
+    void exhaustedRoundsFailInsteadOfWrapping() {
+        Ballots ballots = new Ballots(5);
+        ballots.observe((Ballots.MAX_ROUND - 1) << Ballots.NODE_BITS);
+        long last = ballots.next();
+        assertEquals(Ballots.MAX_ROUND, Ballots.roundOf(last));
+        assertTrue(last > 0 && last < Messages.Promise.CHOSEN);
+        assertThrows(IllegalStateException.class, ballots::next);
+        assertThrows(IllegalStateException.class, ballots::next);
+    }
+
+    @Test
+    void nodeIdOutOfRangeIsRejected() {
+        assertThrows(IllegalArgumentException.class, () -> new Ballots(-1));
+        assertThrows(IllegalArgumentException.class, () -> new Ballots(32));
+    }
+}
@@ -0,0 +1,133 @@
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * {@link BlobStore} uploads, and how long applied values are kept for peers.
+ */
+class BlobStoreTest {
+
+    @TempDir
+    Path dir;
+
+    @AfterEach
+    void clearRetention() {
+        System.clearProperty("paxos.blob.retainSlots");
+        System.clearProperty("paxos.blob.retainBytes");
+    }
+
+    private static byte[] value(int size, int seed) {
+        byte[] content = new byte[size];
+        Arrays.fill(content, (byte) seed);
+        return content;
+    }
+
+    private static String upload(BlobStore store, byte[] content, int chunkSize) {
+        String digest = BlobStore.digest(content);
+        for (int offset = 0; offset < content.length; offset += chunkSize) {
+            byte[] chunk = Arrays.copyOfRange(content, offset, Math.min(content.length, offset + chunkSize));
+            assertEquals(Math.min(content.length, offset + chunkSize), store.store(digest, content.length, offset, chunk));
+        }
+        return digest;
+    }
+
+    private static BlobStore withRetention(Path dir, int slots, long bytes) throws IOException {
+        System.setProperty("paxos.blob.retainSlots", Integer.toString(slots));
+        System.setProperty("paxos.blob.retainBytes", Long.toString(bytes));
+        return new BlobStore(dir);
+    }
+
+    @Test
+    void chunkedUploadIsCheckedAgainstItsDigest() throws IOException {
+        BlobStore store = new BlobStore(null);
+        byte[] content = "a value that is uploaded in several chunks".getBytes(StandardCharsets.UTF_8);
+        String digest = upload(store, content, 5);
+        assertArrayEquals(content, store.get(digest));
+        assertArrayEquals(Arrays.copyOfRange(content, 5, 15), store.read(digest, 5, 10));
+        // 已经有了的值再传一遍不报错
+        assertEquals(content.length, store.store(digest, content.length, 0, new byte[3]));
+
+        byte[] other = value(8, 1);
+        String wrong = BlobStore.digest(value(8, 2));
+        assertThrows(IllegalArgumentException.class, () -> store.store(wrong, 8, 0, other));
+        assertFalse(store.contains(wrong));
+    }
+
+    @Test
+    void chunkThatSkipsAheadIsRejected() throws IOException {
+        BlobStore store = new BlobStore(null);
+        byte[] content = value(10, 3);
+        String digest = BlobStore.digest(content);
+        store.store(digest, 10, 0, Arrays.copyOf(content, 4));
+        assertThrows(IllegalArgumentException.class, () -> store.store(digest, 10, 6, new byte[4]));
+        assertThrows(IllegalArgumentException.class, () -> store.store(digest, 10, 4, new byte[7]));
+    }
+
+    @Test
+    void appliedValuesAreKeptForTheRetentionWindow() throws IOException {
+        BlobStore store = withRetention(null, 10, Long.MAX_VALUE);
+        String early = upload(store, value(100, 1), 64);
+        String reused = upload(store, value(100, 2), 64);
+        store.used(early, 5);
+        store.used(reused, 5);
+        store.used(reused, 12);
+
+        store.release(14, Long.MAX_VALUE);
+        assertTrue(store.contains(early));
+        store.release(15, Long.MAX_VALUE);
+        assertFalse(store.contains(early));
+        // 槽位 12 又用到它，按最后一次使用算
+        assertTrue(store.contains(reused));
+        store.release(21, Long.MAX_VALUE);
+        assertTrue(store.contains(reused));
+        store.release(22, Long.MAX_VALUE);
+        assertFalse(store.contains(reused));
+    }
+
+    @Test
+    void byteBudgetReleasesTheOldestFirst() throws IOException {
+        BlobStore store = withRetention(null, 1000, 250);
+        String[] digests = new String[4];
+        for (int i = 0; i < digests.length; i++) {
+            digests[i] = upload(store, value(100, i), 100);
+            store.used(digests[i], i);
+        }
+        store.release(3, Long.MAX_VALUE);
+        assertFalse(store.contains(digests[0]));
+        assertFalse(store.contains(digests[1]));
+        assertTrue(store.contains(digests[2]));
+        assertTrue(store.contains(digests[3]));
+    }
+
+    @Test
+    void valuesTheLogStillNeedsSurviveUntilASnapshot() throws IOException {
+        BlobStore store = withRetention(dir, 0, 0);
+        String digest = upload(store, value(100, 7), 30);
+        store.used(digest, 4);
+        store.release(10, 3);
+        assertTrue(store.contains(digest));
+        assertTrue(Files.exists(dir.resolve(digest)));
+        store.release(10, 4);
+        assertFalse(store.contains(digest));
+        assertFalse(Files.exists(dir.resolve(digest)));
+    }
+
+    @Test
+    void storedValuesArePickedUpAfterARestart() throws IOException {
+        BlobStore store = new BlobStore(dir);
+        byte[] content = value(300, 9);
+        String digest = upload(store, content, 128);
+        BlobStore restarted = new BlobStore(dir);
+        assertTrue(restarted.contains(digest));
+        assertArrayEquals(content, restarted.get(digest));
+        assertArrayEquals(Arrays.copyOfRange(content, 250, 300), restarted.read(digest, 250, 100));
+    }
+}
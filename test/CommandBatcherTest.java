@@ -0,0 +1,99 @@
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * {@link CommandBatcher} collects the commands queued while a round is in flight into the next
+ * batch, keeps groups together, and hands every command its own response.
+ */
+class CommandBatcherTest {
+
+    private static Messages.Command put(String key) {
+        return new Messages.Command(Messages.PUT, key, "v");
+    }
+
+    // 每个命令的回复带上自己的键，检查回复没有发错；第一轮等 release 放行
+    private static final class Recorder implements CommandBatcher.BatchProposer {
+        final List<List<String>> batches = Collections.synchronizedList(new ArrayList<>());
+        final CountDownLatch firstRoundStarted = new CountDownLatch(1);
+        final CountDownLatch release = new CountDownLatch(1);
+
+        @Override
+        public List<byte[]> proposeBatch(RMIInterface proposer, List<Messages.Command> commands) {
+            List<String> keys = new ArrayList<>();
+            List<byte[]> responses = new ArrayList<>();
+            for (Messages.Command command : commands) {
+                keys.add(command.key);
+                responses.add(Messages.response(Messages.OK, command.key));
+            }
+            batches.add(keys);
+            firstRoundStarted.countDown();
+            try {
+                release.await();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            return responses;
+        }
+    }
+
+    private static String valueOf(CompletableFuture<byte[]> result) throws Exception {
+        return Messages.Response.decode(result.get(10, TimeUnit.SECONDS)).value;
+    }
+
+    @Test
+    void commandsQueuedDuringARoundShareTheNextBatch() throws Exception {
+        Recorder recorder = new Recorder();
+        CommandBatcher batcher = new CommandBatcher(recorder, 64, 0, 1);
+        CompletableFuture<byte[]> first = batcher.submit(null, put("k0"));
+        assertTrue(recorder.firstRoundStarted.await(10, TimeUnit.SECONDS));
+        List<CompletableFuture<byte[]>> queued = new ArrayList<>();
+        for (int i = 1; i <= 10; i++) {
+            queued.add(batcher.submit(null, put("k" + i)));
+        }
+        recorder.release.countDown();
+
+        assertEquals("k0", valueOf(first));
+        for (int i = 0; i < queued.size(); i++) {
+            assertEquals("k" + (i + 1), valueOf(queued.get(i)));
+        }
+        assertEquals(List.of(List.of("k0"), List.of("k1", "k2", "k3", "k4", "k5", "k6", "k7", "k8", "k9", "k10")), recorder.batches);
+    }
+
+    @Test
+    void groupsAreNeverSplitAcrossBatches() throws Exception {
+        Recorder recorder = new Recorder();
+        CommandBatcher batcher = new CommandBatcher(recorder, 4, 0, 1);
+        batcher.submit(null, put("hold"));
+        assertTrue(recorder.firstRoundStarted.await(10, TimeUnit.SECONDS));
+        CompletableFuture<List<byte[]>> a = batcher.submitAll(null, List.of(put("a1"), put("a2"), put("a3")));
+        CompletableFuture<List<byte[]>> b = batcher.submitAll(null, List.of(put("b1"), put("b2"), put("b3")));
+        CompletableFuture<List<byte[]>> big = batcher.submitAll(null, List.of(put("c1"), put("c2"), put("c3"), put("c4"), put("c5")));
+        recorder.release.countDown();
+
+        assertEquals(3, a.get(10, TimeUnit.SECONDS).size());
+        assertEquals("b2", Messages.Response.decode(b.get(10, TimeUnit.SECONDS).get(1)).value);
+        assertEquals(5, big.get(10, TimeUnit.SECONDS).size());
+        // 超过批次上限的组单独成一批
+        assertEquals(List.of(List.of("hold"), List.of("a1", "a2", "a3"), List.of("b1", "b2", "b3"),
+                List.of("c1", "c2", "c3", "c4", "c5")), recorder.batches);
+    }
+
+    @Test
+    void failedRoundFailsEveryCommandOfItsBatch() {
+        CommandBatcher batcher = new CommandBatcher((proposer, commands) -> {
+            throw new java.rmi.RemoteException("no quorum");
+        }, 8, 0, 1);
+        CompletableFuture<byte[]> result = batcher.submit(null, put("k"));
+        java.util.concurrent.ExecutionException failed = assertThrows(java.util.concurrent.ExecutionException.class,
+                () -> result.get(10, TimeUnit.SECONDS));
+        assertInstanceOf(java.rmi.RemoteException.class, failed.getCause());
+    }
+}
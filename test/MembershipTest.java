@@ -0,0 +1,77 @@
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.Map;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * {@link Membership} encoding, the cluster file, and which memberships are refused.
+ */
+class MembershipTest {
+
+    private static Membership of(long epoch, String... addresses) {
+        Map<Integer, Membership.Member> members = new java.util.TreeMap<>();
+        for (int id = 0; id < addresses.length; id++) {
+            members.put(id, Membership.parseAddress(id, addresses[id]));
+        }
+        return new Membership(epoch, members);
+    }
+
+    private static void assertSame(Membership expected, Membership actual) {
+        assertEquals(expected.epoch(), actual.epoch());
+        assertEquals(expected.toString(), actual.toString());
+    }
+
+    @Test
+    void encodeDecodeRoundTrip() {
+        Membership membership = of(3, "a:2100", "b:2100", "[::1]:2102");
+        assertSame(membership, Membership.decode(membership.encode()));
+        assertEquals("[::1]", Membership.decode(membership.encode()).member(2).host);
+    }
+
+    @Test
+    void storeLoadRoundTrip(@TempDir Path dir) throws IOException {
+        Path file = dir.resolve("cluster.properties");
+        Membership membership = of(1, "localhost:2100", "localhost:2101", "localhost:2102");
+        membership.store(file);
+        assertSame(membership, Membership.load(file));
+    }
+
+    @Test
+    void membersOnDifferentHostsMayShareAPort() {
+        Membership membership = of(0, "host-a:2100", "host-b:2100", "host-c:2100");
+        assertEquals(3, membership.size());
+        assertEquals(2, membership.majority());
+    }
+
+    @Test
+    void duplicateAddressIsRejected() {
+        assertThrows(IllegalArgumentException.class, () -> of(0, "host-a:2100", "host-a:2100"));
+        assertThrows(IllegalArgumentException.class, () -> of(0, "host-a:2100").with(1, "host-a:2100"));
+    }
+
+    @Test
+    void changesMoveToTheNextEpoch() {
+        Membership membership = of(4, "a:1", "b:1", "c:1");
+        Membership added = membership.with(5, "d:1");
+        assertEquals(5, added.epoch());
+        assertTrue(added.contains(5));
+        assertEquals(3, added.majority());
+        Membership removed = added.without(0);
+        assertEquals(6, removed.epoch());
+        assertFalse(removed.contains(0));
+        assertThrows(IllegalArgumentException.class, () -> membership.with(0, "e:1"));
+        assertThrows(IllegalArgumentException.class, () -> membership.without(9));
+    }
+
+    @Test
+    void malformedInputIsRejected() {
+        assertThrows(IllegalArgumentException.class, () -> Membership.parseAddress(0, "no-port"));
+        assertThrows(IllegalArgumentException.class, () -> of(0, "a:1").with(32, "b:1"));
+        assertThrows(IllegalArgumentException.class, () -> Membership.decode("epoch=1\nbogus=1\nmember.0=a:1\n"));
+        assertThrows(IllegalArgumentException.class, () -> Membership.decode("epoch=1\n"));
+    }
+}
@@ -0,0 +1,60 @@
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * {@link MerkleTree} digests depend on the entries only, not on the order they were added in, and
+ * a single differing entry is found in its own leaf bucket.
+ */
+class MerkleTreeTest {
+
+    @Test
+    void digestsDoNotDependOnOrder() {
+        MerkleTree forward = new MerkleTree(6);
+        MerkleTree backward = new MerkleTree(6);
+        for (int i = 0; i < 500; i++) {
+            forward.added("k" + i, "v" + i);
+            backward.added("k" + (499 - i), "v" + (499 - i));
+        }
+        assertArrayEquals(forward.buildTree(), backward.buildTree());
+    }
+
+    @Test
+    void removingRestoresTheDigest() {
+        MerkleTree tree = new MerkleTree(6);
+        tree.added("a", "1");
+        long[] before = tree.buildTree();
+        tree.added("b", "2");
+        assertNotEquals(before[1], tree.buildTree()[1]);
+        tree.removed("b", "2");
+        assertArrayEquals(before, tree.buildTree());
+        tree.removed("a", "1");
+        assertArrayEquals(new MerkleTree(6).buildTree(), tree.buildTree());
+    }
+
+    @Test
+    void differingEntryShowsInItsBucketOnly() {
+        MerkleTree left = new MerkleTree(8);
+        MerkleTree right = new MerkleTree(8);
+        for (int i = 0; i < 200; i++) {
+            left.added("k" + i, "v" + i);
+            right.added("k" + i, i == 7 ? "other" : "v" + i);
+        }
+        long[] l = left.buildTree();
+        long[] r = right.buildTree();
+        int leaf = left.leafCount() + left.bucketOf("k7");
+        for (int node = left.leafCount(); node < l.length; node++) {
+            assertEquals(node == leaf, l[node] != r[node], "leaf " + node);
+        }
+        assertNotEquals(l[1], r[1]);
+        assertArrayEquals(new long[]{l[1], l[leaf]}, left.digests(new int[]{1, leaf}));
+    }
+
+    @Test
+    void clearEmptiesEveryBucket() {
+        MerkleTree tree = new MerkleTree(4);
+        tree.added("k", "v");
+        tree.clear();
+        assertArrayEquals(new MerkleTree(4).buildTree(), tree.buildTree());
+    }
+}
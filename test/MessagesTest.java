@@ -0,0 +1,132 @@
+import org.junit.jupiter.api.Test;
+
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Round trips of the binary records in {@link Messages}, and what the decoders do with records
+ * that are truncated or lie about their sizes.
+ */
+class MessagesTest {
+
+    @Test
+    void batchRoundTrip() {
+        List<Messages.Command> commands = Arrays.asList(
+                new Messages.Command(Messages.PUT, "key", "value with spaces"),
+                new Messages.Command(Messages.DELETE, "键", ""),
+                new Messages.Command(Messages.PUT_BLOB, "big", new Messages.BlobRef(1 << 20, "ab12").encode()),
+                new Messages.Command(Messages.CONFIG, "", "epoch=1\nmember.0=localhost:2000\n"));
+        Messages.Command[] decoded = Messages.decodeBatch(Messages.encodeBatch(commands));
+        assertEquals(commands.size(), decoded.length);
+        for (int i = 0; i < decoded.length; i++) {
+            assertEquals(commands.get(i).op, decoded[i].op);
+            assertEquals(commands.get(i).key, decoded[i].key);
+            assertEquals(commands.get(i).value, decoded[i].value);
+        }
+    }
+
+    @Test
+    void noopIsAnEmptyBatch() {
+        assertEquals(0, Messages.decodeBatch(Messages.NOOP).length);
+        assertTrue(Messages.blobRefs(Messages.NOOP).isEmpty());
+    }
+
+    @Test
+    void blobRefsSkipsOtherCommands() {
+        Messages.BlobRef ref = new Messages.BlobRef(123456, "cafe");
+        byte[] value = Messages.encodeBatch(Arrays.asList(
+                new Messages.Command(Messages.PUT, "a", "1"),
+                new Messages.Command(Messages.PUT_BLOB, "b", ref.encode()),
+                new Messages.Command(Messages.DELETE, "c", "")));
+        List<Messages.BlobRef> refs = Messages.blobRefs(value);
+        assertEquals(1, refs.size());
+        assertEquals(ref.size, refs.get(0).size);
+        assertEquals(ref.digest, refs.get(0).digest);
+    }
+
+    @Test
+    void ackCarriesLongBallots() {
+        long ballot = (1L << 40) | 7;
+        byte[] ack = Messages.ack(true, ballot);
+        assertTrue(Messages.isGranted(ack));
+        assertEquals(ballot, Messages.ballotOf(ack));
+        assertFalse(Messages.isGranted(Messages.ack(false, ballot)));
+        assertFalse(Messages.isGranted(null));
+    }
+
+    @Test
+    void promiseRoundTrip() {
+        long[] slots = {3, 9};
+        long[] ballots = {(5L << 33) | 2, Messages.Promise.CHOSEN};
+        byte[][] values = {Messages.NOOP, Messages.encodeBatch(List.of(new Messages.Command(Messages.PUT, "k", "v")))};
+        Messages.Promise promise = Messages.Promise.decode(new Messages.Promise(true, 1L << 35, true, slots, ballots, values).encode());
+        assertTrue(promise.granted);
+        assertEquals(1L << 35, promise.ballot);
+        assertTrue(promise.truncated);
+        assertArrayEquals(slots, promise.slots);
+        assertArrayEquals(ballots, promise.ballots);
+        assertArrayEquals(values[0], promise.values[0]);
+        assertArrayEquals(values[1], promise.values[1]);
+    }
+
+    @Test
+    void responseRoundTrip() {
+        Messages.Response found = Messages.Response.decode(Messages.response(Messages.OK, "v"));
+        assertEquals(Messages.OK, found.status);
+        assertEquals("v", found.value);
+        Messages.Response missing = Messages.Response.decode(Messages.response(Messages.NOT_FOUND, null));
+        assertEquals(Messages.NOT_FOUND, missing.status);
+        assertNull(missing.value);
+        byte[] versioned = Messages.versioned(42, Messages.response(Messages.OK, "v"));
+        assertEquals(42, Messages.versionOf(versioned));
+        assertEquals("v", Messages.Response.decode(Messages.unversioned(versioned)).value);
+    }
+
+    @Test
+    void invalidationsAndScanPagesRoundTrip() {
+        Messages.Invalidations invalidations = Messages.Invalidations.decode(
+                new Messages.Invalidations(17, false, List.of("a", "b")).encode());
+        assertEquals(17, invalidations.through);
+        assertFalse(invalidations.reset);
+        assertArrayEquals(new String[]{"a", "b"}, invalidations.keys);
+
+        Messages.ScanPage page = Messages.ScanPage.decode(
+                new Messages.ScanPage(Messages.OK, List.of("a", "b"), List.of("1", "2"), "b").encode());
+        assertArrayEquals(new String[]{"a", "b"}, page.keys);
+        assertArrayEquals(new String[]{"1", "2"}, page.values);
+        assertEquals("b", page.next);
+    }
+
+    @Test
+    void truncatedBatchIsRejected() {
+        byte[] value = Messages.encodeBatch(List.of(new Messages.Command(Messages.PUT, "key", "value")));
+        for (int length = 1; length < value.length; length++) {
+            byte[] truncated = Arrays.copyOf(value, length);
+            assertThrows(IllegalArgumentException.class, () -> Messages.decodeBatch(truncated));
+            assertFalse(Messages.isValidBatch(truncated));
+        }
+    }
+
+    @Test
+    void countsLargerThanTheRecordAreRejectedBeforeAllocating() {
+        // 声称有 2^28 条命令，实际只有几个字节：不能按声称的条数分配数组
+        byte[] batch = {(byte) 0x80, (byte) 0x80, (byte) 0x80, (byte) 0x80, 0x01, Messages.PUT, 0, 0};
+        assertThrows(IllegalArgumentException.class, () -> Messages.decodeBatch(batch));
+        byte[] promise = new byte[15];
+        promise[10] = (byte) 0xff;
+        promise[11] = (byte) 0xff;
+        promise[12] = (byte) 0xff;
+        promise[13] = (byte) 0xff;
+        promise[14] = 0x07;
+        assertThrows(IllegalArgumentException.class, () -> Messages.Promise.decode(promise));
+    }
+
+    @Test
+    void unknownOperationIsRejected() {
+        byte[] value = Messages.encodeBatch(List.of(new Messages.Command(Messages.PUT, "k", "v")));
+        value[1] = 99;
+        assertThrows(IllegalArgumentException.class, () -> Messages.decodeBatch(value));
+    }
+}
@@ -0,0 +1,109 @@
+import org.junit.jupiter.api.Test;
+
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * {@link NearCache} against reads and invalidations arriving in either order: a value read before
+ * a write must never be cached once that write's invalidation has been seen.
+ */
+class NearCacheTest {
+
+    private static byte[] read(long version, String value) {
+        return Messages.versioned(version, value == null ? Messages.response(Messages.NOT_FOUND, null) : Messages.response(Messages.OK, value));
+    }
+
+    private static Messages.Invalidations invalidate(long through, String... keys) {
+        return new Messages.Invalidations(through, false, List.of(keys));
+    }
+
+    private static NearCache started(int capacity, long through) {
+        NearCache cache = new NearCache(capacity);
+        cache.apply(new Messages.Invalidations(through, true, List.of()));
+        return cache;
+    }
+
+    private static String cached(NearCache cache, String key) {
+        byte[] response = cache.lookup(key);
+        return response == null ? null : Messages.Response.decode(response).value;
+    }
+
+    @Test
+    void readThatStartedBeforeAnInvalidationIsNotCached() {
+        NearCache cache = started(16, 10);
+        // 读在槽位 10 拿到旧值，回来之前槽位 12 写了这个键，失效通知先到
+        byte[] stale = read(10, "old");
+        cache.apply(invalidate(12, "k"));
+        cache.fill("k", stale);
+        assertNull(cache.lookup("k"));
+
+        cache.fill("k", read(12, "new"));
+        assertEquals("new", cached(cache, "k"));
+    }
+
+    @Test
+    void invalidationDropsAValueCachedBeforeIt() {
+        NearCache cache = started(16, 10);
+        cache.fill("k", read(10, "old"));
+        cache.fill("other", read(10, "x"));
+        assertEquals("old", cached(cache, "k"));
+        cache.apply(invalidate(11, "k"));
+        assertNull(cache.lookup("k"));
+        assertEquals("x", cached(cache, "other"));
+    }
+
+    @Test
+    void missingKeysAreCachedAsNotFound() {
+        NearCache cache = started(16, 3);
+        cache.fill("absent", read(3, null));
+        assertEquals(Messages.NOT_FOUND, Messages.Response.decode(cache.lookup("absent")).status);
+    }
+
+    @Test
+    void forgottenInvalidationsStillKeepOlderReadsOut() {
+        NearCache cache = started(2, 0);
+        cache.apply(invalidate(5, "a"));
+        cache.apply(invalidate(6, "b"));
+        // a 的失效记录被挤出去，floor 抬到 5
+        cache.apply(invalidate(7, "c"));
+        cache.fill("a", read(4, "stale"));
+        assertNull(cache.lookup("a"));
+        cache.fill("a", read(5, "fresh"));
+        assertEquals("fresh", cached(cache, "a"));
+    }
+
+    @Test
+    void answersNothingUntilTheStreamStartsAndAfterItBreaks() {
+        NearCache cache = new NearCache(16);
+        cache.fill("k", read(1, "v"));
+        assertNull(cache.lookup("k"));
+        assertFalse(cache.isReady());
+
+        cache.apply(new Messages.Invalidations(1, true, List.of()));
+        cache.fill("k", read(1, "v"));
+        assertEquals("v", cached(cache, "k"));
+
+        cache.suspend();
+        assertNull(cache.lookup("k"));
+        cache.fill("k", read(2, "v"));
+        assertNull(cache.lookup("k"));
+    }
+
+    @Test
+    void resetEmptiesTheCache() {
+        NearCache cache = started(16, 1);
+        cache.fill("k", read(1, "v"));
+        cache.apply(new Messages.Invalidations(50, true, List.of()));
+        assertNull(cache.lookup("k"));
+        cache.fill("k", read(49, "v"));
+        assertNull(cache.lookup("k"));
+    }
+
+    @Test
+    void onlyOkAndNotFoundAreCached() {
+        NearCache cache = started(16, 1);
+        cache.fill("k", Messages.versioned(1, Messages.response(Messages.BUSY, null)));
+        assertNull(cache.lookup("k"));
+    }
+}
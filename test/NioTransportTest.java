@@ -0,0 +1,75 @@
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.net.ServerSocket;
+import java.rmi.RemoteException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * {@link NioTransport} between a client and replicas of an in-process server, over loopback.
+ */
+class NioTransportTest {
+
+    private static int freePort() throws IOException {
+        try (ServerSocket socket = new ServerSocket(0)) {
+            return socket.getLocalPort();
+        }
+    }
+
+    @Test
+    void pipelinedCallsGetTheirOwnResponses() throws Exception {
+        RMIInterface replica = new RMIServer().startInProcess().get(0);
+        int port = freePort();
+        new NioTransport().export(replica, port, "RMIDictionary0");
+        RMIInterface stub = new NioTransport().connect("localhost", port, "RMIDictionary0");
+
+        assertEquals(Messages.OK, Messages.statusOf(stub.put("k", "v")));
+        assertEquals("v", Messages.Response.decode(stub.get("k")).value);
+        // 一条连接上同时有很多请求在途，回复按请求编号对上
+        List<CompletableFuture<byte[]>> puts = new ArrayList<>();
+        for (int i = 0; i < 100; i++) {
+            puts.add(((AsyncReplica) stub).putAsync("key" + i, "value" + i));
+        }
+        for (CompletableFuture<byte[]> put : puts) {
+            assertEquals(Messages.OK, Messages.statusOf(put.get(10, TimeUnit.SECONDS)));
+        }
+        String[] keys = {"key99", "missing", "key0"};
+        byte[][] values = stub.multiGet(keys);
+        assertEquals("value99", Messages.Response.decode(values[0]).value);
+        assertEquals(Messages.NOT_FOUND, Messages.statusOf(values[1]));
+        assertEquals("value0", Messages.Response.decode(values[2]).value);
+        assertEquals(101, stub.getDictionary().size());
+    }
+
+    @Test
+    void stubReconnectsOnceTheReplicaIsBack() throws Exception {
+        int port = freePort();
+        RMIInterface stub;
+        try (ServerSocket listener = new ServerSocket(port)) {
+            Thread dropper = new Thread(() -> {
+                try {
+                    // 接受之后马上断开，相当于副本进程被杀
+                    listener.accept().close();
+                } catch (IOException e) {
+                    // 测试结束
+                }
+            });
+            dropper.start();
+            stub = new NioTransport().connect("localhost", port, "RMIDictionary0");
+            dropper.join();
+        }
+        // 断开的连接上的调用失败；重连时没有人监听，连接被拒绝
+        assertThrows(RemoteException.class, () -> stub.get("k"));
+        assertThrows(RemoteException.class, () -> stub.get("k"));
+
+        RMIInterface replica = new RMIServer().startInProcess().get(0);
+        new NioTransport().export(replica, port, "RMIDictionary0");
+        assertEquals(Messages.OK, Messages.statusOf(stub.put("k", "v")));
+        assertEquals("v", Messages.Response.decode(stub.get("k")).value);
+    }
+}
@@ -0,0 +1,75 @@
+import org.junit.jupiter.api.Test;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * {@link OffHeapStore} against a {@link HashMap} model, with pages and an index small enough that
+ * the test crosses page boundaries and rebuilds the index many times.
+ */
+class OffHeapStoreTest {
+
+    @Test
+    void basicOperations() {
+        OffHeapStore store = new OffHeapStore(1 << 12, 4);
+        assertNull(store.put("k", "v1"));
+        assertEquals("v1", store.put("k", "v2"));
+        assertEquals("v2", store.putIfAbsent("k", "v3"));
+        assertNull(store.putIfAbsent("键", "值"));
+        assertTrue(store.containsKey("键"));
+        assertEquals("值", store.get("键"));
+        assertFalse(store.remove("k", "v1"));
+        assertTrue(store.remove("k", "v2"));
+        assertNull(store.get("k"));
+        assertEquals("值", store.remove("键"));
+        assertNull(store.remove("键"));
+        assertEquals(0, store.size());
+    }
+
+    @Test
+    void matchesAMapUnderRandomOperations() {
+        OffHeapStore store = new OffHeapStore(1 << 12, 16);
+        Map<String, String> model = new HashMap<>();
+        Random random = new Random(42);
+        for (int i = 0; i < 50_000; i++) {
+            String key = "key" + random.nextInt(2000);
+            switch (random.nextInt(4)) {
+                case 0:
+                    String value = "v".repeat(random.nextInt(40)) + i;
+                    assertEquals(model.put(key, value), store.put(key, value));
+                    break;
+                case 1:
+                    assertEquals(model.putIfAbsent(key, "p" + i), store.putIfAbsent(key, "p" + i));
+                    break;
+                case 2:
+                    assertEquals(model.remove(key), store.remove(key));
+                    break;
+                default:
+                    assertEquals(model.get(key), store.get(key));
+            }
+        }
+        assertEquals(model.size(), store.size());
+        Map<String, String> seen = new HashMap<>();
+        store.forEach(seen::put);
+        assertEquals(model, seen);
+        assertEquals(model, store.toMap());
+    }
+
+    @Test
+    void copyIsIndependent() {
+        OffHeapStore store = new OffHeapStore(1 << 12, 16);
+        for (int i = 0; i < 1000; i++) {
+            store.put("k" + i, "v" + i);
+        }
+        KeyValueStore copy = store.copy();
+        store.clear();
+        store.put("k0", "changed");
+        assertEquals(1000, copy.size());
+        assertEquals("v0", copy.get("k0"));
+        assertEquals("v999", copy.get("k999"));
+        assertEquals(1, store.size());
+    }
+}
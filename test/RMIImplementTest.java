@@ -0,0 +1,263 @@
+import org.junit.jupiter.api.Test;
+
+import java.rmi.RemoteException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeSet;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * One {@link RMIImplement} replica: its key locks, leases, catching up from a streamed snapshot,
+ * admission control and the merging of scan pages from several shards.
+ */
+class RMIImplementTest {
+
+    private static byte[] put(String key, String value) {
+        return Messages.encodeBatch(List.of(new Messages.Command(Messages.PUT, key, value)));
+    }
+
+    private static List<RMIInterface> startInProcess(String property, String value) throws RemoteException {
+        System.setProperty(property, value);
+        try {
+            return new RMIServer().startInProcess();
+        } finally {
+            System.clearProperty(property);
+        }
+    }
+
+    @Test
+    void keyLockIsHeldFromPrepareUntilTheCommit() throws Exception {
+        RMIImplement replica = new RMIImplement(new RMIServer(), 2000);
+        assertTrue(replica.prepareToOperation("k", "v", "put"));
+
+        // 另一个线程拿不到同一个键的锁，退避几次之后放弃
+        boolean[] other = new boolean[1];
+        Thread competitor = new Thread(() -> {
+            try {
+                other[0] = replica.prepareToOperation("k", "w", "put");
+            } catch (RemoteException e) {
+                throw new AssertionError(e);
+            }
+        });
+        competitor.start();
+        competitor.join();
+        assertFalse(other[0]);
+
+        replica.finallyGotCommitSoReallyUpdate("k", "v", "put");
+        assertEquals("v", replica.getDictionary().get("k"));
+        // 锁已经放开，键已经存在，所以是冲突而不是锁忙
+        long conflicts = Metrics.CONFLICTS.sum();
+        assertFalse(replica.prepareToOperation("k", "w", "put"));
+        assertEquals(conflicts + 1, Metrics.CONFLICTS.sum());
+        assertTrue(replica.prepareToOperation("k", null, "delete"));
+        replica.finallyGotCommitSoReallyUpdate("k", null, "delete");
+        assertNull(replica.getDictionary().get("k"));
+    }
+
+    @Test
+    void concurrentPutsOfOneKeyApplyExactlyOne() throws Exception {
+        List<RMIInterface> replicas = new RMIServer().startInProcess();
+        int writers = 8;
+        CountDownLatch start = new CountDownLatch(1);
+        byte[][] responses = new byte[writers][];
+        List<Thread> threads = new ArrayList<>();
+        for (int i = 0; i < writers; i++) {
+            int writer = i;
+            Thread thread = new Thread(() -> {
+                try {
+                    start.await();
+                    responses[writer] = replicas.get(writer % replicas.size()).put("hot", "v" + writer);
+                } catch (Exception e) {
+                    throw new AssertionError(e);
+                }
+            });
+            thread.start();
+            threads.add(thread);
+        }
+        start.countDown();
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        String winner = null;
+        for (int i = 0; i < writers; i++) {
+            if (Messages.statusOf(responses[i]) == Messages.OK) {
+                assertNull(winner, "two puts of the same key succeeded");
+                winner = "v" + i;
+            } else {
+                assertEquals(Messages.CONFLICT, Messages.statusOf(responses[i]));
+            }
+        }
+        assertNotNull(winner);
+
+        // 每个副本最终都是同一个值，Merkle 根摘要也一样
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(10);
+        for (RMIInterface replica : replicas) {
+            while (!winner.equals(replica.getDictionary().get("hot"))) {
+                assertTrue(System.nanoTime() < deadline, "a replica did not apply the winning put");
+                Thread.sleep(10);
+            }
+            assertArrayEquals(replicas.get(0).merkleDigests(new int[]{1}), replica.merkleDigests(new int[]{1}));
+        }
+    }
+
+    @Test
+    void catchUpInstallsTheStreamedSnapshotThenTheSlotsAfterIt() throws Exception {
+        RMIServer server = new RMIServer();
+        RMIImplement fresh = new RMIImplement(server, 2003);
+        fresh.beginCatchUp(9);
+        // 追赶期间选定的槽位先留着，装好快照之后再应用
+        fresh.commit(10, put("key10", "v10"));
+        assertEquals(-1, fresh.lastAppliedSlot());
+
+        assertThrows(RemoteException.class, () -> fresh.catchUpChunk(8, Map.of("stale", "x")));
+        Map<String, String> first = new HashMap<>();
+        Map<String, String> second = new HashMap<>();
+        for (int i = 0; i < 10; i++) {
+            (i < 5 ? first : second).put("key" + i, "v" + i);
+        }
+        fresh.catchUpChunk(9, first);
+        fresh.catchUpChunk(9, second);
+        fresh.finishCatchUp(9);
+        assertEquals(10, fresh.lastAppliedSlot());
+
+        // 和一个从头应用每个槽位的副本一致
+        RMIImplement replayed = new RMIImplement(server, 2004);
+        for (int slot = 0; slot <= 10; slot++) {
+            replayed.commit(slot, put("key" + slot, "v" + slot));
+        }
+        assertEquals(replayed.getDictionary(), fresh.getDictionary());
+        assertArrayEquals(replayed.merkleDigests(new int[]{1}), fresh.merkleDigests(new int[]{1}));
+        assertThrows(RemoteException.class, () -> fresh.finishCatchUp(9));
+    }
+
+    @Test
+    void requestsOverTheAdmissionLimitAreAnsweredBusy() throws Exception {
+        RMIInterface replica = startInProcess("paxos.admission.maxInFlight", "1").get(0);
+        AtomicBoolean sawBusy = new AtomicBoolean();
+        // 一个线程不停地写，占着唯一的名额；同时来的读应该立即拿到 BUSY
+        Thread writer = new Thread(() -> {
+            long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(30);
+            for (int round = 0; !sawBusy.get() && System.nanoTime() < deadline; round++) {
+                String[] keys = new String[200];
+                String[] values = new String[200];
+                for (int i = 0; i < keys.length; i++) {
+                    keys[i] = "r" + round + "-" + i;
+                    values[i] = "v";
+                }
+                try {
+                    replica.multiPut(keys, values);
+                } catch (RemoteException e) {
+                    throw new AssertionError(e);
+                }
+            }
+        });
+        writer.start();
+        while (writer.isAlive() && !sawBusy.get()) {
+            if (Messages.statusOf(replica.get("probe")) == Messages.BUSY) {
+                sawBusy.set(true);
+            }
+        }
+        writer.join();
+        assertTrue(sawBusy.get());
+        assertEquals(Messages.NOT_FOUND, Messages.statusOf(replica.get("probe")));
+    }
+
+    @Test
+    void leaseHolderKeepsOtherProposersOutUntilItExpires() throws Exception {
+        System.setProperty("paxos.lease.ms", "300");
+        RMIServer server;
+        try {
+            server = new RMIServer();
+        } finally {
+            System.clearProperty("paxos.lease.ms");
+        }
+        RMIImplement replica = new RMIImplement(server, 2000);
+        long leader = new Ballots(0).next();
+        long competitor = leader + (1L << Ballots.NODE_BITS) + 1;
+        assertTrue(Messages.isGranted(replica.grantLease(leader)));
+        // 租约期间更高的提案号也不能拿到承诺，否则 leader 的本地读可能读到旧值
+        assertFalse(Messages.isGranted(replica.promise(competitor, 0)));
+        assertFalse(Messages.isGranted(replica.grantLease(leader - 1)));
+        Thread.sleep(400);
+        assertTrue(Messages.isGranted(replica.promise(competitor, 0)));
+        assertFalse(Messages.isGranted(replica.grantLease(leader)));
+    }
+
+    private static Messages.ScanPage page(String next, String... keys) {
+        List<String> values = new ArrayList<>();
+        for (String key : keys) {
+            values.add("v-" + key);
+        }
+        return new Messages.ScanPage(Messages.OK, List.of(keys), values, next);
+    }
+
+    @Test
+    void mergedPageStopsAtTheSmallestContinuation() {
+        // 第一个分片在 e 之后还有键，合并结果不能越过 e，否则会漏掉它后面的键
+        Messages.ScanPage merged = RMIImplement.mergePages(new Messages.ScanPage[]{
+                page("e", "a", "c", "e"), page(null, "b", "d", "f", "g")}, 10);
+        assertArrayEquals(new String[]{"a", "b", "c", "d", "e"}, merged.keys);
+        assertArrayEquals(new String[]{"v-a", "v-b", "v-c", "v-d", "v-e"}, merged.values);
+        assertEquals("e", merged.next);
+
+        Messages.ScanPage limited = RMIImplement.mergePages(new Messages.ScanPage[]{
+                page(null, "a", "c"), page(null, "b", "d")}, 3);
+        assertArrayEquals(new String[]{"a", "b", "c"}, limited.keys);
+        assertEquals("c", limited.next);
+
+        Messages.ScanPage last = RMIImplement.mergePages(new Messages.ScanPage[]{page(null, "x"), page(null)}, 3);
+        assertArrayEquals(new String[]{"x"}, last.keys);
+        assertNull(last.next);
+    }
+
+    @Test
+    void pagedScanAcrossShardsReturnsEveryKeyOnce() {
+        // 三个分片各自按页返回，续传令牌是上一页最后一个键；合并后的分页必须不重不漏
+        ShardMap shards = new ShardMap(3);
+        List<TreeSet<String>> owned = new ArrayList<>();
+        for (int shard = 0; shard < 3; shard++) {
+            owned.add(new TreeSet<>());
+        }
+        TreeSet<String> all = new TreeSet<>();
+        for (int i = 0; i < 500; i++) {
+            String key = "key" + i;
+            owned.get(shards.shardOf(key)).add(key);
+            all.add(key);
+        }
+        for (int pageSize : new int[]{1, 7, 64, 1000}) {
+            List<String> scanned = new ArrayList<>();
+            String after = null;
+            do {
+                Messages.ScanPage[] pages = new Messages.ScanPage[3];
+                for (int shard = 0; shard < 3; shard++) {
+                    pages[shard] = shardPage(owned.get(shard), after, pageSize);
+                }
+                Messages.ScanPage merged = RMIImplement.mergePages(pages, pageSize);
+                assertTrue(merged.keys.length <= pageSize);
+                scanned.addAll(List.of(merged.keys));
+                after = merged.next;
+            } while (after != null);
+            assertEquals(new ArrayList<>(all), scanned, "page size " + pageSize);
+        }
+    }
+
+    // 一个分片的一页：after 之后的前 limit 个键，后面还有就带上续传令牌
+    private static Messages.ScanPage shardPage(TreeSet<String> keys, String after, int limit) {
+        List<String> page = new ArrayList<>();
+        List<String> values = new ArrayList<>();
+        for (String key : after == null ? keys : keys.tailSet(after, false)) {
+            if (page.size() == limit) {
+                return new Messages.ScanPage(Messages.OK, page, values, page.get(page.size() - 1));
+            }
+            page.add(key);
+            values.add("v");
+        }
+        return new Messages.ScanPage(Messages.OK, page, values, null);
+    }
+}
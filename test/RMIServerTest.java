@@ -0,0 +1,153 @@
+import org.junit.jupiter.api.Test;
+
+import java.rmi.RemoteException;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Consensus rounds and the learner of one {@link RMIServer} whose replicas run in this JVM
+ * ({@link RMIServer#startInProcess()}), so no ports are used.
+ */
+class RMIServerTest {
+
+    private static byte[] put(RMIServer server, RMIInterface proposer, String key, String value) throws Exception {
+        return server.propose(proposer, new Messages.Command(Messages.PUT, key, value));
+    }
+
+    @Test
+    void fanOutReturnsOnAQuorumWithoutWaitingForSlowReplicas() throws Exception {
+        RMIServer server = new RMIServer();
+        List<RMIInterface> replicas = server.startInProcess();
+        long start = System.nanoTime();
+        // 两个副本要 5 秒才回复，另外三个马上同意
+        List<byte[]> responses = server.fanOutToQuorum(replicas, stub -> {
+            if (replicas.indexOf(stub) < 2) {
+                sleep(5000);
+            }
+            return Messages.ack(true, 1);
+        }, Messages::isGranted, 3);
+        assertTrue(System.nanoTime() - start < TimeUnit.SECONDS.toNanos(2));
+        assertEquals(3, responses.size());
+        responses.forEach(response -> assertTrue(Messages.isGranted(response)));
+    }
+
+    @Test
+    void fanOutStopsOnceAQuorumIsOutOfReach() throws Exception {
+        RMIServer server = new RMIServer();
+        List<RMIInterface> replicas = server.startInProcess();
+        long start = System.nanoTime();
+        // 三个副本联系不上，剩下两个再怎么同意也凑不够三票，不用等它们
+        List<byte[]> responses = server.fanOutToQuorum(replicas, stub -> {
+            if (replicas.indexOf(stub) < 3) {
+                throw new RemoteException("unreachable");
+            }
+            sleep(5000);
+            return Messages.ack(true, 1);
+        }, Messages::isGranted, 3);
+        assertTrue(System.nanoTime() - start < TimeUnit.SECONDS.toNanos(2));
+        assertEquals(3, responses.size());
+        responses.forEach(response -> assertEquals(0, response.length));
+    }
+
+    private static void sleep(long millis) {
+        try {
+            Thread.sleep(millis);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    @Test
+    void stableLeaderSkipsThePreparePhase() throws Exception {
+        System.setProperty("paxos.multi", "true");
+        RMIServer server;
+        try {
+            server = new RMIServer();
+        } finally {
+            System.clearProperty("paxos.multi");
+        }
+        RMIInterface proposer = server.startInProcess().get(0);
+        assertEquals(Messages.OK, Messages.statusOf(put(server, proposer, "first", "v")));
+        assertNotNull(server.currentLeader());
+        // 第一次写选出 leader；之后 leader 直接发 accept，副本不再收到 prepare
+        long promises = Metrics.PROMISE.count();
+        for (int i = 0; i < 20; i++) {
+            assertEquals(Messages.OK, Messages.statusOf(put(server, proposer, "key" + i, "v")));
+        }
+        assertEquals(promises, Metrics.PROMISE.count());
+        assertEquals("v", Messages.Response.decode(proposer.get("key19")).value);
+    }
+
+    @Test
+    void classicRoundsPrepareEveryTime() throws Exception {
+        RMIServer server = new RMIServer();
+        RMIInterface proposer = server.startInProcess().get(0);
+        long promises = Metrics.PROMISE.count();
+        for (int i = 0; i < 5; i++) {
+            assertEquals(Messages.OK, Messages.statusOf(put(server, proposer, "key" + i, "v")));
+        }
+        assertTrue(Metrics.PROMISE.count() >= promises + 5 * 3);
+    }
+
+    @Test
+    void learnerKeepsOnlyARecentWindowOfSlots() throws Exception {
+        // 窗口不会小于一次失效通知覆盖的槽位数（1024），写得比它多
+        System.setProperty("paxos.learner.retainSlots", "0");
+        RMIServer server;
+        try {
+            server = new RMIServer();
+        } finally {
+            System.clearProperty("paxos.learner.retainSlots");
+        }
+        RMIInterface proposer = server.startInProcess().get(0);
+        for (int i = 0; i < 1100; i++) {
+            assertEquals(Messages.OK, Messages.statusOf(put(server, proposer, "key" + i, "v" + i)));
+        }
+        long applied = Messages.Invalidations.decode(server.invalidationsAfter(-1, 0)).through;
+        assertTrue(applied >= 1099);
+
+        Messages.Invalidations recent = Messages.Invalidations.decode(server.invalidationsAfter(applied - 2, 0));
+        assertFalse(recent.reset);
+        assertEquals(applied, recent.through);
+        assertEquals(List.of("key1098", "key1099"), List.of(recent.keys));
+
+        // 早于窗口的槽位已经丢掉：客户端拿到重置，清空自己的缓存
+        Messages.Invalidations old = Messages.Invalidations.decode(server.invalidationsAfter(5, 0));
+        assertTrue(old.reset);
+        assertEquals(applied, old.through);
+    }
+
+    @Test
+    void addedMemberIsStartedAndCaughtUpInTheBackground() throws Exception {
+        RMIServer server = new RMIServer();
+        RMIInterface proposer = server.startInProcess().get(0);
+        for (int i = 0; i < 50; i++) {
+            put(server, proposer, "key" + i, "v" + i);
+        }
+        // 进程内模式下新成员建在这个 JVM 里，并通过传输层导出
+        assertEquals(Messages.OK, Messages.statusOf(proposer.addMember(5, "localhost:2005")));
+        assertEquals(6, server.membership().size());
+        // 新成员在后台启动，导出之前连不上
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(10);
+        RMIInterface added = null;
+        while (added == null) {
+            try {
+                added = new RmiTransport().connect("localhost", 2005, server.shardMap().nameOf(2005));
+            } catch (RemoteException e) {
+                assertTrue(System.nanoTime() < deadline, "member 5 was not exported");
+                Thread.sleep(10);
+            }
+        }
+        while (added.getDictionary().size() < 50) {
+            assertTrue(System.nanoTime() < deadline, "member 5 did not catch up");
+            Thread.sleep(10);
+        }
+        assertEquals(Messages.OK, Messages.statusOf(put(server, proposer, "after", "join")));
+        while (!"join".equals(added.getDictionary().get("after"))) {
+            assertTrue(System.nanoTime() < deadline, "member 5 did not apply the next write");
+            Thread.sleep(10);
+        }
+    }
+}
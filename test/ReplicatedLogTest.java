@@ -0,0 +1,84 @@
+import org.junit.jupiter.api.Test;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * {@link ReplicatedLog} applies slots chosen in any order strictly in slot order.
+ */
+class ReplicatedLogTest {
+
+    private final List<String> applied = new ArrayList<>();
+
+    private ReplicatedLog log(long firstSlot) {
+        return new ReplicatedLog(firstSlot, (slot, value) -> {
+            applied.add(slot + "=" + new String(value, StandardCharsets.UTF_8));
+            return new boolean[]{true};
+        });
+    }
+
+    private static byte[] value(String text) {
+        return text.getBytes(StandardCharsets.UTF_8);
+    }
+
+    @Test
+    void slotsChosenOutOfOrderAreAppliedInOrder() {
+        ReplicatedLog log = log(0);
+        assertTrue(log.commit(2, value("c")));
+        assertTrue(log.commit(1, value("b")));
+        assertTrue(applied.isEmpty());
+        assertEquals(0, log.nextToApply());
+        assertEquals(2, log.highestCommitted());
+        assertTrue(log.isCommitted(2));
+        assertFalse(log.isCommitted(0));
+
+        assertTrue(log.commit(0, value("a")));
+        assertEquals(List.of("0=a", "1=b", "2=c"), applied);
+        assertEquals(3, log.nextToApply());
+        assertEquals(2, log.highestCommitted());
+    }
+
+    @Test
+    void slotIsCommittedOnlyOnce() {
+        ReplicatedLog log = log(0);
+        assertTrue(log.commit(1, value("b")));
+        assertFalse(log.commit(1, value("other")));
+        assertTrue(log.commit(0, value("a")));
+        assertFalse(log.commit(0, value("again")));
+        assertEquals(List.of("0=a", "1=b"), applied);
+    }
+
+    @Test
+    void waitersGetTheResultsOfTheirSlot() throws Exception {
+        ReplicatedLog log = log(5);
+        CompletableFuture<boolean[]> waiting = log.whenApplied(6);
+        log.commit(6, value("x"));
+        assertFalse(waiting.isDone());
+        log.commit(5, value("w"));
+        assertArrayEquals(new boolean[]{true}, waiting.get());
+        // 注册之前就已经应用过的槽位没有保留结果
+        assertSame(ReplicatedLog.APPLIED_WITHOUT_RESULTS, log.whenApplied(5).get());
+    }
+
+    @Test
+    void heldLogKeepsCommitsUntilItSkipsPastASnapshot() throws Exception {
+        ReplicatedLog log = log(0);
+        log.commit(0, value("a"));
+        log.hold();
+        log.commit(1, value("b"));
+        log.commit(4, value("e"));
+        assertEquals(List.of("0=a"), applied);
+        CompletableFuture<boolean[]> skipped = log.whenApplied(2);
+
+        List<String> installed = new ArrayList<>();
+        log.skipTo(4, () -> installed.add("snapshot through 3"));
+        assertEquals(List.of("snapshot through 3"), installed);
+        assertEquals(List.of("0=a", "4=e"), applied);
+        assertEquals(5, log.nextToApply());
+        assertSame(ReplicatedLog.APPLIED_WITHOUT_RESULTS, skipped.get());
+    }
+}
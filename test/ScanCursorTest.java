@@ -0,0 +1,87 @@
+import org.junit.jupiter.api.Test;
+
+import java.io.UncheckedIOException;
+import java.lang.reflect.Proxy;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * {@link ScanCursor} against a replica that answers {@code scan} with prepared pages.
+ */
+class ScanCursorTest {
+
+    // 按顺序回复准备好的页，并记下每次请求带的续传令牌
+    private static RMIInterface replica(Deque<byte[]> pages, List<String> tokens) {
+        return (RMIInterface) Proxy.newProxyInstance(RMIInterface.class.getClassLoader(), new Class<?>[]{RMIInterface.class},
+                (proxy, method, args) -> {
+                    if (!method.getName().equals("scan")) {
+                        throw new UnsupportedOperationException(method.getName());
+                    }
+                    tokens.add((String) args[2]);
+                    return pages.removeFirst();
+                });
+    }
+
+    private static byte[] page(String next, String... keys) {
+        List<String> values = new ArrayList<>();
+        for (String key : keys) {
+            values.add("v-" + key);
+        }
+        return new Messages.ScanPage(Messages.OK, List.of(keys), values, next).encode();
+    }
+
+    @Test
+    void walksThePagesInOrderPassingTheContinuation() {
+        Deque<byte[]> pages = new ArrayDeque<>(List.of(page("b", "a", "b"), page(null, "c")));
+        List<String> tokens = new ArrayList<>();
+        ScanCursor cursor = new ScanCursor(replica(pages, tokens), "a", "z", 2);
+        List<String> keys = new ArrayList<>();
+        while (cursor.hasNext()) {
+            Map.Entry<String, String> entry = cursor.next();
+            assertEquals("v-" + entry.getKey(), entry.getValue());
+            keys.add(entry.getKey());
+        }
+        assertEquals(List.of("a", "b", "c"), keys);
+        assertEquals(java.util.Arrays.asList(null, "b"), tokens);
+        assertTrue(pages.isEmpty());
+    }
+
+    @Test
+    void emptyPageWithAContinuationIsSkipped() {
+        Deque<byte[]> pages = new ArrayDeque<>(List.of(page("m"), page(null, "x")));
+        ScanCursor cursor = new ScanCursor(replica(pages, new ArrayList<>()), null, null, 10);
+        assertEquals("x", cursor.next().getKey());
+        assertFalse(cursor.hasNext());
+    }
+
+    @Test
+    void busyPageIsAskedForAgainWithTheSameToken() {
+        Deque<byte[]> pages = new ArrayDeque<>(List.of(page("a", "a"), Messages.ScanPage.refused(Messages.BUSY), page(null, "b")));
+        List<String> tokens = new ArrayList<>();
+        ScanCursor cursor = new ScanCursor(replica(pages, tokens), null, null, 1);
+        assertEquals("a", cursor.next().getKey());
+        assertEquals("b", cursor.next().getKey());
+        assertFalse(cursor.hasNext());
+        assertEquals(java.util.Arrays.asList(null, "a", "a"), tokens);
+    }
+
+    @Test
+    void refusedPageFailsTheScan() {
+        Deque<byte[]> pages = new ArrayDeque<>(List.of(Messages.ScanPage.refused(Messages.ERROR)));
+        ScanCursor cursor = new ScanCursor(replica(pages, new ArrayList<>()), null, null, 1);
+        assertThrows(UncheckedIOException.class, cursor::hasNext);
+    }
+
+    @Test
+    void prefixEndIsTheNextStringAfterThePrefix() {
+        assertEquals("ab", ScanCursor.prefixEnd("aa"));
+        assertEquals("b", ScanCursor.prefixEnd("a" + Character.MAX_VALUE));
+        assertNull(ScanCursor.prefixEnd(""));
+        assertNull(ScanCursor.prefixEnd(String.valueOf(Character.MAX_VALUE)));
+    }
+}
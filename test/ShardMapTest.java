@@ -0,0 +1,56 @@
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * {@link ShardMap} placement of keys and replica ports.
+ */
+class ShardMapTest {
+
+    @Test
+    void keysSpreadOverEveryShard() {
+        ShardMap shards = new ShardMap(4);
+        int[] counts = new int[4];
+        for (int i = 0; i < 40_000; i++) {
+            int shard = shards.shardOf("key" + i);
+            assertEquals(shard, shards.shardOf("key" + i));
+            counts[shard]++;
+        }
+        for (int count : counts) {
+            assertTrue(count > 9_000 && count < 11_000, "uneven shards: " + java.util.Arrays.toString(counts));
+        }
+    }
+
+    @Test
+    void placementDoesNotDependOnTheJvm() {
+        // FNV-1a 的结果是固定的，换一个进程或 JVM 版本也一样
+        ShardMap shards = new ShardMap(7);
+        int[] expected = new int[5];
+        for (int i = 0; i < expected.length; i++) {
+            expected[i] = shards.shardOf("user:" + i);
+        }
+        ShardMap again = new ShardMap(7);
+        for (int i = 0; i < expected.length; i++) {
+            assertEquals(expected[i], again.shardOf("user:" + i));
+        }
+        assertEquals(0, new ShardMap(1).shardOf("anything"));
+    }
+
+    @Test
+    void portsMapBackToTheirShard() {
+        ShardMap shards = new ShardMap(3);
+        for (int shard = 0; shard < 3; shard++) {
+            for (int replica = 0; replica < ShardMap.REPLICAS_PER_SHARD; replica++) {
+                int port = shards.portOf(shard, replica);
+                assertEquals(shard, shards.shardOfPort(port));
+            }
+        }
+        assertEquals(ShardMap.BASE_PORT, shards.portOf(0, 0));
+        assertEquals("RMIDictionary7", shards.nameOf(ShardMap.BASE_PORT + 7));
+    }
+
+    @Test
+    void atLeastOneShardIsNeeded() {
+        assertThrows(IllegalArgumentException.class, () -> new ShardMap(0));
+    }
+}
@@ -0,0 +1,83 @@
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.stream.Stream;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * A replica that stops after a snapshot and is started again on the same data directory comes
+ * back with the dictionary, and with slots that were chosen but still waiting behind a hole when
+ * the snapshot was taken, even though the log segment that recorded them is gone.
+ */
+class SnapshotRecoveryTest {
+
+    private static final int PORT = 2000;
+
+    @TempDir
+    Path dir;
+
+    @BeforeEach
+    void useDataDir() {
+        System.setProperty("paxos.data.dir", dir.toString());
+        System.setProperty("paxos.snapshot.every", "10");
+    }
+
+    @AfterEach
+    void clearDataDir() {
+        System.clearProperty("paxos.data.dir");
+        System.clearProperty("paxos.snapshot.every");
+    }
+
+    private static byte[] put(int i) {
+        return Messages.encodeBatch(List.of(new Messages.Command(Messages.PUT, "key" + i, "v" + i)));
+    }
+
+    @Test
+    void restartAfterSnapshotKeepsDictionaryAndPendingCommits() throws Exception {
+        RMIServer server = new RMIServer();
+        RMIImplement replica = new RMIImplement(server, PORT);
+        // 槽位 22 先选定，21 留空，它一直在日志里等着
+        replica.commit(22, put(22));
+        for (int slot = 0; slot <= 20; slot++) {
+            replica.commit(slot, put(slot));
+        }
+        assertEquals(20, replica.lastAppliedSlot());
+        Path replicaDir = dir.resolve("replica-" + PORT);
+        awaitSnapshot(replicaDir, 20);
+
+        // 不关闭旧实例，直接在同一个目录上重新打开，相当于进程崩溃后重启
+        RMIImplement restarted = new RMIImplement(server, PORT);
+        assertEquals(20, restarted.lastAppliedSlot());
+        for (int i = 0; i <= 20; i++) {
+            assertEquals("v" + i, restarted.getDictionary().get("key" + i));
+        }
+        assertNull(restarted.getDictionary().get("key22"));
+
+        restarted.commit(21, put(21));
+        assertEquals(22, restarted.lastAppliedSlot());
+        assertEquals("v22", restarted.getDictionary().get("key22"));
+    }
+
+    // 快照由后台线程写，等它落盘、旧段删掉
+    private static void awaitSnapshot(Path replicaDir, long slot) throws IOException, InterruptedException {
+        Path snapshot = replicaDir.resolve(String.format("snapshot-%020d.snap", slot));
+        long deadline = System.nanoTime() + 10_000_000_000L;
+        while (!Files.exists(snapshot) || snapshotCount(replicaDir) != 1) {
+            assertTrue(System.nanoTime() < deadline, "no snapshot for slot " + slot);
+            Thread.sleep(10);
+        }
+    }
+
+    private static long snapshotCount(Path replicaDir) throws IOException {
+        try (Stream<Path> files = Files.list(replicaDir)) {
+            return files.filter(p -> p.getFileName().toString().startsWith("snapshot-")).count();
+        }
+    }
+}
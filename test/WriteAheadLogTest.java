@@ -0,0 +1,114 @@
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.stream.Stream;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Replay of the records a {@link WriteAheadLog} appended, and round trips of its snapshots.
+ */
+class WriteAheadLogTest {
+
+    @TempDir
+    Path dir;
+
+    /** Collects the replayed records as text, in order. */
+    private static final class Recorder implements WriteAheadLog.Replayer {
+        final List<String> records = new ArrayList<>();
+
+        @Override
+        public void promise(long ballot) {
+            records.add("promise " + ballot);
+        }
+
+        @Override
+        public void accept(long ballot, long slot, byte[] value) {
+            records.add("accept " + ballot + " " + slot + " " + new String(value, StandardCharsets.UTF_8));
+        }
+
+        @Override
+        public void commit(long slot, byte[] value) {
+            records.add("commit " + slot + " " + new String(value, StandardCharsets.UTF_8));
+        }
+    }
+
+    private static byte[] bytes(String s) {
+        return s.getBytes(StandardCharsets.UTF_8);
+    }
+
+    @Test
+    void replaysRecordsInOrderAfterReopening() throws IOException {
+        long ballot = (1L << 40) | 3;
+        WriteAheadLog wal = new WriteAheadLog(dir);
+        wal.sync(wal.logPromise(ballot));
+        wal.sync(wal.logAccept(ballot, 0, bytes("a")));
+        wal.logCommit(0, bytes("a"));
+        wal.sync(wal.logAccept(ballot, 1, bytes("b")));
+
+        Recorder recorder = new Recorder();
+        new WriteAheadLog(dir).replay(recorder);
+        assertEquals(List.of("promise " + ballot, "accept " + ballot + " 0 a", "commit 0 a", "accept " + ballot + " 1 b"),
+                recorder.records);
+    }
+
+    @Test
+    void replaySpansRolledSegments() throws IOException {
+        WriteAheadLog wal = new WriteAheadLog(dir);
+        wal.logCommit(0, bytes("first"));
+        wal.rollSegment();
+        wal.sync(wal.logCommit(1, bytes("second")));
+
+        Recorder recorder = new Recorder();
+        new WriteAheadLog(dir).replay(recorder);
+        assertEquals(List.of("commit 0 first", "commit 1 second"), recorder.records);
+    }
+
+    @Test
+    void snapshotRoundTripAndSegmentCleanup() throws IOException {
+        WriteAheadLog wal = new WriteAheadLog(dir);
+        wal.logCommit(0, bytes("covered"));
+        int firstLive = wal.rollSegment();
+        wal.sync(wal.logCommit(2, bytes("after")));
+
+        KeyValueStore dictionary = new OffHeapStore();
+        dictionary.put("k", "v");
+        dictionary.put("键", "值");
+        Map<Long, Long> acceptedBallots = new HashMap<>(Map.of(5L, 1L << 36));
+        Map<Long, byte[]> acceptedValues = new HashMap<>(Map.of(5L, bytes("accepted")));
+        Map<Long, byte[]> committedValues = new TreeMap<>(Map.of(3L, bytes("pending")));
+        wal.writeSnapshot(new WriteAheadLog.Snapshot(1, 1L << 37, acceptedBallots, acceptedValues, committedValues, dictionary), firstLive);
+
+        WriteAheadLog reopened = new WriteAheadLog(dir);
+        WriteAheadLog.Snapshot snapshot = reopened.loadSnapshot();
+        assertEquals(1, snapshot.lastAppliedSlot);
+        assertEquals(1L << 37, snapshot.promiseNumber);
+        assertEquals(1L << 36, snapshot.acceptedBallots.get(5L));
+        assertArrayEquals(bytes("accepted"), snapshot.acceptedValues.get(5L));
+        assertArrayEquals(bytes("pending"), snapshot.committedValues.get(3L));
+        assertEquals(2, snapshot.dictionary.size());
+        assertEquals("值", snapshot.dictionary.get("键"));
+
+        // 快照覆盖的段已经删掉，只重放快照之后的记录
+        Recorder recorder = new Recorder();
+        reopened.replay(recorder);
+        assertEquals(List.of("commit 2 after"), recorder.records);
+        try (Stream<Path> files = Files.list(dir)) {
+            assertEquals(1, files.filter(p -> p.getFileName().toString().startsWith("snapshot-")).count());
+        }
+    }
+
+    @Test
+    void noSnapshotLoadsAsNull() throws IOException {
+        assertNull(new WriteAheadLog(dir).loadSnapshot());
+    }
+}